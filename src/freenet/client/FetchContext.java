@@ -121,6 +121,10 @@ public class FetchContext implements Cloneable, Serializable {
 
 	/** Ignore USK DATEHINTs */
 	public boolean ignoreUSKDatehints;
+
+	/** Fetch the segments of a splitfile in order, so that the start of the file can be read
+	 * before the rest has been fetched, e.g. for media playback. Slightly slower overall. */
+	public boolean fetchInOrder;
 	
 	public FetchContext(long curMaxLength,
 			long curMaxTempLength, int maxMetadataSize, int maxRecursionLevel, int maxArchiveRestarts, int maxArchiveLevels,
@@ -227,6 +231,7 @@ public class FetchContext implements Cloneable, Serializable {
 		this.cooldownRetries = ctx.cooldownRetries;
 		this.cooldownTime = ctx.cooldownTime;
 		this.ignoreUSKDatehints = ctx.ignoreUSKDatehints;
+		this.fetchInOrder = ctx.fetchInOrder;
 
 		if(maskID == IDENTICAL_MASK || maskID == SPLITFILE_DEFAULT_MASK) {
 			// DEFAULT
@@ -287,7 +292,9 @@ public class FetchContext implements Cloneable, Serializable {
 	}
 
     private static final long CLIENT_DETAIL_MAGIC = 0x5ae53b0ce18dd821L;
-    private static final int CLIENT_DETAIL_VERSION = 1;
+    private static final int CLIENT_DETAIL_VERSION = 2;
+    /** Before fetchInOrder was added. */
+    private static final int CLIENT_DETAIL_VERSION_NO_IN_ORDER = 1;
 
     public void writeTo(DataOutputStream dos) throws IOException {
         dos.writeLong(CLIENT_DETAIL_MAGIC);
@@ -333,6 +340,7 @@ public class FetchContext implements Cloneable, Serializable {
         dos.writeInt(cooldownRetries);
         dos.writeLong(cooldownTime);
         dos.writeBoolean(ignoreUSKDatehints);
+        dos.writeBoolean(fetchInOrder);
     }
     
     /** Create from a saved form, e.g. for restarting a request from scratch. Will create its own
@@ -346,7 +354,7 @@ public class FetchContext implements Cloneable, Serializable {
         if(magic != CLIENT_DETAIL_MAGIC) 
             throw new StorageFormatException("Bad magic for fetch settings (FetchContext)");
         int version = dis.readInt();
-        if(version != CLIENT_DETAIL_VERSION)
+        if(version != CLIENT_DETAIL_VERSION && version != CLIENT_DETAIL_VERSION_NO_IN_ORDER)
             throw new StorageFormatException("Bad version for fetch settings (FetchContext)");
         maxOutputLength = dis.readLong();
         if(maxOutputLength < 0) throw new StorageFormatException("Bad max output length");
@@ -404,6 +412,8 @@ public class FetchContext implements Cloneable, Serializable {
         cooldownRetries = dis.readInt();
         cooldownTime = dis.readLong();
         ignoreUSKDatehints = dis.readBoolean();
+        if(version != CLIENT_DETAIL_VERSION_NO_IN_ORDER)
+            fetchInOrder = dis.readBoolean();
         hasOwnEventProducer = true;
         eventProducer = new SimpleEventProducer();
         blocks = null;
@@ -428,6 +438,7 @@ public class FetchContext implements Cloneable, Serializable {
         result = prime * result + (ignoreStore ? 1231 : 1237);
         result = prime * result + (ignoreTooManyPathComponents ? 1231 : 1237);
         result = prime * result + (ignoreUSKDatehints ? 1231 : 1237);
+        result = prime * result + (fetchInOrder ? 1231 : 1237);
         result = prime * result + (localRequestOnly ? 1231 : 1237);
         result = prime * result + maxArchiveLevels;
         result = prime * result + maxArchiveRestarts;
@@ -498,6 +509,8 @@ public class FetchContext implements Cloneable, Serializable {
             return false;
         if (ignoreUSKDatehints != other.ignoreUSKDatehints)
             return false;
+        if (fetchInOrder != other.fetchInOrder)
+            return false;
         if (localRequestOnly != other.localRequestOnly)
             return false;
         if (maxArchiveLevels != other.maxArchiveLevels)
@@ -535,6 +535,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 					}
 				}
 			}
+			setChanged(context);
 			tryComplete(context);
 		}
 
@@ -546,6 +547,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 				currentState = null;
 			}
 			if(logMINOR) Logger.minor(this, "Failed: "+this+" - "+e, e);
+			setChanged(context);
 			fail(e, context);
 		}
 
@@ -564,6 +566,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 					currentState = newState;
 					if(logMINOR)
 						Logger.minor(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState+" for "+this);
+					setChanged(context);
 					return;
 				}
 				Logger.error(this, "Ignoring onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState+" for "+this);
@@ -934,6 +937,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		if (containerMode) throw new IllegalStateException();
 		if(logMINOR) Logger.minor(this, "Got all metadata");
 		baseMetadata = makeMetadata(rootDir);
+		setChanged(context);
 		context.jobRunner.setCheckpointASAP();
 		resolveAndStartBase(context);
 	}
@@ -1079,6 +1083,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		// FIXME we could remove the put handlers after inserting all files but not having finished the insert of the manifest
 		// However it would complicate matters for no real gain in most cases...
 		// Also doing it this way means we don't need to worry about
+		setChanged(context);
 		cb.onSuccess(this);
 	}
 
@@ -1095,6 +1100,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		}
 		cancelAndFinish(context);
 
+		setChanged(context);
 		cb.onFailure(e, this);
 	}
 
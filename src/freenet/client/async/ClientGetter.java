@@ -35,6 +35,7 @@ import freenet.client.events.ExpectedMIMEEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileCompatibilityModeEvent;
 import freenet.client.events.SplitfileProgressEvent;
+import freenet.client.events.SplitfileStreamEvent;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.FilterMIMEType;
 import freenet.client.filter.UnsafeContentTypeException;
@@ -299,8 +300,8 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		// nested locking resulting in deadlocks, it also prevents long locks due to
 		// doing massive encrypted I/Os while holding a lock.
 
-		PipedOutputStream dataOutput = new PipedOutputStream();
-		PipedInputStream dataInput = new PipedInputStream();
+		PipedOutputStream dataOutput = null;
+		PipedInputStream dataInput = null;
 		OutputStream output = null;
 
 		DecompressorThreadManager decompressorManager = null;
@@ -321,52 +322,75 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
             maxLen = Math.max(ctx.maxTempLength, ctx.maxOutputLength);
         }
         
+		// If there is nothing to do to the data, write it straight to the destination, 
+		// without the pipe and the worker thread. The stream generator may be able to copy
+		// directly from file to file.
+		boolean direct = (decompressors == null || decompressors.isEmpty()) && 
+			!ctx.filterData && hashes == null;
+
 		FetchException ex = null; // set on failure
 		try {
 			if(returnBucket == null) finalResult = context.getBucketFactory(persistent()).makeBucket(maxLen);
 			else finalResult = returnBucket;
 			if(logMINOR) Logger.minor(this, "Writing final data to "+finalResult+" return bucket is "+returnBucket);
-			dataOutput .connect(dataInput);
+			if(!direct) {
+				dataOutput = new PipedOutputStream();
+				dataInput = new PipedInputStream();
+				dataOutput.connect(dataInput);
+			}
 			result = new FetchResult(clientMetadata, finalResult);
 
 			// Decompress
-			if(decompressors != null) {
+			if(decompressors != null && !direct) {
 				if(logMINOR) Logger.minor(this, "Decompressing...");
 				decompressorManager =  new DecompressorThreadManager(dataInput, decompressors, maxLen);
 				dataInput = decompressorManager.execute();
 			}
 
-			output = finalResult.getOutputStream();
 			if(ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
-			worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
-			worker.start();
-			try {
-				streamGenerator.writeTo(dataOutput, context);
-			} catch(IOException e) {
-				//Check if the worker thread caught an exception
-				worker.getError();
-				//If not, throw the original error
-				throw e;
-			}
+			if(direct) {
+				if(logMINOR) Logger.minor(this, "Writing directly to "+finalResult);
+				output = finalResult.getOutputStreamUnbuffered();
+				streamGenerator.writeTo(output, context);
+				// Closing may fail, e.g. if a FileBucket can't rename the temp file.
+				output.close();
+				output = null;
+				synchronized(this) {
+				    this.expectedMIME = result.getMimeType();
+				    this.expectedSize = result.size();
+				}
+			} else {
+				output = finalResult.getOutputStream();
+				worker = new ClientGetWorkerThread(new BufferedInputStream(dataInput), output, uri, mimeType, hashes, ctx.filterData, ctx.charset, ctx.prefetchHook, ctx.tagReplacer, context.linkFilterExceptionProvider);
+				worker.start();
+				try {
+					streamGenerator.writeTo(dataOutput, context);
+				} catch(IOException e) {
+					//Check if the worker thread caught an exception
+					worker.getError();
+					//If not, throw the original error
+					throw e;
+				}
 
-			// An error will propagate backwards, so wait for the worker first.
+				// An error will propagate backwards, so wait for the worker first.
 			
-			if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
-			worker.waitFinished();
+				if(logMINOR) Logger.minor(this, "Waiting for hashing, filtration, and writing to finish");
+				worker.waitFinished();
 
-			if(decompressorManager != null) {
-				if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
-				decompressorManager.waitFinished();
-			}
+				if(decompressorManager != null) {
+					if(logMINOR) Logger.minor(this, "Waiting for decompression to finalize");
+					decompressorManager.waitFinished();
+				}
 
-			if(worker.getClientMetadata() != null) {
-				clientMetadata = worker.getClientMetadata();
-				result = new FetchResult(clientMetadata, finalResult);
-			}
-			// These must be updated for ClientGet.
-			synchronized(this) {
-			    this.expectedMIME = result.getMimeType();
-			    this.expectedSize = result.size();
+				if(worker.getClientMetadata() != null) {
+					clientMetadata = worker.getClientMetadata();
+					result = new FetchResult(clientMetadata, finalResult);
+				}
+				// These must be updated for ClientGet.
+				synchronized(this) {
+				    this.expectedMIME = result.getMimeType();
+				    this.expectedSize = result.size();
+				}
 			}
 		} catch(UnsafeContentTypeException e) {
 			Logger.normal(this, "Error filtering content: will not validate", e);
@@ -407,6 +431,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			}
 			return;
 		}
+		setChanged(context);
 		context.getJobRunner(persistent()).setCheckpointASAP();
 		clientCallback.onSuccess(result, ClientGetter.this);
 	}
@@ -492,6 +517,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
                 }
             tempFile.delete();
         } else {
+            setChanged(context);
             context.getJobRunner(persistent()).setCheckpointASAP();
             clientCallback.onSuccess(result, ClientGetter.this);
         }
@@ -520,6 +546,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		if(expectedSize > 0 && (e.expectedSize <= 0 || finalBlocksTotal != 0))
 			e.expectedSize = expectedSize;
 		
+		setChanged(context);
 		context.getJobRunner(persistent()).setCheckpointASAP();
 
 		if(e.mode == FetchExceptionMode.TOO_BIG && ctx.filterData) {
@@ -696,7 +723,8 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	 * Called when the current state creates a new state and we switch to that. For example, a
 	 * SingleFileFetcher might switch to a SplitFileFetcher. Sometimes this will be called with oldState
 	 * not equal to our currentState; this means that a subsidiary request has changed state, so we
-	 * ignore it.
+	 * ignore it. If a transient request switches to fetching the final data in order, sends a
+	 * SplitfileStreamEvent so the client can read it as it arrives.
 	 */
 	@Override
 	public void onTransition(ClientGetState oldState, ClientGetState newState, ClientContext context) {
@@ -709,8 +737,16 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				return;
 			}
 		}
+		setChanged(context);
 		if(persistent())
 		    context.jobRunner.setCheckpointASAP();
+		else if(newState instanceof SplitFileFetcher && !ctx.filterData) {
+		    // Let the client read the data as it is fetched. Not for persistent requests, as
+		    // the stream would not survive a restart.
+		    InputStream stream = ((SplitFileFetcher)newState).openInOrderStream(this);
+		    if(stream != null)
+		        ctx.eventProducer.produceEvent(new SplitfileStreamEvent(stream), context);
+		}
 	}
 
 	/**
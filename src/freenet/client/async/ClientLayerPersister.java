@@ -8,14 +8,26 @@ import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
@@ -27,6 +39,7 @@ import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
 import freenet.node.NodeClientCore;
 import freenet.node.NodeInitException;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestStarterGroup;
 import freenet.support.Executor;
 import freenet.support.Logger;
@@ -35,11 +48,13 @@ import freenet.support.api.Bucket;
 import freenet.support.io.DelayedFree;
 import freenet.support.io.FileBucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
 import freenet.support.io.PersistentTempBucketFactory;
 import freenet.support.io.PrependLengthOutputStream;
 import freenet.support.io.StorageFormatException;
 import freenet.support.io.TempBucketFactory;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 /** Top level of persistence mechanism for ClientRequest's (persistent downloads and uploads).
@@ -74,6 +89,14 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * should be relatively short-lived or they won't be much use to anyone as the data will have 
  * fallen out.
  * 
+ * Writing every request on every checkpoint gets expensive with a big queue, so most checkpoints 
+ * only write the requests which have been added or changed since the last one, and the 
+ * identifiers of those which have been removed, to a new journal file, client.dat.journal.N. 
+ * Every so often, on startup and on shutdown, we write everything to a new client.dat and start a 
+ * new journal. The old journal becomes the journal for client.dat.bak, so we can still fall back
+ * to the backup. Loading reads the newest file first, and a request is taken from the newest file
+ * it appears in, unless that copy is broken, just as with client.dat and client.dat.bak.
+ * 
  * SCHEMA MIGRATION: Note that changing classes that are Serializable can result in restarting 
  * downloads or losing uploads.
  * @author toad
@@ -100,9 +123,46 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
+    /** The key used to encrypt client.dat and the journal, or null. */
+    private DatabaseKey writeToKey;
+    
+    /** Requests whose persistent state has changed since the last checkpoint. Also protects 
+     * mustWriteAll. */
+    private final Set<ClientRequester> changedRequests = 
+        Collections.newSetFromMap(new IdentityHashMap<ClientRequester, Boolean>());
+    /** If true, the next checkpoint writes everything to client.dat. Until then there is no point 
+     * keeping track of changes. */
+    private boolean mustWriteAll = true;
+    /** The requests as of the last checkpoint, so we can tell which have been added or removed 
+     * since. Only used while checkpointing. */
+    private Map<ClientRequest, RequestIdentifier> savedRequests = 
+        new IdentityHashMap<ClientRequest, RequestIdentifier>();
+    /** Buckets freed since client.dat was written. They are still used by the requests in 
+     * client.dat, so we can't delete them until we have written everything again. */
+    private final List<DelayedFree> pendingFree = new ArrayList<DelayedFree>();
+    /** Number of journal files written since client.dat. */
+    private int journalFiles;
+    /** Total size of the journal files written since client.dat. */
+    private long journalSize;
+    /** Size of client.dat when it was written. */
+    private long snapshotSize;
+    /** When we last wrote client.dat. */
+    private long lastWroteAll;
     
     private static final long MAGIC = 0xd332925f3caf4aedL;
+    private static final long JOURNAL_MAGIC = 0x8b3ac6e4f1d2a097L;
     private static final int VERSION = 1;
+    /** Write everything and start a new journal after this many journal files. */
+    static final int MAX_JOURNAL_FILES = 100;
+    /** Write everything at least this often. Changes to the internal state of a request which 
+     * aren't reported through setChanged() are picked up here. */
+    static final long WRITE_ALL_INTERVAL = HOURS.toMillis(2);
+    /** Number of threads used to deserialize requests when loading, including the thread doing
+     * the loading. Deserializing may involve disk I/O, so more threads wouldn't help much. */
+    static final int LOAD_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    /** Number of requests read from a file before deserializing them. Limits the amount of
+     * temporary storage used while loading. */
+    static final int LOAD_BATCH = 64;
     
     private static volatile boolean logMINOR;
     static {
@@ -146,6 +206,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournal(dir, baseName);
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -185,16 +246,30 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
+    private void deleteJournal(File dir, String baseName) {
+        for(boolean backup : new boolean[] { false, true }) {
+            for(File f : listJournal(dir, baseName, backup)) {
+                try {
+                    FileUtil.secureDelete(f);
+                } catch (IOException e) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
     private void innerSetFilesOnly(File dir, String baseName, boolean writeEncrypted,
             DatabaseKey encryptionKey) throws MasterKeysWrongPasswordException {
         if(writeEncrypted && encryptionKey == null)
             throw new MasterKeysWrongPasswordException();
         File oldWriteToFilename = writeToFilename;
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeToKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeToKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
         System.out.println("Will save downloads to "+writeToFilename);
+        setMustWriteAll();
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
         queueNormalOrDrop(new PersistentJob() {
@@ -221,18 +296,35 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         boolean clientDatCryptExists = clientDatCrypt.exists();
         boolean clientDatBakExists = clientDatBak.exists();
         boolean clientDatBakCryptExists = clientDatBakCrypt.exists();
+        File[] journal = listJournal(dir, baseName, false);
+        File[] backupJournal = listJournal(dir, baseName, true);
         if(encryptionKey == null) {
-            if(clientDatCryptExists || clientDatBakCryptExists)
+            if(clientDatCryptExists || clientDatBakCryptExists || 
+                    anyEncrypted(journal) || anyEncrypted(backupJournal))
                 throw new MasterKeysWrongPasswordException();
         }
         boolean failedSerialize = false;
+        long startTime = System.currentTimeMillis();
         PartialLoad loaded = new PartialLoad();
+        // Newest first: The journal, client.dat, the journal from before client.dat was written,
+        // and client.dat.bak.
+        for(File f : journal) {
+            innerLoad(loaded, makeJournalBucket(f, encryptionKey), noSerialize, context, requestStarters, random);
+        }
         if(clientDatExists) {
             innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
         }
         if(clientDatCryptExists && loaded.needsMore()) {
             innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
         }
+        if(!(clientDatExists || clientDatCryptExists)) {
+            // Probably interrupted while writing everything, so the journal is incomplete.
+            loaded.setSomethingFailed();
+        }
+        for(File f : backupJournal) {
+            if(isEncrypted(f) && !loaded.needsMore()) continue;
+            innerLoad(loaded, makeJournalBucket(f, encryptionKey), noSerialize, context, requestStarters, random);
+        }
         if(clientDatBakExists) {
             innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
         }
@@ -243,7 +335,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
         
-        writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
+        writeToKey = writeEncrypted ? encryptionKey : null;
+        writeToBucket = makeBucket(dir, baseName, false, writeToKey);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         
@@ -264,10 +357,17 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             int restoredRestarted = 0;
             int restoredFully = 0;
             int failed = 0;
-            // Resume the requests.
+            // Resume the requests, most important first. This is done on one thread, as before:
+            // onResume() and start() register the request with the schedulers and the FCP
+            // persistent root, and some requests check or rebuild their storage.
+            List<PartiallyLoadedRequest> toResume = new ArrayList<PartiallyLoadedRequest>();
             for(PartiallyLoadedRequest partial : loaded.partiallyLoadedRequests.values()) {
+                if(partial.request != null) toResume.add(partial);
+            }
+            Collections.sort(toResume, BY_PRIORITY);
+            long loadedTime = System.currentTimeMillis();
+            for(PartiallyLoadedRequest partial : toResume) {
                 ClientRequest req = partial.request;
-                if(req == null) continue;
                 try {
                     req.onResume(context);
                     if(partial.status == RequestLoadStatus.RESTORED_FULLY || 
@@ -301,6 +401,9 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     }
                 }
             }
+            long resumedTime = System.currentTimeMillis();
+            System.out.println("Loaded "+toResume.size()+" persistent requests in "+
+                    (loadedTime-startTime)+"ms, resumed them in "+(resumedTime-loadedTime)+"ms");
             if(success > 0)
                 System.out.println("Resumed "+success+" requests ...");
             if(restoredFully > 0)
@@ -339,6 +442,74 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         return new File(parent, baseName + (backup ? ".bak" : "") + (encrypted ? ".crypt" : ""));
                 
     }
+    
+    /** Create a Bucket for a journal file.
+     * @param encryptionKey The key to use if the file is encrypted. */
+    private Bucket makeJournalBucket(File filename, DatabaseKey encryptionKey) {
+        Bucket bucket = new FileBucket(filename, false, false, false, false);
+        if(isEncrypted(filename))
+            bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
+        return bucket;
+    }
+    
+    /** Filename for client.dat[.bak].journal.N[.crypt]. */
+    private File makeJournalFilename(File parent, String baseName, boolean backup, int index, 
+            boolean encrypted) {
+        return new File(parent, journalPrefix(baseName, backup) + index + (encrypted ? ".crypt" : ""));
+    }
+    
+    private static String journalPrefix(String baseName, boolean backup) {
+        return baseName + (backup ? ".bak" : "") + ".journal.";
+    }
+    
+    /** List the journal files for client.dat or client.dat.bak, newest first. */
+    private File[] listJournal(File dir, String baseName, boolean backup) {
+        if(dir == null) return new File[0];
+        final String prefix = journalPrefix(baseName, backup);
+        File[] files = dir.listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return journalIndex(name, prefix) >= 0;
+            }
+            
+        });
+        if(files == null) return new File[0];
+        Arrays.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File f1, File f2) {
+                return Integer.compare(journalIndex(f2.getName(), prefix), 
+                        journalIndex(f1.getName(), prefix));
+            }
+            
+        });
+        return files;
+    }
+    
+    /** @return The index of a journal file, or -1 if the name doesn't start with the prefix and a 
+     * number. */
+    private static int journalIndex(String name, String prefix) {
+        if(!name.startsWith(prefix)) return -1;
+        String index = name.substring(prefix.length());
+        if(index.endsWith(".crypt"))
+            index = index.substring(0, index.length() - ".crypt".length());
+        try {
+            return Integer.parseInt(index);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static boolean isEncrypted(File f) {
+        return f.getName().endsWith(".crypt");
+    }
+    
+    private static boolean anyEncrypted(File[] files) {
+        for(File f : files)
+            if(isEncrypted(f)) return true;
+        return false;
+    }
 
     private enum RequestLoadStatus {
         // In order of preference, best first.
@@ -357,10 +528,26 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    /** Most important first, i.e. lowest priority class. */
+    private static final Comparator<PartiallyLoadedRequest> BY_PRIORITY =
+        new Comparator<PartiallyLoadedRequest>() {
+
+        @Override
+        public int compare(PartiallyLoadedRequest o1, PartiallyLoadedRequest o2) {
+            return o1.request.getPriority() - o2.request.getPriority();
+        }
+
+    };
+
+    /** LOCKING: Requests are added from several threads while loading, so synchronized. */
     private class PartialLoad {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
         
+        /** Requests removed according to a newer journal file, which must be ignored if they are
+         * in an older file. */
+        private final Set<RequestIdentifier> removedRequests = new HashSet<RequestIdentifier>();
+        
         private byte[] salt;
         
         private boolean somethingFailed;
@@ -370,7 +557,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
          * necessary. */
-        void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
+        synchronized void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
                 RequestLoadStatus status) {
             if(reqID == null) {
                 if(request == null) {
@@ -380,6 +567,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     reqID = request.getRequestIdentifier();
                 }
             }
+            if(removedRequests.contains(reqID)) return;
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
             if(old == null || old.status.ordinal() > status.ordinal()) {
                 partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
@@ -389,25 +577,43 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             }
         }
 
-        public boolean needsMore() {
+        /** A journal file says the request was removed. Ignore it in older files, unless we 
+         * have already loaded it from a newer one. */
+        synchronized void removed(RequestIdentifier reqID) {
+            if(!partiallyLoadedRequests.containsKey(reqID))
+                removedRequests.add(reqID);
+        }
+        
+        synchronized boolean isRemoved(RequestIdentifier reqID) {
+            return removedRequests.contains(reqID);
+        }
+
+        /** @return True if the request has already been loaded successfully from a newer file, so
+         * there is no point deserializing it again. */
+        synchronized boolean isLoaded(RequestIdentifier reqID) {
+            PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
+            return old != null && old.status == RequestLoadStatus.LOADED;
+        }
+        
+        public synchronized boolean needsMore() {
             return somethingFailed || !doneSomething;
         }
 
-        public void setSomethingFailed() {
+        public synchronized void setSomethingFailed() {
             somethingFailed = true;
         }
         
-        public void setSalt(byte[] loadedSalt) {
+        public synchronized void setSalt(byte[] loadedSalt) {
             if(salt == null)
                 salt = loadedSalt;
             doneSomething = true;
         }
 
-        public byte[] getSalt() {
+        public synchronized byte[] getSalt() {
             return salt;
         }
         
-        public boolean doneSomething() {
+        public synchronized boolean doneSomething() {
             return doneSomething;
         }
     }
@@ -445,7 +651,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
         ObjectInputStream ois = new ObjectInputStream(fis);
         long magic = ois.readLong();
-        if(magic != MAGIC) throw new IOException("Bad magic");
+        if(magic != MAGIC && magic != JOURNAL_MAGIC) throw new IOException("Bad magic");
+        boolean journal = magic == JOURNAL_MAGIC;
         int version = ois.readInt();
         if(version != VERSION) throw new IOException("Bad version");
         byte[] salt = new byte[32];
@@ -457,82 +664,206 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
         requestStarters.setGlobalSalt(salt);
         int requestCount = ois.readInt();
-        for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
+        // Read the requests in turn, and deserialize them in parallel a batch at a time. All 
+        // of them must be done before we process the removals below, or read the next file.
+        List<Runnable> batch = new ArrayList<Runnable>();
+        try {
+            for(int i=0;i<requestCount;i++) {
+                RequestIdentifier reqID = readRequestIdentifier(ois);
+                if(reqID != null && loaded.isRemoved(reqID)) {
+                    if(logMINOR) Logger.minor(this, "Not reading request because it was removed later");
+                    skipChecksummedObject(ois, length); // Request itself
+                    skipChecksummedObject(ois, length); // Recovery data
+                    continue;
+                }
+                if(reqID != null && loaded.isLoaded(reqID)) {
+                    if(logMINOR) Logger.minor(this, "Not reading request because already loaded it from a newer file");
+                    skipChecksummedObject(ois, length); // Request itself
+                    skipChecksummedObject(ois, length); // Recovery data
+                    continue;
+                }
+                if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+                    Logger.warning(this, "Not reading request because already have it");
+                    skipChecksummedObject(ois, length); // Request itself
+                    skipChecksummedObject(ois, length); // Recovery data
+                    continue;
+                }
+                InputStream requestData = null;
+                try {
+                    if(!noSerialize)
+                        requestData = checker.checksumReaderWithLength(ois, tempBucketFactory, length);
+                    else
+                        skipChecksummedObject(ois, length);
+                } catch (ChecksumFailedException e) {
+                    Logger.error(this, "Failed to load request (checksum failed)");
+                    System.err.println("Failed to load a request (checksum failed)");
+                } catch (Throwable t) {
+                    // Some more serious problem. Try to load the rest anyway.
+                    Logger.error(this, "Failed to load request: "+t, t);
+                    System.err.println("Failed to load a request: "+t);
+                    t.printStackTrace();
+                }
+                InputStream recoveryData = null;
+                try {
+                    recoveryData = checker.checksumReaderWithLength(ois, tempBucketFactory, length);
+                } catch (ChecksumFailedException e) {
+                    // Leave it null.
+                } catch (IOException e) {
+                    if(requestData != null) requestData.close();
+                    throw e;
+                }
+                batch.add(new RequestLoader(loaded, reqID, requestData, recoveryData));
+                if(batch.size() >= LOAD_BATCH) {
+                    runParallel(batch, "Loading persistent requests");
+                    batch.clear();
+                }
+            }
+        } finally {
+            runParallel(batch, "Loading persistent requests");
+        }
+        if(journal) {
+            int removedCount = ois.readInt();
+            for(int i=0;i<removedCount;i++) {
+                RequestIdentifier reqID = readRequestIdentifier(ois);
+                if(reqID != null) loaded.removed(reqID);
             }
+        }
+        if(latest) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
+                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
+                readStatsAndBuckets(ois, length, context);
             } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
-            if(request == null || logMINOR) {
+        }
+        ois.close();
+        fis = null;
+    }
+
+    /** Deserializes a request from the data read by innerLoad(), or if that fails, restores it 
+     * from the recovery data. Several of these may run at once. */
+    private class RequestLoader implements Runnable {
+        
+        private final PartialLoad loaded;
+        private final RequestIdentifier reqID;
+        /** The serialized request, or null if it couldn't be read or we aren't deserializing. */
+        private final InputStream requestData;
+        /** The recovery data, or null if the checksum failed. */
+        private final InputStream recoveryData;
+        
+        RequestLoader(PartialLoad loaded, RequestIdentifier reqID, InputStream requestData, 
+                InputStream recoveryData) {
+            this.loaded = loaded;
+            this.reqID = reqID;
+            this.requestData = requestData;
+            this.recoveryData = recoveryData;
+        }
+
+        @Override
+        public void run() {
+            try {
+                innerRun();
+            } catch (IOException e) {
+                Logger.error(this, "Failed to load request: "+e, e);
+                System.err.println("Failed to load a request: "+e);
+            } finally {
                 try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                    if(requestData != null) requestData.close();
+                    if(recoveryData != null) recoveryData.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+        
+        private void innerRun() throws IOException {
+            ClientRequest request = null;
+            if(requestData != null) {
+                request = (ClientRequest) readObject(requestData);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
+                        }
                     }
-                } catch (ChecksumFailedException e) {
+                }
+            }
+            if(request == null || logMINOR) {
+                if(recoveryData == null) {
                     if(request == null) {
                         Logger.error(this, "Failed to recover a request (checksum failed)");
                         System.err.println("Failed to recover a request (checksum failed)");
+                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
                     } else {
                         Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                    return;
+                }
+                ClientRequest restored = readRequestFromRecoveryData(recoveryData, reqID);
+                if(request == null && restored != null) {
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, restored, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                }
+            }
+        }
+        
+    }
+    
+    /** Run the jobs on up to LOAD_THREADS threads, including this one, and wait for them to 
+     * finish. They are started in order. */
+    private void runParallel(final List<Runnable> jobs, String threadName) {
+        if(jobs.isEmpty()) return;
+        final AtomicInteger next = new AtomicInteger();
+        final Runnable worker = new Runnable() {
+
+            @Override
+            public void run() {
+                int i;
+                while((i = next.getAndIncrement()) < jobs.size()) {
+                    try {
+                        jobs.get(i).run();
+                    } catch (Throwable t) {
+                        Logger.error(this, "Caught "+t+" running "+jobs.get(i), t);
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
                 }
-            } else {
-                skipChecksummedObject(ois, length);
             }
+
+        };
+        int helpers = Math.max(0, Math.min(LOAD_THREADS, jobs.size()) - 1);
+        final CountDownLatch done = new CountDownLatch(helpers);
+        for(int i=0;i<helpers;i++) {
+            executor.execute(new PrioRunnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        worker.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+                @Override
+                public int getPriority() {
+                    return NativeThread.NORM_PRIORITY;
+                }
+
+            }, threadName+" worker");
         }
-        if(latest) {
+        // This thread helps too.
+        worker.run();
+        while(true) {
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
-            } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Ignore
             }
         }
-        ois.close();
-        fis = null;
     }
 
     private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
@@ -557,10 +888,42 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        boolean writeAll;
+        synchronized(changedRequests) {
+            writeAll = mustWriteAll;
+            // Anything that changes while we are writing will be in the next journal file.
+            mustWriteAll = false;
+        }
+        if(shutdown || writeAll || journalFiles >= MAX_JOURNAL_FILES || 
+                journalSize > snapshotSize || 
+                System.currentTimeMillis() - lastWroteAll > WRITE_ALL_INTERVAL) {
+            saveAll(shutdown);
+        } else if(!saveJournal()) {
+            setMustWriteAll();
+        }
+    }
+    
+    /** Write everything to client.dat, and start a new journal. */
+    private void saveAll(boolean shutdown) {
+        // Everything in the current journal is about to be in client.dat.bak, so it becomes the 
+        // journal for client.dat.bak. Rename in order so that if we are interrupted, the files 
+        // are still loaded in the right order.
+        for(File f : listJournal(dir, baseName, true))
+            f.delete();
         if(writeToFilename.exists()) {
             FileUtil.renameTo(writeToFilename, writeToBackupFilename);
         }
+        File[] journal = listJournal(dir, baseName, false);
+        for(int i=journal.length-1;i>=0;i--) {
+            File f = journal[i];
+            FileUtil.renameTo(f, makeJournalFilename(dir, baseName, true, 
+                    journalIndex(f.getName(), journalPrefix(baseName, false)), isEncrypted(f)));
+        }
+        journalFiles = 0;
+        journalSize = 0;
         if(innerSave(shutdown)) {
+            snapshotSize = writeToFilename.length();
+            lastWroteAll = System.currentTimeMillis();
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -569,11 +932,21 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite.delete();
                 otherDeleteAfterSuccessfulWrite = null;
             }
+            // Journal files left over from before we changed whether to encrypt.
+            for(boolean backup : new boolean[] { false, true }) {
+                for(File f : listJournal(dir, baseName, backup)) {
+                    if(isEncrypted(f) != (writeToKey != null))
+                        f.delete();
+                }
+            }
+        } else {
+            setMustWriteAll();
         }
     }
     
     private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        grabChangedRequests();
+        DelayedFree[] buckets = grabBucketsToFree();
         OutputStream fos = null;
         try {
             fos = writeToBucket.getOutputStream();
@@ -593,17 +966,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     }
                 }
             }
-            oos.writeInt(requests.length);
-            for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
-            }
+            Map<ClientRequest, RequestIdentifier> saved = writeRequests(oos, Arrays.asList(requests));
             bandwidthStatsPutter.updateData(node);
             oos.writeObject(bandwidthStatsPutter);
             if(buckets == null) {
@@ -616,11 +979,14 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             oos.close();
             fos = null;
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
+            savedRequests = saved;
             persistentTempFactory.finishDelayedFree(buckets);
             return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
             e.printStackTrace();
+            if(buckets != null)
+                pendingFree.addAll(Arrays.asList(buckets));
             return false;
         } finally {
             try {
@@ -632,6 +998,147 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    /** Write the requests which have been added or changed since the last checkpoint, and those 
+     * which have been removed, to a new journal file.
+     * @return False if we failed, in which case we must write everything next time. */
+    private boolean saveJournal() {
+        ClientRequest[] requests = getRequests();
+        Set<ClientBaseCallback> changed = grabChangedRequests();
+        List<ClientRequest> write = new ArrayList<ClientRequest>();
+        Map<ClientRequest, RequestIdentifier> saved = 
+            new IdentityHashMap<ClientRequest, RequestIdentifier>(requests.length);
+        for(ClientRequest req : requests) {
+            if(req == null) continue;
+            RequestIdentifier reqID = savedRequests.remove(req);
+            if(reqID == null || changed.contains(req))
+                write.add(req);
+            else
+                saved.put(req, reqID);
+        }
+        // Anything left has been removed.
+        Collection<RequestIdentifier> removed = savedRequests.values();
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        if(buckets != null)
+            pendingFree.addAll(Arrays.asList(buckets));
+        if(write.isEmpty() && removed.isEmpty()) {
+            if(logMINOR) Logger.minor(this, "Nothing changed since the last checkpoint");
+            savedRequests = saved;
+            return true;
+        }
+        File filename = makeJournalFilename(dir, baseName, false, journalFiles, writeToKey != null);
+        Bucket bucket = makeJournalBucket(filename, writeToKey);
+        OutputStream fos = null;
+        try {
+            fos = bucket.getOutputStream();
+            BufferedOutputStream bos = new BufferedOutputStream(fos);
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeLong(JOURNAL_MAGIC);
+            oos.writeInt(VERSION);
+            checker.writeAndChecksum(oos, salt);
+            saved.putAll(writeRequests(oos, write));
+            oos.writeInt(removed.size());
+            for(RequestIdentifier reqID : removed)
+                writeRequestIdentifier(oos, reqID);
+            bandwidthStatsPutter.updateData(node);
+            oos.writeObject(bandwidthStatsPutter);
+            // The freed buckets are still used by client.dat, so are only freed after the next 
+            // full write.
+            oos.writeInt(0);
+            oos.close();
+            fos = null;
+            Logger.normal(this, "Saved "+write.size()+" changed and "+removed.size()+
+                    " removed requests to "+filename);
+            journalFiles++;
+            journalSize += filename.length();
+            savedRequests = saved;
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if(fos != null) {
+                    fos.close();
+                    // Don't leave a partial file behind.
+                    filename.delete();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to write persistent requests: "+e);
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    /** Write the requests.
+     * @return The requests written and their identifiers. */
+    private Map<ClientRequest, RequestIdentifier> writeRequests(ObjectOutputStream oos, 
+            List<ClientRequest> requests) throws IOException {
+        Map<ClientRequest, RequestIdentifier> saved = 
+            new IdentityHashMap<ClientRequest, RequestIdentifier>(requests.size());
+        oos.writeInt(requests.size());
+        for(ClientRequest req : requests) {
+            RequestIdentifier reqID = req.getRequestIdentifier();
+            // Write the request identifier so we can skip reading the request if we already have it.
+            writeRequestIdentifier(oos, reqID);
+            // Write the actual request.
+            writeChecksummedObject(oos, req, req.toString());
+            // Write recovery data. This is just enough to restart the request from scratch, 
+            // but may support continuing the request in simple cases e.g. if a fetch is now
+            // just a single splitfile.
+            writeRecoveryData(oos, req);
+            saved.put(req, reqID);
+        }
+        return saved;
+    }
+    
+    /** Get the buckets to free after writing everything, including those freed since the last 
+     * time we wrote everything.
+     * @return Null if there are none. */
+    private DelayedFree[] grabBucketsToFree() {
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        if(pendingFree.isEmpty()) return buckets;
+        if(buckets != null)
+            pendingFree.addAll(Arrays.asList(buckets));
+        buckets = pendingFree.toArray(new DelayedFree[pendingFree.size()]);
+        pendingFree.clear();
+        return buckets;
+    }
+    
+    /** Record that the persistent state of a request has changed, so that it is written to the 
+     * journal at the next checkpoint. Called by ClientRequester. */
+    @Override
+    public void setChanged(ClientRequester request) {
+        synchronized(changedRequests) {
+            if(mustWriteAll) return;
+            changedRequests.add(request);
+        }
+    }
+    
+    /** Write everything at the next checkpoint. */
+    private void setMustWriteAll() {
+        synchronized(changedRequests) {
+            mustWriteAll = true;
+            changedRequests.clear();
+        }
+    }
+    
+    /** @return The top level requests which have changed since this was last called. */
+    private Set<ClientBaseCallback> grabChangedRequests() {
+        ClientRequester[] changed;
+        synchronized(changedRequests) {
+            changed = changedRequests.toArray(new ClientRequester[changedRequests.size()]);
+            changedRequests.clear();
+        }
+        Set<ClientBaseCallback> callbacks = 
+            Collections.newSetFromMap(new IdentityHashMap<ClientBaseCallback, Boolean>());
+        for(ClientRequester request : changed) {
+            ClientBaseCallback cb = request.getCallback();
+            if(cb != null) callbacks.add(cb);
+        }
+        return callbacks;
+    }
+    
     private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
@@ -649,8 +1156,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
-        InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
+    private ClientRequest readRequestFromRecoveryData(InputStream tmp, RequestIdentifier reqID) throws IOException {
         try {
             DataInputStream dis = new DataInputStream(tmp);
             ClientRequest request = ClientRequest.restartFrom(dis, reqID, getClientContext(), checker);
@@ -681,8 +1187,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
-        InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
+    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException {
+        return readObject(checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength));
+    }
+    
+    private Object readObject(InputStream ois) throws IOException {
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
             Object ret = oo.readObject();
@@ -757,6 +1266,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournal(dir, baseName);
         }
     }
 
@@ -766,6 +1276,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             writeToBackupFilename = null;
             writeToBucket = null;
         }
+        setMustWriteAll();
         super.disableWrite();
     }
 
@@ -276,6 +276,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 						", Successful blocks: "+successfulBlocks+", Total blocks: "+totalBlocks+" but success?! on "+this+" from "+state,
 						new Exception("debug"));
 		}
+		setChanged(context);
 		client.onSuccess(this);
 	}
 
@@ -287,6 +288,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			finished = true;
 			currentState = null;
 		}
+		setChanged(context);
 		client.onFailure(e, this);
 	}
 
@@ -309,6 +311,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			}
             this.uri = u;
 		}
+		setChanged(context);
 		client.onGeneratedURI(u, this);
 	}
 	
@@ -331,6 +334,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 			finalMetadata.free();
 			return;
 		}
+		setChanged(context);
 		client.onGeneratedMetadata(finalMetadata, this);
 	}
 
@@ -393,6 +397,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 		synchronized (this) {
 			if (currentState == oldState) {
 				currentState = newState;
+				setChanged(context);
 				return;
 			}
 		}
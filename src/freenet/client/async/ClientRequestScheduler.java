@@ -3,6 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import freenet.client.FetchException;
 import freenet.crypt.RandomSource;
 import freenet.keys.Key;
@@ -277,7 +280,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 	static final int TRIP_PENDING_PRIORITY = NativeThread.HIGH_PRIORITY-1;
 	
 	@Override
-	public synchronized void succeeded(final BaseSendableGet succeeded, boolean persistent) {
+	public void succeeded(final BaseSendableGet succeeded, boolean persistent) {
 	    selector.succeeded(succeeded);
 	}
 
@@ -328,6 +331,70 @@ public class ClientRequestScheduler implements RequestScheduler {
 		}
 	}
 	
+	/** Like tripPendingKey(), but for many blocks at once, e.g. from the datastore checker. Uses
+	 * a single job for the transient scheduler and a single job for the persistent scheduler,
+	 * rather than one for each block.
+	 * @param then Run once the transient requests which want the blocks have been given them, on
+	 * the same thread, or immediately if none want them. The datastore checker uses this so that
+	 * a local-only request doesn't fail before the blocks found for it have been processed. */
+	public void tripPendingKeys(List<KeyBlock> blocks, final Runnable then) {
+		if(logMINOR) Logger.minor(this, "tripPendingKeys() for "+blocks.size()+" blocks");
+		final ArrayList<KeyBlock> wantedTransient = new ArrayList<KeyBlock>();
+		final ArrayList<KeyBlock> wantedPersistent = new ArrayList<KeyBlock>();
+		for(KeyBlock block : blocks) {
+			Key key = block.getKey();
+			if(offeredKeys != null)
+				offeredKeys.remove(key);
+			if(schedTransient.anyProbablyWantKey(key, clientContext))
+				wantedTransient.add(block);
+			if(schedCore != null && schedCore.anyProbablyWantKey(key, clientContext))
+				wantedPersistent.add(block);
+		}
+		if(!wantedTransient.isEmpty()) {
+			this.clientContext.mainExecutor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					try {
+						for(KeyBlock block : wantedTransient)
+							schedTransient.tripPendingKey(block.getKey(), block, clientContext);
+					} finally {
+						then.run();
+					}
+				}
+
+				@Override
+				public int getPriority() {
+					return TRIP_PENDING_PRIORITY;
+				}
+				
+			}, "Trip pending keys (transient)");
+		} else {
+			then.run();
+		}
+		if(!wantedPersistent.isEmpty()) {
+			try {
+				jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						if(logMINOR) Logger.minor(this, "tripPendingKeys for "+wantedPersistent.size()+" keys");
+						for(KeyBlock block : wantedPersistent)
+							schedCore.tripPendingKey(block.getKey(), block, clientContext);
+						return false;
+					}
+					
+					@Override
+					public String toString() {
+						return "tripPendingKeys";
+					}
+				}, TRIP_PENDING_PRIORITY);
+			} catch (PersistenceDisabledException e) {
+				// Nothing to do
+			}
+		}
+	}
+	
 	/* FIXME SECURITY When/if introduce tunneling or similar mechanism for starting requests
 	 * at a distance this will need to be reconsidered. See the comments on the caller in 
 	 * RequestHandler (onAbort() handler). */
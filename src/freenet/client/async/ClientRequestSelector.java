@@ -26,6 +26,7 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.RemoveRandomParent;
@@ -38,28 +39,25 @@ import freenet.support.TimeUtil;
  * that matches up a fetched block with whoever was waiting for it, which needs to be separate for
  * various reasons. This class is not persistent. 
  * 
- * COOLDOWN TRACKER AND WAKEUP TIMES: Each node in the tree (priority, client, request) keeps a 
- * "wakeup time". This indicates that until the time given there is no point checking the requests
- * below that node. This happens either because all the keys are being fetched (in which case the
- * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
- * a cooldown period, meaning it will be fetchable in 30 minutes.
+ * WAKEUP TIMES: Each node in the tree (priority, client, request) keeps a "wakeup time". This 
+ * indicates that until the time given there is no point checking the requests below that node. 
+ * This happens either because all the keys are being fetched (in which case the wakeup time is 
+ * Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered a cooldown period, 
+ * meaning it will be fetchable in 30 minutes. The wakeup times are kept on the RGAs and SRGAs 
+ * themselves.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * LOCKING: When a request completes, we start at the request itself and go up the tree until we 
+ * stop updating the wakeup times. However when we choose a request to send, we start at the top 
+ * and go down (and update the wakeup times when backtracking back up the tree if we don't find 
+ * anything). So we need to lock the whole subtree for a priority while doing either.
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
- * 
- * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
- * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
- * selection, e.g. by making sure that each structure always does a bottom-up update when something
- * changes, although that would not help with locking...
- * 
- * FIXME: More seriously, we should really combine the cooldown tracker and the RGAs. The RGAs and 
- * SRGAs should contain their own wakeup times. This could significantly simplify the code. 
- * CooldownTracker is left over from the DB4O era.
+ * **We lock on the RequestClientRGANode for each priority** when using the tree below it, 
+ * including the wakeup times. All the RGAs and SRGAs below it use the same lock (see 
+ * RemoveRandomParent.getTreeLock()). The priorities are created up front and never change, and the
+ * wakeup times can be read without locking, so choosing a priority doesn't need any lock, and 
+ * starting, completing or choosing requests at one priority doesn't block the other priorities.
+ * When we need two priorities' locks at once, we take the more important (lower numbered) 
+ * priority first.
  */
 public class ClientRequestSelector implements KeysFetchingLocally {
 	
@@ -92,9 +90,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	}
 	
 	/**
-     * The base of the tree.
+     * The base of the tree. One for each priority, each of which is also the lock for its subtree.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +112,8 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++)
+			priorities[i] = new RequestClientRGANode(null, this);
 	}
 	
 	private static volatile boolean logMINOR;
@@ -145,9 +145,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: No locks needed, the priorities never change, and the wakeup times and isEmpty() 
+	 * can be read without locking. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -352,12 +352,12 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
 				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
-				    // This is important for keeping the cooldown tracker consistent amongst other 
+				synchronized(chosenTracker) {
+				    // We must hold the priority's lock, just as in addToGrabArrays.
+				    // This is important for keeping the wakeup times consistent amongst other 
 				    // things: We can get a race condition between thread A reading the tree, 
-				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
-				    // resulting in the request not being accessible.
+				    // finding nothing and setting the wakeup time, and thread B waking up a 
+				    // request, resulting in the request not being accessible.
 				    val = chosenTracker.removeRandom(starter, context, now);
 				}
 				SendableRequest req;
@@ -385,10 +385,8 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 					if(clientGrabber != null) {
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
-							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
-								baseRGA.remove(req, context);
-							}
+							// Takes the priority's lock.
+							baseRGA.remove(req, context);
 						} else {
 							// Okay, it's been removed already. Cool.
 						}
@@ -618,21 +616,17 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        synchronized(priorities[priorityClass]) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
         sched.wakeStarter();
     }
 
+    /** LOCKING: Caller must hold the lock for the priority. */
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
@@ -653,41 +647,48 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            // Then by RequestClient
-            ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-            if(requestGrabber == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
-            if(rga == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
-                        " but want to insert "+rga, new Exception("error"));
+        // Always take the more important priority's lock first.
+        Object firstLock = priorities[Math.min(oldPrio, newPrio)];
+        Object secondLock = priorities[Math.max(oldPrio, newPrio)];
+        synchronized(firstLock) {
+            synchronized(secondLock) {
+                // First by priority
+                RequestClientRGANode clientGrabber = priorities[oldPrio];
+                // Then by RequestClient
+                ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
+                if(requestGrabber == null) {
+                    // Normal as most of the schedulers aren't relevant to any given insert/request.
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+                if(rga == null) {
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
                 requestGrabber.maybeRemove(rga, context);
+                // The RGA shares its lock with the rest of the old priority, so we can't just 
+                // move it. Move the requests instead. If a request is unregistered while we are
+                // doing this it may end up on the new RGA, but it will be removed the next time
+                // it is chosen, as it will have a wakeup time of -1.
+                requestGrabber = makeSRGAForClient(newPrio, client, context);
+                int size = rga.size();
+                for(int i=0;i<size;i++) {
+                    RandomGrabArrayItem item = rga.get(i);
+                    if(item == null || item.getParentGrabArray() != rga) continue;
+                    item.setParentGrabArray(null);
+                    requestGrabber.add(group, item, context);
+                }
             }
-            requestGrabber.addGrabber(group, rga, context);
         }
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
             RequestClientRGANode prio = priorities[i];
-            if(prio == null || prio.isEmpty())
+            synchronized(prio) {
+            if(prio.isEmpty())
                 System.out.println("Priority "+i+" : empty");
             else {
                 System.out.println("Priority "+i+" : "+prio.size());
@@ -715,6 +716,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
                         }
                     }
             }
+            }
         }
         return total;
     }   
@@ -290,6 +290,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	
 	/** Notify clients by calling innerNotifyClients off-thread. */
 	public final void notifyClients(ClientContext context) {
+	    setChanged(context);
 	    context.getJobRunner(persistent()).queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -336,6 +337,17 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		this.totalBlocks = 0;
 	}
 
+	/** Record that the persistent state of this request, or of the client request it belongs to,
+	 * has changed, so that it is written at the next checkpoint. Most checkpoints only write the 
+	 * requests which have changed.
+	 * @param context The ClientContext object including essential but 
+	 * non-persistent objects such as the job runner.
+	 */
+	public void setChanged(ClientContext context) {
+		if(persistent())
+			context.jobRunner.setChanged(this);
+	}
+
 	/** Get client context object */
 	public RequestClient getClient() {
 		return client;
@@ -352,6 +364,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			this.priorityClass = newPriorityClass;
 		}
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
+		setChanged(ctx);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
 		ctx.getChkInsertScheduler(realTimeFlag).reregisterAll(this, oldPrio);
 		ctx.getSskFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
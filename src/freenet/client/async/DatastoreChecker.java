@@ -4,13 +4,19 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.support.math.MersenneTwister;
 
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
-import freenet.keys.NodeSSK;
 import freenet.node.LowLevelGetException;
 import freenet.node.Node;
 import freenet.node.PrioRunnable;
@@ -40,6 +46,21 @@ public class DatastoreChecker implements PrioRunnable {
 	static final int KILL_BLOCKS = 0;
 	static final int RESET_COUNTER = 100;
 	
+	/** Maximum number of keys to check in a single batch when using more than one thread. A
+	 * higher priority request queued while we are checking a batch must wait for it to finish. */
+	static final int MAX_BATCH_KEYS = 4096;
+	/** Number of keys a worker takes at a time from a sorted batch. Small so that the workers
+	 * stay close together in the store file. */
+	static final int KEYS_PER_CHUNK = 16;
+	
+	/** Number of threads to check the datastore with. If more than 1, we check the keys for
+	 * several requests of the same priority at once, sorted by their slot in the datastore. */
+	private volatile int threads;
+	/** Total keys checked, for stats. */
+	private long keysChecked;
+	/** Total time spent checking keys, for stats. */
+	private long checkTimeNanos;
+	
 	private static volatile boolean logMINOR;
 
 	static {
@@ -97,12 +118,35 @@ public class DatastoreChecker implements PrioRunnable {
 		this.lazy = lazyStart;
 		this.executor = executor;
 		this.threadName = threadName;
+		this.threads = 1;
 		int priorities = RequestStarter.NUMBER_OF_PRIORITY_CLASSES;
 		queue = (ArrayDeque<QueueItem>[])new ArrayDeque<?>[priorities];
 		for(int i=0;i<priorities;i++)
 			queue[i] = new ArrayDeque<QueueItem>();
 	}
 
+	/** Set the number of threads to use. 1 means check each request's keys in turn on the 
+	 * datastore checker thread. */
+	public void setThreads(int threads) {
+		if(threads < 1) throw new IllegalArgumentException();
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/** @return The average number of keys checked per second, over the time spent checking. */
+	public synchronized double getKeysCheckedPerSecond() {
+		if(checkTimeNanos == 0) return 0.0;
+		return keysChecked * 1000.0 * 1000.0 * 1000.0 / checkTimeNanos;
+	}
+
+	private synchronized void reportChecked(int keys, long timeNanos) {
+		keysChecked += keys;
+		checkTimeNanos += timeNanos;
+	}
+
 	public void queueRequest(SendableGet getter, BlockSet blocks) {
 		Key[] checkKeys = getter.listKeys();
 		short prio = getter.getPriorityClass();
@@ -136,7 +180,8 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
-	/** Process a single job, waiting if necessary.
+	/** Process a single job, or a batch of jobs of the same priority if we are using more than 
+	 * one thread, waiting if necessary.
 	 * @return True if lazy=true and there are no jobs to run.
 	 */
 	private boolean realRun() {
@@ -145,33 +190,34 @@ public class DatastoreChecker implements PrioRunnable {
 			random = new MersenneTwister();
 		else
 			random = null;
-		Key[] keys = null;
-		SendableGet getter = null;
-		ClientRequestScheduler sched = null;
-		BlockSet blocks = null;
-		boolean waited = false;
+		int threads = this.threads;
+		ArrayList<QueueItem> batch = new ArrayList<QueueItem>();
 		synchronized(this) {
 			while(true) {
 				for(short prio = 0;prio<queue.length;prio++) {
 				    QueueItem trans;
 					if((trans = queue[prio].pollFirst()) != null) {
-						keys = trans.keys;
-						getter = trans.getter;
-						// sched assigned out of loop
-						blocks = trans.blockSet;
+						batch.add(trans);
+						if(threads > 1) {
+							// Only take requests of the same priority, so prioritisation still works.
+							int keys = trans.keys.length;
+							while(keys < MAX_BATCH_KEYS && (trans = queue[prio].pollFirst()) != null) {
+								batch.add(trans);
+								keys += trans.keys.length;
+							}
+						}
 						if(logMINOR)
-							Logger.minor(this, "Checking transient request "+getter+" prio "+prio+" of "+queue[prio].size());
+							Logger.minor(this, "Checking "+batch.size()+" transient requests prio "+prio+" of "+(queue[prio].size()+batch.size()));
 						break;
 					}
 				}
-				if(keys != null)
+				if(!batch.isEmpty())
 					break;
 				if(logMINOR) Logger.minor(this, "Waiting for more transient requests");
 				if(lazy) {
 				    running = false;
 				    return true;
 				}
-				waited = true;
 				try {
 					// Wait for anything.
 					wait(SECONDS.toMillis(100));
@@ -180,7 +226,20 @@ public class DatastoreChecker implements PrioRunnable {
 				}
 			}
 		}
-		sched = getter.getScheduler(context);
+		if(threads > 1)
+			checkBatch(batch, random, threads);
+		else
+			checkItem(batch.get(0), random);
+		return false;
+	}
+
+	/** Check the keys for a single request, one at a time. */
+	private void checkItem(QueueItem item, Random random) {
+		Key[] keys = item.keys;
+		SendableGet getter = item.getter;
+		BlockSet blocks = item.blockSet;
+		ClientRequestScheduler sched = getter.getScheduler(context);
+		long startTime = System.nanoTime();
 		boolean anyValid = false;
 		for(Key key : keys) {
 			if(random != null) {
@@ -196,18 +255,180 @@ public class DatastoreChecker implements PrioRunnable {
 				block = node.fetch(key, true, true, false, false, null);
 			if(block != null) {
 				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
+				sched.tripPendingKey(block);
 			} else {
 				anyValid = true;
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
+		reportChecked(keys.length, System.nanoTime() - startTime);
 		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		finishRegister(getter, sched, anyValid);
+	}
+
+	/** A key to check, and the request it belongs to. */
+	private static class CheckKey {
+		final Key key;
+		/** Index of the request in the batch */
+		final int item;
+		/** Slot in the datastore, or -1 */
+		final long slot;
+		/** Set by the worker thread. */
+		KeyBlock found;
+		CheckKey(Key key, int item, long slot) {
+			this.key = key;
+			this.item = item;
+			this.slot = slot;
+		}
+	}
+
+	private static final Comparator<CheckKey> BY_SLOT = new Comparator<CheckKey>() {
+
+		@Override
+		public int compare(CheckKey a, CheckKey b) {
+			return Long.compare(a.slot, b.slot);
+		}
+
+	};
+
+	/** Check the keys for several requests at once. The keys are sorted by their slot in the
+	 * datastore, so on a salted hash store we read the file roughly in order, and checked by
+	 * several threads, which work through the sorted list together. Blocks found are passed to
+	 * the schedulers in one go, and we call finishRegister() for each request once its scheduler
+	 * has processed them. */
+	private void checkBatch(List<QueueItem> items, Random random, int threads) {
+		long startTime = System.nanoTime();
+		boolean[] anyValid = new boolean[items.size()];
+		ClientRequestScheduler[] schedulers = new ClientRequestScheduler[items.size()];
+		Map<ClientRequestScheduler, List<KeyBlock>> found = 
+			new HashMap<ClientRequestScheduler, List<KeyBlock>>();
+		ArrayList<CheckKey> list = new ArrayList<CheckKey>();
+		int totalKeys = 0;
+		for(int i=0;i<items.size();i++) {
+			QueueItem item = items.get(i);
+			schedulers[i] = item.getter.getScheduler(context);
+			totalKeys += item.keys.length;
+			for(Key key : item.keys) {
+				if(random != null) {
+					if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+						anyValid[i] = true;
+						continue;
+					}
+				}
+				if(item.blockSet != null) {
+					// Doesn't touch the disk, no need to sort.
+					KeyBlock block = item.blockSet.get(key);
+					if(block != null)
+						addFound(found, schedulers[i], block);
+					else
+						anyValid[i] = true;
+					continue;
+				}
+				list.add(new CheckKey(key, i, node.getDatastoreSlot(key)));
+			}
+		}
+		final CheckKey[] toCheck = list.toArray(new CheckKey[list.size()]);
+		Arrays.sort(toCheck, BY_SLOT);
+		final AtomicInteger next = new AtomicInteger();
+		final Runnable worker = new Runnable() {
+
+			@Override
+			public void run() {
+				int start;
+				while((start = next.getAndAdd(KEYS_PER_CHUNK)) < toCheck.length) {
+					int end = Math.min(start + KEYS_PER_CHUNK, toCheck.length);
+					for(int i=start;i<end;i++) {
+						try {
+							toCheck[i].found = node.fetch(toCheck[i].key, true, true, false, false, null);
+						} catch (Throwable t) {
+							Logger.error(this, "Caught "+t+" checking datastore for "+toCheck[i].key, t);
+						}
+					}
+				}
+			}
+
+		};
+		int chunks = (toCheck.length + KEYS_PER_CHUNK - 1) / KEYS_PER_CHUNK;
+		int helpers = Math.max(0, Math.min(threads, chunks) - 1);
+		final CountDownLatch done = new CountDownLatch(helpers);
+		for(int i=0;i<helpers;i++) {
+			executor.execute(new PrioRunnable() {
+
+				@Override
+				public void run() {
+					try {
+						worker.run();
+					} finally {
+						done.countDown();
+					}
+				}
+
+				@Override
+				public int getPriority() {
+					return NativeThread.NORM_PRIORITY;
+				}
+
+			}, threadName+" worker");
+		}
+		// This thread helps too.
+		worker.run();
+		while(true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+		for(CheckKey check : toCheck) {
+			if(check.found != null)
+				addFound(found, schedulers[check.item], check.found);
+			else
+				anyValid[check.item] = true;
+		}
+		long timeNanos = System.nanoTime() - startTime;
+		reportChecked(totalKeys, timeNanos);
+		if(logMINOR) 
+			Logger.minor(this, "Checked "+totalKeys+" keys for "+items.size()+" requests in "+
+					(timeNanos / (1000 * 1000))+"ms with "+(helpers+1)+" threads, average "+
+					getKeysCheckedPerSecond()+" keys/sec");
+		// Only finish a request once its blocks have been processed, otherwise a local-only
+		// request may fail because it doesn't have them yet.
+		for(Map.Entry<ClientRequestScheduler, List<KeyBlock>> entry : found.entrySet()) {
+			final ClientRequestScheduler sched = entry.getKey();
+			final List<QueueItem> finish = new ArrayList<QueueItem>();
+			final List<Boolean> finishValid = new ArrayList<Boolean>();
+			for(int i=0;i<items.size();i++) {
+				if(schedulers[i] != sched) continue;
+				finish.add(items.get(i));
+				finishValid.add(anyValid[i]);
+			}
+			sched.tripPendingKeys(entry.getValue(), new Runnable() {
+
+				@Override
+				public void run() {
+					for(int i=0;i<finish.size();i++)
+						finishRegister(finish.get(i).getter, sched, finishValid.get(i));
+				}
+
+			});
+		}
+		for(int i=0;i<items.size();i++) {
+			if(!found.containsKey(schedulers[i]))
+				finishRegister(items.get(i).getter, schedulers[i], anyValid[i]);
+		}
+	}
+
+	private static void addFound(Map<ClientRequestScheduler, List<KeyBlock>> found, 
+			ClientRequestScheduler sched, KeyBlock block) {
+		List<KeyBlock> blocks = found.get(sched);
+		if(blocks == null) {
+			blocks = new ArrayList<KeyBlock>();
+			found.put(sched, blocks);
+		}
+		blocks.add(block);
+	}
+
+	private void finishRegister(SendableGet getter, ClientRequestScheduler sched, boolean anyValid) {
 		if(getter.persistent()) {
 			final SendableGet get = getter;
 			final ClientRequestScheduler scheduler = sched;
@@ -242,7 +463,6 @@ public class DatastoreChecker implements PrioRunnable {
 		} else {
 			sched.finishRegister(new SendableGet[] { getter }, false, anyValid);
 		}
-		return false;
 	}
 
 	synchronized void wakeUp() {
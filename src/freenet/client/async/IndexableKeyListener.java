@@ -0,0 +1,31 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import freenet.keys.Key;
+
+/**
+ * A KeyListener which can list all the keys it might want. KeyListenerTracker puts these in a
+ * single index (SaltedKeyIndex), so when a block arrives it only needs to ask the listeners which
+ * might want it, rather than calling probablyWantKey() on every listener.
+ * 
+ * The set of keys must not grow after the listener has been registered. It may shrink, e.g. as 
+ * blocks are found; probablyWantKey() is still called before handing a block over.
+ */
+public interface IndexableKeyListener extends KeyListener {
+
+	/**
+	 * @return The number of keys listKeys() will return. Must be fast, should not touch disk.
+	 */
+	public long countIndexableKeys();
+
+	/**
+	 * List every key this listener might want, including any that it has already found.
+	 * LOCKING: Called without any locks held. May read from disk.
+	 * @return The keys, or null if they can't be listed, in which case the tracker will fall 
+	 * back to calling probablyWantKey().
+	 */
+	public Key[] listKeys();
+
+}
@@ -7,6 +7,8 @@ import static java.lang.String.format;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 
 import freenet.crypt.RandomSource;
@@ -62,6 +64,16 @@ class KeyListenerTracker implements KeySalter {
 	protected final ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	private final ArrayList<KeyListener> keyListeners;
+	/** The listeners which are not in keyIndex, so we have to ask them about every key. */
+	private final ArrayList<KeyListener> unindexedListeners;
+	/** The listeners which are in keyIndex, and the fingerprints of their keys, so we can 
+	 * remove them without scanning the whole index. */
+	private final HashMap<KeyListener, long[]> indexedListeners;
+	/** Index from salted key to the IndexableKeyListener's which want it. */
+	private final SaltedKeyIndex keyIndex;
+	/** Maximum number of keys in keyIndex. Each one costs up to 48 bytes. Listeners which don't
+	 * fit are checked for every key, as are listeners which aren't IndexableKeyListener's. */
+	static final int MAX_INDEXED_KEYS = 256*1024;
 
 	final boolean persistent;
 	
@@ -75,6 +87,9 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		unindexedListeners = new ArrayList<KeyListener>();
+		indexedListeners = new HashMap<KeyListener, long[]>();
+		keyIndex = new SaltedKeyIndex(MAX_INDEXED_KEYS);
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -102,15 +117,58 @@ class KeyListenerTracker implements KeySalter {
 			if(keyListeners.contains(listener))
 				return;
 			keyListeners.add(listener);
+			// Check it the slow way until it has been indexed.
+			unindexedListeners.add(listener);
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+		if(listener instanceof IndexableKeyListener)
+			maybeIndex((IndexableKeyListener)listener);
+	}
+	
+	/** Add the listener's keys to the index, if there is space, so we don't need to ask it about 
+	 * every key. */
+	private void maybeIndex(IndexableKeyListener listener) {
+		Key[] keys;
+		try {
+			synchronized(this) {
+				if(!keyIndex.hasSpaceFor(listener.countIndexableKeys())) {
+					if(logMINOR) Logger.minor(this, "No space to index "+listener+" on "+this);
+					return;
+				}
+			}
+			// May read from disk, so don't hold the lock.
+			keys = listener.listKeys();
+		} catch (Throwable t) {
+			Logger.error(this, format("Error listing keys for %s", listener), t);
+			return;
+		}
+		if(keys == null) return;
+		byte[][] saltedKeys = new byte[keys.length][];
+		for(int i=0;i<keys.length;i++)
+			saltedKeys[i] = saltKey(keys[i]);
+		synchronized(this) {
+			// May have been removed while we were listing the keys.
+			if(!unindexedListeners.contains(listener)) return;
+			if(!keyIndex.hasSpaceFor(saltedKeys.length)) return;
+			long[] fingerprints = new long[saltedKeys.length];
+			for(int i=0;i<saltedKeys.length;i++)
+				fingerprints[i] = keyIndex.add(saltedKeys[i], listener);
+			indexedListeners.put(listener, fingerprints);
+			unindexedListeners.remove(listener);
+		}
+		if(logMINOR) Logger.minor(this, "Indexed "+keys.length+" keys for "+listener+" on "+this);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
 			ret = keyListeners.remove(listener);
+			long[] fingerprints = indexedListeners.remove(listener);
+			if(fingerprints != null)
+				keyIndex.removeAll(listener, fingerprints);
+			else
+				unindexedListeners.remove(listener);
 		}
 		listener.onRemove();
 		if (logMINOR)
@@ -198,19 +256,10 @@ class KeyListenerTracker implements KeySalter {
 		return false;
 	}
 	
-	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
+	public boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for (KeyListener listener : keyListeners) {
-			try {
-				if (listener.probablyWantKey(key, saltedKey)) {
-					return true;
-				}
-			} catch (Throwable t) {
-				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
-			}
-		}
-		return false;
+		return !probablyWantKey(key, saltedKey).isEmpty();
 	}
 	
 	public boolean tripPendingKey(Key key, KeyBlock block, ClientContext context) {
@@ -298,12 +347,20 @@ class KeyListenerTracker implements KeySalter {
 	}
 
 	/**
-	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey)
+	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey). Only asks 
+	 * the listeners which aren't indexed, and those which the index says might want the key.
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
 		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
+			ArrayList<KeyListener> candidates = new ArrayList<KeyListener>(unindexedListeners.size() + 1);
+			keyIndex.get(saltedKey, candidates);
+			if(candidates.size() > 1) {
+				// A listener may have added the same key more than once.
+				candidates = new ArrayList<KeyListener>(new LinkedHashSet<KeyListener>(candidates));
+			}
+			candidates.addAll(unindexedListeners);
+			for (KeyListener listener : candidates) {
 				try {
 					if (!listener.probablyWantKey(key, saltedKey)) {
 						continue;
@@ -57,6 +57,12 @@ public interface PersistentJobRunner {
     /** Commit ASAP. Can also be set via returning true from a PersistentJob, but it's useful to be
      * able to do it "inline". */
     void setCheckpointASAP();
+    
+    /** Record that the persistent state of a request has changed. Checkpoints usually only write
+     * the requests which have changed, so this should be called whenever a persistent request 
+     * changes, as well as setCheckpointASAP() if it is urgent. 
+     * @see ClientRequester#setChanged(ClientContext) */
+    void setChanged(ClientRequester request);
 
     /** Has the queue started yet? */
     boolean hasLoaded();
@@ -286,6 +286,11 @@ public abstract class PersistentJobRunnerImpl implements PersistentJobRunner {
         checkpointOffThread();
     }
     
+    @Override
+    public void setChanged(ClientRequester request) {
+        // Ignore. We don't know how to write individual requests.
+    }
+    
     protected void updateLastCheckpointed() {
         lastCheckpointed = System.currentTimeMillis();
     }
@@ -0,0 +1,143 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.List;
+
+import freenet.support.Fields;
+
+/**
+ * Maps salted keys to the KeyListeners that want them, so that KeyListenerTracker can find the
+ * listeners interested in a block without asking every listener. This is an open addressing hash
+ * table with linear probing, keyed on a 64-bit fingerprint of the salted key (which is already a
+ * SHA-256 hash, so we just take the first 8 bytes). Several listeners may want the same key, in
+ * which case there is one entry for each. A fingerprint collision just means we ask a listener
+ * about a key it doesn't want, as the caller still calls probablyWantKey().
+ *
+ * The table grows as needed up to a fixed maximum number of entries, so memory usage is bounded;
+ * listeners which don't fit must be checked the old way. The caller keeps the fingerprints
+ * returned by add(), so a listener's entries can be found by probing when it is removed. They are
+ * replaced with tombstones, and the table is rebuilt when there are too many.
+ *
+ * LOCKING: Not thread-safe, the caller must synchronize.
+ */
+class SaltedKeyIndex {
+
+    private static final long EMPTY = 0;
+    private static final long TOMBSTONE = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Maximum number of live entries. */
+    private final int maxEntries;
+    /** Fingerprints, or EMPTY or TOMBSTONE. Length is a power of 2. */
+    private long[] fingerprints;
+    private KeyListener[] listeners;
+    /** Number of live entries. */
+    private int entries;
+    /** Number of tombstones. */
+    private int tombstones;
+
+    SaltedKeyIndex(int maxEntries) {
+        this.maxEntries = maxEntries;
+        fingerprints = new long[INITIAL_CAPACITY];
+        listeners = new KeyListener[INITIAL_CAPACITY];
+    }
+
+    /** @return True if count more entries can be added without exceeding the limit. */
+    boolean hasSpaceFor(long count) {
+        return entries + count <= maxEntries;
+    }
+
+    int size() {
+        return entries;
+    }
+
+    /** Add a key for a listener. Caller must check hasSpaceFor() first. 
+     * @return The fingerprint, which must be passed to removeAll() to remove the entry. */
+    long add(byte[] saltedKey, KeyListener listener) {
+        if(entries >= maxEntries) throw new IllegalStateException("Index full");
+        // Keep the load factor (including tombstones) at most 1/2.
+        if((entries + tombstones + 1) * 2 > fingerprints.length)
+            rebuild(entries + 1);
+        long fp = fingerprint(saltedKey);
+        int mask = fingerprints.length - 1;
+        int slot = (int) fp & mask;
+        while(fingerprints[slot] != EMPTY && fingerprints[slot] != TOMBSTONE)
+            slot = (slot + 1) & mask;
+        if(fingerprints[slot] == TOMBSTONE) tombstones--;
+        fingerprints[slot] = fp;
+        listeners[slot] = listener;
+        entries++;
+        return fp;
+    }
+
+    /** Add every listener which has added this key to the list. May add the same listener more
+     * than once, if it added the key more than once. */
+    void get(byte[] saltedKey, List<KeyListener> matches) {
+        long fp = fingerprint(saltedKey);
+        int mask = fingerprints.length - 1;
+        int slot = (int) fp & mask;
+        long f;
+        while((f = fingerprints[slot]) != EMPTY) {
+            if(f == fp) matches.add(listeners[slot]);
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /** Remove the entries for a listener. O(number of keys), however big the table is.
+     * @param fingerprints The values returned by add() for the listener's keys.
+     * @return The number of entries removed. */
+    int removeAll(KeyListener listener, long[] fingerprints) {
+        int removed = 0;
+        int mask = this.fingerprints.length - 1;
+        for(long fp : fingerprints) {
+            int slot = (int) fp & mask;
+            long f;
+            while((f = this.fingerprints[slot]) != EMPTY) {
+                if(f == fp && listeners[slot] == listener) {
+                    this.fingerprints[slot] = TOMBSTONE;
+                    listeners[slot] = null;
+                    removed++;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        entries -= removed;
+        tombstones += removed;
+        if(tombstones > this.fingerprints.length / 4)
+            rebuild(entries);
+        return removed;
+    }
+
+    /** Rebuild the table without tombstones, at a size suitable for the given number of entries.
+     * Shrinks the table if most of it is empty. */
+    private void rebuild(int minEntries) {
+        int capacity = INITIAL_CAPACITY;
+        while(capacity < minEntries * 4 && capacity < Integer.MAX_VALUE / 2)
+            capacity <<= 1;
+        long[] oldFingerprints = fingerprints;
+        KeyListener[] oldListeners = listeners;
+        fingerprints = new long[capacity];
+        listeners = new KeyListener[capacity];
+        tombstones = 0;
+        int mask = capacity - 1;
+        for(int i=0;i<oldFingerprints.length;i++) {
+            long fp = oldFingerprints[i];
+            if(fp == EMPTY || fp == TOMBSTONE) continue;
+            int slot = (int) fp & mask;
+            while(fingerprints[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            fingerprints[slot] = fp;
+            listeners[slot] = oldListeners[i];
+        }
+    }
+
+    private static long fingerprint(byte[] saltedKey) {
+        long fp = Fields.bytesToLong(saltedKey, 0);
+        if(fp == EMPTY || fp == TOMBSTONE) fp = 1;
+        return fp;
+    }
+
+}
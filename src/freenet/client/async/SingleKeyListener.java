@@ -7,7 +7,7 @@ import freenet.node.LowLevelGetException;
 import freenet.node.SendableGet;
 import freenet.support.Logger;
 
-public class SingleKeyListener implements KeyListener {
+public class SingleKeyListener implements IndexableKeyListener {
 	
 	private final Key key;
 	private final BaseSingleFileFetcher fetcher;
@@ -65,6 +65,16 @@ public class SingleKeyListener implements KeyListener {
 		return true;
 	}
 
+	@Override
+	public long countIndexableKeys() {
+		return 1;
+	}
+
+	@Override
+	public Key[] listKeys() {
+		return new Key[] { key };
+	}
+
 	@Override
 	public boolean persistent() {
 		return persistent;
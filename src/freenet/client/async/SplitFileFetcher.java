@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.List;
 
@@ -382,6 +383,17 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         return wantBinaryBlob;
     }
 
+    /** Open a stream over the data in order as it is decoded, if we are fetching in order and
+     * the data is what the ClientGetter will return, i.e. it won't be decompressed or turned into
+     * a binary blob. The caller must check that it won't be filtered.
+     * @return The stream, or null if the data isn't the final data or isn't fetched in order. */
+    InputStream openInOrderStream(ClientGetter getter) {
+        SplitFileFetcherStorage storage = this.storage;
+        if(cb != getter || wantBinaryBlob || !storage.fetchInOrder) return null;
+        if(storage.decompressors != null && !storage.decompressors.isEmpty()) return null;
+        return storage.openInOrderStream();
+    }
+
     @Override
     public BaseSendableGet getSendableGet() {
         return getter;
@@ -394,6 +406,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         // We need to fetch more blocks. Some of them may even be in the datastore.
         getter.unregister(context, getPriorityClass());
         getter.schedule(context, false);
+        parent.setChanged(context);
         context.jobRunner.setCheckpointASAP();
     }
 
@@ -110,7 +110,7 @@ public class SplitFileFetcherCrossSegmentStorage {
         long limit = totalBlocks * CHKBlock.DATA_LENGTH + 
             Math.max(parent.fecCodec.maxMemoryOverheadDecode(dataBlockCount, crossCheckBlockCount),
                     parent.fecCodec.maxMemoryOverheadEncode(dataBlockCount, crossCheckBlockCount));
-        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
+        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit, parent.finalLength) {
             
             @Override
             public int getPriority() {
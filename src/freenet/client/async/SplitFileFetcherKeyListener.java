@@ -22,7 +22,7 @@ import freenet.support.CountingBloomFilter;
 import freenet.support.Logger;
 import freenet.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexableKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -307,6 +307,16 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return found;
     }
 
+    @Override
+    public long countIndexableKeys() {
+        return storage.countAllKeys();
+    }
+
+    @Override
+    public Key[] listKeys() {
+        return storage.listAllKeys();
+    }
+
     @Override
     public boolean persistent() {
         return persistent;
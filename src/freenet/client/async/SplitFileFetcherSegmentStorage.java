@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -25,12 +26,16 @@ import freenet.keys.ClientCHKBlock;
 import freenet.keys.Key;
 import freenet.keys.NodeCHK;
 import freenet.node.KeysFetchingLocally;
+import freenet.node.PrioRunnable;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedChunk;
 import freenet.support.MemoryLimitedJob;
 import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
+import freenet.support.io.BaseFileBucket.FileBucketOutputStream;
 import freenet.support.io.NativeThread;
+import freenet.support.io.PooledFileRandomAccessBuffer;
 import freenet.support.io.StorageFormatException;
 
 /** Represents a single segment, in memory and on disk. Handles storage and decoding. Note that the
@@ -288,7 +293,7 @@ public class SplitFileFetcherSegmentStorage {
             Math.max(parent.fecCodec.maxMemoryOverheadDecode(blocksForDecode(), checkBlocks),
                     parent.fecCodec.maxMemoryOverheadEncode(blocksForDecode(), checkBlocks));
         final int prio = parent.getPriorityClass();
-        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
+        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit, parent.finalLength) {
             
             @Override
             public int getPriority() {
@@ -351,23 +356,25 @@ public class SplitFileFetcherSegmentStorage {
         }
         
         int totalBlocks = totalBlocks();
-        byte[][] allBlocks = readAllBlocks();
-        SplitFileSegmentKeys keys = getSegmentKeys();
-        if(allBlocks == null || keys == null) {
+        final SplitFileSegmentKeys keys = getSegmentKeys();
+        if(keys == null) {
             return;
         }
         class MyBlock {
-            final byte[] buf;
+            byte[] buf;
             final int blockNumber;
             final int slot;
-            MyBlock(byte[] buf, int blockNumber, int slot) {
-                this.buf = buf;
+            /** The block number after checking the data, or -1 if it isn't valid. */
+            int verifiedBlockNumber = -1;
+            MyBlock(int blockNumber, int slot) {
                 this.blockNumber = blockNumber;
                 this.slot = slot;
             }
         }
-        ArrayList<MyBlock> maybeBlocks = new ArrayList<MyBlock>();
+        final ArrayList<MyBlock> maybeBlocks = new ArrayList<MyBlock>();
         int fetchedCount = 0;
+        // Work out what should be in each slot before reading anything, so we don't read the 
+        // blocks at all if the metadata says we can't decode.
         synchronized(this) {
             boolean[] used = new boolean[totalBlocks];
             for(short i=0;i<blocksFetched.length;i++) {
@@ -375,7 +382,7 @@ public class SplitFileFetcherSegmentStorage {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has bogus block number "+blocksFetched[i]);
                     if(blocksFetched[i] != -1)
                         blocksFetched[i] = -1;
-                    maybeBlocks.add(new MyBlock(allBlocks[i], (short)-1, i));
+                    maybeBlocks.add(new MyBlock((short)-1, i));
                     continue;
                 } else if(used[blocksFetched[i]]) {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has duplicate block number "+blocksFetched[i]);
@@ -383,7 +390,7 @@ public class SplitFileFetcherSegmentStorage {
                     continue;
                 } else {
                     if(logMINOR) Logger.minor(this, "Found block "+blocksFetched[i]+" in slot "+i);
-                    maybeBlocks.add(new MyBlock(allBlocks[i], blocksFetched[i], i));
+                    maybeBlocks.add(new MyBlock(blocksFetched[i], i));
                     used[blocksFetched[i]] = true;
                     fetchedCount++;
                 }
@@ -410,60 +417,42 @@ public class SplitFileFetcherSegmentStorage {
             return;
         }
         
-        // Check the blocks and put them into the correct positions.
+        // Read the blocks and check them. Encoding a block to check its key is expensive, so we 
+        // do it on several threads, which also overlaps the disk reads with the encoding.
+        RAFLock lock = parent.lockRAFOpen();
+        try {
+            runInParallel(maybeBlocks.size(), new BlockTask() {
+
+                @Override
+                public void run(int i) throws IOException {
+                    MyBlock test = maybeBlocks.get(i);
+                    test.buf = readBlock(test.slot);
+                    test.verifiedBlockNumber = verifyBlock(test.buf, test.blockNumber, test.slot, keys);
+                }
+                
+            });
+        } finally {
+            lock.unlock();
+        }
+        
+        // Put the blocks into the correct positions.
         int validBlocks = 0;
         int validDataBlocks = 0;
         byte[][] dataBlocks = new byte[blocksForDecode()][];
         byte[][] checkBlocks = new byte[this.checkBlocks][];
         
         for(MyBlock test : maybeBlocks) {
-            boolean failed = false;
-            int blockNumber = test.blockNumber;
-            byte[] buf = test.buf;
-            ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
-            // Encode it to check whether the key is the same.
-            try {
-                ClientCHKBlock block =
-                    ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(decodeKey == null || !decodeKey.equals(actualKey)) {
-                    // Is it a different block?
-                    blockNumber = (short)keys.getBlockNumber(actualKey, null);
-                    if(blockNumber == -1) {
-                        Logger.error(this, "Block which should be block #"+test.blockNumber+" in slot "+test.slot+" for segment "+this+" is not valid for key "+decodeKey);
-                        failed = true;
-                        synchronized(this) {
-                            blockChooser.onUnSuccess(blockNumber);
-                            if(blocksFetched[test.slot] == test.blockNumber) {
-                                blocksFetched[test.slot] = (short)-1;
-                            }
-                        }
-                    } else {
-                        synchronized(this) {
-                            blockChooser.onUnSuccess(blockNumber);
-                            blocksFetched[test.slot] = blockNumber;
-                            this.blockChooser.onSuccess(blockNumber);
-                        }
-                    }
-                }
-                
-            } catch (CHKEncodeException e) {
-                Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
-                failed = true;
-            }
-            if(!failed) {
-                validBlocks++;
-                if(blockNumber < blocksForDecode())
-                    validDataBlocks++;
-                if(blockNumber < dataBlocks.length)
-                    dataBlocks[blockNumber] = buf;
-                else
-                    checkBlocks[blockNumber - dataBlocks.length] = buf;
-            }
+            int blockNumber = test.verifiedBlockNumber;
+            if(blockNumber == -1) continue;
+            validBlocks++;
+            if(blockNumber < blocksForDecode())
+                validDataBlocks++;
+            if(blockNumber < dataBlocks.length)
+                dataBlocks[blockNumber] = test.buf;
+            else
+                checkBlocks[blockNumber - dataBlocks.length] = test.buf;
         }
-        allBlocks = null;
         maybeBlocks.clear();
-        maybeBlocks = null;
         if(validBlocks < blocksForDecode()) {
             // Metadata didn't match blocks on disk; write metadata immediately.
             writeMetadata();
@@ -536,77 +525,232 @@ public class SplitFileFetcherSegmentStorage {
         if(logMINOR) Logger.minor(this, "Finished decoding "+this+" for "+parent);
     }
 
-    private void checkDecodedDataBlocks(byte[][] dataBlocks, boolean[] dataBlocksPresent, 
-            SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
-        for(int i=0;i<dataBlocks.length;i++) {
-            if(dataBlocksPresent[i]) continue;
-            ClientCHK decodeKey = keys.getKey(i, null, false);
-            // Encode it to check whether the key is the same.
-            ClientCHKBlock block;
-            try {
-                block = ClientCHKBlock.encodeSplitfileBlock(dataBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(!actualKey.equals(decodeKey)) {
-                    if(i == dataBlocks.length-1 && this.segNo == parent.segments.length-1 && 
-                            parent.lastBlockMightNotBePadded()) {
-                        // Ignore.
-                        return;
-                    } else {
-                        // Usual case.
-                        parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Decoded block does not match expected key"));
-                        return;
+    /** Check that a block read from disk is the block that the metadata says is in that slot, by
+     * encoding it and comparing the key. If it is a different block from this segment, update the
+     * metadata. Called in parallel from innerDecode().
+     * @return The actual block number, or -1 if the block is not valid. */
+    private int verifyBlock(byte[] buf, int expectedBlockNumber, int slot, SplitFileSegmentKeys keys) {
+        int blockNumber = expectedBlockNumber;
+        ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
+        // Encode it to check whether the key is the same.
+        try {
+            ClientCHKBlock block =
+                ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+            ClientCHK actualKey = block.getClientKey();
+            if(decodeKey == null || !decodeKey.equals(actualKey)) {
+                // Is it a different block?
+                blockNumber = (short)keys.getBlockNumber(actualKey, null);
+                if(blockNumber == -1) {
+                    Logger.error(this, "Block which should be block #"+expectedBlockNumber+" in slot "+slot+" for segment "+this+" is not valid for key "+decodeKey);
+                    synchronized(this) {
+                        blockChooser.onUnSuccess(blockNumber);
+                        if(blocksFetched[slot] == expectedBlockNumber) {
+                            blocksFetched[slot] = (short)-1;
+                        }
+                    }
+                    return -1;
+                } else {
+                    synchronized(this) {
+                        blockChooser.onUnSuccess(blockNumber);
+                        blocksFetched[slot] = blockNumber;
+                        this.blockChooser.onSuccess(blockNumber);
                     }
                 }
-                if(capturingBinaryBlob)
-                    parent.fetcher.maybeAddToBinaryBlob(block);
-            } catch (CHKEncodeException e) {
-                // Impossible!
-                parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
-                Logger.error(this, "Impossible: Decoded block could not be encoded");
-                return;
             }
+            return blockNumber;
+        } catch (CHKEncodeException e) {
+            Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
+            return -1;
         }
     }
+    
+    /** Per-block work for runInParallel(). */
+    private interface BlockTask {
+        void run(int i) throws IOException;
+    }
+    
+    /** Minimum number of blocks per thread in runInParallel(). Encoding a block takes well under a
+     * millisecond, so there is no point starting a thread for only a few. */
+    private static final int MIN_BLOCKS_PER_THREAD = 16;
+    
+    /** Run task.run(i) for i in [0, count), on the calling thread and on helper threads from the 
+     * MemoryLimitedJobRunner's executor. The blocks are already accounted for by the decode job,
+     * so the helpers don't need any more memory. Does not depend on the helpers actually starting:
+     * the calling thread takes work from the same counter, and we only wait for blocks that a
+     * helper has already taken.
+     * @throws IOException If any of the tasks threw. */
+    private void runInParallel(final int count, final BlockTask task) throws IOException {
+        int helpers = Math.min(Runtime.getRuntime().availableProcessors() - 1, 
+                count / MIN_BLOCKS_PER_THREAD - 1);
+        final AtomicInteger next = new AtomicInteger();
+        final Throwable[] error = new Throwable[1];
+        final int[] completed = new int[1];
+        class Worker implements PrioRunnable {
 
-    private boolean checkEncodedDataBlocks(byte[][] checkBlocks, boolean[] checkBlocksPresent, 
-            SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
-        for(int i=0;i<checkBlocks.length;i++) {
-            if(checkBlocksPresent[i]) continue;
-            ClientCHK decodeKey = keys.getKey(i+blocksForDecode(), null, false);
-            // Encode it to check whether the key is the same.
-            ClientCHKBlock block;
-            try {
-                block = ClientCHKBlock.encodeSplitfileBlock(checkBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(!actualKey.equals(decodeKey)) {
-                    Logger.error(this, "Splitfile check block "+i+" does not encode to expected key for "+this+" for "+parent);
-                    return false;
+            @Override
+            public void run() {
+                int i;
+                while((i = next.getAndIncrement()) < count) {
+                    try {
+                        synchronized(error) {
+                            if(error[0] != null) continue;
+                        }
+                        task.run(i);
+                    } catch (Throwable t) {
+                        synchronized(error) {
+                            if(error[0] == null) error[0] = t;
+                        }
+                    } finally {
+                        synchronized(error) {
+                            completed[0]++;
+                            if(completed[0] == count) error.notifyAll();
+                        }
+                    }
                 }
-                if(capturingBinaryBlob)
-                    parent.fetcher.maybeAddToBinaryBlob(block);
-            } catch (CHKEncodeException e) {
-                // Impossible!
-                parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
-                Logger.error(this, "Impossible: Decoded block could not be encoded");
-                return false;
             }
+
+            @Override
+            public int getPriority() {
+                return MemoryLimitedJobRunner.THREAD_PRIORITY;
+            }
+            
         }
-        return true;
+        Worker worker = new Worker();
+        for(int i=0;i<helpers;i++)
+            parent.memoryLimitedJobRunner.getExecutor().execute(worker, "Splitfile decode helper for "+this);
+        worker.run();
+        Throwable t;
+        synchronized(error) {
+            while(completed[0] < count) {
+                try {
+                    error.wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            t = error[0];
+        }
+        if(t == null) return;
+        if(t instanceof IOException) throw (IOException) t;
+        if(t instanceof RuntimeException) throw (RuntimeException) t;
+        if(t instanceof Error) throw (Error) t;
+        throw new IOException(t);
     }
 
-    private void queueHeal(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent) throws IOException {
-        for(int i=0;i<dataBlocks.length;i++) {
-            if(dataBlocksPresent[i]) continue;
-            if(blockChooser.getRetries(i) == 0) continue;
-            queueHeal(i, dataBlocks[i]);
+    private void checkDecodedDataBlocks(final byte[][] dataBlocks, final boolean[] dataBlocksPresent, 
+            final SplitFileSegmentKeys keys, final boolean capturingBinaryBlob) throws IOException {
+        final boolean[] failed = new boolean[1];
+        runInParallel(dataBlocks.length, new BlockTask() {
+
+            @Override
+            public void run(int i) {
+                if(dataBlocksPresent[i]) return;
+                synchronized(failed) {
+                    if(failed[0]) return;
+                }
+                ClientCHK decodeKey = keys.getKey(i, null, false);
+                // Encode it to check whether the key is the same.
+                ClientCHKBlock block;
+                try {
+                    block = ClientCHKBlock.encodeSplitfileBlock(dataBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+                    ClientCHK actualKey = block.getClientKey();
+                    if(!actualKey.equals(decodeKey)) {
+                        if(i == dataBlocks.length-1 && segNo == parent.segments.length-1 && 
+                                parent.lastBlockMightNotBePadded()) {
+                            // Ignore.
+                            return;
+                        } else {
+                            // Usual case.
+                            if(setFailed(failed))
+                                parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Decoded block does not match expected key"));
+                            return;
+                        }
+                    }
+                    if(capturingBinaryBlob)
+                        parent.fetcher.maybeAddToBinaryBlob(block);
+                } catch (CHKEncodeException e) {
+                    // Impossible!
+                    if(setFailed(failed))
+                        parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
+                    Logger.error(SplitFileFetcherSegmentStorage.this, "Impossible: Decoded block could not be encoded");
+                    return;
+                }
+            }
+            
+        });
+    }
+    
+    /** Set the shared failure flag for a parallel check. 
+     * @return True if we were the first to fail, and should report the failure. */
+    private static boolean setFailed(boolean[] failed) {
+        synchronized(failed) {
+            if(failed[0]) return false;
+            failed[0] = true;
+            return true;
         }
-        for(int i=0;i<checkBlocks.length;i++) {
-            if(checkBlocksPresent[i]) continue;
-            if(blockChooser.getRetries(i+dataBlocks.length) == 0) continue;
-            queueHeal(i+dataBlocks.length, checkBlocks[i]);
+    }
+
+    private boolean checkEncodedDataBlocks(final byte[][] checkBlocks, final boolean[] checkBlocksPresent, 
+            final SplitFileSegmentKeys keys, final boolean capturingBinaryBlob) throws IOException {
+        final boolean[] failed = new boolean[1];
+        runInParallel(checkBlocks.length, new BlockTask() {
+
+            @Override
+            public void run(int i) {
+                if(checkBlocksPresent[i]) return;
+                synchronized(failed) {
+                    if(failed[0]) return;
+                }
+                ClientCHK decodeKey = keys.getKey(i+blocksForDecode(), null, false);
+                // Encode it to check whether the key is the same.
+                ClientCHKBlock block;
+                try {
+                    block = ClientCHKBlock.encodeSplitfileBlock(checkBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
+                    ClientCHK actualKey = block.getClientKey();
+                    if(!actualKey.equals(decodeKey)) {
+                        Logger.error(SplitFileFetcherSegmentStorage.this, "Splitfile check block "+i+" does not encode to expected key for "+SplitFileFetcherSegmentStorage.this+" for "+parent);
+                        setFailed(failed);
+                        return;
+                    }
+                    if(capturingBinaryBlob)
+                        parent.fetcher.maybeAddToBinaryBlob(block);
+                } catch (CHKEncodeException e) {
+                    // Impossible!
+                    if(setFailed(failed))
+                        parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
+                    Logger.error(SplitFileFetcherSegmentStorage.this, "Impossible: Decoded block could not be encoded");
+                    return;
+                }
+            }
+            
+        });
+        synchronized(failed) {
+            return !failed[0];
         }
     }
 
+    private void queueHeal(final byte[][] dataBlocks, final byte[][] checkBlocks, 
+            final boolean[] dataBlocksPresent, final boolean[] checkBlocksPresent) throws IOException {
+        // Copying the blocks into buckets and creating the inserters is independent per block.
+        runInParallel(dataBlocks.length + checkBlocks.length, new BlockTask() {
+
+            @Override
+            public void run(int i) throws IOException {
+                if(i < dataBlocks.length) {
+                    if(dataBlocksPresent[i]) return;
+                    if(blockChooser.getRetries(i) == 0) return;
+                    queueHeal(i, dataBlocks[i]);
+                } else {
+                    int check = i - dataBlocks.length;
+                    if(checkBlocksPresent[check]) return;
+                    if(blockChooser.getRetries(i) == 0) return;
+                    queueHeal(i, checkBlocks[check]);
+                }
+            }
+            
+        });
+    }
+
     private void queueHeal(int blockNumber, byte[] data) throws IOException {
         byte[] cryptoKey;
         byte cryptoAlgorithm;
@@ -621,19 +765,6 @@ public class SplitFileFetcherSegmentStorage {
         parent.fetcher.queueHeal(data, cryptoKey, cryptoAlgorithm);
     }
 
-    private synchronized byte[][] readAllBlocks() throws IOException {
-        RAFLock lock = parent.lockRAFOpen();
-        try {
-            // FIXME consider using a single big byte[].
-            byte[][] ret = new byte[blocksForDecode()][];
-            for(int i=0;i<ret.length;i++)
-                ret[i] = readBlock(i);
-            return ret;
-        } finally {
-            lock.unlock();
-        }
-    }
-
     private void triggerAllCrossSegmentCallbacks() {
         SplitFileFetcherCrossSegmentStorage[] crossSegmentsByBlockCopy;
         synchronized(this) {
@@ -843,6 +974,8 @@ public class SplitFileFetcherSegmentStorage {
         synchronized(this) {
             if(!(force || metadataDirty)) return;
             if(logMINOR) Logger.debug(this, "Writing metadata for "+segNo+" for "+parent, new Exception("debug"));
+            // The blocks the metadata refers to must be on disk first.
+            parent.flushBlocks();
             OutputStream cos = parent.writeChecksummedTo(segmentStatusOffset, segmentStatusPaddedLength);
             try {
                 DataOutputStream dos = new DataOutputStream(cos);
@@ -921,19 +1054,44 @@ public class SplitFileFetcherSegmentStorage {
         return succeeded;
     }
 
+    /** @return The length of the data in this segment, after decoding, excluding padding. The
+     * data blocks are contiguous on disk, starting at segmentBlockDataOffset. */
+    long dataLength() {
+        long length = (long)dataBlocks * CHKBlock.DATA_LENGTH;
+        if(this.segNo == parent.segments.length-1) {
+            int lastLength = (int) (parent.finalLength % CHKBlock.DATA_LENGTH);
+            if(lastLength != 0) length -= CHKBlock.DATA_LENGTH - lastLength;
+        }
+        return length;
+    }
+
+    /** Maximum number of blocks to read at once in writeToInner(). */
+    private static final int WRITE_BLOCKS_AT_ONCE = 32;
+
     /** Write content to an OutputStream. We already have raf.lock(). 
      * @throws IOException */
     void writeToInner(OutputStream os) throws IOException {
-        // FIXME if we use readAllBlocks() we'll need to run on the memory limited queue???
-        for(int i=0;i<dataBlocks;i++) { // Don't include cross-check blocks.
-            byte[] buf = readBlock(i);
-            if(i == dataBlocks-1 && this.segNo == parent.segments.length-1) {
-                int length = (int) (parent.finalLength % CHKBlock.DATA_LENGTH);
-                if(length == 0) length = CHKBlock.DATA_LENGTH;
-                os.write(buf, 0, length);
-            } else {
-                os.write(buf);
+        // The data blocks are contiguous on disk, so copy them in bulk. 
+        // Don't include cross-check blocks.
+        long length = dataLength();
+        parent.flushBlocks();
+        LockableRandomAccessBuffer raf = parent.getRAF();
+        if(os instanceof FileBucketOutputStream && raf instanceof PooledFileRandomAccessBuffer) {
+            // Plain file to plain file, e.g. ReturnType=disk, let the OS do the copy. This still
+            // checks that the bucket hasn't been freed.
+            ((FileBucketOutputStream)os).transferFrom((PooledFileRandomAccessBuffer)raf, 
+                    segmentBlockDataOffset, length);
+            return;
+        }
+        byte[] buf = new byte[(int) Math.min(length, WRITE_BLOCKS_AT_ONCE * CHKBlock.DATA_LENGTH)];
+        long offset = 0;
+        while(offset < length) {
+            int toRead = (int) Math.min(buf.length, length - offset);
+            synchronized(this) {
+                raf.pread(segmentBlockDataOffset + offset, buf, 0, toRead);
             }
+            os.write(buf, 0, toRead);
+            offset += toRead;
         }
     }
 
@@ -1139,6 +1297,13 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
+    /** Add all the keys for the segment, whether or not we have fetched them. */
+    void getAllKeys(List<Key> keys) throws IOException {
+        SplitFileSegmentKeys keyList = getSegmentKeys();
+        for(int i=0;i<totalBlocks();i++)
+            keys.add(keyList.getNodeKey(i, null, false));
+    }
+
     /** Pick a key to fetch. Must not update any persistent field. (Cooldowns etc are fine) */
     public int chooseRandomKey() {
         int chosen;
@@ -8,11 +8,15 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import freenet.client.ClientMetadata;
@@ -130,6 +134,12 @@ public class SplitFileFetcherStorage {
     /** The underlying presumably-on-disk storage. */ 
     private final LockableRandomAccessBuffer raf;
     private final long rafLength;
+    /** Downloaded blocks which haven't been written to raf yet, by offset. When there are enough
+     * of them, we write them in offset order, and adjacent blocks in a single write, rather than 
+     * doing a small random write for every block. They must be written before anything reads 
+     * block data from raf, and before writing metadata which refers to them. LOCKING: 
+     * Synchronized on itself. Don't take any other locks while holding it. */
+    private final TreeMap<Long, byte[]> pendingBlocks = new TreeMap<Long, byte[]>();
     /** If true we will complete the download by truncating the file. The file was passed in at
      * construction and we are not responsible for freeing it. Once all segments have decoded and
      * encoded we call onSuccess(), and we don't free the data. Also, if this is true, cross-check 
@@ -141,6 +151,13 @@ public class SplitFileFetcherStorage {
     final SplitFileFetcherCrossSegmentStorage[] crossSegments;
     /** Random iterator for segment selection. LOCKING: must synchronize on the iterator. */
     private final RandomArrayIterator<SplitFileFetcherSegmentStorage> randomSegmentIterator;
+    /** If true, fetch the segments in order, so the data can be read with openInOrderStream()
+     * as each segment completes. */
+    final boolean fetchInOrder;
+    /** True if the data will never be complete, or has been freed. Wakes up in-order streams. */
+    private boolean dataUnavailable;
+    /** Incremented on each call to finishedSuccess(). LOCKING: Synchronized on this. */
+    private int segmentsSucceeded;
 
     /** If the splitfile has a common encryption algorithm, this is it. */
     final byte splitfileSingleCryptoAlgorithm;
@@ -287,6 +304,7 @@ public class SplitFileFetcherStorage {
         this.checksumLength = checker.checksumLength();
         this.persistent = persistent;
         this.completeViaTruncation = (storageFile != null);
+        this.fetchInOrder = origFetchContext.fetchInOrder;
         if(decompressors.size() > 1) {
             Logger.error(this, "Multiple decompressors: "+decompressors.size()+" - this is almost certainly a bug", new Exception("debug"));
         }
@@ -634,6 +652,7 @@ public class SplitFileFetcherStorage {
         this.cooldownLength = origContext.getCooldownTime();
         this.errors = new FailureCodeTracker(false); // FIXME persist???
         this.completeViaTruncation = completeViaTruncation;
+        this.fetchInOrder = origContext.fetchInOrder;
         // FIXME this is hideous! Rewrite the writing/parsing code here in a less ugly way. However, it works...
         rafLength = raf.size();
         if(raf.size() < 8 /* FIXME more! */)
@@ -1131,6 +1150,11 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        synchronized(this) {
+            // Wake up any in-order streams.
+            segmentsSucceeded++;
+            notifyAll();
+        }
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
@@ -1181,8 +1205,10 @@ public class SplitFileFetcherStorage {
                         segment.writeToInner(os);
                     }
                     os.close();
-                } catch (Throwable t) {
-                    Logger.error(this, "Failed to write stream: "+t, t);
+                } catch (IOException e) {
+                    // Must be passed on, otherwise the caller may think the data is complete.
+                    Logger.error(this, "Failed to write stream: "+e, e);
+                    throw e;
                 } finally {
                     lock.unlock();
                 }
@@ -1196,7 +1222,94 @@ public class SplitFileFetcherStorage {
         };
     }
 
+    private synchronized void setDataUnavailable() {
+        dataUnavailable = true;
+        notifyAll();
+    }
+
+    /** Open a stream which returns the data in order as each segment is decoded, without waiting
+     * for the whole file. Reads block until the next segment has been decoded. Mainly useful with
+     * FetchContext.fetchInOrder. The data is exactly what streamGenerator() will write, so it 
+     * will still need to be decompressed etc if the caller wants the final data. Once the fetch 
+     * has finished and the storage has been freed, or if it fails, reads will throw an 
+     * IOException; the caller should then use the normal result. */
+    public InputStream openInOrderStream() {
+        return new InOrderInputStream();
+    }
+
+    private class InOrderInputStream extends InputStream {
+
+        private int segmentNumber;
+        /** Offset within the data blocks of the current segment. */
+        private long offset;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            int r = read(buf, 0, 1);
+            if(r <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(len == 0) return 0;
+            while(segmentNumber < segments.length && 
+                    offset == segments[segmentNumber].dataLength()) {
+                segmentNumber++;
+                offset = 0;
+            }
+            if(segmentNumber == segments.length) return -1;
+            SplitFileFetcherSegmentStorage segment = segments[segmentNumber];
+            waitForSegment(segment);
+            len = (int) Math.min(len, segment.dataLength() - offset);
+            RAFLock lock = raf.lockOpen();
+            try {
+                flushBlocks();
+                raf.pread(segment.segmentBlockDataOffset + offset, buf, off, len);
+            } finally {
+                lock.unlock();
+            }
+            offset += len;
+            return len;
+        }
+
+        private void waitForSegment(SplitFileFetcherSegmentStorage segment) throws IOException {
+            // Don't call the segment while holding the lock on the storage, as that could 
+            // deadlock. finishedSuccess() is called after the segment has succeeded, so we
+            // can't miss it.
+            while(true) {
+                int seen;
+                synchronized(SplitFileFetcherStorage.this) {
+                    if(dataUnavailable) 
+                        throw new IOException("Fetch failed or data no longer available");
+                    seen = segmentsSucceeded;
+                }
+                if(segment.hasSucceeded()) return;
+                synchronized(SplitFileFetcherStorage.this) {
+                    while(seen == segmentsSucceeded && !dataUnavailable) {
+                        try {
+                            SplitFileFetcherStorage.this.wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
+    /** Maximum number of downloaded blocks kept in memory before writing them to disk. */
+    static final int WRITE_BLOCKS_BATCH = 16;
     
     private final PersistentJob writeMetadataJob = new PersistentJob() {
 
@@ -1206,6 +1319,7 @@ public class SplitFileFetcherStorage {
                 if(isFinishing()) return false;
                 RAFLock lock = raf.lockOpen();
                 try {
+                    flushBlocks();
                     for(SplitFileFetcherSegmentStorage segment : segments) {
                         segment.writeMetadata(false);
                     }
@@ -1300,7 +1414,15 @@ public class SplitFileFetcherStorage {
                 // No more blocks will be found, so fail *now*.
                 fail(new FetchException(FetchExceptionMode.SPLITFILE_ERROR, errors));
             } else {
-                if(completeViaTruncation) raf.close();
+                if(completeViaTruncation) {
+                    try {
+                        flushBlocks();
+                    } catch (IOException e) {
+                        failOnDiskError(e);
+                        return;
+                    }
+                    raf.close();
+                }
                 maybeComplete();
                 return;
             }
@@ -1313,6 +1435,10 @@ public class SplitFileFetcherStorage {
      * not called on a MemoryLimitedJob thread. */
     void close() {
         if(logMINOR) Logger.minor(this, "Finishing "+this+" for "+fetcher, new Exception("debug"));
+        setDataUnavailable();
+        synchronized(pendingBlocks) {
+            pendingBlocks.clear();
+        }
         raf.close();
         raf.free();
         fetcher.onClosed();
@@ -1357,6 +1483,7 @@ public class SplitFileFetcherStorage {
      */
     public void fail(final FetchException e) {
         if(logMINOR) Logger.minor(this, "Failing "+this+" with error "+e+" and codes "+errors);
+        setDataUnavailable();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
             
             @Override
@@ -1378,6 +1505,7 @@ public class SplitFileFetcherStorage {
 
     public void failOnDiskError(final IOException e) {
         Logger.error(this, "Failing on disk error: "+e, e);
+        setDataUnavailable();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -1391,6 +1519,7 @@ public class SplitFileFetcherStorage {
 
     public void failOnDiskError(final ChecksumFailedException e) {
         Logger.error(this, "Failing on unrecoverable corrupt data: "+e, e);
+        setDataUnavailable();
         jobRunner.queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -1421,6 +1550,27 @@ public class SplitFileFetcherStorage {
         }
     }
     
+    /** List every key in the splitfile, including those already fetched, for indexing.
+     * @return The keys, or null if we can't read them from disk. */
+    Key[] listAllKeys() {
+        try {
+            ArrayList<Key> keys = new ArrayList<Key>();
+            for(SplitFileFetcherSegmentStorage segment : segments)
+                segment.getAllKeys(keys);
+            return keys.toArray(new Key[keys.size()]);
+        } catch (IOException e) {
+            Logger.error(this, "Unable to list keys for "+this+" : "+e, e);
+            return null;
+        }
+    }
+    
+    long countAllKeys() {
+        long total = 0;
+        for(SplitFileFetcherSegmentStorage segment : segments)
+            total += segment.totalBlocks();
+        return total;
+    }
+    
     public long countSendableKeys() {
         long now = System.currentTimeMillis();
         long total = 0;
@@ -1494,6 +1644,17 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             if(finishedFetcher) return null;
         }
+        if(fetchInOrder) {
+            // Pick from the first segment that has a key available, so that the segments 
+            // complete roughly in order. Segments with all their keys in cooldown are skipped.
+            for(SplitFileFetcherSegmentStorage segment : segments) {
+                int ret = segment.chooseRandomKey();
+                if (ret != -1) {
+                    return new MyKey(ret, segment.segNo, this);
+                }
+            }
+            return null;
+        }
         // Generally segments are fairly well balanced, so we can usually pick a random segment 
         // then a random key from it.
         // FIXME OPT SCALABILITY A simpler option might be just to have one SplitFileFetcherGet per
@@ -1515,6 +1676,8 @@ public class SplitFileFetcherStorage {
     void cancel() {
         synchronized(this) {
             cancelled = true;
+            dataUnavailable = true;
+            notifyAll();
         }
         for(SplitFileFetcherSegmentStorage segment : segments)
             segment.cancel();
@@ -1730,13 +1893,52 @@ public class SplitFileFetcherStorage {
         return raf.lockOpen();
     }
 
+    /** Write a downloaded block. It may be kept in memory for a while, see pendingBlocks.
+     * @param data The block. We keep a copy, so the caller can reuse it. */
     void writeBlock(SplitFileFetcherSegmentStorage segment, int slotNumber, byte[] data) 
     throws IOException {
-        raf.pwrite(segment.blockOffset(slotNumber), data, 0, data.length);
+        synchronized(pendingBlocks) {
+            pendingBlocks.put(segment.blockOffset(slotNumber), data.clone());
+            if(pendingBlocks.size() < WRITE_BLOCKS_BATCH) return;
+        }
+        flushBlocks();
+    }
+    
+    /** Write any downloaded blocks which are still in memory to disk. Runs of adjacent blocks are
+     * written together. If this fails, the blocks are lost, but we check the blocks on disk 
+     * before decoding anyway, so they will simply be fetched again.
+     * @throws IOException If the write failed. */
+    void flushBlocks() throws IOException {
+        synchronized(pendingBlocks) {
+            if(pendingBlocks.isEmpty()) return;
+            try {
+                byte[] buf = null;
+                long start = -1;
+                int length = 0;
+                for(Map.Entry<Long, byte[]> entry : pendingBlocks.entrySet()) {
+                    long offset = entry.getKey();
+                    byte[] data = entry.getValue();
+                    if(length > 0 && offset != start + length) {
+                        raf.pwrite(start, buf, 0, length);
+                        length = 0;
+                    }
+                    if(length == 0) start = offset;
+                    if(buf == null)
+                        buf = new byte[pendingBlocks.size() * data.length];
+                    System.arraycopy(data, 0, buf, length, data.length);
+                    length += data.length;
+                }
+                raf.pwrite(start, buf, 0, length);
+                if(logMINOR) Logger.minor(this, "Wrote "+pendingBlocks.size()+" blocks for "+this);
+            } finally {
+                pendingBlocks.clear();
+            }
+        }
     }
 
     byte[] readBlock(SplitFileFetcherSegmentStorage segment, int slotNumber) 
     throws IOException {
+        flushBlocks();
         long offset = segment.blockOffset(slotNumber);
         if(logDEBUG) Logger.minor(this, "Reading block "+slotNumber+" for "+segment.segNo+"/"+segments.length+" from "+offset+" RAF length is "+raf.size());
         byte[] buf = new byte[CHKBlock.DATA_LENGTH];
@@ -1744,7 +1946,7 @@ public class SplitFileFetcherStorage {
         return buf;
     }
 
-    /** Needed for resuming. */
+    /** Needed for resuming. Call flushBlocks() before reading blocks from it directly. */
     LockableRandomAccessBuffer getRAF() {
         return raf;
     }
@@ -158,7 +158,7 @@ public class SplitFileInserterCrossSegmentStorage {
         long limit = totalBlocks * CHKBlock.DATA_LENGTH + 
             Math.max(parent.codec.maxMemoryOverheadDecode(dataBlockCount, crossCheckBlockCount),
                 parent.codec.maxMemoryOverheadEncode(dataBlockCount, crossCheckBlockCount));
-        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
+        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit, parent.dataLength) {
             
             @Override
             public int getPriority() {
@@ -402,7 +402,7 @@ public class SplitFileInserterSegmentStorage {
                 parent.codec.maxMemoryOverheadEncode(dataBlockCount, crossCheckBlockCount));
         if(logMINOR) Logger.minor(this, "Scheduling encode on "+this+" at priority "+prio+
                 " blocks "+totalBlockCount+" memory limit "+limit);
-        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit) {
+        parent.memoryLimitedJobRunner.queueJob(new MemoryLimitedJob(limit, parent.dataLength) {
             
             @Override
             public int getPriority() {
@@ -0,0 +1,34 @@
+package freenet.client.events;
+
+import java.io.InputStream;
+
+/**
+ * Sent when a transient fetch with FetchContext.fetchInOrder starts downloading a splitfile
+ * which is the final data, i.e. it won't be decompressed, filtered or turned into a binary blob.
+ * The stream returns the data in order as each segment is decoded, so the client can use the
+ * start of the file long before the fetch has finished. Reads block until the next segment has
+ * been decoded, and throw an IOException once the fetch has failed or finished and freed its
+ * storage. The data is only verified against the expected hashes when the fetch completes.
+ * Only one listener should read the stream, and it should close it when it is done.
+ */
+public class SplitfileStreamEvent implements ClientEvent {
+
+	public final InputStream stream;
+
+	public SplitfileStreamEvent(InputStream stream) {
+		this.stream = stream;
+	}
+
+	static final int CODE = 0x11;
+
+	@Override
+	public int getCode() {
+		return CODE;
+	}
+
+	@Override
+	public String getDescription() {
+		return "Streaming splitfile data in order";
+	}
+
+}
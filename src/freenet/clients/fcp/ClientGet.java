@@ -37,6 +37,7 @@ import freenet.client.events.ExpectedMIMEEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileCompatibilityModeEvent;
 import freenet.client.events.SplitfileProgressEvent;
+import freenet.client.events.SplitfileStreamEvent;
 import freenet.clients.fcp.RequestIdentifier.RequestType;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
@@ -50,6 +51,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
 import freenet.support.io.FileBucket;
 import freenet.support.io.NativeThread;
 import freenet.support.io.NullBucket;
@@ -99,6 +101,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	private transient SimpleProgressMessage progressPending;
 	/** Have we received a SendingToNetworkEvent? */
 	private boolean sentToNetwork;
+	/** Sends the data as PartialData while it is fetched, if FetchInOrder is set on a
+	 * ReturnType=direct, Persistence=connection request. */
+	private transient PartialDataSender partialDataSender;
 	/** Current compatibility mode. This is updated over time as the request progresses, and can be
 	 * used e.g. to reinsert the file. This is NOT transient, as the ClientGetter does not retain 
 	 * this information. */
@@ -228,6 +233,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		fctx.canWriteClientCache = message.writeToClientCache;
 		fctx.filterData = message.filterData;
 		fctx.ignoreUSKDatehints = message.ignoreUSKDatehints;
+		fctx.fetchInOrder = message.fetchInOrder;
 		compatMode = new CompatibilityAnalyser();
 
 		if(message.allowedMIMETypes != null) {
@@ -382,6 +388,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			if(returnType == ReturnType.DIRECT)
 			    returnBucketDirect = data;
 		}
+		stopPartialData();
 		trySendDataFoundOrGetFailed(null, null);
 		trySendAllDataMessage(null, null);
 		finish();
@@ -455,7 +462,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	    if(persistence == Persistence.CONNECTION && handler == null)
 	        handler = origHandler.outputHandler;
 	    if(handler != null)
-	        handler.queue(msg);
+	        handler.queueProgress(msg);
 	    else
 	        client.queueClientRequestMessage(msg, verbosityMask);
     }
@@ -540,6 +547,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		}
 		if(logMINOR)
 			Logger.minor(this, "Caught "+e, e);
+		stopPartialData();
 		trySendDataFoundOrGetFailed(null, null);
 		// We do not want the data to be removed on failure, because the request
 		// may be restarted, and the bucket persists on the getter, even if we get rid of it here.
@@ -559,6 +567,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 				FetchException cancelled = new FetchException(FetchExceptionMode.CANCELLED);
 				getFailedMessage = new GetFailedMessage(cancelled, identifier, global);
 			}
+			stopPartialData();
 			trySendDataFoundOrGetFailed(null, null);
 		}
 		// notify client that request was removed
@@ -575,6 +584,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
+	    setChanged(context);
 	    final FCPMessage progress;
 		final int verbosityMask;
 		if(ce instanceof SplitfileProgressEvent) {
@@ -602,6 +612,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		} else if(ce instanceof SplitfileCompatibilityModeEvent) {
 		    handleCompatibilityMode((SplitfileCompatibilityModeEvent)ce, context);
 		    return;
+		} else if(ce instanceof SplitfileStreamEvent) {
+		    startPartialData((SplitfileStreamEvent)ce, context);
+		    return;
 		} else if(ce instanceof ExpectedHashesEvent) {
             ExpectedHashesEvent event = (ExpectedHashesEvent)ce;
 		    synchronized(this) {
@@ -658,6 +671,38 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		queueProgressMessageInner(progress, null, verbosityMask);
 	}
 	
+	private void startPartialData(SplitfileStreamEvent ce, ClientContext context) {
+	    if(persistence != Persistence.CONNECTION || returnType != ReturnType.DIRECT) {
+	        // Nowhere to send it.
+	        Closer.close(ce.stream);
+	        return;
+	    }
+	    PartialDataSender sender = 
+	        new PartialDataSender(ce.stream, origHandler.outputHandler, identifier, global);
+	    PartialDataSender old;
+	    synchronized(this) {
+	        if(finished) {
+	            Closer.close(ce.stream);
+	            return;
+	        }
+	        old = partialDataSender;
+	        partialDataSender = sender;
+	    }
+	    if(old != null) old.finish();
+	    context.mainExecutor.execute(sender, "PartialData for "+identifier);
+	}
+
+	/** Must be called before sending DataFound or GetFailed, so no PartialData is sent after
+	 * them. */
+	private void stopPartialData() {
+	    PartialDataSender sender;
+	    synchronized(this) {
+	        sender = partialDataSender;
+	        partialDataSender = null;
+	    }
+	    if(sender != null) sender.finish();
+	}
+
 	private void handleCompatibilityMode(final SplitfileCompatibilityModeEvent ce, ClientContext context) {
 	    if(persistence == Persistence.FOREVER && context.jobRunner.hasLoaded()) {
 	        try {
@@ -45,6 +45,10 @@ import freenet.support.io.BucketTools;
  * ClientToken=hello // returned in PersistentGet, a hint to the client, so the client 
  *    doesn't need to maintain its own state
  * IgnoreUSKDatehints=false // true = don't use USK datehints
+ * FetchInOrder=false // true = fetch the segments of a splitfile in order, e.g. for streaming.
+ *    With ReturnType=direct and Persistence=connection, the data is also sent as it is fetched,
+ *    in PartialData messages, before DataFound and AllData. Not if it needs decompressing or
+ *    filtering.
  * EndMessage
  */
 public class ClientGetMessage extends BaseDataCarryingMessage {
@@ -71,6 +75,7 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 	final boolean filterData;
 	final boolean realTimeFlag;
 	final boolean ignoreUSKDatehints;
+	final boolean fetchInOrder;
 	private Bucket initialMetadata;
 	private final long initialMetadataLength;
 	
@@ -202,6 +207,7 @@ public class ClientGetMessage extends BaseDataCarryingMessage {
 		if(initialMetadataLength < 0)
 		    throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Invalid data length for initial metadata", identifier, global);
 		ignoreUSKDatehints = fs.getBoolean("IgnoreUSKDatehints", false);
+		fetchInOrder = fs.getBoolean("FetchInOrder", false);
 	}
 
 	@Override
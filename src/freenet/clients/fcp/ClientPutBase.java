@@ -290,6 +290,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	public void receive(final ClientEvent ce, ClientContext context) {
 		if(finished) return;
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
+		setChanged(context);
 		if(ce instanceof SplitfileProgressEvent) {
 			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
 				SimpleProgressMessage progress = 
@@ -410,7 +411,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 		if(persistence == Persistence.CONNECTION && handler == null)
 			handler = origHandler.outputHandler;
 		if(handler != null)
-			handler.queue(msg);
+			handler.queueProgress(msg);
 		else
 			client.queueClientRequestMessage(msg, verbosity);
 	}
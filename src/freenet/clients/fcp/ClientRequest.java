@@ -344,10 +344,18 @@ public abstract class ClientRequest implements Serializable {
 			}
 		}
 
+		if(clientTokenChanged && client != null) {
+			RequestStatusCache cache = client.getRequestStatusCache();
+			if(cache != null) {
+				cache.changed(identifier);
+			}
+		}
+
 		if(! ( clientTokenChanged || priorityClassChanged ) ) {
 			return; // quick return, nothing was changed
 		}
 		
+		setChanged(server.core.clientContext);
 		server.core.clientContext.jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
@@ -384,6 +392,7 @@ public abstract class ClientRequest implements Serializable {
 			    } catch (PersistenceDisabledException e) {
 			        // Impossible
 			    }
+			    setChanged(context);
 				return true;
 			}
 			
@@ -409,6 +418,14 @@ public abstract class ClientRequest implements Serializable {
 		}
 	}
 
+	/** Record that the persistent state of the request has changed, so that it is written at the
+	 * next checkpoint.
+	 * @see ClientRequester#setChanged(ClientContext) */
+	protected void setChanged(ClientContext context) {
+		ClientRequester r = getClientRequest();
+		if(r != null) r.setChanged(context);
+	}
+
 	/**
 	 * Called after a RemovePersistentRequest. Send a PersistentRequestRemoved to the clients.
 	 * If the request is in the database, delete it.
@@ -50,6 +50,11 @@ public class DataFoundMessage extends FCPMessage {
 		return "DataFound";
 	}
 
+	@Override
+	String progressKey() {
+		return progressKey(identifier, global);
+	}
+
 	@Override
 	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
 		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "DataFound goes from server to client not the other way around", identifier, global);
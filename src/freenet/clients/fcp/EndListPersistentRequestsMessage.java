@@ -10,15 +10,36 @@ public class EndListPersistentRequestsMessage extends FCPMessage {
 
 	static final String name = "EndListPersistentRequests";
 	private final String listRequestIdentifier;
+	/** The sequence number to send as ChangesSince next time, or -1. */
+	private final long changeSequence;
+	/** True if only the changes to the global queue were sent. */
+	private final boolean incremental;
 
 	public EndListPersistentRequestsMessage(String listRequestIdentifier) {
+		this(listRequestIdentifier, -1, false);
+	}
+
+	/**
+	 * @param changeSequence The client can send this, with the ChangeEpoch, as ChangesSince on
+	 * its next ListPersistentRequests, to only get the changes to the global queue since this one.
+	 * @param incremental True if only the changes to the global queue were sent this time. The
+	 * client's own queue is always listed in full.
+	 */
+	EndListPersistentRequestsMessage(String listRequestIdentifier, long changeSequence, boolean incremental) {
 		this.listRequestIdentifier = listRequestIdentifier;
+		this.changeSequence = changeSequence;
+		this.incremental = incremental;
 	}
 
 	@Override
 	public SimpleFieldSet getFieldSet() {
 		SimpleFieldSet simpleFieldSet = new SimpleFieldSet(true);
 		simpleFieldSet.putSingle("Identifier", listRequestIdentifier);
+		if(changeSequence >= 0) {
+			simpleFieldSet.put("ChangeEpoch", RequestStatusCache.CHANGE_EPOCH);
+			simpleFieldSet.put("ChangeSequence", changeSequence);
+			simpleFieldSet.put("Incremental", incremental);
+		}
 		return simpleFieldSet;
 	}
 
@@ -0,0 +1,377 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+import org.tanukisoftware.wrapper.WrapperManager;
+
+import freenet.clients.fcp.FCPMessageParser.RawMessage;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.TooLongException;
+
+/**
+ * The transport for an FCP connection handled by the {@link FCPSelector}, instead of by an
+ * {@link FCPConnectionInputHandler} thread and an {@link FCPConnectionOutputHandler} thread.
+ *
+ * The selector thread reads from the socket into a fixed size buffer, and stops reading when it is
+ * full. Whenever there is input, a job is started on the executor which parses messages from the
+ * buffer one at a time with a {@link FCPMessageParser} and processes them, exactly as the input
+ * thread would. If a message has a payload, it is read through {@link #payloadStream}, which
+ * takes bytes from the same buffer, waiting for the selector to refill it as needed; so a large
+ * insert only ties up a thread while its data is actually arriving. The job exits as soon as it
+ * runs out of complete messages.
+ *
+ * Outgoing messages are queued on the {@link FCPConnectionOutputHandler} as usual, which
+ * serializes them on a job into {@link #outputStream}. That hands buffers to the selector thread
+ * to write, and only blocks if the client falls too far behind.
+ *
+ * LOCKING: The buffers and state are protected by the lock on this object. The selection key is
+ * only used by the selector thread.
+ */
+class FCPChannelConnection {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Size of the input buffer, and of each output buffer. */
+	static final int BUFFER_SIZE = 32*1024;
+	/** Block writers if more than this many bytes are waiting to be sent. */
+	static final int MAX_OUTGOING_BYTES = 256*1024;
+
+	final FCPConnectionHandler handler;
+	final SocketChannel channel;
+	private final FCPSelector selector;
+	private final FCPMessageParser parser;
+	/** Only used by the selector thread. */
+	private SelectionKey key;
+
+	/** Bytes read from the socket but not yet parsed or read as payload. Always ready to be
+	 * written to, i.e. the data is between 0 and the position. */
+	private final ByteBuffer input;
+	private boolean inputEOF;
+	private IOException inputError;
+	/** True if a job is parsing and processing messages. */
+	private boolean processing;
+	/** Buffers waiting to be written to the socket, ready to be read from. */
+	private final ArrayDeque<ByteBuffer> outgoing;
+	private int outgoingBytes;
+	private IOException outputError;
+	/** True once we have stopped processing input, so there is no point reading any more. */
+	private boolean closed;
+
+	/** Reads the payload of the message being processed. */
+	final InputStream payloadStream;
+	/** Sends data to the client. Used by the {@link FCPConnectionOutputHandler}. */
+	final OutputStream outputStream;
+
+	FCPChannelConnection(FCPConnectionHandler handler, SocketChannel channel, FCPSelector selector) {
+		this.handler = handler;
+		this.channel = channel;
+		this.selector = selector;
+		parser = new FCPMessageParser();
+		input = ByteBuffer.allocate(BUFFER_SIZE);
+		outgoing = new ArrayDeque<ByteBuffer>();
+		payloadStream = new PayloadInputStream();
+		outputStream = new ChannelOutputStream();
+	}
+
+	void start() throws IOException {
+		channel.configureBlocking(false);
+		selector.register(this);
+	}
+
+	/** Called on the selector thread once the channel has been registered. */
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	synchronized int interestOps() {
+		int ops = 0;
+		if(!closed && !inputEOF && inputError == null && input.hasRemaining())
+			ops |= SelectionKey.OP_READ;
+		if(!outgoing.isEmpty())
+			ops |= SelectionKey.OP_WRITE;
+		return ops;
+	}
+
+	/** Called on the selector thread. */
+	void updateInterestOps() {
+		if(key == null || !key.isValid()) return;
+		int ops = interestOps();
+		if(key.interestOps() != ops)
+			key.interestOps(ops);
+	}
+
+	/** Called on the selector thread when the socket is readable. */
+	void onReadable() {
+		synchronized(this) {
+			if(closed || inputEOF || inputError != null) return;
+			try {
+				if(channel.read(input) < 0)
+					inputEOF = true;
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Read failed on "+this+" : "+e);
+				inputError = e;
+			}
+			// Wake up the job if it is waiting for payload.
+			notifyAll();
+			if(processing) return;
+			processing = true;
+		}
+		startProcessing();
+	}
+
+	/** Called on the selector thread when the socket is writable. */
+	void onWritable() {
+		synchronized(this) {
+			try {
+				while(!outgoing.isEmpty()) {
+					ByteBuffer buf = outgoing.peek();
+					outgoingBytes -= channel.write(buf);
+					if(buf.hasRemaining()) break;
+					outgoing.removeFirst();
+				}
+			} catch (IOException e) {
+				if(logMINOR) Logger.minor(this, "Write failed on "+this+" : "+e);
+				outputError = e;
+				outgoing.clear();
+				outgoingBytes = 0;
+			}
+			notifyAll();
+		}
+	}
+
+	/** Called on the selector thread if we can't use the channel at all. */
+	void onError(IOException e) {
+		synchronized(this) {
+			if(inputError == null) inputError = e;
+			if(outputError == null) outputError = e;
+			outgoing.clear();
+			outgoingBytes = 0;
+			notifyAll();
+			if(processing) return;
+			processing = true;
+		}
+		startProcessing();
+	}
+
+	/** Called when the socket has been closed, so nobody waits for it. */
+	void onClosed() {
+		synchronized(this) {
+			closed = true;
+			if(outputError == null) outputError = new IOException("Closed");
+			outgoing.clear();
+			outgoingBytes = 0;
+			notifyAll();
+		}
+	}
+
+	private void startProcessing() {
+		handler.server.node.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				processMessages();
+			}
+
+		}, "FCP message processor for "+channel.socket().getRemoteSocketAddress());
+	}
+
+	/** Parse and process messages until we run out of input. */
+	private void processMessages() {
+		freenet.support.Logger.OSThread.logPID(this);
+		try {
+			while(true) {
+				RawMessage message;
+				boolean wasFull;
+				synchronized(this) {
+					wasFull = !input.hasRemaining();
+					message = nextMessage();
+					if(message == null) {
+						if(inputError != null) throw inputError;
+						if(!inputEOF) {
+							processing = false;
+							if(wasFull) selector.update(this);
+							return;
+						}
+						message = parser.finish();
+						if(message == null) break;
+					}
+				}
+				if(wasFull) selector.update(this);
+				if(WrapperManager.hasShutdownHookBeenTriggered()) {
+					handler.inputHandler.sendShuttingDown();
+					break;
+				}
+				if(!handler.inputHandler.handleMessage(message.messageType, message.fs, payloadStream))
+					break;
+			}
+		} catch (TooLongException e) {
+			Logger.normal(this, "Caught "+e.getMessage(), e);
+		} catch (IOException e) {
+			if(logMINOR)
+				Logger.minor(this, "Caught "+e, e);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+		}
+		synchronized(this) {
+			// Leave processing set, so we don't start again.
+			closed = true;
+			notifyAll();
+		}
+		handler.close();
+		handler.closedInput();
+	}
+
+	/** Parse the next message from the input buffer.
+	 * @return Null if there isn't a complete message yet. */
+	private synchronized RawMessage nextMessage() throws IOException {
+		input.flip();
+		try {
+			return parser.parse(input);
+		} finally {
+			input.compact();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+channel;
+	}
+
+	/** Reads a message's payload straight from the input buffer. Only used by the job processing
+	 * messages, while it is processing the message the payload belongs to. */
+	private class PayloadInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int x = read(buf, 0, 1);
+			if(x <= 0) return -1;
+			return buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			int read;
+			boolean wasFull;
+			synchronized(FCPChannelConnection.this) {
+				while(input.position() == 0) {
+					if(inputError != null) throw new IOException("Read failed: "+inputError, inputError);
+					if(inputEOF || closed) return -1;
+					try {
+						FCPChannelConnection.this.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				wasFull = !input.hasRemaining();
+				input.flip();
+				read = Math.min(length, input.remaining());
+				input.get(buf, offset, read);
+				input.compact();
+			}
+			if(wasFull) selector.update(FCPChannelConnection.this);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			synchronized(FCPChannelConnection.this) {
+				return input.position();
+			}
+		}
+
+	}
+
+	/** Collects the output into buffers for the selector thread to write. */
+	private class ChannelOutputStream extends OutputStream {
+
+		/** Buffer being filled. Only used by the thread writing to the stream. */
+		private ByteBuffer buffer;
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			while(length > 0) {
+				if(buffer == null) buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				int x = Math.min(length, buffer.remaining());
+				buffer.put(buf, offset, x);
+				offset += x;
+				length -= x;
+				if(!buffer.hasRemaining())
+					send();
+			}
+		}
+
+		/** Queue the current buffer, waiting if too much is queued already. */
+		private void send() throws IOException {
+			ByteBuffer buf = buffer;
+			buffer = null;
+			buf.flip();
+			synchronized(FCPChannelConnection.this) {
+				while(outgoingBytes > MAX_OUTGOING_BYTES && outputError == null) {
+					try {
+						FCPChannelConnection.this.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if(outputError != null) throw new IOException("Write failed: "+outputError, outputError);
+				outgoing.add(buf);
+				outgoingBytes += buf.remaining();
+				// The selector thread only wants to know if there was nothing to write before.
+				if(outgoing.size() > 1) return;
+			}
+			selector.update(FCPChannelConnection.this);
+		}
+
+		/** Queue anything buffered, without waiting for it to be sent. */
+		@Override
+		public void flush() throws IOException {
+			if(buffer != null && buffer.position() > 0)
+				send();
+		}
+
+		/** Wait until everything has been sent. */
+		@Override
+		public void close() throws IOException {
+			flush();
+			synchronized(FCPChannelConnection.this) {
+				while(!outgoing.isEmpty() && outputError == null) {
+					try {
+						FCPChannelConnection.this.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if(outputError != null) throw new IOException("Write failed: "+outputError, outputError);
+			}
+		}
+
+	}
+
+}
@@ -70,6 +70,9 @@ public class FCPConnectionHandler implements Closeable {
 	final FCPServer server;
 	final Socket sock;
 	final FCPConnectionInputHandler inputHandler;
+	/** Non-null if the connection is handled by the {@link FCPSelector}, in which case the input
+	 * and output handlers don't have threads of their own. */
+	final FCPChannelConnection channelConnection;
 	final Map<String, SubscribeUSK> uskSubscriptions;
 	public final FCPConnectionOutputHandler outputHandler;
 	private boolean isClosed;
@@ -144,6 +147,10 @@ public class FCPConnectionHandler implements Closeable {
 		requestsByIdentifier = new HashMap<String, ClientRequest>();
 		uskSubscriptions = new HashMap<String, SubscribeUSK>();
 		this.inputHandler = new FCPConnectionInputHandler(this);
+		if(s != null && s.getChannel() != null && server.selector != null)
+			this.channelConnection = new FCPChannelConnection(this, s.getChannel(), server.selector);
+		else
+			this.channelConnection = null;
 		this.outputHandler = new FCPConnectionOutputHandler(this);
 		
 		byte[] identifier = new byte[16];
@@ -170,7 +177,26 @@ public class FCPConnectionHandler implements Closeable {
         outputHandler.queue(message);
     }
 
+    /**
+     * Like {@link #send(FCPMessage)}, but for messages reporting a request's progress as it
+     * happens, which may be held back and coalesced, see
+     * {@link FCPConnectionOutputHandler#queueProgress(FCPMessage)}.
+     */
+    final void sendProgress(final FCPMessage message) {
+        outputHandler.queueProgress(message);
+    }
+
 	void start() {
+		if(channelConnection != null) {
+			try {
+				channelConnection.start();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to start handling "+sock+" : "+e, e);
+				closedInput();
+				closedOutput();
+			}
+			return;
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -247,6 +273,8 @@ public class FCPConnectionHandler implements Closeable {
 		} catch (IOException e) {
 			// Ignore
 		}
+		if(channelConnection != null)
+			channelConnection.onClosed();
 	}
 	
 	public void closedOutput() {
@@ -264,6 +292,8 @@ public class FCPConnectionHandler implements Closeable {
 		} catch (IOException e) {
 			// Ignore
 		}
+		if(channelConnection != null)
+			channelConnection.onClosed();
 	}
 
 	public void setClientName(final String name) {
@@ -3,18 +3,18 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.fcp;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
+import freenet.clients.fcp.FCPMessageParser.RawMessage;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.Closer;
-import freenet.support.io.LineReadingInputStream;
 import freenet.support.io.TooLongException;
 
 public class FCPConnectionInputHandler implements Runnable {
@@ -32,6 +32,9 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** True until we have processed a message. Only used by whichever thread is processing
+	 * messages; there is only ever one at a time. */
+	private boolean firstMessage = true;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
@@ -62,92 +65,137 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	public void realRun() throws IOException {
-		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
-		LineReadingInputStream lis = new LineReadingInputStream(is);
+		final InputStream is = handler.sock.getInputStream();
+		// Read into a buffer for the parser. Anything left in the buffer after a message is the
+		// start of its payload, if it has one, or of the next message.
+		final ByteBuffer buf = ByteBuffer.allocate(4096);
+		buf.flip();
+		InputStream payload = new InputStream() {
 
-		boolean firstMessage = true;
+			@Override
+			public int read() throws IOException {
+				if(buf.hasRemaining()) return buf.get() & 0xFF;
+				return is.read();
+			}
+
+			@Override
+			public int read(byte[] data, int offset, int length) throws IOException {
+				if(length == 0) return 0;
+				if(!buf.hasRemaining()) return is.read(data, offset, length);
+				length = Math.min(length, buf.remaining());
+				buf.get(data, offset, length);
+				return length;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return buf.remaining() + is.available();
+			}
+
+		};
+		FCPMessageParser parser = new FCPMessageParser();
 
 		while(true) {
-			SimpleFieldSet fs;
 			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.send(msg);
+				sendShuttingDown();
 				Closer.close(is);
 				return;
 			}
 			// Read a message
-			String messageType = lis.readLine(128, 128, true);
-			if(messageType == null) {
+			RawMessage message = parser.parse(buf);
+			if(message == null) {
+				buf.clear();
+				int read = is.read(buf.array());
+				if(read < 0) {
+					buf.limit(0);
+					message = parser.finish();
+					if(message == null) {
+						Closer.close(is);
+						return;
+					}
+				} else {
+					buf.limit(read);
+					continue;
+				}
+			}
+
+			if(!handleMessage(message.messageType, message.fs, payload)) {
 				Closer.close(is);
 				return;
 			}
-			if(messageType.equals(""))
-				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+		}
+	}
 
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.send(err);
-				continue;
-			}
+	void sendShuttingDown() {
+		FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+		handler.send(msg);
+	}
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.send(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-				}
-				continue;
-			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+	/**
+	 * Process a message which has been read from the client. Messages must be processed one at a
+	 * time, in the order they were received, but not necessarily on the same thread.
+	 * @param is The stream to read the message's data from, if it has any. It is positioned just
+	 * after the end marker.
+	 * @return False if the connection should be closed.
+	 */
+	boolean handleMessage(String messageType, SimpleFieldSet fs, InputStream is) throws IOException {
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.send(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.send(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.send(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.send(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(is, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.send(err);
-				continue;
-			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+				return true;
 			}
 		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.send(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.send(err);
+			return true;
+		}
+		firstMessage = false;
+		return !handler.isClosed();
 	}
 
 }
@@ -8,6 +8,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import freenet.support.LogThresholdCallback;
 
@@ -20,6 +23,22 @@ public class FCPConnectionOutputHandler implements Runnable {
 	final Deque<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** If true, we don't have a thread of our own; instead a job is started whenever there are
+	 * messages to send, and writes them to the connection's {@link FCPChannelConnection}. */
+	private final boolean onDemand;
+	// Synced on outQueue
+	/** True if the on demand job is running. */
+	private boolean running;
+	/** True if the connection has been closed, so the on demand job should close the output once
+	 * the queue is empty. */
+	private boolean closing;
+	// Synced on outQueue
+	/** Progress messages being held back, by {@link FCPMessage#progressKey()}. Only the latest
+	 * one for each request is kept. */
+	private final Map<String, FCPMessage> pendingProgress;
+	// Synced on outQueue
+	/** True if a job is scheduled to move {@link #pendingProgress} to the queue. */
+	private boolean progressFlushScheduled;
 
         private static volatile boolean logMINOR;
         private static volatile boolean logDEBUG;
@@ -36,10 +55,12 @@ public class FCPConnectionOutputHandler implements Runnable {
 	public FCPConnectionOutputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 		this.outQueue = new ArrayDeque<FCPMessage>();
+		this.pendingProgress = new LinkedHashMap<String, FCPMessage>();
+		this.onDemand = handler.channelConnection != null;
 	}
 
 	void start() {
-		if (handler.sock == null)
+		if (handler.sock == null || onDemand)
 			return;
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
@@ -66,6 +87,62 @@ public class FCPConnectionOutputHandler implements Runnable {
 		handler.closedOutput();
 	}
  
+	/** Send the queued messages, then exit, unless we are closing. */
+	private void runOnDemand() {
+		freenet.support.Logger.OSThread.logPID(this);
+		OutputStream os = handler.channelConnection.outputStream;
+		try {
+			while(true) {
+				FCPMessage msg;
+				synchronized(outQueue) {
+					msg = outQueue.pollFirst();
+				}
+				if(msg != null) {
+					if(logMINOR) Logger.minor(this, "Sending "+msg);
+					msg.send(os);
+					continue;
+				}
+				os.flush();
+				synchronized(outQueue) {
+					if(!outQueue.isEmpty()) continue;
+					if(!closing) {
+						running = false;
+						return;
+					}
+					closedOutputQueue = true;
+					outQueue.notifyAll();
+				}
+				os.close();
+				break;
+			}
+		} catch (IOException e) {
+			if(logMINOR)
+				Logger.minor(this, "Caught "+e, e);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t, t);
+		}
+		synchronized(outQueue) {
+			closedOutputQueue = true;
+			outQueue.notifyAll();
+		}
+		handler.close();
+		handler.closedOutput();
+	}
+
+	/** Start the on demand job if it isn't running. Caller must hold the lock on outQueue. */
+	private void startOnDemand() {
+		if(running || closedOutputQueue) return;
+		running = true;
+		handler.server.node.executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				runOnDemand();
+			}
+
+		}, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
+	}
+
 	private void realRun() throws IOException {
 		OutputStream os = new BufferedOutputStream(handler.sock.getOutputStream(), 4096);
 		while(true) {
@@ -153,14 +230,99 @@ public class FCPConnectionOutputHandler implements Runnable {
 					return;
 				}
 			}
+			if(!pendingProgress.isEmpty()) {
+				// Keep the order of messages for the same request. If there is no room for both,
+				// drop the progress, it is out of date anyway.
+				String key = msg.progressKey();
+				if(key != null) {
+					FCPMessage progress = pendingProgress.remove(key);
+					if(progress != null && (neverDropAMessage || outQueue.size() + 1 < MAX_QUEUE_LENGTH))
+						outQueue.add(progress);
+				}
+			}
 			outQueue.add(msg);
 			outQueue.notifyAll();
+			if(onDemand) startOnDemand();
 		}
 	}
 
+	/**
+	 * Queue a message reporting a request's progress, as it happens. A SimpleProgress message may
+	 * be held back for up to {@link FCPServer#progressInterval()}, and is dropped if another one for
+	 * the same request arrives meanwhile, because a client downloading thousands of blocks doesn't
+	 * need to hear about every single one. Anything else for the same request, e.g. DataFound, is
+	 * sent immediately, after the progress being held back. Other messages are queued as usual.
+	 */
+	void queueProgress(FCPMessage msg) {
+		int interval = handler.server.progressInterval();
+		if(interval <= 0 || !(msg instanceof SimpleProgressMessage)) {
+			queue(msg);
+			return;
+		}
+		boolean coalesced;
+		boolean schedule = false;
+		synchronized(outQueue) {
+			if(closedOutputQueue) return;
+			coalesced = pendingProgress.remove(msg.progressKey()) != null;
+			// Add it at the end, so they are sent in the order they were last updated.
+			pendingProgress.put(msg.progressKey(), msg);
+			if(!progressFlushScheduled)
+				schedule = progressFlushScheduled = true;
+		}
+		handler.server.onProgressMessage(coalesced);
+		if(schedule) scheduleProgressFlush(interval);
+	}
+
+	private void scheduleProgressFlush(int interval) {
+		handler.server.node.ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				flushProgress(true);
+			}
+
+		}, "Send FCP progress for "+handler, interval, false, false);
+	}
+
+	/** Send any progress messages which are being held back now, e.g. because the client has
+	 * asked for the status of its requests. */
+	public void flushProgress() {
+		flushProgress(false);
+	}
+
+	private void flushProgress(boolean scheduled) {
+		int MAX_QUEUE_LENGTH = handler.server.maxMessageQueueLength();
+		boolean reschedule = false;
+		synchronized(outQueue) {
+			if(scheduled) progressFlushScheduled = false;
+			if(pendingProgress.isEmpty()) return;
+			if(closedOutputQueue) {
+				pendingProgress.clear();
+				return;
+			}
+			Iterator<FCPMessage> it = pendingProgress.values().iterator();
+			// Don't overflow the queue. Anything left over keeps being coalesced until next time.
+			while(it.hasNext() && outQueue.size() < MAX_QUEUE_LENGTH) {
+				outQueue.add(it.next());
+				it.remove();
+			}
+			if(!pendingProgress.isEmpty() && !progressFlushScheduled)
+				reschedule = progressFlushScheduled = true;
+			outQueue.notifyAll();
+			if(onDemand) startOnDemand();
+		}
+		if(reschedule)
+			scheduleProgressFlush(Math.max(handler.server.progressInterval(), 100));
+	}
+
 	public void onClosed() {
 		synchronized(outQueue) {
+			pendingProgress.clear();
 			outQueue.notifyAll();
+			if(onDemand) {
+				closing = true;
+				startOnDemand();
+			}
 			// Give a chance to the output handler to flush
 			// its queue before the socket is closed
 			// @see #2019 - nextgens
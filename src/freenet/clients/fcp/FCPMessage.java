@@ -46,6 +46,14 @@ public abstract class FCPMessage {
 	}
 
 	public void send(OutputStream os) throws IOException {
+		if(!logDEBUG && canWriteFields()) {
+			FCPMessageWriter writer = new FCPMessageWriter();
+			writer.start(getName());
+			writeFields(writer);
+			writer.end(getEndString());
+			writer.writeTo(os);
+			return;
+		}
 		SimpleFieldSet sfs = getFieldSet();
 		if(sfs == null) {
 			Logger.warning(this, "Not sending message "+this);
@@ -67,6 +75,37 @@ public abstract class FCPMessage {
 	
 	public abstract SimpleFieldSet getFieldSet();
 
+	/**
+	 * @return True if this message implements {@link #writeFields(FCPMessageWriter)}, otherwise
+	 * {@link #getFieldSet()} is used.
+	 */
+	boolean canWriteFields() {
+		return false;
+	}
+
+	/**
+	 * Write the fields directly, without building a {@link SimpleFieldSet}. Messages which are
+	 * sent very often should override this, writing the same fields as {@link #getFieldSet()},
+	 * and {@link #canWriteFields()}. Only called if the latter returns true.
+	 */
+	void writeFields(FCPMessageWriter writer) {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Identifies the request this message reports the progress of, or finishes. Any progress
+	 * message for the same request which is being held back will be sent before this one. See
+	 * {@link FCPConnectionOutputHandler#queueProgress(FCPMessage)}.
+	 * @return Null if this message isn't about a request's progress.
+	 */
+	String progressKey() {
+		return null;
+	}
+
+	static String progressKey(String identifier, boolean global) {
+		return (global ? "G:" : "L:") + identifier;
+	}
+
 	public abstract String getName();
 	
 	/**
@@ -193,6 +232,11 @@ public abstract class FCPMessage {
 				return fcpMessage.getEndString();
 			}
 
+			@Override
+			String progressKey() {
+				return fcpMessage.progressKey();
+			}
+
 			@Override
 			public SimpleFieldSet getFieldSet() {
 				SimpleFieldSet fieldSet = fcpMessage.getFieldSet();
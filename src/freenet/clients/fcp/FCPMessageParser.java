@@ -0,0 +1,213 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.TooLongException;
+
+/**
+ * Incremental parser for the messages a client sends us. Bytes are fed in as they arrive, and
+ * complete messages come out. The format and limits are the same as reading a
+ * {@link SimpleFieldSet} from a stream: a message type line of at most 128 bytes, followed by
+ * lines of at most 4096 bytes up to the end marker.
+ *
+ * The lines are not converted to Strings: the {@link SimpleFieldSet} is filled in directly from
+ * the bytes. Field names, message types and end markers come from a small per-connection cache of
+ * interned Strings, since a client uses the same few dozen over and over, so the only String we
+ * create for a field is its value.
+ *
+ * The parser returns one message at a time, and stops just after its end marker, because the
+ * message may be followed by a payload rather than more messages. Only the message itself can
+ * tell us that, so it is up to the caller to read the payload before parsing any further.
+ *
+ * LOCKING: Not thread-safe, the caller must synchronize.
+ */
+class FCPMessageParser {
+
+	static final int MAX_MESSAGE_TYPE_LENGTH = 128;
+	static final int MAX_FIELD_LINE_LENGTH = 4096;
+	/** Size of the name cache. Must be a power of 2. Only half of it is used. */
+	private static final int NAME_CACHE_SIZE = 256;
+	/** Don't cache names longer than this, they are probably not field names. */
+	private static final int MAX_CACHED_NAME_LENGTH = 64;
+
+	/** A message which has been parsed but not yet converted to an {@link FCPMessage}. */
+	static class RawMessage {
+		final String messageType;
+		final SimpleFieldSet fs;
+		RawMessage(String messageType, SimpleFieldSet fs) {
+			this.messageType = messageType;
+			this.fs = fs;
+		}
+	}
+
+	/** The current line, up to the maximum length. */
+	private byte[] line;
+	private int lineLength;
+	/** Message type of the message being read, or null if we are between messages. */
+	private String messageType;
+	/** Fields of the message being read. */
+	private SimpleFieldSet fs;
+	/** True if we have read anything other than blank lines since the message type. */
+	private boolean readLine;
+	/** Comment lines at the start of the message being read. */
+	private List<String> headers;
+	/** Cached names: open addressing, keyed on the bytes. */
+	private final byte[][] nameBytes;
+	private final String[] names;
+	private int nameCount;
+
+	FCPMessageParser() {
+		line = new byte[MAX_MESSAGE_TYPE_LENGTH];
+		nameBytes = new byte[NAME_CACHE_SIZE][];
+		names = new String[NAME_CACHE_SIZE];
+	}
+
+	/**
+	 * Parse the next message from the buffer, if it is complete.
+	 * @param buf The input, ready to be read from. If a message is returned, the buffer is
+	 * positioned just after its end marker, where its payload starts if it has one. Otherwise all
+	 * of it has been consumed.
+	 * @return The message, or null if we need more input.
+	 * @throws TooLongException If a line is too long.
+	 */
+	RawMessage parse(ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			byte b = buf.get();
+			if(b != '\n') {
+				int maxLength = messageType == null ? MAX_MESSAGE_TYPE_LENGTH : MAX_FIELD_LINE_LENGTH;
+				if(lineLength >= maxLength)
+					throw new TooLongException("We reached maxLength="+maxLength+" parsing\n "+HexUtil.bytesToHex(line, 0, lineLength));
+				if(lineLength == line.length)
+					line = Arrays.copyOf(line, Math.min(line.length * 2, maxLength));
+				line[lineLength++] = b;
+				continue;
+			}
+			int length = lineLength;
+			lineLength = 0;
+			if(length > 0 && line[length - 1] == '\r') length--;
+			if(parseLine(length)) return finishMessage();
+		}
+		return null;
+	}
+
+	/**
+	 * Called when there is no more input. Returns the partly read message, if it has got far
+	 * enough to be processed, just as {@link SimpleFieldSet} does when it reads from a stream.
+	 * @return Null if we were between messages or had only read the message type.
+	 */
+	RawMessage finish() throws IOException {
+		if(lineLength > 0) {
+			// Last line without a line feed.
+			int length = lineLength;
+			lineLength = 0;
+			if(messageType != null && parseLine(length))
+				return finishMessage();
+		}
+		if(messageType == null) return null;
+		if(!readLine) {
+			messageType = null;
+			fs = null;
+			headers = null;
+			return null;
+		}
+		Logger.error(this, "No end marker");
+		return finishMessage();
+	}
+
+	/** Process a complete line in line[0...length-1], without the line feed.
+	 * @return True if it was the end marker. */
+	private boolean parseLine(int length) {
+		if(length == 0) return false;
+		if(messageType == null) {
+			messageType = name(line, 0, length);
+			fs = new SimpleFieldSet(true);
+			readLine = false;
+			return false;
+		}
+		boolean first = !readLine;
+		readLine = true;
+		if(line[0] == '#') {
+			if(first || headers != null) {
+				if(headers == null) headers = new ArrayList<String>();
+				headers.add(new String(line, 1, length - 1, StandardCharsets.UTF_8).trim());
+			}
+			return false;
+		}
+		if(headers != null) {
+			fs.setHeader(headers.toArray(new String[headers.size()]));
+			headers = null;
+		}
+		int index = -1;
+		for(int i=0;i<length;i++) {
+			if(line[i] == SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR) {
+				index = i;
+				break;
+			}
+		}
+		if(index == -1) {
+			fs.setEndMarker(name(line, 0, length));
+			return true;
+		}
+		// Trim the key, like String.trim().
+		int start = 0;
+		int end = index;
+		while(start < end && (line[start] & 0xFF) <= ' ') start++;
+		while(end > start && (line[end - 1] & 0xFF) <= ' ') end--;
+		String key = name(line, start, end - start);
+		String value = new String(line, index + 1, length - index - 1, StandardCharsets.UTF_8);
+		fs.putParsed(key, value, true);
+		return false;
+	}
+
+	private RawMessage finishMessage() {
+		RawMessage message = new RawMessage(messageType, fs);
+		messageType = null;
+		fs = null;
+		headers = null;
+		if(line.length > MAX_MESSAGE_TYPE_LENGTH)
+			line = new byte[MAX_MESSAGE_TYPE_LENGTH];
+		return message;
+	}
+
+	/** Get the String for a name, from the cache if possible. */
+	private String name(byte[] buf, int offset, int length) {
+		int hash = 0;
+		for(int i=offset;i<offset+length;i++)
+			hash = hash * 31 + buf[i];
+		hash ^= hash >>> 16;
+		int mask = NAME_CACHE_SIZE - 1;
+		int slot = hash & mask;
+		byte[] cached;
+		while((cached = nameBytes[slot]) != null) {
+			if(cached.length == length && equals(cached, buf, offset))
+				return names[slot];
+			slot = (slot + 1) & mask;
+		}
+		String s = new String(buf, offset, length, StandardCharsets.UTF_8);
+		if(nameCount < NAME_CACHE_SIZE / 2 && length <= MAX_CACHED_NAME_LENGTH) {
+			s = s.intern();
+			nameBytes[slot] = Arrays.copyOfRange(buf, offset, offset + length);
+			names[slot] = s;
+			nameCount++;
+		}
+		return s;
+	}
+
+	private static boolean equals(byte[] a, byte[] b, int offset) {
+		for(int i=0;i<a.length;i++)
+			if(a[i] != b[offset + i]) return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Writes a message straight into a byte buffer, in the same format as
+ * {@link SimpleFieldSet#toString()}, without building a {@link SimpleFieldSet} and converting it
+ * to a String and then to bytes. Numbers are written without creating Strings at all. Used by the
+ * messages which are sent often enough for this to matter, see
+ * {@link FCPMessage#writeFields(FCPMessageWriter)}.
+ *
+ * LOCKING: Not thread-safe.
+ */
+final class FCPMessageWriter {
+
+	private byte[] buf;
+	private int length;
+
+	FCPMessageWriter() {
+		buf = new byte[256];
+	}
+
+	/** Start a new message, discarding anything written already. */
+	void start(String name) {
+		length = 0;
+		writeString(name);
+		writeByte('\n');
+	}
+
+	void put(String key, long value) {
+		writeKey(key);
+		if(value < 0) {
+			if(value == Long.MIN_VALUE) {
+				writeString(Long.toString(value));
+				writeByte('\n');
+				return;
+			}
+			writeByte('-');
+			value = -value;
+		}
+		int digits = 1;
+		for(long x = value; x >= 10; x /= 10)
+			digits++;
+		ensureSpace(digits);
+		for(int i=length+digits-1;i>=length;i--) {
+			buf[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		length += digits;
+		writeByte('\n');
+	}
+
+	void put(String key, boolean value) {
+		writeKey(key);
+		writeString(value ? "true" : "false");
+		writeByte('\n');
+	}
+
+	/** Write a String value. Does nothing if it is null, like
+	 * {@link SimpleFieldSet#putSingle(String, String)}. */
+	void putSingle(String key, String value) {
+		if(value == null) return;
+		if(value.indexOf('\n') != -1) throw new IllegalArgumentException("A simplefieldSet can't accept newlines !");
+		writeKey(key);
+		writeString(value);
+		writeByte('\n');
+	}
+
+	/** Finish the message. */
+	void end(String endMarker) {
+		writeString(endMarker);
+		writeByte('\n');
+	}
+
+	void writeTo(OutputStream os) throws IOException {
+		os.write(buf, 0, length);
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, length);
+	}
+
+	private void writeKey(String key) {
+		writeString(key);
+		writeByte(SimpleFieldSet.KEYVALUE_SEPARATOR_CHAR);
+	}
+
+	private void writeString(String s) {
+		int len = s.length();
+		ensureSpace(len);
+		for(int i=0;i<len;i++) {
+			char c = s.charAt(i);
+			if(c >= 0x80) {
+				// Not ASCII, let the JDK encode the rest.
+				byte[] encoded = s.substring(i).getBytes(StandardCharsets.UTF_8);
+				ensureSpace(encoded.length);
+				System.arraycopy(encoded, 0, buf, length, encoded.length);
+				length += encoded.length;
+				return;
+			}
+			buf[length++] = (byte) c;
+		}
+	}
+
+	private void writeByte(int b) {
+		ensureSpace(1);
+		buf[length++] = (byte) b;
+	}
+
+	private void ensureSpace(int bytes) {
+		if(length + bytes > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + bytes));
+	}
+
+}
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.tanukisoftware.wrapper.WrapperManager;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Does the network I/O for all the plain TCP FCP connections on a single thread, so an idle client
+ * doesn't cost us any threads. Each connection is an {@link FCPChannelConnection}. The selector
+ * thread only moves bytes between the sockets and the connections' buffers; incoming messages are
+ * parsed and processed, and outgoing messages are serialized, by jobs on the node's executor,
+ * which only run while there is something to do.
+ *
+ * Other threads never touch the selection keys directly: they ask for a connection's interest
+ * set to be recalculated with {@link #update(FCPChannelConnection)}.
+ */
+class FCPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private final Selector selector;
+	/** Connections to register with the selector. */
+	private final ConcurrentLinkedQueue<FCPChannelConnection> toRegister;
+	/** Connections whose interest set needs recalculating. */
+	private final ConcurrentLinkedQueue<FCPChannelConnection> toUpdate;
+
+	FCPSelector() throws IOException {
+		selector = Selector.open();
+		toRegister = new ConcurrentLinkedQueue<FCPChannelConnection>();
+		toUpdate = new ConcurrentLinkedQueue<FCPChannelConnection>();
+	}
+
+	/** Start handling a connection. Its channel must be in non-blocking mode. */
+	void register(FCPChannelConnection conn) {
+		toRegister.add(conn);
+		selector.wakeup();
+	}
+
+	/** Recalculate the interest set of a connection, e.g. because a buffer has been drained. */
+	void update(FCPChannelConnection conn) {
+		toUpdate.add(conn);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(!WrapperManager.hasShutdownHookBeenTriggered()) {
+			try {
+				realRun();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+		}
+	}
+
+	private void realRun() throws IOException {
+		selector.select();
+		FCPChannelConnection conn;
+		while((conn = toRegister.poll()) != null) {
+			try {
+				conn.setKey(conn.channel.register(selector, conn.interestOps(), conn));
+			} catch (ClosedChannelException e) {
+				if(logMINOR) Logger.minor(this, "Closed before registering: "+conn);
+				conn.onError(e);
+			}
+		}
+		while((conn = toUpdate.poll()) != null)
+			conn.updateInterestOps();
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while(it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			conn = (FCPChannelConnection) key.attachment();
+			try {
+				if(key.isReadable())
+					conn.onReadable();
+				if(key.isValid() && key.isWritable())
+					conn.onWritable();
+				conn.updateInterestOps();
+			} catch (CancelledKeyException e) {
+				// Closed by another thread.
+			}
+		}
+	}
+
+}
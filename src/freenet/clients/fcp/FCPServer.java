@@ -13,6 +13,7 @@ import java.util.UUID;
 import java.util.WeakHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -33,6 +34,7 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -64,6 +66,9 @@ public class FCPServer implements Runnable, DownloadCache {
 	private static boolean logMINOR;
 	public final static int DEFAULT_FCP_PORT = 9481;
 	NetworkInterface networkInterface;
+	/** Handles the I/O for plain TCP connections. Null if we are using SSL, or if we couldn't open
+	 * a selector, in which case each connection gets its own threads. */
+	FCPSelector selector;
 	public final NodeClientCore core;
 	final Node node;
 	final int port;
@@ -84,8 +89,15 @@ public class FCPServer implements Runnable, DownloadCache {
 	private boolean assumeUploadDDAIsAllowed;
 	private boolean neverDropAMessage;
 	private int maxMessageQueueLength;
-
-	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
+	/** How long to hold back progress messages so they can be coalesced, in milliseconds, or 0
+	 * to send them at once. See {@link FCPConnectionOutputHandler#queueProgress(FCPMessage)}. */
+	private int progressInterval;
+	/** Progress messages which could have been held back, and how many of them were replaced by a
+	 * later one before being sent. */
+	private final AtomicLong progressMessages = new AtomicLong();
+	private final AtomicLong coalescedProgressMessages = new AtomicLong();
+
+	public FCPServer(String ipToBindTo, String allowedHosts, String allowedHostsFullAccess, int port, Node node, NodeClientCore core, boolean isEnabled, boolean assumeDDADownloadAllowed, boolean assumeDDAUploadAllowed, boolean neverDropAMessage, int maxMessageQueueLength, int progressInterval, PersistentRequestRoot persistentRoot) throws IOException, InvalidConfigValueException {
 		this.bindTo = ipToBindTo;
 		this.allowedHosts=allowedHosts;
 		this.allowedHostsFullAccess = new AllowedHosts(allowedHostsFullAccess);
@@ -97,6 +109,7 @@ public class FCPServer implements Runnable, DownloadCache {
 		this.assumeUploadDDAIsAllowed = assumeDDAUploadAllowed;
 		this.neverDropAMessage = neverDropAMessage;
 		this.maxMessageQueueLength = maxMessageQueueLength;
+		this.progressInterval = progressInterval;
 		rebootClientsByName = new WeakHashMap<String, PersistentRequestClient>();
 		this.persistentRoot = persistentRoot;
         globalForeverClient = persistentRoot.globalForeverClient;
@@ -123,7 +136,13 @@ public class FCPServer implements Runnable, DownloadCache {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				tempNetworkInterface = ChannelNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				try {
+					selector = new FCPSelector();
+					node.executor.execute(selector, "FCP selector");
+				} catch (IOException e) {
+					Logger.error(this, "Unable to open selector, using a thread for each FCP connection: "+e, e);
+				}
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -421,6 +440,24 @@ public class FCPServer implements Runnable, DownloadCache {
 		}
 	}
 
+	static class ProgressIntervalCallback extends IntCallback {
+		FCPServer server;
+
+		@Override
+		public Integer get() {
+			return server.progressInterval;
+		}
+
+		@Override
+		public void set(Integer val) throws InvalidConfigValueException {
+			if(get().equals(val))
+				return;
+			if(val < 0)
+				throw new InvalidConfigValueException(l10n("progressIntervalNegative"));
+			server.progressInterval = val;
+		}
+	}
+
 
 	public static FCPServer maybeCreate(Node node, NodeClientCore core, Config config, PersistentRequestRoot root) throws IOException, InvalidConfigValueException {
 		SubConfig fcpConfig = config.createSubConfig("fcp");
@@ -436,22 +473,25 @@ public class FCPServer implements Runnable, DownloadCache {
 		AssumeDDAUploadIsAllowedCallback cb5;
 		NeverDropAMessageCallback cb6;
 		MaxMessageQueueLengthCallback cb7;
+		ProgressIntervalCallback cb8;
 		fcpConfig.register("assumeDownloadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeDownloadDDAIsAllowed", "FcpServer.assumeDownloadDDAIsAllowedLong", cb4 = new AssumeDDADownloadIsAllowedCallback());
 		fcpConfig.register("assumeUploadDDAIsAllowed", false, sortOrder++, true, false, "FcpServer.assumeUploadDDAIsAllowed", "FcpServer.assumeUploadDDAIsAllowedLong", cb5 = new AssumeDDAUploadIsAllowedCallback());
 		fcpConfig.register("maxMessageQueueLength", 1024, sortOrder++, true, false, "FcpServer.maxMessageQueueLength", "FcpServer.maxMessageQueueLengthLong", cb7 = new MaxMessageQueueLengthCallback(), false);
 		fcpConfig.register("neverDropAMessage", false, sortOrder++, true, false, "FcpServer.neverDropAMessage", "FcpServer.neverDropAMessageLong", cb6 = new NeverDropAMessageCallback());
+		fcpConfig.register("progressInterval", 1000, sortOrder++, true, false, "FcpServer.progressInterval", "FcpServer.progressIntervalLong", cb8 = new ProgressIntervalCallback(), false);
 
 		if(SSL.available()) {
 			ssl = fcpConfig.getBoolean("ssl");
 		}
 
-		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), root);
+		FCPServer fcp = new FCPServer(fcpConfig.getString("bindTo"), fcpConfig.getString("allowedHosts"), fcpConfig.getString("allowedHostsFullAccess"), fcpConfig.getInt("port"), node, core, fcpConfig.getBoolean("enabled"), fcpConfig.getBoolean("assumeDownloadDDAIsAllowed"), fcpConfig.getBoolean("assumeUploadDDAIsAllowed"), fcpConfig.getBoolean("neverDropAMessage"), fcpConfig.getInt("maxMessageQueueLength"), Math.max(0, fcpConfig.getInt("progressInterval")), root);
 
 		if(fcp != null) {
 			cb4.server = fcp;
 			cb5.server = fcp;
 			cb6.server = fcp;
 			cb7.server = fcp;
+			cb8.server = fcp;
 		}
 
 		fcpConfig.finishedInitialization();
@@ -466,6 +506,26 @@ public class FCPServer implements Runnable, DownloadCache {
 		return maxMessageQueueLength;
 	}
 
+	int progressInterval() {
+		return progressInterval;
+	}
+
+	void onProgressMessage(boolean coalesced) {
+		progressMessages.incrementAndGet();
+		if(coalesced) coalescedProgressMessages.incrementAndGet();
+	}
+
+	/** @return The number of progress messages which could have been held back. */
+	public long getProgressMessages() {
+		return progressMessages.get();
+	}
+
+	/** @return The number of progress messages which were dropped because a later one for the same
+	 * request replaced them before they were sent. */
+	public long getCoalescedProgressMessages() {
+		return coalescedProgressMessages.get();
+	}
+
 	private static String l10n(String key) {
 		return NodeL10n.getBase().getString("FcpServer."+key);
 	}
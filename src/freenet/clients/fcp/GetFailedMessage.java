@@ -156,6 +156,11 @@ public class GetFailedMessage extends FCPMessage implements Serializable {
 		return "GetFailed";
 	}
 
+	@Override
+	String progressKey() {
+		return progressKey(identifier, global);
+	}
+
 	@Override
 	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
 		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "GetFailed goes from server to client not the other way around", identifier, global);
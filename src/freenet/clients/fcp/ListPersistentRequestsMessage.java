@@ -14,9 +14,16 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 
 	static final String NAME = "ListPersistentRequests";
 	private final String identifier;
+	/** If the client has listed the requests before, the ChangeEpoch and ChangeSequence from
+	 * the {@link EndListPersistentRequestsMessage}, so we only need to send what has changed on
+	 * the global queue since then. Otherwise -1. */
+	private final long changeEpoch;
+	private final long changesSince;
 
 	public ListPersistentRequestsMessage(SimpleFieldSet fs) {
 		identifier = fs.get("Identifier");
+		changeEpoch = fs.getLong("ChangeEpoch", -1);
+		changesSince = fs.getLong("ChangesSince", -1);
 	}
 	
 	@Override
@@ -34,12 +41,20 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		final PersistentRequestClient client;
 		final FCPConnectionOutputHandler outputHandler;
 		protected final String listRequestIdentifier;
+		/** If not -1, only send the requests which have changed since this sequence number, and
+		 * those which have been removed. */
+		final long changesSince;
 		boolean sentRestartJobs;
 
 		ListJob(PersistentRequestClient client, FCPConnectionOutputHandler outputHandler, String listRequestIdentifier) {
+			this(client, outputHandler, listRequestIdentifier, -1);
+		}
+
+		ListJob(PersistentRequestClient client, FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, long changesSince) {
 			this.client = client;
 			this.outputHandler = outputHandler;
 			this.listRequestIdentifier = listRequestIdentifier;
+			this.changesSince = changesSince;
 		}
 		
 		int progressCompleted = 0;
@@ -52,7 +67,7 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 					reschedule(context);
 					return false;
 				}
-				int p = client.queuePendingMessagesOnConnectionRestart(outputHandler, listRequestIdentifier, progressCompleted, 30);
+				int p = client.queuePendingMessagesOnConnectionRestart(outputHandler, listRequestIdentifier, progressCompleted, 30, changesSince);
 				if(p <= progressCompleted) {
 					sentRestartJobs = true;
 					break;
@@ -67,8 +82,9 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 					reschedule(context);
 					return false;
 				}
-				int p = client.queuePendingMessagesFromRunningRequests(outputHandler, listRequestIdentifier, progressRunning, 30);
+				int p = client.queuePendingMessagesFromRunningRequests(outputHandler, listRequestIdentifier, progressRunning, 30, changesSince);
 				if(p <= progressRunning) {
+					client.queueRemovedMessages(outputHandler, listRequestIdentifier, changesSince);
 					complete(context);
 					return false;
 				}
@@ -91,7 +107,11 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		final ClientContext context;
 
 		TransientListJob(PersistentRequestClient client, FCPConnectionOutputHandler handler, ClientContext context, String listRequestIdentifier) {
-			super(client, handler, listRequestIdentifier);
+			this(client, handler, context, listRequestIdentifier, -1);
+		}
+
+		TransientListJob(PersistentRequestClient client, FCPConnectionOutputHandler handler, ClientContext context, String listRequestIdentifier, long changesSince) {
+			super(client, handler, listRequestIdentifier, changesSince);
 			this.context = context;
 		}
 		
@@ -112,7 +132,11 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 		final ClientContext context;
 
 		PersistentListJob(PersistentRequestClient client, FCPConnectionOutputHandler handler, ClientContext context, String listRequestIdentifier) {
-			super(client, handler, listRequestIdentifier);
+			this(client, handler, context, listRequestIdentifier, -1);
+		}
+
+		PersistentListJob(PersistentRequestClient client, FCPConnectionOutputHandler handler, ClientContext context, String listRequestIdentifier, long changesSince) {
+			super(client, handler, listRequestIdentifier, changesSince);
 			this.context = context;
 		}
 		
@@ -136,7 +160,16 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
 		
+		// The client wants to know where everything is up to.
+		handler.outputHandler.flushProgress();
 		PersistentRequestClient rebootClient = handler.getRebootClient();
+		// Anything which changes after this will be sent again next time.
+		final long changeSequence = RequestStatusCache.currentChangeSequence();
+		// Only the global queues keep a change log. The client's own queue is always sent in full.
+		long rebootSince = handler.server.globalRebootClient.listChangesSince(changeEpoch, changesSince);
+		long foreverSince = handler.server.globalForeverClient.listChangesSince(changeEpoch, changesSince);
+		final boolean incremental = rebootClient.watchGlobal && rebootSince >= 0 && foreverSince >= 0;
+		final long globalChangesSince = incremental ? changesSince : -1;
 
 		TransientListJob job = new TransientListJob(rebootClient, handler.outputHandler, node.clientCore.clientContext, identifier) {
 
@@ -146,7 +179,7 @@ public class ListPersistentRequestsMessage extends FCPMessage {
 				if(handler.getRebootClient().watchGlobal) {
 					PersistentRequestClient globalRebootClient = handler.server.globalRebootClient;
 
-					TransientListJob job = new TransientListJob(globalRebootClient, outputHandler, context, listRequestIdentifier) {
+					TransientListJob job = new TransientListJob(globalRebootClient, outputHandler, context, listRequestIdentifier, globalChangesSince) {
 
 						@Override
 						void complete(ClientContext context) {
@@ -174,7 +207,7 @@ public class ListPersistentRequestsMessage extends FCPMessage {
                         			void complete(ClientContext context) {
                         				if(handler.getRebootClient().watchGlobal) {
                         					PersistentRequestClient globalForeverClient = handler.server.globalForeverClient;
-                        					PersistentListJob job = new PersistentListJob(globalForeverClient, outputHandler, context, listRequestIdentifier) {
+                        					PersistentListJob job = new PersistentListJob(globalForeverClient, outputHandler, context, listRequestIdentifier, globalChangesSince) {
 
                         						@Override
                         						void complete(
@@ -190,7 +223,7 @@ public class ListPersistentRequestsMessage extends FCPMessage {
                         			}
 
                         			private void finishFinal() {
-                        				outputHandler.queue(new EndListPersistentRequestsMessage(listRequestIdentifier));
+                        				outputHandler.queue(new EndListPersistentRequestsMessage(listRequestIdentifier, changeSequence, incremental));
                         			}
                         			
                         		};
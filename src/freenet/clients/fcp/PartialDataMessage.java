@@ -0,0 +1,83 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.ArrayBucket;
+
+/**
+ * Part of the data of a ClientGet with FetchInOrder=true, ReturnType=direct and
+ * Persistence=connection, sent while the fetch is still running. The parts are sent in order,
+ * and StartOffset is the offset of this part within the file. The data is only verified when
+ * the fetch completes, so the client must still wait for DataFound and AllData, or GetFailed.
+ * No PartialData is sent for the request after those.
+ */
+public class PartialDataMessage extends DataCarryingMessage {
+
+	private static final long serialVersionUID = 1L;
+	final String identifier;
+	final boolean global;
+	final long startOffset;
+	final int dataLength;
+	/** Told when the data has been written, so it can queue more. */
+	private final transient PartialDataSender sender;
+
+	PartialDataMessage(PartialDataSender sender, String identifier, boolean global, long startOffset, byte[] data) {
+		this.sender = sender;
+		this.bucket = new ArrayBucket(data);
+		this.dataLength = data.length;
+		this.identifier = identifier;
+		this.global = global;
+		this.startOffset = startOffset;
+	}
+
+	@Override
+	long dataLength() {
+		return dataLength;
+	}
+
+	@Override
+	public void send(OutputStream os) throws IOException {
+		try {
+			super.send(os);
+		} finally {
+			sender.onSent(dataLength);
+		}
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Global", global);
+		fs.put("StartOffset", startOffset);
+		fs.put("DataLength", dataLength);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return "PartialData";
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "PartialData goes from server to client not the other way around", identifier, global);
+	}
+
+	@Override
+	String getIdentifier() {
+		return identifier;
+	}
+
+	@Override
+	boolean isGlobal() {
+		return global;
+	}
+
+}
@@ -0,0 +1,100 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.fcp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.Closer;
+
+/**
+ * Reads the data of a ClientGet from the stream in a SplitfileStreamEvent as it is fetched, and
+ * sends it to the client as PartialData messages. Only a limited amount of data is queued on the
+ * connection at once, so a slow client doesn't make us keep the whole file in memory. The
+ * ClientGet calls finish() before it sends DataFound and AllData or GetFailed, so no PartialData
+ * is sent after those.
+ */
+class PartialDataSender implements Runnable {
+
+	/** Maximum length of the data in a single PartialData message. */
+	static final int CHUNK_SIZE = 32 * 1024;
+	/** Maximum length of the data in PartialData messages which have been queued but not yet
+	 * written to the client. */
+	static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+	private final InputStream stream;
+	private final FCPConnectionOutputHandler handler;
+	private final String identifier;
+	private final boolean global;
+	/** Bytes queued on the connection but not yet written. Protected by this. */
+	private long queuedBytes;
+	/** If true, don't send any more PartialData. Protected by this. */
+	private boolean finished;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	PartialDataSender(InputStream stream, FCPConnectionOutputHandler handler, String identifier, boolean global) {
+		this.stream = stream;
+		this.handler = handler;
+		this.identifier = identifier;
+		this.global = global;
+	}
+
+	@Override
+	public void run() {
+		byte[] buf = new byte[CHUNK_SIZE];
+		long offset = 0;
+		try {
+			while(true) {
+				// Blocks until the next segment has been decoded.
+				int read = stream.read(buf);
+				if(read < 0) return;
+				synchronized(this) {
+					while(!finished && queuedBytes > 0 && queuedBytes + read > MAX_QUEUED_BYTES)
+						wait();
+					if(finished) return;
+					queuedBytes += read;
+					// queue() never blocks, and the output handler calls onSent() without
+					// holding any locks, so we can queue inside the lock. This guarantees that
+					// nothing is queued after finish() returns.
+					handler.queue(new PartialDataMessage(this, identifier, global, offset, Arrays.copyOf(buf, read)));
+				}
+				offset += read;
+			}
+		} catch (IOException e) {
+			// The fetch has failed, or finished and freed its storage. The ClientGet will send
+			// the final messages.
+			if(logMINOR) Logger.minor(this, "Stopped sending PartialData for "+identifier+" at "+offset+" : "+e);
+		} catch (InterruptedException e) {
+			// Shutting down.
+		} finally {
+			Closer.close(stream);
+		}
+	}
+
+	/** Called when a PartialData message has been written to the client. */
+	synchronized void onSent(int length) {
+		queuedBytes -= length;
+		notifyAll();
+	}
+
+	/** Stop sending PartialData. After this returns, no more will be queued. */
+	synchronized void finish() {
+		finished = true;
+		notifyAll();
+	}
+
+}
@@ -152,8 +152,17 @@ public class PersistentRequestClient {
 	}
 
 	public void queuePendingMessagesOnConnectionRestartAsync(FCPConnectionOutputHandler outputHandler, ClientContext context) {
+		queuePendingMessagesOnConnectionRestartAsync(outputHandler, context, -1);
+	}
+
+	/**
+	 * @param changesSince If not -1, only send the requests which have changed since this
+	 * sequence number, and tell the client about those which have been removed. Must have been
+	 * checked with {@link #listChangesSince(long, long)}.
+	 */
+	void queuePendingMessagesOnConnectionRestartAsync(FCPConnectionOutputHandler outputHandler, ClientContext context, long changesSince) {
 		if(persistence == Persistence.FOREVER) {
-			PersistentListJob job = new PersistentListJob(this, outputHandler, context, null) {
+			PersistentListJob job = new PersistentListJob(this, outputHandler, context, null, changesSince) {
 
 				@Override
 				void complete(ClientContext context) {
@@ -163,7 +172,7 @@ public class PersistentRequestClient {
 			};
 			job.run(context);
 		} else {
-			TransientListJob job = new TransientListJob(this, outputHandler, context, null) {
+			TransientListJob job = new TransientListJob(this, outputHandler, context, null, changesSince) {
 
 				@Override
 				void complete(ClientContext context) {
@@ -175,6 +184,34 @@ public class PersistentRequestClient {
 
 		}
 	}
+
+	/**
+	 * Can we send only the requests which have changed since a client last listed them?
+	 * @param changeEpoch The {@link RequestStatusCache#CHANGE_EPOCH} the client was given with the
+	 * sequence number, or -1.
+	 * @param changesSince The sequence number the client was given last time, or -1.
+	 * @return changesSince if we can, otherwise -1, meaning send everything.
+	 */
+	long listChangesSince(long changeEpoch, long changesSince) {
+		if(changesSince < 0 || statusCache == null) return -1;
+		if(changeEpoch != RequestStatusCache.CHANGE_EPOCH) return -1;
+		if(!statusCache.canListChangesSince(changesSince)) return -1;
+		return changesSince;
+	}
+
+	/** Should we send the request? True unless we are only sending changes, and it hasn't changed. */
+	private boolean changedSince(ClientRequest req, long changesSince) {
+		if(changesSince < 0 || statusCache == null) return true;
+		return statusCache.changedSince(req.getIdentifier(), changesSince);
+	}
+
+	/** Tell the client about the requests which have been removed since the given sequence
+	 * number. */
+	void queueRemovedMessages(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, long changesSince) {
+		if(changesSince < 0 || statusCache == null) return;
+		for(String identifier : statusCache.removedSince(changesSince))
+			outputHandler.queue(FCPMessage.withListRequestIdentifier(new PersistentRequestRemovedMessage(identifier, isGlobalQueue), listRequestIdentifier));
+	}
 	
 	
 	
@@ -184,6 +221,10 @@ public class PersistentRequestClient {
 	 * will encourage clients to acknowledge persistent requests!
 	 */
 	public int queuePendingMessagesOnConnectionRestart(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, int offset, int max) {
+		return queuePendingMessagesOnConnectionRestart(outputHandler, listRequestIdentifier, offset, max, -1);
+	}
+
+	int queuePendingMessagesOnConnectionRestart(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, int offset, int max, long changesSince) {
 		Object[] reqs;
 		synchronized(this) {
 			reqs = completedUnackedRequests.toArray();
@@ -191,7 +232,8 @@ public class PersistentRequestClient {
 		int i = 0;
 		for(i=offset;i<Math.min(reqs.length,offset+max);i++) {
 			ClientRequest req = (ClientRequest) reqs[i];
-			((ClientRequest)reqs[i]).sendPendingMessages(outputHandler, listRequestIdentifier, false, false);
+			if(!changedSince(req, changesSince)) continue;
+			req.sendPendingMessages(outputHandler, listRequestIdentifier, false, false);
 		}
 		return i;
 	}
@@ -200,6 +242,10 @@ public class PersistentRequestClient {
 	 * Queue any and all pending messages from running requests. Happens on demand.
 	 */
 	public int queuePendingMessagesFromRunningRequests(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, int offset, int max) {
+		return queuePendingMessagesFromRunningRequests(outputHandler, listRequestIdentifier, offset, max, -1);
+	}
+
+	int queuePendingMessagesFromRunningRequests(FCPConnectionOutputHandler outputHandler, String listRequestIdentifier, int offset, int max, long changesSince) {
 		Object[] reqs;
 		synchronized(this) {
 			reqs = runningPersistentRequests.toArray();
@@ -207,6 +253,7 @@ public class PersistentRequestClient {
 		int i = 0;
 		for(i=offset;i<Math.min(reqs.length,offset+max);i++) {
 			ClientRequest req = (ClientRequest) reqs[i];
+			if(!changedSince(req, changesSince)) continue;
 			req.sendPendingMessages(outputHandler, listRequestIdentifier, false, false);
 		}
 		return i;
@@ -339,6 +386,17 @@ public class PersistentRequestClient {
 	 * generated by the global queue).
 	 */
 	public boolean setWatchGlobal(boolean enabled, int verbosityMask, FCPServer server) {
+		return setWatchGlobal(enabled, verbosityMask, server, -1, -1);
+	}
+
+	/**
+	 * Like {@link #setWatchGlobal(boolean, int, FCPServer)}, but if the client has listed the
+	 * global queue before, only send what has changed since then, if we can.
+	 * @param changeEpoch The epoch the client was given, or -1.
+	 * @param changesSince The sequence number the client was given, or -1.
+	 * @see #listChangesSince(long, long)
+	 */
+	boolean setWatchGlobal(boolean enabled, int verbosityMask, FCPServer server, long changeEpoch, long changesSince) {
 		if(isGlobalQueue) {
 			Logger.error(this, "Set watch global on global queue!: "+this, new Exception("debug"));
 			return false;
@@ -353,10 +411,8 @@ public class PersistentRequestClient {
 			server.globalForeverClient.watch(this);
 			FCPConnectionHandler connHandler = getConnection();
 			if(connHandler != null) {
-				if(persistence == Persistence.REBOOT)
-					server.globalRebootClient.queuePendingMessagesOnConnectionRestartAsync(connHandler.outputHandler, server.core.clientContext);
-				else
-					server.globalForeverClient.queuePendingMessagesOnConnectionRestartAsync(connHandler.outputHandler, server.core.clientContext);
+				PersistentRequestClient global = persistence == Persistence.REBOOT ? server.globalRebootClient : server.globalForeverClient;
+				global.queuePendingMessagesOnConnectionRestartAsync(connHandler.outputHandler, server.core.clientContext, global.listChangesSince(changeEpoch, changesSince));
 			}
 			watchGlobal = true;
 		}
@@ -374,7 +430,7 @@ public class PersistentRequestClient {
 			return;
 		FCPConnectionHandler conn = getConnection();
 		if(conn != null) {
-			conn.send(msg);
+			conn.sendProgress(msg);
 		}
 		PersistentRequestClient[] clients;
 		if(isGlobalQueue) {
@@ -532,7 +588,7 @@ public class PersistentRequestClient {
             requesters.add(req.getClientRequest());
     }
 
-    public void resume(ClientRequest clientRequest) {
+    public synchronized void resume(ClientRequest clientRequest) {
         if(clientRequest.hasFinished())
             completedUnackedRequests.add(clientRequest);
         else
@@ -32,6 +32,11 @@ public class PersistentRequestRemovedMessage extends FCPMessage {
         return "PersistentRequestRemoved";
     }
 
+    @Override
+    String progressKey() {
+        return progressKey(ident, global);
+    }
+
     @Override
 	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
         throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "PersistentRequestRemoved goes from server to client not the other way around", ident, global);
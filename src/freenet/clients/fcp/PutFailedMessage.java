@@ -109,6 +109,11 @@ public class PutFailedMessage extends FCPMessage implements Serializable {
 		return "PutFailed";
 	}
 
+	@Override
+	String progressKey() {
+		return progressKey(identifier, global);
+	}
+
 	@Override
 	public void run(FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
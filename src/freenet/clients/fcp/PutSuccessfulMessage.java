@@ -40,6 +40,11 @@ public class PutSuccessfulMessage extends FCPMessage {
 		return "PutSuccessful";
 	}
 
+	@Override
+	String progressKey() {
+		return progressKey(identifier, global);
+	}
+
 	@Override
 	public void run(FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
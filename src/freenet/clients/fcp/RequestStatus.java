@@ -37,6 +37,9 @@ public abstract class RequestStatus implements Cloneable {
 	private Date latestFailure;
 	private boolean isTotalFinalized;
 	private final Persistence persistence;
+	/** Sequence number of the last change to the request, only set on the copies made by
+	 * {@link RequestStatusCache}. */
+	private long changeSequence;
 	
 	/** The download or upload has finished.
 	 * @param success Did it succeed? */
@@ -135,6 +138,16 @@ public abstract class RequestStatus implements Cloneable {
 
 	public abstract long getDataSize();
 
+	/** @return The sequence number of the last change to the request as of when this copy was
+	 * made, or 0 if unknown. Two copies with the same nonzero sequence number are identical. */
+	public long getChangeSequence() {
+		return changeSequence;
+	}
+	
+	void setChangeSequence(long changeSequence) {
+		this.changeSequence = changeSequence;
+	}
+
 	public boolean isPersistentForever() {
 		return persistence == Persistence.FOREVER;
 	}
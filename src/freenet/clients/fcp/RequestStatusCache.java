@@ -2,7 +2,12 @@ package freenet.clients.fcp;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.ClientMetadata;
 import freenet.client.FetchException.FetchExceptionMode;
@@ -17,7 +22,12 @@ import freenet.support.MultiValueTable;
 import freenet.support.api.Bucket;
 import freenet.support.io.NoFreeBucket;
 
-/** Per-PersistentRequestClient cache of status of requests. */
+/** Per-PersistentRequestClient cache of status of requests.
+ * 
+ * Also keeps a change log, so that a client which has already listed the requests can ask for
+ * only those added, changed or removed since then: each change is given a sequence number, and we
+ * remember the last one for each request, and for a while, for each request which has been
+ * removed. */
 public class RequestStatusCache {
 	
     private static volatile boolean logMINOR;
@@ -32,12 +42,71 @@ public class RequestStatusCache {
 	private final MultiValueTable<FreenetURI, RequestStatus> downloadsByURI;
 	private final MultiValueTable<FreenetURI, RequestStatus> uploadsByFinalURI;
 	
+	/** Source of change sequence numbers. Shared by all caches, so a single number tells the client
+	 * where it is up to with all of them. */
+	private static final AtomicLong changeSequence = new AtomicLong();
+	/** Identifies this run of the node. Sequence numbers start again when the node restarts, so a
+	 * client can't use one from a previous run. */
+	static final long CHANGE_EPOCH = new Random().nextLong() & Long.MAX_VALUE;
+	/** Remember at most this many removed requests. */
+	static final int MAX_REMOVED_REQUESTS = 4096;
+	/** Sequence number of the last change to each request. */
+	private final HashMap<String, Long> changedAt;
+	/** Sequence number at which each request was removed, oldest first. */
+	private final LinkedHashMap<String, Long> removedAt;
+	/** We can't tell what happened before this: we have forgotten some removed requests. */
+	private long changesKnownSince;
+	
 	RequestStatusCache() {
 		downloads = new ArrayList<RequestStatus>();
 		uploads = new ArrayList<RequestStatus>();
 		requestsByIdentifier = new HashMap<String, RequestStatus>();
 		downloadsByURI = new MultiValueTable<FreenetURI, RequestStatus>();
 		uploadsByFinalURI = new MultiValueTable<FreenetURI, RequestStatus>();
+		changedAt = new HashMap<String, Long>();
+		removedAt = new LinkedHashMap<String, Long>();
+	}
+	
+	/** @return The sequence number of the latest change to any cache. */
+	static long currentChangeSequence() {
+		return changeSequence.get();
+	}
+	
+	/** Record that a request has been added or changed. Caller must hold the lock. */
+	private void recordChange(String identifier) {
+		long seq = changeSequence.incrementAndGet();
+		changedAt.put(identifier, seq);
+		removedAt.remove(identifier);
+	}
+	
+	/** Record a change to a request which isn't otherwise tracked by the cache, e.g. its client
+	 * token. */
+	synchronized void changed(String identifier) {
+		if(requestsByIdentifier.containsKey(identifier))
+			recordChange(identifier);
+	}
+	
+	/** @return True if we can tell which requests have changed since the given sequence number. */
+	synchronized boolean canListChangesSince(long since) {
+		return since >= changesKnownSince && since <= changeSequence.get();
+	}
+	
+	/** @return True if the request has been added or changed since the given sequence number, or
+	 * if we don't know. */
+	synchronized boolean changedSince(String identifier, long since) {
+		Long seq = changedAt.get(identifier);
+		return seq == null || seq > since;
+	}
+	
+	/** @return The identifiers of the requests removed since the given sequence number. Only
+	 * complete if {@link #canListChangesSince(long)}. */
+	synchronized List<String> removedSince(long since) {
+		List<String> removed = new ArrayList<String>();
+		for(Map.Entry<String, Long> entry : removedAt.entrySet()) {
+			if(entry.getValue() > since)
+				removed.add(entry.getKey());
+		}
+		return removed;
 	}
 	
 	synchronized void addDownload(DownloadRequestStatus status) {
@@ -45,6 +114,7 @@ public class RequestStatusCache {
 			requestsByIdentifier.put(status.getIdentifier(), status);
 		if(logMINOR) Logger.minor(this, "Starting download "+status.getIdentifier());
 		if(old == status) return;
+		recordChange(status.getIdentifier());
 		if(old != null)
 		    downloads.remove(old);
 		downloads.add(status);
@@ -55,6 +125,7 @@ public class RequestStatusCache {
 		RequestStatus old = 
 			requestsByIdentifier.put(status.getIdentifier(), status);
 		if(old == status) return;
+		recordChange(status.getIdentifier());
 		if(logMINOR) Logger.minor(this, "Starting upload "+status.getIdentifier());
 		if(old != null)
 		    uploads.remove(old);
@@ -70,6 +141,7 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.setFinished(success, dataSize, mimeType, failureCode, failureReasonLong,
 				failureReasonShort, dataShadow, filtered);
+		recordChange(identifier);
 	}
 	
 	synchronized void gotFinalURI(String identifier, FreenetURI finalURI) {
@@ -79,6 +151,7 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinalURI(finalURI);
+		recordChange(identifier);
 	}
 	
 	synchronized void finishedUpload(String identifier, boolean success,  
@@ -90,12 +163,14 @@ public class RequestStatusCache {
 			// No final URI set yet, put into the index.
 			uploadsByFinalURI.put(finalURI, status);
 		status.setFinished(success, finalURI, failureCode, failureReasonShort, failureReasonLong);
+		recordChange(identifier);
 	}
 	
 	synchronized void updateStatus(String identifier, SplitfileProgressEvent event) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateStatus(event);
+		recordChange(identifier);
 	}
 	
 	synchronized void updateDetectedCompatModes(String identifier, InsertContext.CompatibilityMode[] compatModes, byte[] splitfileKey, boolean dontCompress) {
@@ -103,11 +178,19 @@ public class RequestStatusCache {
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateDetectedCompatModes(compatModes, dontCompress);
 		status.updateDetectedSplitfileKey(splitfileKey);
+		recordChange(identifier);
 	}
 	
 	synchronized void removeByIdentifier(String identifier) {
 		RequestStatus status = requestsByIdentifier.remove(identifier);
 		if(status == null) return;
+		changedAt.remove(identifier);
+		removedAt.put(identifier, changeSequence.incrementAndGet());
+		if(removedAt.size() > MAX_REMOVED_REQUESTS) {
+			Iterator<Long> it = removedAt.values().iterator();
+			changesKnownSince = it.next();
+			it.remove();
+		}
 		if(status instanceof DownloadRequestStatus) {
 			downloads.remove(status);
 			FreenetURI uri = status.getURI();
@@ -127,38 +210,50 @@ public class RequestStatusCache {
 		requestsByIdentifier.clear();
 		downloadsByURI.clear();
 		uploadsByFinalURI.clear();
+		changedAt.clear();
+		removedAt.clear();
+		// We don't know what has been removed.
+		changesKnownSince = changeSequence.incrementAndGet();
 	}
 
-	public void updateCompressionStatus(String identifier,
+	public synchronized void updateCompressionStatus(String identifier,
 			COMPRESS_STATE compressing) {
 		UploadFileRequestStatus status = (UploadFileRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateCompressionStatus(compressing);
+		recordChange(identifier);
 	}
 
 	public synchronized void addTo(List<RequestStatus> status) {
 		// FIXME is it better to just synchronize on the RequestStatusCache when
 		// rendering the downloads page, and when updating? Ugly though ...
-		for(RequestStatus req : requestsByIdentifier.values())
-			status.add(req.clone());
+		for(RequestStatus req : requestsByIdentifier.values()) {
+			RequestStatus copy = req.clone();
+			Long seq = changedAt.get(req.getIdentifier());
+			if(seq != null) copy.setChangeSequence(seq);
+			status.add(copy);
+		}
 	}
 
 	public synchronized void updateExpectedMIME(String identifier, String foundDataMimeType) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedMIME(foundDataMimeType);
+		recordChange(identifier);
 	}
 
 	public synchronized void updateExpectedDataLength(String identifier, long expectedDataLength) {
 		DownloadRequestStatus status = (DownloadRequestStatus) requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.updateExpectedDataLength(expectedDataLength);
+		recordChange(identifier);
 	}
 
-	public void setPriority(String identifier, short newPriorityClass) {
+	public synchronized void setPriority(String identifier, short newPriorityClass) {
 		RequestStatus status = requestsByIdentifier.get(identifier);
 		if(status == null) return; // Can happen during cancel etc.
 		status.setPriority(newPriorityClass);
+		recordChange(identifier);
 	}
 	
 	/** Restart a request. Caller should call ,false first, at which point we setStarted,
@@ -174,6 +269,7 @@ public class RequestStatusCache {
 		else
 			// Already restarted, just set started = true.
 			status.setStarted(started);
+		recordChange(identifier);
 	}
 	
 	/** Restart a download. Caller should call ,false first, at which point we setStarted,
@@ -189,6 +285,7 @@ public class RequestStatusCache {
 			status.redirect(redirect);
 			downloadsByURI.put(redirect, status);
 		}
+		recordChange(identifier);
 	}
 
 	public synchronized CacheFetchResult getShadowBucket(FreenetURI key, boolean noFilter) {
@@ -51,11 +51,37 @@ public class SimpleProgressMessage extends FCPMessage {
 		return fs;
 	}
 
+	@Override
+	boolean canWriteFields() {
+		return true;
+	}
+
+	@Override
+	void writeFields(FCPMessageWriter writer) {
+		writer.put("Total", event.totalBlocks);
+		writer.put("Required", event.minSuccessfulBlocks);
+		writer.put("Failed", event.failedBlocks);
+		writer.put("FatallyFailed", event.fatallyFailedBlocks);
+		// LastFailure is disabled, see getFieldSet().
+		writer.put("Succeeded",event.succeedBlocks);
+		writer.put("LastProgress", event.latestSuccess != null ? event.latestSuccess.getTime() : 0);
+		writer.put("FinalizedTotal", event.finalizedTotal);
+		if(event.minSuccessFetchBlocks != 0)
+			writer.put("MinSuccessFetchBlocks", event.minSuccessFetchBlocks);
+		writer.putSingle("Identifier", ident);
+		writer.put("Global", global);
+	}
+
 	@Override
 	public String getName() {
 		return "SimpleProgress";
 	}
 
+	@Override
+	String progressKey() {
+		return progressKey(ident, global);
+	}
+
 	@Override
 	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
 		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "SimpleProgress goes from server to client not the other way around", ident, global);
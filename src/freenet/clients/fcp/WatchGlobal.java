@@ -10,6 +10,9 @@ public class WatchGlobal extends FCPMessage {
 
 	final boolean enabled;
 	final int verbosityMask;
+	/** See {@link ListPersistentRequestsMessage}. */
+	final long changeEpoch;
+	final long changesSince;
 	static final String NAME = "WatchGlobal";
 
 	public WatchGlobal(SimpleFieldSet fs) throws MessageInvalidException {
@@ -23,6 +26,8 @@ public class WatchGlobal extends FCPMessage {
 			}
 		else
 			verbosityMask = Integer.MAX_VALUE;
+		changeEpoch = fs.getLong("ChangeEpoch", -1);
+		changesSince = fs.getLong("ChangesSince", -1);
 	}
 	
 	@Override
@@ -30,6 +35,10 @@ public class WatchGlobal extends FCPMessage {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
 		fs.put("Enabled", enabled);
 		fs.put("VerbosityMask", verbosityMask);
+		if(changesSince >= 0) {
+			fs.put("ChangeEpoch", changeEpoch);
+			fs.put("ChangesSince", changesSince);
+		}
 		return fs;
 	}
 
@@ -41,13 +50,13 @@ public class WatchGlobal extends FCPMessage {
 	@Override
 	public void run(final FCPConnectionHandler handler, Node node)
 			throws MessageInvalidException {
-		if(!handler.getRebootClient().setWatchGlobal(enabled, verbosityMask, node.clientCore.getFCPServer())) {
+		if(!handler.getRebootClient().setWatchGlobal(enabled, verbosityMask, node.clientCore.getFCPServer(), changeEpoch, changesSince)) {
 			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.PERSISTENCE_DISABLED, false, "Persistence disabled", null, true);
 			handler.send(err);
 		}
 		PersistentRequestClient client = handler.getForeverClient();
 		if(client != null)
-		    client.setWatchGlobal(enabled, verbosityMask, handler.server);
+		    client.setWatchGlobal(enabled, verbosityMask, handler.server, changeEpoch, changesSince);
 	}
 
 }
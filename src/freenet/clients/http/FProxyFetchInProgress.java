@@ -196,6 +196,12 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
+		FetchResult filtered = tracker.filteredCache.get(uri, fctx, maxSize);
+		if(filtered != null) {
+			// The data is ours to free, so we can stay in the tracker.
+			succeeded(filtered, false);
+			return true;
+		}
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
 		if(result == null) return false;
 		Bucket data = null;
@@ -266,7 +272,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				os.close();
 				os = null;
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
-				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
+				succeeded(new FetchResult(new ClientMetadata(fullMimeType), output), true);
 				output = null;
 				return true;
 			} catch (IOException e) {
@@ -390,12 +396,25 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
+		// If state is null, the data came from the download queue and isn't ours to cache.
+		succeeded(result, state != null);
+	}
+
+	/** @param mayCache True if we own the data, and can hand it over to the
+	 * {@link FilteredContentCache} if it is filtered. */
+	private void succeeded(FetchResult result, boolean mayCache) {
 		Bucket droppedData = null;
+		Bucket resultData = result.asBucket();
+		synchronized(this) {
+			mayCache = mayCache && !cancelled;
+		}
+		if(mayCache)
+			resultData = tracker.filteredCache.put(uri, fctx, result.getMimeType(), resultData);
 		synchronized(this) {
 			if(cancelled)
-				droppedData = result.asBucket();
+				droppedData = resultData;
 			else
-				this.data = result.asBucket();
+				this.data = resultData;
 			this.mimeType = result.getMimeType();
 			this.finished = true;
 		}
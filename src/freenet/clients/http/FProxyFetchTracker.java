@@ -29,6 +29,8 @@ public class FProxyFetchTracker implements Runnable {
 	}
 	
 	final MultiValueTable<FreenetURI, FProxyFetchInProgress> fetchers;
+	/** Filtered content of keys which can't change, kept after the fetches are gone. */
+	final FilteredContentCache filteredCache;
 	final ClientContext context;
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
@@ -38,6 +40,7 @@ public class FProxyFetchTracker implements Runnable {
 
 	public FProxyFetchTracker(ClientContext context, FetchContext fctx, RequestClient rc) {
 		fetchers = new MultiValueTable<FreenetURI, FProxyFetchInProgress>();
+		filteredCache = new FilteredContentCache();
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
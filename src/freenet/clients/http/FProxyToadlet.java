@@ -1,5 +1,6 @@
 package freenet.clients.http;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -52,6 +53,7 @@ import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
 import freenet.node.RequestStarter;
+import freenet.node.Version;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
 import freenet.pluginmanager.PluginInfoWrapper;
@@ -144,7 +146,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 	}
 
-	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+	private void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset, String etag) throws ToadletContextClosedException, IOException {
 		if(logMINOR)
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
 		String extrasNoMime = extras; // extras will not include MIME type to start with - REDFLAG maybe it should be an array
@@ -287,6 +289,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			} else {
                 retHdr.put("X-Content-Type-Options", "nosniff");
                 if (container.enableCachingForChkAndSskKeys() && (key.isCHK() || key.isSSK())) {
+                    if (etag != null)
+                        retHdr.put("ETag", etag);
                     context.sendReplyHeadersStatic(200, "OK", retHdr, mimeType, size, new Date());
                 } else {
                     context.sendReplyHeadersFProxy(200, "OK", retHdr, mimeType, size);
@@ -660,6 +664,18 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			else override = override+"&forcedownload";
 		}
 
+		String etag = null;
+		if(container.enableCachingForChkAndSskKeys() && key.isCHK()) {
+			// The content can't change, so if the browser has it, we don't need to fetch it.
+			etag = makeETag(key, fctx.filterData, httprequest.isParameterSet("forcedownload"), requestedMimeType, maybeCharset);
+			if(matchesETag(ctx.getHeaders().get("if-none-match"), etag)) {
+				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+				retHdr.put("ETag", etag);
+				ctx.sendReplyHeadersStatic(304, "Not Modified", retHdr, null, 0, new Date());
+				return;
+			}
+		}
+
 		Bucket data = null;
 		String mimeType = null;
 		String referer = sanitizeReferer(ctx);
@@ -805,7 +821,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, "&max-size="+maxSizeDownload, referer, true, ctx, core, fr != null, maybeCharset, etag);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -1072,6 +1088,28 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return referer;
 	}
 
+	/**
+	 * @return A strong ETag for the content of a CHK, as we send it for a request with the given
+	 * options. It changes with the build, in case the content filter has changed.
+	 */
+	static String makeETag(FreenetURI key, boolean filterData, boolean forceDownload, String requestedMimeType, String charset) {
+		String s = key.toString(false, false)+'\n'+filterData+'\n'+forceDownload+'\n'+requestedMimeType+'\n'+charset+'\n'+Version.buildNumber();
+		byte[] hash = SHA256.digest(s.getBytes(UTF_8));
+		return '"'+HexUtil.bytesToHex(hash, 0, 16)+'"';
+	}
+
+	/** @return True if the If-None-Match header lists the ETag. */
+	static boolean matchesETag(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) return false;
+		for(String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// If-None-Match uses the weak comparison.
+			if(tag.startsWith("W/")) tag = tag.substring(2);
+			if(tag.equals(etag)) return true;
+		}
+		return false;
+	}
+
 	private static String getForceValue(FreenetURI key, long time) {
 		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
@@ -0,0 +1,193 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.filter.LinkFilterExceptionProvider;
+import freenet.keys.FreenetURI;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.io.MultiReaderBucket;
+
+/**
+ * Keeps the filtered output of recent FProxy fetches of CHKs and SSKs, so that browsing a
+ * freesite runs the content filter once per page, rather than every time the page is loaded after
+ * {@link FProxyFetchTracker} has forgotten the fetch. The content of these keys never changes, so
+ * the output only depends on the key, on the MIME type and charset options, and on which links
+ * the toadlets let through, see {@link LinkFilterExceptionProvider}. The first two are part of the
+ * cache key, and the cache is cleared when the toadlets change. Output which uses a
+ * {@link FetchContext#tagReplacer} is specific to the page it was fetched for, so is not cached.
+ *
+ * The data stays in the temp buckets it was filtered into, which are encrypted if the physical
+ * security level calls for it, and the total size is limited. Everyone using an entry gets their
+ * own reader from a {@link MultiReaderBucket}, so an entry can be dropped while it is being sent.
+ *
+ * LOCKING: Synchronized on this object.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Default limit on the total size of the cached data. */
+	static final long DEFAULT_MAX_SIZE = 32*1024*1024;
+	/** Default limit on the size of a single entry. Anything bigger would push out too much. */
+	static final long DEFAULT_MAX_ENTRY_SIZE = 4*1024*1024;
+
+	private static class Entry {
+		final MultiReaderBucket data;
+		/** Our own reader, freed when the entry is dropped. The data is freed once nobody else
+		 * is reading it either. */
+		final Bucket reader;
+		final String mimeType;
+		final long size;
+
+		Entry(MultiReaderBucket data, String mimeType, long size) {
+			this.data = data;
+			this.reader = data.getReaderBucket();
+			this.mimeType = mimeType;
+			this.size = size;
+		}
+	}
+
+	private final long maxSize;
+	private final long maxEntrySize;
+	/** Least recently used first. */
+	private final LinkedHashMap<String, Entry> entries;
+	private long totalSize;
+	private long hits;
+	private long misses;
+
+	public FilteredContentCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTRY_SIZE);
+	}
+
+	FilteredContentCache(long maxSize, long maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+		entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/** @return True if the filtered content of the key can be cached, because the key can only
+	 * ever return the same data. */
+	static boolean canCache(FreenetURI uri) {
+		return uri.isCHK() || uri.isSSK();
+	}
+
+	private static boolean canCache(FreenetURI uri, FetchContext fctx) {
+		return fctx.filterData && fctx.tagReplacer == null && canCache(uri);
+	}
+
+	private static String makeKey(FreenetURI uri, FetchContext fctx) {
+		return uri.toString(false, false)+'\n'+fctx.overrideMIME+'\n'+fctx.charset;
+	}
+
+	/**
+	 * Look up the filtered content for a fetch.
+	 * @param maxSize Ignore the entry if it is bigger than this.
+	 * @return The data and its MIME type, or null. The caller must free the data.
+	 */
+	public synchronized FetchResult get(FreenetURI uri, FetchContext fctx, long maxSize) {
+		if(!canCache(uri, fctx)) return null;
+		Entry entry = entries.get(makeKey(uri, fctx));
+		if(entry == null || entry.size > maxSize) {
+			misses++;
+			return null;
+		}
+		Bucket reader = entry.data.getReaderBucket();
+		if(reader == null) {
+			// Can't happen as long as we hold our own reader.
+			Logger.error(this, "Cached data already freed for "+uri);
+			entries.remove(makeKey(uri, fctx));
+			totalSize -= entry.size;
+			return null;
+		}
+		hits++;
+		if(logMINOR) Logger.minor(this, "Found filtered data for "+uri+" : "+entry.size+" bytes");
+		return new FetchResult(new ClientMetadata(entry.mimeType), reader);
+	}
+
+	/**
+	 * Add the filtered content for a fetch, if it is small enough and may be cached.
+	 * @param data The filtered data. If it is cached, the cache takes it over.
+	 * @return The bucket to use in place of the data. The caller must free it, as it would have
+	 * freed the data.
+	 */
+	public Bucket put(FreenetURI uri, FetchContext fctx, String mimeType, Bucket data) {
+		if(!canCache(uri, fctx)) return data;
+		long size = data.size();
+		if(size > maxEntrySize || size > maxSize) return data;
+		MultiReaderBucket shared = new MultiReaderBucket(data);
+		Bucket reader = shared.getReaderBucket();
+		Entry entry = new Entry(shared, mimeType, size);
+		List<Entry> dropped = new ArrayList<Entry>();
+		synchronized(this) {
+			Entry old = entries.put(makeKey(uri, fctx), entry);
+			if(old != null) {
+				totalSize -= old.size;
+				dropped.add(old);
+			}
+			totalSize += size;
+			Iterator<Entry> it = entries.values().iterator();
+			while(totalSize > maxSize && it.hasNext()) {
+				Entry e = it.next();
+				it.remove();
+				totalSize -= e.size;
+				dropped.add(e);
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Cached filtered data for "+uri+" : "+size+" bytes, dropped "+dropped.size());
+		for(Entry e : dropped)
+			e.reader.free();
+		return reader;
+	}
+
+	/** Drop everything, because the filter would now produce different output, e.g. because the
+	 * toadlets, and so the link filter exceptions, have changed. */
+	public void clear() {
+		List<Entry> dropped;
+		synchronized(this) {
+			dropped = new ArrayList<Entry>(entries.values());
+			entries.clear();
+			totalSize = 0;
+		}
+		if(logMINOR) Logger.minor(this, "Cleared, dropped "+dropped.size());
+		for(Entry e : dropped)
+			e.reader.free();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long totalSize() {
+		return totalSize;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+}
@@ -79,9 +79,11 @@ import freenet.support.HexUtil;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.LRUMap;
 import freenet.support.MultiValueTable;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
 import freenet.support.api.RandomAccessBucket;
@@ -139,6 +141,12 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	static final int MAX_FILENAME_LENGTH = 1024*1024;
 	private static final int MAX_TYPE_LENGTH = 1024;
 	static final int MAX_KEY_LENGTH = 1024*1024;
+	/** Requests shown on each page of a table, unless the rows parameter says otherwise. */
+	static final int DEFAULT_ROWS_PER_PAGE = 100;
+	static final int MAX_ROWS_PER_PAGE = 1000;
+	private static final int MAX_FILTER_LENGTH = 1024;
+	/** Keep the rendered cells of at most this many requests. */
+	private static final int MAX_CACHED_ROWS = 2000;
 
 	private NodeClientCore core;
 	final FCPServer fcp;
@@ -160,6 +168,26 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 	private boolean isReversed = false;
 	private final boolean uploads;
+	/** Rendered cells of the requests shown recently, by identifier. Most of the requests on a
+	 * big queue don't change between one page load and the next, so we can reuse their cells
+	 * rather than building and generating them again. */
+	private final LRUMap<String, CachedRow> cachedRows = LRUMap.createSafeMap();
+
+	/** The cells of a request's row as HTML, except for those which depend on the time. */
+	private static class CachedRow {
+		/** The request hasn't changed as long as its change sequence number is the same. */
+		final long changeSequence;
+		/** The columns and settings the cells were rendered with. */
+		final String layout;
+		/** One per column. Null if the cell must be rendered every time. */
+		final String[] cells;
+
+		CachedRow(long changeSequence, String layout, String[] cells) {
+			this.changeSequence = changeSequence;
+			this.layout = layout;
+			this.cells = cells;
+		}
+	}
 
     private static final String KEY_LIST_LOCATION = "listKeys.txt";
 
@@ -1259,8 +1287,18 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		long totalQueuedDownloadSize = 0;
 		long totalQueuedUploadSize = 0;
 
+		String filter = request.getParam("filter").trim();
+		if(filter.length() > MAX_FILTER_LENGTH)
+			filter = filter.substring(0, MAX_FILTER_LENGTH);
+		String lowerCaseFilter = filter.toLowerCase();
+
 		boolean added = false;
+		boolean filtered = false;
 		for(RequestStatus req: reqs) {
+			if(!lowerCaseFilter.isEmpty() && !matchesFilter(req, lowerCaseFilter)) {
+				filtered = true;
+				continue;
+			}
 			if(req instanceof DownloadRequestStatus && !uploads) {
 				DownloadRequestStatus download = (DownloadRequestStatus)req;
 				if(download.hasSucceeded()) {
@@ -1349,7 +1387,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		added = true;
 			}
 		}
-		if(!added) {
+		if(!added && !filtered) {
 		    return sendEmptyQueuePage(ctx, pageMaker);
 		}
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
@@ -1519,6 +1557,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 	navigationContent.addChild("li").addChild("a", "href", KEY_LIST_LOCATION,
 						  l10n("openKeyList"));
+		navigationContent.addChild("li").addChild(createFilterForm(request, filter));
 
 		if (includeNavigationBar) {
 			contentNode.addChild(navigationBar);
@@ -1570,9 +1609,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", l10n("completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
+				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToTemp, new QueueColumn[] { QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-temp", QueueType.CompletedDownloadToTemp));
 			}
 		}
 
@@ -1580,9 +1619,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY, QueueColumn.COMPAT_MODE }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
+				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedDownloadToDisk, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-disk", QueueType.CompletedDownloadToDisk));
 			}
 		}
 
@@ -1590,9 +1629,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", l10n("completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.MIME_TYPE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			} else {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
+				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, request, completedUpload, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-file", QueueType.CompletedUpload));
 			}
 		}
 
@@ -1600,9 +1639,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", l10n("completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
+				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, request, completedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "completed-upload-dir", QueueType.CompletedDirUpload));
 			}
 		}
 
@@ -1610,9 +1649,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDownload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-download", QueueType.FailedDownload));
 			}
 		}
 
@@ -1620,9 +1659,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, advancedModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedUpload, simpleModeFailure, priorityClasses, advancedModeEnabled, "failed-upload-file", QueueType.FailedUpload));
 			}
 		}
 
@@ -1630,9 +1669,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", l10n("failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
+				failedContent.addChild(createRequestTable(pageMaker, ctx, request, failedDirUpload, new QueueColumn[] { QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.REASON, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-upload-dir", QueueType.FailedDirUpload));
 			}
 		}
 
@@ -1657,9 +1696,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
 				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-badmime", type, QueueType.FailedBadMIMEType));
 				}
 			}
 		}
@@ -1677,9 +1716,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				failedContent.addChild("p", l10n("mimeProblemFetchAnyway"));
 				Collections.sort(getters, jobComparator);
 				if (advancedModeEnabled) {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.IDENTIFIER, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PERSISTENCE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				} else {
-					failedContent.addChild(createRequestTable(pageMaker, ctx, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
+					failedContent.addChild(createRequestTable(pageMaker, ctx, request, getters, new QueueColumn[] { QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "failed-download-file-unknownmime", type, QueueType.FailedUnknownMIMEType));
 				}
 			}
 
@@ -1691,7 +1730,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
-			pageMaker, ctx, uncompletedDownload,
+			pageMaker, ctx, request, uncompletedDownload,
 			new QueueColumn[] {
 			    QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
 			    QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1708,7 +1747,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueType.UncompletedDownload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDownload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-download", QueueType.UncompletedDownload));
 			}
 		}
 
@@ -1718,7 +1757,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
-			pageMaker, ctx, uncompletedUpload,
+			pageMaker, ctx, request, uncompletedUpload,
 			new QueueColumn[] {
 			    QueueColumn.IDENTIFIER, QueueColumn.PRIORITY, QueueColumn.SIZE,
 			    QueueColumn.MIME_TYPE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1735,7 +1774,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueType.UncompletedUpload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILENAME, QueueColumn.SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-file", QueueType.UncompletedUpload));
 			}
 		}
 
@@ -1745,7 +1784,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			if (advancedModeEnabled) {
 		uncompletedContent.addChild(
 		    createRequestTable(
-			pageMaker, ctx, uncompletedDirUpload,
+			pageMaker, ctx, request, uncompletedDirUpload,
 			new QueueColumn[] {
 			    QueueColumn.IDENTIFIER, QueueColumn.FILES, QueueColumn.PRIORITY,
 			    QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY,
@@ -1761,7 +1800,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			QueueType.UncompletedDirUpload)
 		);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
+				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, request, uncompletedDirUpload, new QueueColumn[] { QueueColumn.PRIORITY, QueueColumn.FILES, QueueColumn.TOTAL_SIZE, QueueColumn.PROGRESS, QueueColumn.LAST_ACTIVITY, QueueColumn.KEY }, priorityClasses, advancedModeEnabled, "uncompleted-upload-dir", QueueType.UncompletedDirUpload));
 			}
 		}
 
@@ -2093,15 +2132,32 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	return lastFailureCell;
     }
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
-		return createRequestTable(pageMaker, ctx, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, QueueType queueType) {
+		return createRequestTable(pageMaker, ctx, request, requests, columns, priorityClasses, advancedModeEnabled, id, null, queueType);
 	}
 	
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
+	/**
+	 * Create the table for one section of the queue. Only one page of the requests is shown, as
+	 * chosen by the page-&lt;id&gt; parameter, so the cost depends on the number of rows shown and
+	 * not on the size of the queue.
+	 * @param requests All the requests in the section, sorted.
+	 */
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, HTTPRequest request, List<? extends RequestStatus> requests, QueueColumn[] columns, String[] priorityClasses, boolean advancedModeEnabled, String id, String mimeType, QueueType queueType) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
 		long now = System.currentTimeMillis();
 		
+		String pageParam = "page-"+id;
+		if(mimeType != null)
+			pageParam += "-"+mimeType.replace("-", "--").replace('/', '-');
+		int rows = Math.max(1, Math.min(MAX_ROWS_PER_PAGE, request.getIntParam("rows", DEFAULT_ROWS_PER_PAGE)));
+		int pages = (requests.size() + rows - 1) / rows;
+		int page = Math.max(1, Math.min(pages, request.getIntParam(pageParam, 1)));
+		int from = (page - 1) * rows;
+		int to = Math.min(requests.size(), from + rows);
+		
 		HTMLNode formDiv = new HTMLNode("div", "class", "request-table-form");
+		if(pages > 1)
+			formDiv.addChild(createPageControl(request, pageParam, page, pages, from, to, requests.size()));
 		HTMLNode form = ctx.addFormChild(formDiv, path(), "request-table-form-"+id+(advancedModeEnabled?"-advanced":"-simple"));
 		
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, true, queueType);
@@ -2116,10 +2172,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		for (QueueColumn column : columns) {
 			switch (column) {
 				case IDENTIFIER:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=id" : "?sortBy=id&reversed")).addChild("#", l10n("identifier"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "id")).addChild("#", l10n("identifier"));
 					break;
 				case SIZE:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=size" : "?sortBy=size&reversed")).addChild("#", l10n("size"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "size")).addChild("#", l10n("size"));
 					break;
 				case MIME_TYPE:
 					headerRow.addChild("th", l10n("mimeType"));
@@ -2143,17 +2199,17 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					headerRow.addChild("th", l10n("totalSize"));
 					break;
 				case PROGRESS:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=progress" : "?sortBy=progress&reversed")).addChild("#", l10n("progress"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "progress")).addChild("#", l10n("progress"));
 					break;
 				case REASON:
 					headerRow.addChild("th", l10n("reason"));
 					break;
 				case LAST_ACTIVITY:
-					headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=lastActivity" : "?sortBy=lastActivity&reversed"), l10n("lastActivity"));
+					headerRow.addChild("th").addChild("a", "href", sortLink(request, "lastActivity"), l10n("lastActivity"));
 					break;
 		case LAST_FAILURE:
 		    headerRow.addChild("th").addChild("a", "href",
-			    (isReversed ? "?sortBy=lastFailure" : "?sortBy=lastFailure&reversed"),
+			    sortLink(request, "lastFailure"),
 			    l10n("lastFailure"));
 		    break;
 				case COMPAT_MODE:
@@ -2162,99 +2218,210 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			}
 		}
 		//Add a row with a checkbox for each request.
-		int x = 0;
-		for (RequestStatus clientRequest : requests) {
+		String layout = queueType.name()+':'+advancedModeEnabled+':'+ctx.isAdvancedModeEnabled()+':'+
+			NodeL10n.getBase().getSelectedLanguage()+':'+Arrays.toString(columns);
+		int x = from;
+		for (RequestStatus clientRequest : requests.subList(from, to)) {
 			HTMLNode requestRow = table.addChild("tr", "class", "priority" + clientRequest.getPriority());
 			requestRow.addChild(createCheckboxCell(clientRequest, x++));
 
-			for (QueueColumn column : columns) {
-				switch (column) {
-					case IDENTIFIER:
-						requestRow.addChild(createIdentifierCell(clientRequest.getURI(), clientRequest.getIdentifier(), clientRequest instanceof UploadDirRequestStatus));
-						break;
-					case SIZE:
-						boolean isFinal = true;
-						if(clientRequest instanceof DownloadRequestStatus)
-							isFinal = ((DownloadRequestStatus)clientRequest).isTotalFinalized();
-						requestRow.addChild(createSizeCell(clientRequest.getDataSize(), isFinal, advancedModeEnabled));
-						break;
-					case MIME_TYPE:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createTypeCell(((DownloadRequestStatus) clientRequest).getMIMEType()));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createTypeCell(((UploadFileRequestStatus) clientRequest).getMIMEType()));
-						}
-						break;
-					case PERSISTENCE:
-						requestRow.addChild(createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever()));
-						break;
-					case KEY:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createKeyCell(((DownloadRequestStatus) clientRequest).getURI(), false));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createKeyCell(((UploadFileRequestStatus) clientRequest).getFinalURI(), false));
-						}else {
-							requestRow.addChild(createKeyCell(((UploadDirRequestStatus) clientRequest).getFinalURI(), true));
-						}
-						break;
-					case FILENAME:
-						if (clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createFilenameCell(((DownloadRequestStatus) clientRequest).getDestFilename()));
-						} else if (clientRequest instanceof UploadFileRequestStatus) {
-							requestRow.addChild(createFilenameCell(((UploadFileRequestStatus) clientRequest).getOrigFilename()));
-						}
-						break;
-					case PRIORITY:
-						requestRow.addChild(createPriorityCell(clientRequest.getPriority(), priorityClasses));
-						break;
-					case FILES:
-						requestRow.addChild(createNumberCell(((UploadDirRequestStatus) clientRequest).getNumberOfFiles()));
-						break;
-					case TOTAL_SIZE:
-						requestRow.addChild(createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
-						break;
-					case PROGRESS:
-						if(clientRequest instanceof UploadFileRequestStatus)
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
-						else
-							requestRow.addChild(createProgressCell(ctx.isAdvancedModeEnabled(),
-									clientRequest.isStarted(), COMPRESS_STATE.WORKING,
-									clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
-									clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
-									clientRequest.getTotalBlocks(),
-									clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
-									queueType.isUpload));
-						break;
-					case REASON:
-						requestRow.addChild(createReasonCell(clientRequest.getFailureReason(false)));
-						break;
-					case LAST_ACTIVITY:
-						requestRow.addChild(createLastActivityCell(now, clientRequest.getLastSuccess()));
-						break;
-		    case LAST_FAILURE:
-			requestRow.addChild(createLastFailureCell(now,
-				clientRequest.getLastFailure()));
-			break;
-					case COMPAT_MODE:
-						if(clientRequest instanceof DownloadRequestStatus) {
-							requestRow.addChild(createCompatModeCell((DownloadRequestStatus)clientRequest));
-						} else {
-							requestRow.addChild("td");
-						}
-						break;
+			String[] cells = getCachedCells(clientRequest, layout);
+			boolean cache = cells == null;
+			if(cache)
+				cells = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				if(cells[i] != null) {
+					if(!cells[i].isEmpty())
+						requestRow.addChild(new HTMLNode("%", cells[i]));
+					continue;
 				}
+				HTMLNode cell = createRequestCell(columns[i], clientRequest, ctx, priorityClasses, advancedModeEnabled, queueType, now);
+				if(cell != null)
+					requestRow.addChild(cell);
+				if(cache && columns[i] != QueueColumn.LAST_ACTIVITY && columns[i] != QueueColumn.LAST_FAILURE)
+					cells[i] = cell == null ? "" : cell.generate();
+			}
+			if(cache && clientRequest.getChangeSequence() != 0) {
+				cachedRows.push(clientRequest.getIdentifier(), new CachedRow(clientRequest.getChangeSequence(), layout, cells));
+				while(cachedRows.size() > MAX_CACHED_ROWS)
+					cachedRows.popKey();
 			}
 		}
 		createRequestTableButtons(form, pageMaker, ctx, mimeType, hasFriends, advancedModeEnabled, priorityClasses, false, queueType);
 		return formDiv;
 	}
 
+	/** Create a cell of a request's row.
+	 * @return Null if the column doesn't apply to this request. */
+	private HTMLNode createRequestCell(QueueColumn column, RequestStatus clientRequest, ToadletContext ctx, String[] priorityClasses, boolean advancedModeEnabled, QueueType queueType, long now) {
+		switch (column) {
+			case IDENTIFIER:
+				return createIdentifierCell(clientRequest.getURI(), clientRequest.getIdentifier(), clientRequest instanceof UploadDirRequestStatus);
+			case SIZE:
+				boolean isFinal = true;
+				if(clientRequest instanceof DownloadRequestStatus)
+					isFinal = ((DownloadRequestStatus)clientRequest).isTotalFinalized();
+				return createSizeCell(clientRequest.getDataSize(), isFinal, advancedModeEnabled);
+			case MIME_TYPE:
+				if (clientRequest instanceof DownloadRequestStatus) {
+					return createTypeCell(((DownloadRequestStatus) clientRequest).getMIMEType());
+				} else if (clientRequest instanceof UploadFileRequestStatus) {
+					return createTypeCell(((UploadFileRequestStatus) clientRequest).getMIMEType());
+				}
+				break;
+			case PERSISTENCE:
+				return createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever());
+			case KEY:
+				if (clientRequest instanceof DownloadRequestStatus) {
+					return createKeyCell(((DownloadRequestStatus) clientRequest).getURI(), false);
+				} else if (clientRequest instanceof UploadFileRequestStatus) {
+					return createKeyCell(((UploadFileRequestStatus) clientRequest).getFinalURI(), false);
+				}else {
+					return createKeyCell(((UploadDirRequestStatus) clientRequest).getFinalURI(), true);
+				}
+			case FILENAME:
+				if (clientRequest instanceof DownloadRequestStatus) {
+					return createFilenameCell(((DownloadRequestStatus) clientRequest).getDestFilename());
+				} else if (clientRequest instanceof UploadFileRequestStatus) {
+					return createFilenameCell(((UploadFileRequestStatus) clientRequest).getOrigFilename());
+				}
+				break;
+			case PRIORITY:
+				return createPriorityCell(clientRequest.getPriority(), priorityClasses);
+			case FILES:
+				return createNumberCell(((UploadDirRequestStatus) clientRequest).getNumberOfFiles());
+			case TOTAL_SIZE:
+				return createSizeCell(((UploadDirRequestStatus) clientRequest).getTotalDataSize(), true, advancedModeEnabled);
+			case PROGRESS:
+				if(clientRequest instanceof UploadFileRequestStatus)
+					return createProgressCell(ctx.isAdvancedModeEnabled(),
+							clientRequest.isStarted(), ((UploadFileRequestStatus)clientRequest).isCompressing(),
+							clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+							clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+							clientRequest.getTotalBlocks(),
+							clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
+							queueType.isUpload);
+				else
+					return createProgressCell(ctx.isAdvancedModeEnabled(),
+							clientRequest.isStarted(), COMPRESS_STATE.WORKING,
+							clientRequest.getFetchedBlocks(), clientRequest.getFailedBlocks(),
+							clientRequest.getFatalyFailedBlocks(), clientRequest.getMinBlocks(),
+							clientRequest.getTotalBlocks(),
+							clientRequest.isTotalFinalized() || clientRequest instanceof UploadFileRequestStatus,
+							queueType.isUpload);
+			case REASON:
+				return createReasonCell(clientRequest.getFailureReason(false));
+			case LAST_ACTIVITY:
+				return createLastActivityCell(now, clientRequest.getLastSuccess());
+			case LAST_FAILURE:
+				return createLastFailureCell(now, clientRequest.getLastFailure());
+			case COMPAT_MODE:
+				if(clientRequest instanceof DownloadRequestStatus) {
+					return createCompatModeCell((DownloadRequestStatus)clientRequest);
+				} else {
+					return new HTMLNode("td");
+				}
+		}
+		return null;
+	}
+
+	/** @return The cells of the request's row from the last time we rendered it, if it hasn't
+	 * changed since, or null. */
+	private String[] getCachedCells(RequestStatus clientRequest, String layout) {
+		long changeSequence = clientRequest.getChangeSequence();
+		if(changeSequence == 0) return null;
+		CachedRow row = cachedRows.get(clientRequest.getIdentifier());
+		if(row == null || row.changeSequence != changeSequence || !row.layout.equals(layout))
+			return null;
+		cachedRows.push(clientRequest.getIdentifier(), row);
+		return row.cells;
+	}
+
+	/** @return True if the request's identifier, filename or key contains the filter, ignoring
+	 * case.
+	 * @param filter The filter in lower case. */
+	private static boolean matchesFilter(RequestStatus req, String filter) {
+		if(req.getIdentifier().toLowerCase().contains(filter)) return true;
+		String filename = req.getPreferredFilename();
+		if(filename != null && filename.toLowerCase().contains(filter)) return true;
+		FreenetURI uri = req.getURI();
+		return uri != null && uri.toString().toLowerCase().contains(filter);
+	}
+
+	private HTMLNode createFilterForm(HTTPRequest request, String filter) {
+		HTMLNode form = new HTMLNode("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		form.addChild("#", l10n("filterRequests")+' ');
+		form.addChild("input", new String[] { "type", "name", "value", "size" }, new String[] { "text", "filter", filter, "30" });
+		if(request.isParameterSet("sortBy"))
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "sortBy", request.getParam("sortBy") });
+		if(request.isParameterSet("reversed"))
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "reversed", "" });
+		if(request.isParameterSet("rows"))
+			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "rows", request.getParam("rows") });
+		form.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("filterRequestsButton") });
+		if(!filter.isEmpty()) {
+			form.addChild("#", " ");
+			form.addChild("a", "href", pageLink(request, true, false, "filter", null), l10n("filterShowAll"));
+		}
+		return form;
+	}
+
+	/** @return A link which sorts the tables by the given column, in the other direction if they
+	 * are already sorted by it. Goes back to the first page. */
+	private String sortLink(HTTPRequest request, String sortBy) {
+		if(isReversed)
+			return pageLink(request, false, false, "sortBy", sortBy);
+		else
+			return pageLink(request, false, false, "sortBy", sortBy, "reversed", "");
+	}
+
+	private HTMLNode createPageControl(HTTPRequest request, String pageParam, int page, int pages, int from, int to, int total) {
+		HTMLNode div = new HTMLNode("div", "class", "request-table-pages");
+		if(page > 1)
+			div.addChild("a", "href", pageLink(request, true, true, pageParam, Integer.toString(page - 1)), l10n("previousPage"));
+		div.addChild("#", " "+l10n("pageOfRequests", new String[] { "from", "to", "total" },
+				new String[] { Integer.toString(from + 1), Integer.toString(to), Integer.toString(total) })+" ");
+		if(page < pages)
+			div.addChild("a", "href", pageLink(request, true, true, pageParam, Integer.toString(page + 1)), l10n("nextPage"));
+		return div;
+	}
+
+	/**
+	 * @return A link to this page, keeping the filter and the number of rows per page.
+	 * @param keepSort Keep the sort order.
+	 * @param keepPages Keep the page shown in each table.
+	 * @param params Parameters to set, as name, value pairs. Replaces any existing value. A null
+	 * value removes the parameter, an empty value adds it without a value.
+	 */
+	private String pageLink(HTTPRequest request, boolean keepSort, boolean keepPages, String... params) {
+		StringBuilder sb = new StringBuilder(path());
+		char c = '?';
+		outer: for(String name : request.getParameterNames()) {
+			if(name.equals("sortBy") || name.equals("reversed")) {
+				if(!keepSort) continue;
+			} else if(name.startsWith("page-")) {
+				if(!keepPages) continue;
+			} else if(!(name.equals("filter") || name.equals("rows"))) {
+				continue;
+			}
+			for(int i=0;i<params.length;i+=2)
+				if(params[i].equals(name)) continue outer;
+			c = appendParam(sb, c, name, request.getParam(name));
+		}
+		for(int i=0;i<params.length;i+=2) {
+			if(params[i+1] != null)
+				c = appendParam(sb, c, params[i], params[i+1]);
+		}
+		return sb.toString();
+	}
+
+	private static char appendParam(StringBuilder sb, char c, String name, String value) {
+		sb.append(c).append(URLEncoder.encode(name, false));
+		if(!value.isEmpty())
+			sb.append('=').append(URLEncoder.encode(value, false));
+		return '&';
+	}
+
 	private boolean queueCannotRecommend(QueueType queueType) {
 		return queueType.isUpload && !queueType.isCompleted;
 	}
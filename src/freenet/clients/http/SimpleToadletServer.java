@@ -926,6 +926,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if (menu != null && name != null) {
 			pageMaker.addNavigationLink(menu, urlPrefix, name, title, fullOnly, cb, l10n);
 		}
+		onToadletsChanged();
 	}
 	
 	public void registerMenu(String link, String name, String title, FredPluginL10n plugin) {
@@ -948,8 +949,18 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			if(e.menu != null && e.name != null) {
 				pageMaker.removeNavigationLink(e.menu, e.name);
 			}
+			onToadletsChanged();
 		}
 	}
+
+	/** Which links the content filter lets through depends on the toadlets, see
+	 * isLinkExcepted(), so content filtered before may now be filtered differently. */
+	private void onToadletsChanged() {
+		NodeClientCore core = this.core;
+		if(core == null) return;
+		FProxyToadlet fproxy = core.getFProxy();
+		if(fproxy != null) fproxy.fetchTracker.filteredCache.clear();
+	}
 	
 	public StartupToadlet getStartupToadlet() {
 		return startupToadlet;
@@ -18,6 +18,7 @@ import java.util.Map;
 
 import freenet.client.async.ClientRequester;
 import freenet.client.HighLevelSimpleClient;
+import freenet.clients.fcp.FCPServer;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.io.comm.IncomingPacketFilterImpl;
@@ -43,10 +44,12 @@ import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
+import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.NativeThread;
+import freenet.support.io.PooledFileRandomAccessBuffer;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -437,6 +440,9 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+
+			HTMLNode memoryLimitedJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
+			drawMemoryLimitedJobsBox(memoryLimitedJobsInfobox);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -624,6 +630,11 @@ public class StatisticsToadlet extends Toadlet {
 				jvmStatsList.addChild("li", l10n("cryptoUsingBuiltin"));
 			else
 				jvmStatsList.addChild("li", l10n("cryptoUsingJCA", "provider", Rijndael.getProviderName()));
+			jvmStatsList.addChild("li", l10n("pooledFiles", new String[] { "open", "max", "opened", "reopened" },
+					new String[] { thousandPoint.format(PooledFileRandomAccessBuffer.getOpenFiles()),
+					thousandPoint.format(PooledFileRandomAccessBuffer.getMaxOpenFiles()),
+					thousandPoint.format(PooledFileRandomAccessBuffer.getFileOpens()),
+					thousandPoint.format(PooledFileRandomAccessBuffer.getFileReopens()) }));
 		}
 	}
 	
@@ -649,6 +660,37 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 
+	private void drawMemoryLimitedJobsBox(HTMLNode node) {
+		MemoryLimitedJobRunner runner = core.memoryLimitedJobRunner;
+		node.addChild("div", "class", "infobox-header", l10n("memoryLimitedJobs"));
+		HTMLNode content = node.addChild("div", "class", "infobox-content");
+		HTMLNode list = content.addChild("ul");
+		list.addChild("li", l10n("memoryLimitedJobsThreads", new String[] { "running", "limit" },
+				new String[] { Integer.toString(runner.getRunningThreads()), Integer.toString(runner.getEffectiveMaxThreads()) }));
+		list.addChild("li", l10n("memoryLimitedJobsMemory", new String[] { "used", "limit" },
+				new String[] { SizeUtil.formatSize(runner.used()), SizeUtil.formatSize(runner.getEffectiveCapacity()) }));
+		int[] queued = runner.getQueuedJobsByPriority();
+		long[][] waitTimes = runner.getWaitTimeHistogram();
+		
+		content.addChild("p", l10n("memoryLimitedJobsWaitTimes"));
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("priority"));
+		row.addChild("th", l10n("waiting"));
+		long[] bounds = MemoryLimitedJobRunner.WAIT_TIME_HISTOGRAM_BOUNDS;
+		for(long bound : bounds)
+			row.addChild("th", "< "+TimeUtil.formatTime(bound, 2, true));
+		row.addChild("th", ">= "+TimeUtil.formatTime(bounds[bounds.length-1], 2, true));
+		
+		for(int i=0; i<queued.length; i++) {
+			row = table.addChild("tr");
+			row.addChild("td", String.valueOf(i));
+			row.addChild("td", String.valueOf(queued[i]));
+			for(long count : waitTimes[i])
+				row.addChild("td", String.valueOf(count));
+		}
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -1058,6 +1100,12 @@ public class StatisticsToadlet extends Toadlet {
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
+			FCPServer fcp = node.clientCore.getFCPServer();
+			if(fcp != null && fcp.getProgressMessages() > 0) {
+				long progress = fcp.getProgressMessages();
+				long coalesced = fcp.getCoalescedProgressMessages();
+				activityList.addChild("li", "fcpProgressCoalesced:\u00a0" + this.fix3p1pct.format(((double)coalesced)/((double)progress)) + "\u00a0(" + coalesced + "\u00a0/\u00a0" + progress + ")");
+			}
 		}
 		
 	}
@@ -1277,7 +1325,7 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
-		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed())+ " (off-heap allocated: "+ SizeUtil.formatSize(core.tempBucketFactory.getOffHeapAllocated())+ ")");
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 		long[] decoded = IncomingPacketFilterImpl.getDecodedPackets();
@@ -11,7 +11,7 @@ import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayDeque;
 
 import javax.crypto.SecretKey;
 
@@ -31,18 +31,23 @@ import freenet.support.io.StorageFormatException;
 /**
  * EncryptedRandomAccessBuffer is a encrypted RandomAccessBuffer implementation using a 
  * SkippingStreamCipher. 
+ * 
+ * Each read or write takes a cipher instance of its own from a small pool and skips it to the 
+ * offset, so reads and writes don't block each other. The stream cipher just XORs the data with
+ * the keystream, so we decrypt in place in the caller's buffer, and encrypt via a buffer kept 
+ * with the cipher.
  * @author unixninja92
  * Suggested EncryptedRandomAccessBufferType to use: ChaCha128
  */
 public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable { 
     private static final long serialVersionUID = 1L;
-    private final ReentrantLock readLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
     private final EncryptedRandomAccessBufferType type;
     private final LockableRandomAccessBuffer underlyingBuffer;
     
-    private transient SkippingStreamCipher cipherRead;
-    private transient SkippingStreamCipher cipherWrite;
+    /** Idle ciphers for reading, at arbitrary positions. LOCKING: Synchronized on itself. */
+    private transient ArrayDeque<CipherState> readCiphers;
+    /** Idle ciphers for writing, at arbitrary positions. LOCKING: Synchronized on itself. */
+    private transient ArrayDeque<CipherState> writeCiphers;
     private transient ParametersWithIV cipherParams;//includes key
     
     private transient SecretKey headerMacKey;
@@ -57,6 +62,21 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     
     private static final long END_MAGIC = 0x2c158a6c7772acd3L;
     private static final int VERSION_AND_MAGIC_LENGTH = 12;
+    /** Maximum number of idle ciphers kept for reading, and for writing. */
+    private static final int MAX_IDLE_CIPHERS = 8;
+    /** Bigger writes are encrypted and written in chunks of this size. */
+    private static final int WRITE_BUFFER_SIZE = 32*1024;
+    
+    /** A cipher used by one read or write at a time. */
+    private static class CipherState {
+        final SkippingStreamCipher cipher;
+        /** Buffer for the encrypted data when writing. */
+        byte[] buffer;
+        
+        CipherState(SkippingStreamCipher cipher) {
+            this.cipher = cipher;
+        }
+    }
     
     /**
      * Creates an instance of EncryptedRandomAccessBuffer wrapping underlyingBuffer. Keys for key 
@@ -82,8 +102,8 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
     
     private void setup(MasterSecret masterKey, boolean newFile) throws IOException, GeneralSecurityException {
-        this.cipherRead = this.type.get();
-        this.cipherWrite = this.type.get();
+        this.readCiphers = new ArrayDeque<CipherState>();
+        this.writeCiphers = new ArrayDeque<CipherState>();
         
         MasterSecret masterSecret = masterKey;
         
@@ -137,8 +157,36 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
             throw new IllegalStateException(e); // Must be a bug.
         }
         this.cipherParams = tempPram;
-    	cipherRead.init(false, cipherParams);
-    	cipherWrite.init(true, cipherParams);
+    }
+    
+    /** Get an idle cipher, or create a new one. */
+    private CipherState takeCipher(boolean forEncryption) {
+        ArrayDeque<CipherState> ciphers = forEncryption ? writeCiphers : readCiphers;
+        synchronized(ciphers) {
+            CipherState state = ciphers.pollFirst();
+            if(state != null) return state;
+        }
+        SkippingStreamCipher cipher = type.get();
+        cipher.init(forEncryption, cipherParams);
+        return new CipherState(cipher);
+    }
+    
+    private void returnCipher(boolean forEncryption, CipherState state) {
+        ArrayDeque<CipherState> ciphers = forEncryption ? writeCiphers : readCiphers;
+        synchronized(ciphers) {
+            if(ciphers.size() < MAX_IDLE_CIPHERS)
+                ciphers.addFirst(state);
+        }
+    }
+    
+    /** Move the cipher to the given offset in the keystream.
+     * FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API... */
+    private static void seek(SkippingStreamCipher cipher, long fileOffset) {
+        // seekTo() does reset() and then skip(). So it always skips from 0. 
+        // This is ridiculously slow for big tempfiles.
+        long position = cipher.getPosition();
+        cipher.skip(fileOffset - position);
+        assert(cipher.getPosition() == fileOffset);
     }
 
     @Override
@@ -147,7 +195,8 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
     }
 
     /**
-     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe. 
+     * Reads the specified section of the underlying RAT and decrypts it. Decryption is thread-safe, 
+     * and concurrent reads don't block each other. 
      */
     @Override
     public void pread(long fileOffset, byte[] buf, int bufOffset, int length)
@@ -163,24 +212,13 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
         
-        byte[] cipherText = new byte[length];
-        underlyingBuffer.pread(fileOffset+type.headerLen, cipherText, 0, length);
+        underlyingBuffer.pread(fileOffset+type.headerLen, buf, bufOffset, length);
 
-        readLock.lock();
-        try{
-            //cipherRead.seekTo(fileOffset);
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherRead.getPosition();
-            long delta = fileOffset - position;
-            cipherRead.skip(delta);
-            assert(cipherRead.getPosition() == fileOffset);
-            cipherRead.processBytes(cipherText, 0, length, buf, bufOffset);
-            assert(cipherRead.getPosition() == fileOffset+length);
-        }finally{
-            readLock.unlock();
-        }
+        CipherState state = takeCipher(false);
+        seek(state.cipher, fileOffset);
+        state.cipher.processBytes(buf, bufOffset, length, buf, bufOffset);
+        assert(state.cipher.getPosition() == fileOffset+length);
+        returnCipher(false, state);
     }
 
     /**
@@ -200,24 +238,21 @@ public final class EncryptedRandomAccessBuffer implements LockableRandomAccessBu
                     (fileOffset+length)+" on block length "+size());
         }
 
-        byte[] cipherText = new byte[length];
-
-        writeLock.lock();
-        try{
-            //cipherWrite.seekTo(fileOffset)
-            // seekTo() does reset() and then skip(). So it always skips from 0. 
-            // This is ridiculously slow for big tempfiles.
-            // FIXME REVIEW CRYPTO: Is this safe? It should be, we're using the published skip() API...
-            long position = cipherWrite.getPosition();
-            long delta = fileOffset - position;
-            cipherWrite.skip(delta);
-            assert(cipherWrite.getPosition() == fileOffset);
-            cipherWrite.processBytes(buf, bufOffset, length, cipherText, 0);
-            assert(cipherWrite.getPosition() == fileOffset+length);
-        }finally{
-            writeLock.unlock();
+        CipherState state = takeCipher(true);
+        int chunk = Math.min(length, WRITE_BUFFER_SIZE);
+        if(state.buffer == null || state.buffer.length < chunk)
+            state.buffer = new byte[chunk];
+        seek(state.cipher, fileOffset);
+        while(length > 0) {
+            chunk = Math.min(length, state.buffer.length);
+            state.cipher.processBytes(buf, bufOffset, chunk, state.buffer, 0);
+            underlyingBuffer.pwrite(fileOffset+type.headerLen, state.buffer, 0, chunk);
+            fileOffset += chunk;
+            bufOffset += chunk;
+            length -= chunk;
         }
-        underlyingBuffer.pwrite(fileOffset+type.headerLen, cipherText, 0, length);
+        assert(state.cipher.getPosition() == fileOffset);
+        returnCipher(true, state);
     }
     
     @Override
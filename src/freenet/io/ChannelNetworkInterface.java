@@ -0,0 +1,42 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+
+import freenet.support.Executor;
+
+/**
+ * A {@link NetworkInterface} whose server sockets are backed by a {@link ServerSocketChannel}, so
+ * that the accepted sockets have a {@link java.nio.channels.SocketChannel} (see
+ * {@link java.net.Socket#getChannel()}) which can be switched to non-blocking mode and handled by
+ * a selector. The sockets still work normally with blocking streams if that is not wanted.
+ */
+public class ChannelNetworkInterface extends NetworkInterface {
+
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		NetworkInterface iface = new ChannelNetworkInterface(port, allowedHosts, executor);
+		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
+		if(failedBind != null) {
+			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
+		}
+		return iface;
+	}
+
+	/**
+	 * See {@link NetworkInterface}
+	 */
+	protected ChannelNetworkInterface(int port, String allowedHosts, Executor executor) throws IOException {
+		super(port, allowedHosts, executor);
+	}
+
+	@Override
+	protected ServerSocket createServerSocket() throws IOException {
+		return ServerSocketChannel.open().socket();
+	}
+
+}
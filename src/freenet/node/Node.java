@@ -3629,6 +3629,31 @@ public class Node implements TimeSkewDetectorCallback {
 		return sskDatastore;
 	}
 
+	/**
+	 * Get the slot in the datastore that a key would be stored in, if the datastore is a
+	 * salted hash store. Used to sort lookups so they are roughly sequential on disk.
+	 * @return The slot, or -1 if we don't know.
+	 */
+	public long getDatastoreSlot(Key key) {
+		FreenetStore<?> store;
+		if(key instanceof NodeSSK) {
+			SSKStore s = sskDatastore;
+			if(s == null) return -1;
+			store = s.getStore();
+		} else if(key instanceof NodeCHK) {
+			CHKStore s = chkDatastore;
+			if(s == null) return -1;
+			store = s.getStore();
+		} else return -1;
+		while(store != null && !(store instanceof SaltedHashFreenetStore)) {
+			FreenetStore<?> underlying = store.getUnderlyingStore();
+			if(underlying == store) return -1;
+			store = underlying;
+		}
+		if(store == null) return -1;
+		return ((SaltedHashFreenetStore<?>)store).getSlot(key.getRoutingKey());
+	}
+
         CHKStore getChkSlashdotCache() {
             return chkSlashdotcache;
         }
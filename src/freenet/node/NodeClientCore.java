@@ -212,6 +212,27 @@ public class NodeClientCore implements Persistable {
 		storeChecker =
 				new DatastoreChecker(node, lazyStartDatastoreChecker, node.executor,
 						     "Datastore checker");
+		nodeConfig.register("datastoreCheckerThreads", 4, sortOrder++, true, false,
+				    "NodeClientCore.datastoreCheckerThreads",
+				    "NodeClientCore.datastoreCheckerThreadsLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    return storeChecker.getThreads();
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException {
+						    if (val < 1)
+							    throw new InvalidConfigValueException(
+									    l10n("datastoreCheckerThreadsMustBe1Plus"));
+						    storeChecker.setThreads(val);
+					    }
+
+				    }, false);
+		storeChecker.setThreads(Math.max(1, nodeConfig.getInt("datastoreCheckerThreads")));
 		byte[] pwdBuf = new byte[16];
 		random.nextBytes(pwdBuf);
 		compressor = new RealCompressor();
@@ -576,6 +597,23 @@ public class NodeClientCore implements Persistable {
 						nodeConfig.getInt("memoryLimitedJobThreadLimit"),
 						node.executor,
 						RequestStarter.NUMBER_OF_PRIORITY_CLASSES);
+		nodeConfig.register("memoryLimitedJobAutoSize", false, sortOrder++, true, false,
+				    "NodeClientCore.memoryLimitedJobAutoSize",
+				    "NodeClientCore.memoryLimitedJobAutoSizeLong",
+				    new BooleanCallback() {
+
+					    @Override
+					    public Boolean get() {
+						    return memoryLimitedJobRunner.getAutoSize();
+					    }
+
+					    @Override
+					    public void set(Boolean val) {
+						    memoryLimitedJobRunner.setAutoSize(val);
+					    }
+
+				    });
+		memoryLimitedJobRunner.setAutoSize(nodeConfig.getBoolean("memoryLimitedJobAutoSize"));
 		shutdownHook.addEarlyJob(
 				new NativeThread("Shutdown FEC", NativeThread.HIGH_PRIORITY, true) {
 
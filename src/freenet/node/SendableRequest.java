@@ -133,9 +133,8 @@ public abstract class SendableRequest implements RandomGrabArrayItem, Serializab
 	public void unregister(ClientContext context, short oldPrio) {
 		RandomGrabArray arr = grabParentGrabArray();
 		if(arr != null) {
-			synchronized(getScheduler(context)) {
-				arr.remove(this, context);
-			}
+			// Takes the lock for the priority.
+			arr.remove(this, context);
 		} else {
 			// Should this be a higher priority?
 			if(logMINOR)
@@ -166,14 +165,14 @@ public abstract class SendableRequest implements RandomGrabArrayItem, Serializab
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         RandomGrabArray parent = getParentGrabArray();
         if(parent == null) return false;
-        return parent.reduceWakeupTime(wakeupTime, context);
+        return parent.reduceWakeupTime(this, wakeupTime, context);
     }
 
     @Override
     public void clearWakeupTime(ClientContext context) {
         RandomGrabArray parent = getParentGrabArray();
         if(parent == null) return;
-        parent.clearWakeupTime(context);
+        parent.clearWakeupTime(this, context);
     }
 
     public ClientRequestSchedulerGroup getSchedulerGroup() {
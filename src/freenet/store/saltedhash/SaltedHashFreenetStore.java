@@ -2044,6 +2044,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		System.out.println("Successfully closed store "+name);
 	}
 
+	/**
+	 * Get the first slot that a key would be stored in, without reading anything. Used to sort a
+	 * batch of lookups so that we read the store file roughly in order.
+	 *
+	 * @param routingKey
+	 * @return The offset in the hash table, or -1 if the store is empty.
+	 */
+	public long getSlot(byte[] routingKey) {
+		long size = storeSize;
+		if (size <= 0)
+			return -1;
+		return getOffsetFromPlainKey(routingKey, size)[0];
+	}
+
 	/**
 	 * Get offset in the hash table, given a digested routing key.
 	 *
@@ -14,6 +14,12 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -25,7 +31,6 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -87,8 +92,14 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	private DateFormat df;
+	/** If the date format ends with milliseconds, formats everything before them, so we only
+	 * need to format the date once a second and append the milliseconds ourselves. */
+	private DateFormat secondsDF;
 	private int[] fmt;
 	private String[] str;
+	/** True if the format includes the hash code, which is the only thing we can't leave to the
+	 * writer thread, since the object may change. */
+	private boolean logHashCode;
 
 	/** Stream to write data to (compressed if rotate is on) */
 	protected OutputStream logStream;
@@ -116,16 +127,49 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
+	 * Lines waiting to be written, oldest first, starting at ringHead. The slots are allocated 
+	 * once and reused, and logging a line only copies the timestamp and a few references into a
+	 * slot, under a single lock. Formatting, including the date and any stack trace, and 
+	 * encoding happen on the writer thread, so logging lots of MINOR messages costs the threads 
+	 * doing the logging very little. We drop the oldest lines if we get too far behind.
 	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * LOCKING: Synchronized on ring, which also protects ringHead, ringCount, listBytes, 
+	 * firstPendingTime and chopped.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
+	protected final LogRecord[] ring;
+	private int ringHead;
+	private int ringCount;
 	protected long listBytes = 0;
+	/** When the oldest line in the ring was logged. */
+	private long firstPendingTime;
+	/** Number of lines dropped because we were logging too fast, not yet reported. */
+	private int chopped;
+
+	/** A line waiting to be written. */
+	protected static class LogRecord {
+		long time;
+		Class<?> c;
+		/** The hash code of the object, if there was one and the format includes it. */
+		Integer hashCode;
+		String threadName;
+		LogLevel priority;
+		String msg;
+		Throwable e;
+		/** Already formatted, for logString(). */
+		byte[] bytes;
+		/** Estimated memory usage, for MAX_LIST_BYTES. */
+		int size;
+
+		void clear() {
+			c = null;
+			hashCode = null;
+			threadName = null;
+			priority = null;
+			msg = null;
+			e = null;
+			bytes = null;
+		}
+	}
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -145,7 +189,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	public void setMaxListBytes(long len) {
-		synchronized(list) {
+		synchronized(ring) {
 			MAX_LIST_BYTES = len;
 			LIST_WRITE_THRESHOLD = MAX_LIST_BYTES / 4;
 		}
@@ -298,11 +342,14 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
-			long timeWaitingForSync = -1;
+			long lastWriteTime = -1;
 			long flush;
 			synchronized(this) {
 				flush = flushTime;
 			}
+			LogRecord[] batch = new LogRecord[WRITE_BATCH];
+			for(int i=0;i<batch.length;i++)
+				batch[i] = new LogRecord();
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -323,63 +370,58 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					}
 					boolean died = false;
 					boolean timeoutFlush = false;
-					synchronized (list) {
+					int count = 0;
+					int droppedLines = 0;
+					long bytesInMemory = 0;
+					synchronized (ring) {
 						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
+						while(true) {
+							if(ringCount > 0) {
+								// Don't write at all until the lower bytes threshold is exceeded, or 
+								// the time threshold is. If closing, write stuff ASAP.
+								if(closed || listBytes >= LIST_WRITE_THRESHOLD || 
+										ringCount >= ring.length / 2 || thisTime >= firstPendingTime + flush)
+									break;
+							} else if(closed) {
 								died = true;
 								break;
+							} else if(lastWriteTime != -1 && thisTime >= lastWriteTime + flush) {
+								// Flush to disk once we have been idle for a while.
+								timeoutFlush = true;
+								lastWriteTime = -1;
+								break;
 							}
+							long maxWait = ringCount > 0 ? firstPendingTime + flush : 
+								(lastWriteTime != -1 ? lastWriteTime + flush : Long.MAX_VALUE);
 							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
+								// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+								ring.wait(Math.max(1, Math.min(500L, maxWait - thisTime)));
 							} catch (InterruptedException e) {
 								// Ignored.
 							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
+							thisTime = System.currentTimeMillis();
+							if(baseFilename != null && thisTime > nextHour) break;
 						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
+						// Swap the oldest records for our empty ones, so we can format them 
+						// outside the lock without allocating anything.
+						while(ringCount > 0 && count < batch.length) {
+							LogRecord r = ring[ringHead];
+							ring[ringHead] = batch[count];
+							batch[count++] = r;
+							listBytes -= r.size;
+							ringHead = (ringHead + 1) % ring.length;
+							ringCount--;
 						}
+						if(ringCount > 0) firstPendingTime = thisTime;
+						droppedLines = chopped;
+						chopped = 0;
+						bytesInMemory = listBytes;
 					}
 					if(timeoutFlush || died) {
 						// Flush to disk 
-						myWrite(logStream, null);
+						myWrite(logStream, null, 0);
 				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+				        	myWrite(altLogStream, null, 0);
 					}
 					if(died) {
 						try {
@@ -394,16 +436,31 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 								System.err.println("Failed to close compressed log stream: "+e);
 							}
 						}
-						synchronized(list) {
+						synchronized(ring) {
 							closedFinished = true;
-							list.notifyAll();
+							ring.notifyAll();
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+					if(droppedLines > 0) {
+						sb.setLength(0);
+						sb.append("GRRR: ERROR: Logging too fast, chopped ").append(droppedLines).append(" entries, ")
+							.append(bytesInMemory).append(" bytes in memory\n");
+						write(encode(sb));
+					}
+					for(int i=0;i<count;i++) {
+						LogRecord r = batch[i];
+						if(r.bytes != null) {
+							write(ByteBuffer.wrap(r.bytes));
+						} else {
+							format(r, sb);
+							write(encode(sb));
+						}
+						r.clear();
+					}
+					if(count > 0) lastWriteTime = System.currentTimeMillis();
+					if(sb.capacity() > MAX_KEPT_BUFFER) sb = new StringBuilder(1024);
+					if(encoded.capacity() > MAX_KEPT_BUFFER) encoded = ByteBuffer.allocate(1024);
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -417,6 +474,125 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		private StringBuilder sb = new StringBuilder(1024);
+		private ByteBuffer encoded = ByteBuffer.allocate(1024);
+		private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		/** Encode into a buffer which is reused for the next line. */
+		private ByteBuffer encode(CharSequence line) {
+			encoder.reset();
+			encoded.clear();
+			CharBuffer in = CharBuffer.wrap(line);
+			while(true) {
+				CoderResult result = encoder.encode(in, encoded, true);
+				if(result.isUnderflow()) result = encoder.flush(encoded);
+				if(!result.isOverflow()) break;
+				ByteBuffer bigger = ByteBuffer.allocate(encoded.capacity() * 2);
+				encoded.flip();
+				bigger.put(encoded);
+				encoded = bigger;
+			}
+			encoded.flip();
+			return encoded;
+		}
+
+		private void write(ByteBuffer buf) {
+			myWrite(logStream, buf.array(), buf.remaining());
+	        if(altLogStream != null)
+	        	myWrite(altLogStream, buf.array(), buf.remaining());
+		}
+
+		private long cachedDateSecond = -1;
+		private String cachedDate;
+
+		private void appendDate(StringBuilder sb, long time) {
+			if(secondsDF == null) {
+				// Formats that don't end in milliseconds: Cache it for the millisecond.
+				if(time != cachedDateSecond) {
+					myDate.setTime(time);
+					cachedDate = df.format(myDate);
+					cachedDateSecond = time;
+				}
+				sb.append(cachedDate);
+				return;
+			}
+			long second = time / 1000;
+			if(second != cachedDateSecond) {
+				myDate.setTime(second * 1000);
+				cachedDate = secondsDF.format(myDate);
+				cachedDateSecond = second;
+			}
+			sb.append(cachedDate);
+			int millis = (int) (time - second * 1000);
+			if(millis < 100) sb.append('0');
+			if(millis < 10) sb.append('0');
+			sb.append(millis);
+		}
+
+		private void format(LogRecord r, StringBuilder sb) {
+			sb.setLength(0);
+			int sctr = 0;
+
+			for (int f: fmt) {
+				switch (f) {
+					case 0 :
+						sb.append(str[sctr++]);
+						break;
+					case DATE :
+						appendDate(sb, r.time);
+						break;
+					case CLASS :
+						sb.append(r.c == null ? "<none>" : r.c.getName());
+						break;
+					case HASHCODE :
+						sb.append(
+							r.hashCode == null
+								? "<none>"
+								: Integer.toHexString(r.hashCode));
+						break;
+					case THREAD :
+						sb.append(r.threadName);
+						break;
+					case PRIORITY :
+						sb.append(r.priority.name());
+						break;
+					case MESSAGE :
+						sb.append(r.msg);
+						break;
+					case UNAME :
+						sb.append(uname);
+						break;
+				}
+			}
+			sb.append('\n');
+
+			// Write stacktrace if available
+			Throwable e = r.e;
+			for(int j=0;j<20 && e != null;j++) {
+				sb.append(e.toString());
+				
+				StackTraceElement[] trace = e.getStackTrace();
+				
+				if(trace == null)
+					sb.append("(null)\n");
+				else if(trace.length == 0)
+					sb.append("(no stack trace)\n");
+				else {
+					sb.append('\n');
+					for(StackTraceElement elt: trace) {
+						sb.append("\tat ");
+						sb.append(elt.toString());
+						sb.append('\n');
+					}
+				}
+				
+				Throwable cause = e.getCause();
+				if(cause != e) e = cause;
+				else break;
+			}
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -462,14 +638,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		/**
 		 * @param b
 		 *            the bytes to write, null to flush
+		 * @param length
+		 *            the number of bytes to write
 		 */
-		protected void myWrite(OutputStream os, byte[] b) {
+		protected void myWrite(OutputStream os, byte[] b, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, 0, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -538,6 +716,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int runningCompressors = 0;
 	protected Object runningCompressorsSync = new Object();
 
+	/** Only used by the writer thread. */
 	private Date myDate = new Date();
 
 	/**
@@ -854,7 +1033,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		// The slots are created as they are needed.
+		ring = new LogRecord[MAX_LIST_SIZE];
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -875,6 +1055,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			int type = numberOf(fi);
 			if(type == UNAME)
 				getUName();
+			if(type == HASHCODE)
+				logHashCode = true;
 			if (!comment && (type != 0)) {
 				if (sb.length() > 0) {
 					strVec.add(sb.toString());
@@ -914,6 +1096,13 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			df = DateFormat.getDateTimeInstance();
 
 		df.setTimeZone(TimeZone.getTimeZone("UTC"));
+		if(df instanceof SimpleDateFormat) {
+			String pattern = ((SimpleDateFormat) df).toPattern();
+			if(pattern.endsWith("SSS") && pattern.indexOf('S') == pattern.length() - 3 && pattern.indexOf('\'') == -1) {
+				secondsDF = new SimpleDateFormat(pattern.substring(0, pattern.length() - 3));
+				secondsDF.setTimeZone(TimeZone.getTimeZone("UTC"));
+			}
+		}
 	}
 
 	@Override
@@ -924,132 +1113,76 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
-		int sctr = 0;
-
-		for (int f: fmt) {
-			switch (f) {
-				case 0 :
-					sb.append(str[sctr++]);
-					break;
-				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
-					break;
-				case CLASS :
-					sb.append(c == null ? "<none>" : c.getName());
-					break;
-				case HASHCODE :
-					sb.append(
-						o == null
-							? "<none>"
-							: Integer.toHexString(o.hashCode()));
-					break;
-				case THREAD :
-					sb.append(Thread.currentThread().getName());
-					break;
-				case PRIORITY :
-					sb.append(priority.name());
-					break;
-				case MESSAGE :
-					sb.append(msg);
-					break;
-				case UNAME :
-					sb.append(uname);
-					break;
-			}
-		}
-		sb.append('\n');
-
-		// Write stacktrace if available
-		for(int j=0;j<20 && e != null;j++) {
-			sb.append(e.toString());
-			
-			StackTraceElement[] trace = e.getStackTrace();
-			
-			if(trace == null)
-				sb.append("(null)\n");
-			else if(trace.length == 0)
-				sb.append("(no stack trace)\n");
-			else {
-				sb.append('\n');
-				for(StackTraceElement elt: trace) {
-					sb.append("\tat ");
-					sb.append(elt.toString());
-					sb.append('\n');
-				}
-			}
-			
-			Throwable cause = e.getCause();
-			if(cause != e) e = cause;
-			else break;
-		}
-
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
+		long now = System.currentTimeMillis();
+		Integer hashCode = (logHashCode && o != null) ? o.hashCode() : null;
+		String threadName = Thread.currentThread().getName();
+		int size = LINE_OVERHEAD + (msg == null ? 4 : msg.length()) + (e == null ? 0 : STACK_TRACE_OVERHEAD);
+		synchronized (ring) {
+			LogRecord r = add(size, now);
+			r.time = now;
+			r.c = c;
+			r.hashCode = hashCode;
+			r.threadName = threadName;
+			r.priority = priority;
+			r.msg = msg;
+			r.e = e;
 		}
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
+	/** Estimated memory usage of a Throwable we haven't formatted yet. */
+	private static final int STACK_TRACE_OVERHEAD = 2048;
+	/** Number of lines the writer thread takes from the ring at once. */
+	private static final int WRITE_BATCH = 256;
+	/** Don't keep the writer thread's buffers if they grow beyond this, e.g. for a huge stack trace. */
+	private static final int MAX_KEPT_BUFFER = 65536;
 	
 	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
+		synchronized (ring) {
+			LogRecord r = add(b.length + LINE_OVERHEAD, System.currentTimeMillis());
+			r.bytes = b;
+		}
+	}
+
+	/** Take a slot at the end of the ring, dropping the oldest lines if necessary. Caller must
+	 * hold the lock on ring, and fill in the record.
+	 * @param size The estimated size of the line. */
+	private LogRecord add(int size, long now) {
+		if(ringCount == ring.length) {
+			drop();
+			drop();
+		}
+		if (listBytes + size > MAX_LIST_BYTES) {
+			while ((ringCount > 0) && ((ringCount > (MAX_LIST_SIZE * 0.9F))
+				|| (listBytes + size > (MAX_LIST_BYTES * 0.9F)))) {
+				drop();
 			}
-			if (sz == 0)
-				list.notifyAll();
 		}
+		int index = (ringHead + ringCount) % ring.length;
+		LogRecord r = ring[index];
+		if(r == null) ring[index] = r = new LogRecord();
+		r.size = size;
+		listBytes += size;
+		if(ringCount++ == 0) {
+			firstPendingTime = now;
+			ring.notifyAll();
+		}
+		return r;
+	}
+
+	/** Drop the oldest line. Caller must hold the lock on ring. */
+	private void drop() {
+		LogRecord r = ring[ringHead];
+		listBytes -= r.size;
+		r.clear();
+		ringHead = (ringHead + 1) % ring.length;
+		ringCount--;
+		chopped++;
 	}
 
 	public long listBytes() {
-		synchronized (list) {
+		synchronized (ring) {
 			return listBytes;
 		}
 	}
@@ -1083,14 +1216,15 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
-			synchronized(list) {
+			synchronized(ring) {
 				closed = true;
+				ring.notifyAll();
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
 					if(wait <= 0) return;
 					try {
-						list.wait(wait);
+						ring.wait(wait);
 					} catch (InterruptedException e) {
 						// Ok.
 					}
@@ -1,12 +1,13 @@
 package freenet.support;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.StringTokenizer;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class LoggerHook extends Logger {
 
-	protected LogLevel threshold;
+	protected volatile LogLevel threshold;
 
 	public static final class DetailedThreshold {
 		final String section;
@@ -26,6 +27,23 @@ public abstract class LoggerHook extends Logger {
 	}
 
 	public DetailedThreshold[] detailedThresholds = new DetailedThreshold[0];
+	/** The threshold for each class, indexed by the id from CLASS_IDS, so deciding whether to log
+	 * is a single array read, without locking or comparing class names. Null if the class hasn't
+	 * been checked yet. Recomputed whenever the thresholds change. Only modified while 
+	 * synchronized on this. */
+	private volatile LogLevel[] classThresholds = new LogLevel[0];
+	/** Ids for the classes we have been asked about, shared by all hooks. */
+	private static final ClassValue<Integer> CLASS_IDS = new ClassValue<Integer>() {
+		@Override
+		protected Integer computeValue(Class<?> type) {
+			synchronized(CLASS_NAMES) {
+				CLASS_NAMES.add(type.getName());
+				return CLASS_NAMES.size() - 1;
+			}
+		}
+	};
+	/** Class names by id. Not the classes themselves, so plugins can still be unloaded. */
+	private static final ArrayList<String> CLASS_NAMES = new ArrayList<String>();
 	private CopyOnWriteArrayList<LogThresholdCallback> thresholdsCallbacks = new CopyOnWriteArrayList<LogThresholdCallback>();
 
 	/**
@@ -108,7 +126,10 @@ public abstract class LoggerHook extends Logger {
 
 	@Override
 	public void setThreshold(LogLevel thresh) {
-		this.threshold = thresh;
+		synchronized(this) {
+			this.threshold = thresh;
+			recomputeClassThresholds();
+		}
 		notifyLogThresholdCallbacks();
 	}
 
@@ -154,6 +175,7 @@ public abstract class LoggerHook extends Logger {
 		stuff.toArray(newThresholds);
 		synchronized(this) {
 			detailedThresholds = newThresholds;
+			recomputeClassThresholds();
 		}
 		notifyLogThresholdCallbacks();
 	}
@@ -188,20 +210,48 @@ public abstract class LoggerHook extends Logger {
 
 	@Override
 	public boolean instanceShouldLog(LogLevel priority, Class<?> c) {
-		DetailedThreshold[] thresholds;
-		LogLevel thresh;
-		synchronized(this) {
-			thresholds = detailedThresholds;
-			thresh = threshold;
+		if(c == null) return priority.matchesThreshold(threshold);
+		int id = CLASS_IDS.get(c);
+		LogLevel[] thresholds = classThresholds;
+		if(id < thresholds.length) {
+			LogLevel thresh = thresholds[id];
+			if(thresh != null) return priority.matchesThreshold(thresh);
+		}
+		return priority.matchesThreshold(addClassThreshold(id, c.getName()));
+	}
+
+	private synchronized LogLevel addClassThreshold(int id, String cname) {
+		LogLevel[] thresholds = classThresholds;
+		if(id >= thresholds.length)
+			thresholds = Arrays.copyOf(thresholds, Math.max(id + 1, thresholds.length * 2));
+		LogLevel thresh = computeThreshold(cname);
+		thresholds[id] = thresh;
+		classThresholds = thresholds;
+		return thresh;
+	}
+
+	/** Caller must hold the lock on this. */
+	private void recomputeClassThresholds() {
+		LogLevel[] thresholds = classThresholds.clone();
+		for(int i=0;i<thresholds.length;i++) {
+			if(thresholds[i] == null) continue;
+			String cname;
+			synchronized(CLASS_NAMES) {
+				cname = CLASS_NAMES.get(i);
+			}
+			thresholds[i] = computeThreshold(cname);
 		}
-		if ((c != null) && (thresholds.length > 0)) {
-			String cname = c.getName();
-				for(DetailedThreshold dt : thresholds) {
-					if(cname.startsWith(dt.section))
-						thresh = dt.dThreshold;
-				}
+		classThresholds = thresholds;
+	}
+
+	/** Caller must hold the lock on this. */
+	private LogLevel computeThreshold(String cname) {
+		LogLevel thresh = threshold;
+		for(DetailedThreshold dt : detailedThresholds) {
+			if(cname.startsWith(dt.section))
+				thresh = dt.dThreshold;
 		}
-		return priority.matchesThreshold(thresh);
+		return thresh;
 	}
 
 	@Override
@@ -11,8 +11,8 @@ import java.util.Arrays;
 public class LoggerHookChain extends LoggerHook {
 
     // Best performance, least synchronization.
-    // We will only very rarely add or remove hooks
-    private LoggerHook[] hooks;
+    // We will only very rarely add or remove hooks, and log() doesn't need to lock.
+    private volatile LoggerHook[] hooks;
 
     /**
      * Create a logger. Threshhold set to NORMAL.
@@ -42,7 +42,7 @@ public class LoggerHookChain extends LoggerHook {
      * @implements LoggerHook.log()
      */
     @Override
-	public synchronized void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
+	public void log(Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
         for(LoggerHook hook: hooks) {
             hook.log(o,c,msg,e,priority);
         }
@@ -4,9 +4,19 @@ package freenet.support;
 public abstract class MemoryLimitedJob {
     
     protected final long initialAllocation;
+    /** The size of the whole request this job is part of, e.g. the length of the splitfile being
+     * decoded. MemoryLimitedJobRunner starts the jobs for the smallest requests first. */
+    protected final long requestSize;
     
     public MemoryLimitedJob(long initial) {
+        this(initial, initial);
+    }
+    
+    /** @param initial The memory to allocate for the job.
+     * @param requestSize The size of the whole request this job is part of. */
+    public MemoryLimitedJob(long initial, long requestSize) {
         this.initialAllocation = initial;
+        this.requestSize = requestSize;
     }
     
     /** All memory limited jobs run at LOW_PRIORITY. This affects queueing. */
@@ -1,13 +1,22 @@
 package freenet.support;
 
 import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.TreeSet;
 
 import freenet.node.PrioRunnable;
 import freenet.support.io.NativeThread;
 
 /** Start jobs as long as there is sufficient memory (or other limited resource) available, then 
  * queue them. FIXME I bet there is something like this in the standard libraries?
+ * 
+ * Queued jobs are started in priority order. Within a priority, the jobs for the smallest request
+ * go first, so a small download isn't stuck behind a huge one; the segments of a splitfile all
+ * need about the same memory, so we order by the size of the request rather than of the job. Jobs
+ * for requests of the same size go smallest first. But if the oldest job has been waiting for
+ * longer than MAX_WAIT, it goes first so big jobs can't be starved. 
+ * 
+ * If auto-sizing is enabled, the thread and memory limits are treated as minimums, and are raised
+ * to the number of available processors and a share of the free heap respectively.
  * @author toad
  */
 public class MemoryLimitedJobRunner {
@@ -16,12 +25,54 @@ public class MemoryLimitedJobRunner {
     public long capacity;
     /** The amount of some limited resource that is in use */
     private long counter;
-    /** The jobs we can't start yet. FIXME Always FIFO order? Small jobs first? Prioritised even? */
-    private final Deque<MemoryLimitedJob>[] jobs;
+    /** The jobs we can't start yet, by priority, smallest first. */
+    private final TreeSet<QueuedJob>[] jobsBySize;
+    /** The same jobs, oldest first. May contain jobs that have already been started. */
+    private final ArrayDeque<QueuedJob>[] jobsByAge;
     private final Executor executor;
     private int runningThreads;
     private int maxThreads;
     private boolean shutdown;
+    private boolean autoSize;
+    private long queuedCounter;
+    /** Number of jobs started after waiting for each of WAIT_TIME_HISTOGRAM_BOUNDS, by priority. */
+    private final long[][] waitTimeHistogram;
+    
+    /** If the oldest job in a priority has waited this long, start it before any smaller jobs. */
+    static final long MAX_WAIT = 60*1000;
+    /** When auto-sizing, use at most this fraction of the free heap for jobs. */
+    private static final int AUTO_HEADROOM_DIVISOR = 4;
+    /** When auto-sizing, never use more than this fraction of the maximum heap. */
+    private static final int AUTO_MAX_MEMORY_DIVISOR = 2;
+    /** Upper bounds of the wait time histogram buckets, in milliseconds. The last bucket has no
+     * upper bound. */
+    public static final long[] WAIT_TIME_HISTOGRAM_BOUNDS = 
+        new long[] { 10, 100, 1000, 10*1000, 60*1000, 10*60*1000, 60*60*1000 };
+    
+    private static class QueuedJob implements Comparable<QueuedJob> {
+        final MemoryLimitedJob job;
+        final long queuedTime;
+        /** Tie-breaker, so jobs of the same sizes run in the order they were queued. */
+        final long id;
+        boolean started;
+        
+        QueuedJob(MemoryLimitedJob job, long queuedTime, long id) {
+            this.job = job;
+            this.queuedTime = queuedTime;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(QueuedJob o) {
+            if(job.requestSize < o.job.requestSize) return -1;
+            if(job.requestSize > o.job.requestSize) return 1;
+            if(job.initialAllocation < o.job.initialAllocation) return -1;
+            if(job.initialAllocation > o.job.initialAllocation) return 1;
+            if(id < o.id) return -1;
+            if(id > o.id) return 1;
+            return 0;
+        }
+    }
     
     private static boolean logMINOR;
     static {
@@ -32,9 +83,13 @@ public class MemoryLimitedJobRunner {
     public MemoryLimitedJobRunner(long capacity, int maxThreads, Executor executor, int priorities) {
         this.capacity = capacity;
         this.counter = 0;
-        this.jobs = (ArrayDeque<MemoryLimitedJob>[])new ArrayDeque<?>[priorities];
-        for(int i=0;i<jobs.length;i++) 
-            jobs[i] = new ArrayDeque<MemoryLimitedJob>();
+        this.jobsBySize = (TreeSet<QueuedJob>[])new TreeSet<?>[priorities];
+        this.jobsByAge = (ArrayDeque<QueuedJob>[])new ArrayDeque<?>[priorities];
+        for(int i=0;i<priorities;i++) {
+            jobsBySize[i] = new TreeSet<QueuedJob>();
+            jobsByAge[i] = new ArrayDeque<QueuedJob>();
+        }
+        this.waitTimeHistogram = new long[priorities][WAIT_TIME_HISTOGRAM_BOUNDS.length+1];
         this.executor = executor;
         this.maxThreads = maxThreads;
         
@@ -46,7 +101,9 @@ public class MemoryLimitedJobRunner {
         if(shutdown) return;
         if(job.initialAllocation > capacity) throw new IllegalArgumentException("Job size "+job.initialAllocation+" > capacity "+capacity);
         if(logMINOR) Logger.minor(this, "Queueing job "+job+" at priority "+job.getPriority());
-        jobs[job.getPriority()].add(job);
+        QueuedJob queued = new QueuedJob(job, System.currentTimeMillis(), queuedCounter++);
+        jobsBySize[job.getPriority()].add(queued);
+        jobsByAge[job.getPriority()].add(queued);
         maybeStartJobs();
     }
 
@@ -64,21 +121,45 @@ public class MemoryLimitedJobRunner {
     
     private synchronized void maybeStartJobs() {
         if(shutdown) return;
+        long now = System.currentTimeMillis();
+        int threads = getEffectiveMaxThreads();
+        long limit = getEffectiveCapacity();
         while(true) {
-            MemoryLimitedJob job = null;
+            QueuedJob job = null;
             int prio = 0;
-            for(;prio<jobs.length;prio++) {
-                job = jobs[prio].peekFirst();
+            for(;prio<jobsBySize.length;prio++) {
+                job = chooseJob(prio, now);
                 if(job != null) break;
             }
             if(job == null) return;
-            if(job.initialAllocation + counter <= capacity && runningThreads < maxThreads) {
-                jobs[prio].removeFirst();
-                startJob(job);
+            if(job.job.initialAllocation + counter <= limit && runningThreads < threads) {
+                jobsBySize[prio].remove(job);
+                job.started = true;
+                recordWaitTime(prio, now - job.queuedTime);
+                startJob(job.job);
             } else return;
         }
     }
     
+    /** @return The next job to start at the given priority: the oldest if it has waited too long,
+     * otherwise the smallest. */
+    private QueuedJob chooseJob(int prio, long now) {
+        ArrayDeque<QueuedJob> byAge = jobsByAge[prio];
+        QueuedJob oldest;
+        while((oldest = byAge.peekFirst()) != null && oldest.started)
+            byAge.removeFirst();
+        if(oldest == null) return null;
+        if(now - oldest.queuedTime >= MAX_WAIT) return oldest;
+        return jobsBySize[prio].first();
+    }
+    
+    private void recordWaitTime(int prio, long waited) {
+        int bucket = 0;
+        while(bucket < WAIT_TIME_HISTOGRAM_BOUNDS.length && waited >= WAIT_TIME_HISTOGRAM_BOUNDS[bucket])
+            bucket++;
+        waitTimeHistogram[prio][bucket]++;
+    }
+    
     private synchronized void startJob(final MemoryLimitedJob job) {
         counter += job.initialAllocation;
         runningThreads++;
@@ -101,9 +182,57 @@ public class MemoryLimitedJobRunner {
     }
 
     /** For tests and stats. How much of the scarce resource is used right now? */
-    long used() {
+    public synchronized long used() {
         return counter;
     }
+    
+    /** If enabled, the thread and memory limits are raised to match the number of available 
+     * processors and the free heap, when they are higher than the configured values. */
+    public synchronized void setAutoSize(boolean val) {
+        autoSize = val;
+        maybeStartJobs();
+    }
+    
+    public synchronized boolean getAutoSize() {
+        return autoSize;
+    }
+    
+    /** @return The number of threads we will actually use, after auto-sizing. */
+    public synchronized int getEffectiveMaxThreads() {
+        if(!autoSize) return maxThreads;
+        return Math.max(maxThreads, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /** @return The amount of the resource we will allow jobs to use right now, after auto-sizing.
+     * Part of the free heap, but never less than the configured capacity. Jobs that are already 
+     * running are already counted in the used heap. */
+    public synchronized long getEffectiveCapacity() {
+        if(!autoSize) return capacity;
+        Runtime r = Runtime.getRuntime();
+        long maxMemory = r.maxMemory();
+        if(maxMemory == Long.MAX_VALUE) return capacity;
+        long headroom = maxMemory - (r.totalMemory() - r.freeMemory());
+        long auto = Math.min(maxMemory / AUTO_MAX_MEMORY_DIVISOR, 
+                counter + Math.max(0, headroom) / AUTO_HEADROOM_DIVISOR);
+        return Math.max(capacity, auto);
+    }
+    
+    /** For stats. @return The number of jobs waiting to start, by priority. */
+    public synchronized int[] getQueuedJobsByPriority() {
+        int[] ret = new int[jobsBySize.length];
+        for(int i=0;i<ret.length;i++)
+            ret[i] = jobsBySize[i].size();
+        return ret;
+    }
+    
+    /** For stats. @return For each priority, the number of jobs that had to wait for each of 
+     * the buckets in WAIT_TIME_HISTOGRAM_BOUNDS before starting. */
+    public synchronized long[][] getWaitTimeHistogram() {
+        long[][] ret = new long[waitTimeHistogram.length][];
+        for(int i=0;i<ret.length;i++)
+            ret[i] = waitTimeHistogram[i].clone();
+        return ret;
+    }
 
     public synchronized void setMaxThreads(int val) {
         this.maxThreads = val;
@@ -138,6 +267,12 @@ public class MemoryLimitedJobRunner {
         }
     }
 
+    /** The executor that jobs are started on. A running job may use it for helper threads, as long
+     * as they only use memory already allocated to the job. */
+    public Executor getExecutor() {
+        return executor;
+    }
+
     public synchronized int getRunningThreads() {
         return runningThreads;
     }
@@ -5,8 +5,12 @@ package freenet.support;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
-import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import freenet.node.PrioRunnable;
 import freenet.support.Logger.LogLevel;
@@ -14,39 +18,51 @@ import freenet.support.io.NativeThread;
 
 /**
  * Pooled Executor implementation. Create a thread when we need one, let them die
- * after 5 minutes of inactivity.
+ * after a minute of inactivity.
+ * 
+ * Each priority has its own queue of jobs and its own threads, since a job must run on a thread
+ * with its priority. execute() adds the job to the queue and wakes up an idle thread, or creates 
+ * a new one if there are none, without locking. Busy threads take the next job from the queue 
+ * when they finish, so they also pick up jobs meant for threads which haven't woken up yet. 
+ * Idle threads are reused most recently used first, so the ones we don't need time out.
+ * 
+ * There is no limit on the number of threads: Jobs may block waiting for other jobs, so queueing
+ * them until a thread is free could deadlock.
  * @author toad
  */
 public class PooledExecutor implements Executor {
 
-	/** All threads running or waiting */
-	private final int[] runningThreads = new int[NativeThread.JAVA_PRIORITY_RANGE + 1];
-	/** Threads waiting for a job */
-	@SuppressWarnings("unchecked")
-	private final ArrayList<MyThread>[] waitingThreads =
-		(ArrayList<MyThread>[])new ArrayList<?>[runningThreads.length];
-	private volatile int waitingThreadsCount;
-	AtomicLong[] threadCounter = new AtomicLong[runningThreads.length];
-	private long jobCount;
-	private long jobMisses;
+	/** Jobs and threads for each priority */
+	private final Pool[] pools = new Pool[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	private final AtomicLong jobCount = new AtomicLong();
+	private final AtomicLong jobMisses = new AtomicLong();
 	private static boolean logMINOR;
 	// Ticker thread that runs at maximum priority.
-	private Ticker ticker;
+	private volatile Ticker ticker;
 
-	public synchronized void setTicker(Ticker ticker) {
+	public void setTicker(Ticker ticker) {
 		this.ticker = ticker;
 	}
 
 	public PooledExecutor() {
-		for(int i = 0; i < runningThreads.length; i++) {
-			/* runningThreads[i] = 0; */
-			waitingThreads[i] = new ArrayList<MyThread>();
-			threadCounter[i] = new AtomicLong();
-		}
-		waitingThreadsCount = 0;
+		for(int i = 0; i < pools.length; i++)
+			pools[i] = new Pool();
 	}
 	/** Maximum time a thread will wait for a job */
 	static final long TIMEOUT = MINUTES.toMillis(1);
+	private static final long TIMEOUT_NANOS = MINUTES.toNanos(1);
+
+	private static class Pool {
+		final ConcurrentLinkedQueue<Job> jobs = new ConcurrentLinkedQueue<Job>();
+		/** Threads waiting for a job, most recently used first */
+		final ConcurrentLinkedDeque<MyThread> waiting = new ConcurrentLinkedDeque<MyThread>();
+		/** All threads running or waiting */
+		final AtomicInteger running = new AtomicInteger();
+		/** Threads waiting for a job. Separate because ConcurrentLinkedDeque.size() is O(n). */
+		final AtomicInteger waitingCount = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+	}
 
 	public void start() {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
@@ -74,88 +90,60 @@ public class PooledExecutor implements Executor {
 			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
 
 		Job job = new Job(runnable, jobName);
-		while(true) {
-			MyThread t = null;
-			boolean miss = false;
-			synchronized(this) {
-				jobCount++;
-				if(!waitingThreads[prio - 1].isEmpty()) {
-					t = waitingThreads[prio - 1].remove(waitingThreads[prio - 1].size() - 1);
-					if (t != null)
-						waitingThreadsCount--;
-					if(logMINOR)
-						Logger.minor(this, "Reusing thread " + t);
-				} else {
-					// Must create new thread
-					if(ticker != null && (!fromTicker) && NativeThread.usingNativeCode() && prio > Thread.currentThread().getPriority()) {
-						// Get the ticker to create a thread for it with the right priority, since we can't.
-						ticker.queueTimedJob(runnable, jobName, 0, true, false);
-						return;
-					}
-					miss = true;
-				}
-			}
-
-			// miss
-			if (miss) {
-				long threadNo = threadCounter[prio - 1].getAndIncrement();
-				// Will be coalesced by thread count listings if we use "@" or "for"
-				t = new MyThread("Pooled thread awaiting work @" + threadNo+" for prio "+prio, job, threadNo, prio, !fromTicker);
-				t.setDaemon(true);
-
-				synchronized(this) {
-					runningThreads[prio - 1]++;
-					jobMisses++;
-
-					if(logMINOR)
-						Logger.minor(this, "Jobs: " + jobMisses + " misses of " + jobCount + " starting urgently " + jobName);
-				}
-
-				t.start();
+		Pool pool = pools[prio - 1];
+		jobCount.incrementAndGet();
+		pool.jobs.add(job);
+		MyThread t;
+		while((t = pool.waiting.pollFirst()) != null) {
+			// It may have timed out or found a job by itself.
+			if(t.idle.compareAndSet(true, false)) {
+				pool.waitingCount.decrementAndGet();
+				waitingThreadsCount.decrementAndGet();
+				if(logMINOR)
+					Logger.minor(this, "Reusing thread " + t);
+				LockSupport.unpark(t);
 				return;
 			}
+		}
 
-			// use existing thread
-			synchronized(t) {
-				if(!t.alive)
-					continue;
-				if(t.nextJob != null)
-					continue;
-				t.nextJob = job;
-
-				// It is possible that we could get a wierd race condition with
-				// notify()/wait() signalling on a thread being used by higher
-				// level code. So we'd best use notifyAll().
-				t.notifyAll();
-			}
-
-			if(logMINOR)
-				synchronized(this) {
-					Logger.minor(this, "Not starting: Jobs: " + jobMisses + " misses of " + jobCount + " starting urgently " + jobName);
-				}
+		// Must create new thread
+		if(ticker != null && (!fromTicker) && NativeThread.usingNativeCode() && prio > Thread.currentThread().getPriority()) {
+			// Get the ticker to create a thread for it with the right priority, since we can't.
+			// Unless another thread has already picked it up.
+			if(pool.jobs.remove(job))
+				ticker.queueTimedJob(runnable, jobName, 0, true, false);
 			return;
 		}
+		long threadNo = pool.threadCounter.getAndIncrement();
+		// Will be coalesced by thread count listings if we use "@" or "for"
+		t = new MyThread("Pooled thread awaiting work @" + threadNo+" for prio "+prio, pool, threadNo, prio, !fromTicker);
+		t.setDaemon(true);
+		pool.running.incrementAndGet();
+		long misses = jobMisses.incrementAndGet();
+		if(logMINOR)
+			Logger.minor(this, "Jobs: " + misses + " misses of " + jobCount.get() + " starting urgently " + jobName);
+		t.start();
 	}
 
 	@Override
-	public synchronized int[] runningThreads() {
-		int[] result = new int[runningThreads.length];
+	public int[] runningThreads() {
+		int[] result = new int[pools.length];
 		for(int i = 0; i < result.length; i++)
-			result[i] = runningThreads[i] - waitingThreads[i].size();
+			result[i] = pools[i].running.get() - pools[i].waitingCount.get();
 		return result;
 	}
 
 	@Override
-	public synchronized int[] waitingThreads() {
-		int[] result = new int[waitingThreads.length];
+	public int[] waitingThreads() {
+		int[] result = new int[pools.length];
 		for(int i = 0; i < result.length; i++)
-			result[i] = waitingThreads[i].size();
+			result[i] = pools[i].waitingCount.get();
 		return result;
 	}
 
 	@Override
 	public int getWaitingThreadsCount() {
-		return waitingThreadsCount;
+		return waitingThreadsCount.get();
 	}
 
 	private static class Job {
@@ -170,76 +158,39 @@ public class PooledExecutor implements Executor {
 
 	private class MyThread extends NativeThread {
 		final String defaultName;
-		volatile boolean alive = true;
-		Job nextJob;
+		final Pool pool;
 		final long threadNo;
-		private boolean removed = false;
+		/** True while we are on pool.waiting. Whoever changes it to false takes us off: Either
+		 * execute(), which then wakes us up, or us, if we time out or find a job anyway. */
+		final AtomicBoolean idle = new AtomicBoolean();
 
-		public MyThread(String defaultName, Job firstJob, long threadCounter, int prio, boolean dontCheckRenice) {
+		public MyThread(String defaultName, Pool pool, long threadCounter, int prio, boolean dontCheckRenice) {
 			super(defaultName, prio, dontCheckRenice);
 			this.defaultName = defaultName;
+			this.pool = pool;
 			threadNo = threadCounter;
-			nextJob = firstJob;
 		}
 		
 		@Override
 		public void realRun() {
-			int nativePriority = getNativePriority();
 			try {
-				innerRun(nativePriority);
+				innerRun();
 			} finally {
-				if(!removed) {
-					synchronized(PooledExecutor.this) {
-						runningThreads[nativePriority - 1]--;
-					}
-				}
+				pool.running.decrementAndGet();
 			}
 		}
 		
-		private void innerRun(int nativePriority) {
+		private void innerRun() {
 			long ranJobs = 0;
 			while(true) {
-				Job job;
-
-				synchronized(this) {
-					job = nextJob;
-					nextJob = null;
-				}
+				Job job = pool.jobs.poll();
 
 				if(job == null) {
-					synchronized(PooledExecutor.this) {
-						waitingThreads[nativePriority - 1].add(this);
-						waitingThreadsCount++;
-					}
-					synchronized(this) {
-						if(nextJob == null) {
-							this.setName(defaultName);
-							try {
-								wait(TIMEOUT);
-							} catch(InterruptedException e) {
-								// Ignore
-							}
-						}
-					}
-					synchronized(PooledExecutor.this) {
-						if (waitingThreads[nativePriority - 1].remove(this))
-							waitingThreadsCount--;
-
-						synchronized(this) {
-							job = nextJob;
-							nextJob = null;
-							// FIXME Fortify thinks this is double-checked locking. IMHO this is a false alarm.
-							if(job == null)
-								alive = false;
-						}
-
-						if(!alive) {
-							runningThreads[nativePriority - 1]--;
-							if(logMINOR)
-								Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
-							removed = true;
-							return;
-						}
+					job = waitForJob();
+					if(job == null) {
+						if(logMINOR)
+							Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+						return;
 					}
 				}
 
@@ -250,8 +201,47 @@ public class PooledExecutor implements Executor {
 				} catch(Throwable t) {
 					Logger.error(this, "Caught " + t + " running job " + job, t);
 				}
+				// Don't let an interrupt meant for this job affect the next one, or stop us
+				// from parking.
+				Thread.interrupted();
 				ranJobs++;
 			}
 		}
+
+		/** @return The next job, or null if we have waited for TIMEOUT and should exit. */
+		private Job waitForJob() {
+			setName(defaultName);
+			long deadline = System.nanoTime() + TIMEOUT_NANOS;
+			while(true) {
+				idle.set(true);
+				pool.waitingCount.incrementAndGet();
+				waitingThreadsCount.incrementAndGet();
+				pool.waiting.addFirst(this);
+				while(true) {
+					// Check again after going on the list, in case we missed a job.
+					Job job = pool.jobs.poll();
+					long remaining = deadline - System.nanoTime();
+					if(job != null || remaining <= 0) {
+						if(idle.compareAndSet(true, false)) {
+							pool.waiting.remove(this);
+							pool.waitingCount.decrementAndGet();
+							waitingThreadsCount.decrementAndGet();
+							return job;
+						}
+						// execute() has just taken us off the list.
+						if(job != null) return job;
+						break;
+					}
+					if(!idle.get()) break;
+					// parkNanos() returns at once if we are interrupted, e.g. by code which still
+					// thinks we are running its job, so clear it or we would spin.
+					Thread.interrupted();
+					LockSupport.parkNanos(this, remaining);
+				}
+				// Woken up by execute(). Another thread may have run the job already.
+				Job job = pool.jobs.poll();
+				if(job != null) return job;
+			}
+		}
 	}
 }
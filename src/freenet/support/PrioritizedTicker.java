@@ -1,15 +1,34 @@
 package freenet.support;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import freenet.node.FastRunnable;
 import freenet.support.Logger.LogLevel;
 import freenet.support.io.NativeThread;
 
+/**
+ * The node's scheduler: Runs jobs at a given time, either on the ticker thread if they are 
+ * FastRunnable's, or by handing them to the Executor.
+ * 
+ * Queued jobs are kept in a hierarchical timing wheel: Four levels of 256 slots, each slot a 
+ * list of jobs. Level 0 has a slot for each millisecond in the next 256ms, level 1 a slot for
+ * each 256ms in the next 65 seconds, and so on, up to 49 days; jobs further in the future are
+ * put in the last slot and requeued when they get there. When level 0 wraps around, the next
+ * slot of the level above is moved down. So queueing and removing jobs are O(1), however many
+ * are queued, and the ticker only looks at the slots for the time that has passed.
+ * 
+ * The wheel is only accessed by the ticker thread, so it needs no locking. Other threads queue
+ * and cancel jobs without locking, by adding them to a concurrent queue which the ticker 
+ * thread processes before each pass, and wake it up only if the job is due before it would 
+ * wake up anyway. Jobs which are due are collected and then handed to the Executor together.
+ */
 public class PrioritizedTicker implements Ticker, Runnable {
 	
 	private static volatile boolean logMINOR;
@@ -23,19 +42,17 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		});
 	}
 
-	private final static class Job {
-		final String name;
+	/** Key for timedJobsQueued. Jobs are compared by identity, not by equals(). */
+	private final static class JobKey {
 		final Runnable job;
-		Job(String name, Runnable job) {
-			this.name = name;
+		JobKey(Runnable job) {
 			this.job = job;
 		}
 
 		@Override
 		public boolean equals(Object o) {
-			if(!(o instanceof Job)) return false;
-			// Ignore the name, we are only interested in the job, needed for noDupes.
-			return ((Job)o).job == job;
+			if(!(o instanceof JobKey)) return false;
+			return ((JobKey)o).job == job;
 		}
 		
 		@Override
@@ -44,17 +61,79 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		}
 	}
 	
-	/** ~= Ticker :) */
-	private final TreeMap<Long, Object> timedJobsByTime;
-	private final HashMap<Job, Long> timedJobsQueued;
+	private final static class Job {
+		final String name;
+		final Runnable job;
+		final JobKey key;
+		final long time;
+		volatile int state;
+		// The rest are only used by the ticker thread.
+		/** Links in the list for our slot, null if not on the wheel. */
+		Job prev;
+		Job next;
+		
+		Job(String name, Runnable job, long time) {
+			this.name = name;
+			this.job = job;
+			this.key = new JobKey(job);
+			this.time = time;
+		}
+		
+		/** Create the list head for a slot. */
+		Job() {
+			name = null;
+			job = null;
+			key = null;
+			time = 0;
+			prev = next = this;
+		}
+		
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+	
+	private static final int QUEUED = 0;
+	private static final int RUNNING = 1;
+	private static final int CANCELLED = 2;
+	private static final AtomicIntegerFieldUpdater<Job> STATE = 
+		AtomicIntegerFieldUpdater.newUpdater(Job.class, "state");
+	
+	private static final int WHEEL_BITS = 8;
+	private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final int LEVELS = 4;
+	/** If the clock jumps forward by more than this, rebuild the wheel rather than stepping 
+	 * through every millisecond. */
+	private static final long MAX_STEP = 1L << (WHEEL_BITS * 2);
+	
+	/** Circular lists of jobs, with the list head in the array. Ticker thread only. */
+	private final Job[][] wheel;
+	/** All jobs due before this time have been collected. Ticker thread only. */
+	private long wheelTime;
+	/** Number of jobs on the wheel. Ticker thread only. */
+	private int wheelJobs;
+	/** Jobs which have been queued or cancelled since the last pass. */
+	private final ConcurrentLinkedQueue<Job> incoming;
+	/** Queued jobs by Runnable, for noDupes and removeQueuedJob(). If a Runnable is queued more
+	 * than once, this has the last one. */
+	private final ConcurrentHashMap<JobKey, Job> timedJobsQueued;
+	/** When the ticker thread will next wake up, or Long.MIN_VALUE if it is running. */
+	private volatile long wakeAt = Long.MIN_VALUE;
 	final NativeThread myThread;
 	final Executor executor;
 	static final int MAX_SLEEP_TIME = 200;
 	
 	public PrioritizedTicker(Executor executor, int portNumber) {
 		this.executor = executor;
-		timedJobsByTime = new TreeMap<Long, Object>();
-		timedJobsQueued = new HashMap<Job, Long>();
+		wheel = new Job[LEVELS][WHEEL_SIZE];
+		for(Job[] level : wheel)
+			for(int i=0;i<level.length;i++)
+				level[i] = new Job();
+		wheelTime = System.currentTimeMillis();
+		incoming = new ConcurrentLinkedQueue<Job>();
+		timedJobsQueued = new ConcurrentHashMap<JobKey, Job>();
 		myThread = new NativeThread(this, "Ticker thread for " + portNumber, NativeThread.MAX_PRIORITY, false);
 		myThread.setDaemon(true);
 	}
@@ -80,38 +159,21 @@ public class PrioritizedTicker implements Ticker, Runnable {
 		}
 	}
 	
+	private final ArrayList<Job> jobsToRun = new ArrayList<Job>();
+	
 	private void realRun() {
+		wakeAt = Long.MIN_VALUE;
 		long now = System.currentTimeMillis();
 		
-		List<Job> jobsToRun = null;
-		
-		long sleepTime = MAX_SLEEP_TIME;
-
-		synchronized(timedJobsByTime) {
-			while(!timedJobsByTime.isEmpty()) {
-				Long tRun = timedJobsByTime.firstKey();
-				if(tRun.longValue() <= now) {
-					if(jobsToRun == null)
-						jobsToRun = new ArrayList<Job>();
-					Object o = timedJobsByTime.remove(tRun);
-					if(o instanceof Job[]) {
-						for(Job r: (Job[]) o) {
-							jobsToRun.add(r);
-							timedJobsQueued.remove(r);
-						}
-					} else {
-						Job r = (Job) o;
-						jobsToRun.add(r);
-						timedJobsQueued.remove(r);
-					}
-				} else {
-					sleepTime = Math.min(sleepTime, tRun.longValue() - now);
-					break;
-				}
-			}
+		processIncoming();
+		if(now < wheelTime - 1 || now - wheelTime > MAX_STEP) {
+			// The clock has jumped.
+			rebuildWheel(now);
 		}
-
-		if(jobsToRun != null)
+		while(wheelTime <= now)
+			advance();
+		
+		if(!jobsToRun.isEmpty()) {
 			for(Job r : jobsToRun) {
 				if(logMINOR)
 					Logger.minor(this, "Running " + r);
@@ -134,23 +196,131 @@ public class PrioritizedTicker implements Ticker, Runnable {
                                                 queueTimedJob(r.job, r.name, 200, true, false);
 					}
 			}
+			jobsToRun.clear();
+			// Running the jobs may have taken a while.
+			return;
+		}
 
-		if(sleepTime > 0) {
-			try {
-			    sleep(sleepTime);
-			} catch(InterruptedException e) {
-				// Ignore, just wake up. Probably we got interrupt()ed
-				// because a new job came in.
+		long sleepTime = Math.min(MAX_SLEEP_TIME, timeToNextSlot());
+		wakeAt = wheelTime + sleepTime - 1;
+		// Anything queued after this will see wakeAt and wake us up if necessary.
+		if(!incoming.isEmpty()) return;
+		try {
+			sleep(sleepTime);
+		} catch(InterruptedException e) {
+			// Ignore, just wake up. Probably we got interrupt()ed
+			// because a new job came in.
+		}
+	}
+	
+	/** Put newly queued jobs on the wheel, and take off cancelled ones. */
+	private void processIncoming() {
+		Job job;
+		while((job = incoming.poll()) != null) {
+			if(job.state == QUEUED) {
+				if(job.next == null) insert(job);
+			} else if(job.next != null) {
+				unlink(job);
+			}
+		}
+	}
+	
+	private void insert(Job job) {
+		long delta = job.time - wheelTime;
+		if(delta < 0) {
+			// Overdue.
+			collect(job);
+			return;
+		}
+		long slotTime = job.time;
+		int level = 0;
+		while(level < LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1)))
+			level++;
+		if(level == LEVELS - 1 && delta >= 1L << (WHEEL_BITS * LEVELS))
+			// Too far in the future. Requeue it when we get to the last slot.
+			slotTime = wheelTime + (1L << (WHEEL_BITS * LEVELS)) - 1;
+		Job head = wheel[level][(int) (slotTime >>> (WHEEL_BITS * level)) & WHEEL_MASK];
+		job.prev = head.prev;
+		job.next = head;
+		head.prev.next = job;
+		head.prev = job;
+		wheelJobs++;
+	}
+	
+	private void unlink(Job job) {
+		job.prev.next = job.next;
+		job.next.prev = job.prev;
+		job.prev = job.next = null;
+		wheelJobs--;
+	}
+	
+	/** Collect the jobs for the millisecond at wheelTime, first moving down any jobs from the 
+	 * higher levels which are due in the next 256ms if level 0 has wrapped around. */
+	private void advance() {
+		int index = (int) (wheelTime & WHEEL_MASK);
+		if(index == 0) {
+			for(int level=1;level<LEVELS;level++) {
+				int slot = (int) (wheelTime >>> (WHEEL_BITS * level)) & WHEEL_MASK;
+				Job head = wheel[level][slot];
+				while(head.next != head) {
+					Job job = head.next;
+					unlink(job);
+					insert(job);
+				}
+				if(slot != 0) break;
+			}
+		}
+		Job head = wheel[0][index];
+		while(head.next != head) {
+			Job job = head.next;
+			unlink(job);
+			collect(job);
+		}
+		wheelTime++;
+	}
+	
+	/** The job is due, add it to jobsToRun unless it has been cancelled. */
+	private void collect(Job job) {
+		if(!STATE.compareAndSet(job, QUEUED, RUNNING)) return;
+		timedJobsQueued.remove(job.key, job);
+		jobsToRun.add(job);
+	}
+	
+	/** Take everything off the wheel and put it back relative to the current time. */
+	private void rebuildWheel(long now) {
+		Logger.normal(this, "Clock changed, wheel was at "+wheelTime+" now "+now);
+		List<Job> jobs = new ArrayList<Job>(wheelJobs);
+		for(Job[] level : wheel) {
+			for(Job head : level) {
+				while(head.next != head) {
+					Job job = head.next;
+					unlink(job);
+					jobs.add(job);
+				}
 			}
 		}
+		wheelTime = now;
+		for(Job job : jobs)
+			insert(job);
+	}
+	
+	/** @return The time until the next non-empty slot on level 0, or until level 0 wraps around,
+	 * when we may need to move jobs down from the higher levels. Relative to wheelTime - 1, 
+	 * i.e. the current time. */
+	private long timeToNextSlot() {
+		if(wheelJobs == 0) return MAX_SLEEP_TIME;
+		int index = (int) (wheelTime & WHEEL_MASK);
+		Job[] level = wheel[0];
+		for(int i=index;i<WHEEL_SIZE;i++) {
+			if(level[i].next != level[i]) return i - index + 1;
+		}
+		return WHEEL_SIZE - index + 1;
 	}
 
 	protected void sleep(long sleepTime) throws InterruptedException {
         if(logMINOR)
             Logger.minor(this, "Sleeping for " + sleepTime);
-        synchronized(this) {
-            wait(sleepTime);
-        }
+        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(sleepTime));
     }
 
     @Override
@@ -169,10 +339,9 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	 * their thread priorities; if true, jobs to run immediately through the executor (which
 	 * normally will also preserve thread priorities, but may need to call back via
 	 * runOnTickerAnyway=true if it needs to increase the thread priority).
-	 * @param noDupes Don't run this job if it is already scheduled. Relatively expensive, O(n)
-	 * with queued jobs. Necessary for Announcer to ensure that we don't get exponentially
-	 * increasing numbers of announcement check jobs queued, while ensuring that we do always
-	 * have one queued within the given period.
+	 * @param noDupes Don't run this job if it is already scheduled. Necessary for Announcer to 
+	 * ensure that we don't get exponentially increasing numbers of announcement check jobs 
+	 * queued, while ensuring that we do always have one queued within the given period.
 	 */
 	@Override
 	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
@@ -205,44 +374,33 @@ public class PrioritizedTicker implements Ticker, Runnable {
             executor.execute(runner, name);
             return;
         }
-        Job job = new Job(name, runner);
-        synchronized(timedJobsByTime) {
-            if(noDupes) {
-                Long alreadyQueuedAt = timedJobsQueued.get(job);
-                if(alreadyQueuedAt != null) {
-                    if(alreadyQueuedAt <= runJobAt) {
-                        Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
-                        return;
-                    } else {
-                        // Delete the existing job because the new job will run first.
-                        removeQueuedJobInner(job, alreadyQueuedAt);
-                    }
+        Job job = new Job(name, runner, runJobAt);
+        if(noDupes) {
+            while(true) {
+                Job alreadyQueued = timedJobsQueued.putIfAbsent(job.key, job);
+                if(alreadyQueued == null) break;
+                if(alreadyQueued.time <= runJobAt && alreadyQueued.state == QUEUED) {
+                    Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+                    return;
+                }
+                if(timedJobsQueued.replace(job.key, alreadyQueued, job)) {
+                    // Delete the existing job because the new job will run first.
+                    cancel(alreadyQueued);
+                    break;
                 }
             }
-            Object o = timedJobsByTime.get(runJobAt);
-            if(o == null)
-                timedJobsByTime.put(runJobAt, job);
-            else if(o instanceof Job)
-                timedJobsByTime.put(runJobAt, new Job[]{(Job) o, job});
-            else if(o instanceof Job[]) {
-                Job[] r = (Job[]) o;
-                Job[] jobs = Arrays.copyOf(r, r.length+1);
-                jobs[jobs.length - 1] = job;
-                timedJobsByTime.put(runJobAt, jobs);
-            }
-            timedJobsQueued.put(job, runJobAt);
+        } else {
+            timedJobsQueued.put(job.key, job);
         }
-        if(offset < MAX_SLEEP_TIME) {
+        incoming.add(job);
+        if(runJobAt < wakeAt) {
             wakeUp();
         }
     }
 	
 	/** Wake up, and run any queued jobs. */
 	void wakeUp() {
-		// Wake up if needed
-		synchronized(this) {
-			notifyAll();
-		}
+		LockSupport.unpark(myThread);
 	}
 
 	@Override
@@ -251,15 +409,14 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	}
 
 	int queuedJobs() {
-		synchronized(timedJobsByTime) {
-			return timedJobsQueued.size();
-		}
+		return timedJobsQueued.size();
 	}
 
     int queuedJobsUniqueTimes() {
-        synchronized(timedJobsByTime) {
-            return timedJobsByTime.size();
-        }
+        HashSet<Long> times = new HashSet<Long>();
+        for(Job job : timedJobsQueued.values())
+            times.add(job.time);
+        return times.size();
     }
 
 	@Override
@@ -267,52 +424,14 @@ public class PrioritizedTicker implements Ticker, Runnable {
 	 * @param runnable The job to remove. If this is currently queued, it will be 
 	 * removed. The Ticker should not throw if the job is not queued. */
 	public void removeQueuedJob(Runnable runnable) {
-		Job job = new Job(null, runnable);
-		synchronized(timedJobsByTime) {
-			Long t = timedJobsQueued.remove(job);
-			if(t != null) {
-			    removeQueuedJobInner(job, t);
-			}
-		}
+		Job job = timedJobsQueued.remove(new JobKey(runnable));
+		if(job != null)
+			cancel(job);
 	}
 
-	/** Remove a queued job from the internal structures other than timedJobsQueued. The
-	 * caller must check that it is present in timedJobsQueued, remove from that structure, and 
-	 * call this method, all inside the timedJobsByTime lock. 
-	 * @param job The job to remove.
-	 * @param t The time at which is it scheduled.
-	 */
-	private void removeQueuedJobInner(Job job, Long t) {
-        Object o = timedJobsByTime.get(t);
-        assert(o != null);
-        if(o instanceof Job) {
-            assert(o.equals(job));
-            timedJobsByTime.remove(t);
-        } else {
-            Job[] jobs = (Job[]) o;
-            if(jobs.length == 1) {
-                assert(jobs[0].equals(job));
-                timedJobsByTime.remove(t);
-            } else {
-                Job[] newJobs = new Job[jobs.length-1];
-                int x = 0;
-                for(Job oldjob : jobs) {
-                    if(oldjob.equals(job)) {
-                        continue;
-                    }
-                    newJobs[x++] = oldjob;
-                    assert(x != jobs.length); // Must be in jobs array.
-                }
-                assert(x != 0); // Not duplicated.
-                if (x == 1) {
-                    timedJobsByTime.put(t, newJobs[0]);
-                } else {
-                    if(x != newJobs.length)
-                        newJobs = Arrays.copyOf(newJobs, x);
-                    timedJobsByTime.put(t, newJobs);
-                    assert(x == jobs.length-1);
-                }
-            }
-        }
-    }
+	/** Cancel a job. The ticker thread will take it off the wheel. */
+	private void cancel(Job job) {
+		if(STATE.compareAndSet(job, QUEUED, CANCELLED))
+			incoming.add(job);
+	}
 }
@@ -2,8 +2,6 @@ package freenet.support;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
-import java.util.Arrays;
-
 import org.tanukisoftware.wrapper.WrapperManager;
 
 import freenet.client.async.ClientContext;
@@ -13,15 +11,17 @@ import freenet.client.async.RequestSelectionTreeNode;
 /**
  * An array which supports very fast remove-and-return-a-random-element.
  * 
- * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
- * it used to be, and probably has a lot of cruft and inefficiency as a result. 
+ * This is *NOT* persistent. The request selection structures are reconstructed on restart.
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * The items are kept in a RandomGrabPartition: When we find that an item can't be sent yet, 
+ * because it is in cooldown, or all its keys are being fetched, or it is excluded by the 
+ * RequestStarter, we move it aside until its wakeup time, or until it calls clearWakeupTime() or
+ * reduceWakeupTime(). So choosing a random item is O(1), plus O(log n) for each item we find we
+ * can't send, however many of the items are in cooldown.
  * 
- * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
- * Memory usage was an issue but probably isn't now given that the individual items are now quite 
- * large (entire splitfiles or at least entire segments).
+ * LOCKING: There is a single lock for each priority's subtree, which is shared by all the RGAs and
+ * SRGAs below it: see getTreeLock(). The methods here take it themselves. The wakeup time may be 
+ * read without taking the lock. See the javadocs on ClientRequestSelector for deeper explanation.
  */
 public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
@@ -30,31 +30,27 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		Logger.registerClass(RandomGrabArray.class);
 	}
 	
-	private static class Block {
-		RandomGrabArrayItem[] reqs;
-	}
+	/** Maximum time an item stays in cooldown before we check it again. Items should call 
+	 * clearWakeupTime() when they become sendable, so this is just a safety net in case they 
+	 * don't. */
+	static final long MAX_COOLDOWN = MINUTES.toMillis(5);
 	
-	/** Array of items. Non-null's followed by null's. 
-	 * We used to have a Set so we could check whether something is in the set quickly.
-	 * We got rid of this because for persistent requests it is vastly faster to just loop the
-	 * loop and check ==, and for non-persistent requests it doesn't matter much. */
-	private Block[] blocks;
-	/** Index of first null item. */
-	private int index;
-	private final static int MIN_SIZE = 32;
-	private final static int BLOCK_SIZE = 1024;
+	/** The items, split into those which can be chosen now and those in cooldown. */
+	private final RandomGrabPartition<RandomGrabArrayItem> items;
 	private final int hashCode;
 	private RemoveRandomParent parent;
 	protected ClientRequestSelector root;
-	private long wakeupTime;
+	/** Lock for the subtree, shared with our parent. */
+	protected final Object lock;
+	/** Written with the lock held, but may be read without it. */
+	private volatile long wakeupTime;
 
 	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		this.blocks = new Block[] { new Block() };
-		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
-		index = 0;
+		this.items = new RandomGrabPartition<RandomGrabArrayItem>();
 		this.hashCode = super.hashCode();
 		this.parent = parent;
 		this.root = root;
+		this.lock = parent == null ? this : parent.getTreeLock();
 	}
 	
 	@Override
@@ -68,280 +64,55 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			return;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
+		synchronized(lock) {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
-			int x = 0;
-			if(blocks.length == 1 && index < BLOCK_SIZE) {
-				for(int i=0;i<index;i++) {
-					if(blocks[0].reqs[i] == req) {
-						return;
-					}
-				}
-				if(index >= blocks[0].reqs.length) {
-					blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.min(BLOCK_SIZE, blocks[0].reqs.length*2));
-				}
-				blocks[0].reqs[index++] = req;
-				if(logMINOR) Logger.minor(this, "Added "+req+" before index "+index);
+			if(!items.add(req)) {
+				// Re-added, so it is probably ready to send again.
+				items.wake(req);
+				if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+items.size());
 				return;
 			}
-			int targetBlock = index / BLOCK_SIZE;
-			for(int i=0;i<blocks.length;i++) {
-				Block block = blocks[i];
-				if(i != (blocks.length - 1) && block.reqs.length != BLOCK_SIZE) {
-					Logger.error(this, "Block "+i+" of "+blocks.length+" is wrong size: "+block.reqs.length+" should be "+BLOCK_SIZE);
-				}
-				for(int j=0;j<block.reqs.length;j++) {
-					if(x >= index) break;
-					if(block.reqs[j] == req) {
-						if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
-						return;
-					}
-					if(block.reqs[j] == null) {
-						Logger.error(this, "reqs["+i+"."+j+"] = null on "+this);
-					}
-					x++;
-				}
-			}
-			if(blocks.length <= targetBlock) {
-				if(logMINOR)
-					Logger.minor(this, "Adding blocks on "+this);
-				Block[] newBlocks = Arrays.copyOf(blocks, targetBlock+1);
-				for(int i=blocks.length;i<newBlocks.length;i++) {
-					newBlocks[i] = new Block();
-					newBlocks[i].reqs = new RandomGrabArrayItem[BLOCK_SIZE];
-				}
-				blocks = newBlocks;
-			}
-			Block target = blocks[targetBlock];
-			target.reqs[index++ % BLOCK_SIZE] = req;
-			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
+			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+items.size());
 		}
 	}
 	
-	/** Must be less than BLOCK_SIZE */
-	static final int MAX_EXCLUDED = 10;
-	
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
-			if(index == 0) {
-				if(logMINOR) Logger.minor(this, "All null on "+this);
-				return null;
-			}
-			if(index < MAX_EXCLUDED) {
-				return removeRandomExhaustiveSearch(excluding, context, now);
-			}
-			RandomGrabArrayItem ret = removeRandomLimited(excluding, context, now);
-			if(ret != null)
-				return new RemoveRandomReturn(ret);
-			if(index == 0) {
-				if(logMINOR) Logger.minor(this, "All null on "+this);
-				return null;
-			}
-			return removeRandomExhaustiveSearch(excluding, context, now);
-		}
-	}
-	
-	private RandomGrabArrayItem removeRandomLimited(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-		int excluded = 0;
-		while(true) {
-			int i = context.fastWeakRandom.nextInt(index);
-			int blockNo = i / BLOCK_SIZE;
-			RandomGrabArrayItem ret, oret;
-			ret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-			if(ret == null) {
-				Logger.error(this, "reqs["+i+"] = null");
-				remove(blockNo, i);
-				continue;
-			}
-			if(ret.getWakeupTime(context, now) > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
-				continue;
-			}
-			oret = ret;
-			long itemWakeTime = ret.getWakeupTime(context, now);
-			if(itemWakeTime == -1) {
-				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
-				ret = null;
-				// Will be removed in the do{} loop
-				// Tell it that it's been removed first.
-				oret.setParentGrabArray(null);
-			}
-			if(itemWakeTime == 0)
-				itemWakeTime = excluding.exclude(ret, context, now);
-			if(ret != null && itemWakeTime > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
-				continue;
-			}
-			if(ret != null) {
-				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
-				return ret;
-			}
-			// Remove an element.
-			do {
-				remove(blockNo, i);
-				oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-				// Check for nulls, but don't check for cancelled, since we'd have to activate.
-			} while (index > i && oret == null);
-			int newBlockCount;
-			// Shrink array
-			if(blocks.length == 1 && index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
-				// Shrink array
-				blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.max(index * 2, MIN_SIZE));
-			} else if(blocks.length > 1 &&
-					(newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
-					blocks.length) {
-				if(logMINOR)
-					Logger.minor(this, "Shrinking blocks on "+this);
-				blocks = Arrays.copyOf(blocks, newBlockCount);
-			}
-			return ret;
-		}
-	}
-
-	private RemoveRandomReturn removeRandomExhaustiveSearch(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-		if(logMINOR)
-			Logger.minor(this, "Doing exhaustive search and compaction on "+this);
-		long wakeupTime = Long.MAX_VALUE;
-		RandomGrabArrayItem ret = null;
-		int random = -1;
-		while(true) {
-			RandomGrabArrayItem[] reqsReading = blocks[0].reqs;
-			RandomGrabArrayItem[] reqsWriting = blocks[0].reqs;
-			int blockNumReading = 0;
-			int blockNumWriting = 0;
-			int offset = -1;
-			int writeOffset = -1;
-			int exclude = 0;
-			int valid = 0;
-			int validIndex = -1;
-			int target = 0;
-			RandomGrabArrayItem chosenItem = null;
-			RandomGrabArrayItem validItem = null;
-			for(int i=0;i<index;i++) {
-				offset++;
-				// Compact the array.
-				RandomGrabArrayItem item;
-				if(offset == BLOCK_SIZE) {
-					offset = 0;
-					blockNumReading++;
-					reqsReading = blocks[blockNumReading].reqs;
+		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" size="+items.size());
+		synchronized(lock) {
+			items.wakeExpired(now);
+			while(true) {
+				if(items.size() == 0) {
+					if(logMINOR) Logger.minor(this, "All null on "+this);
+					return null; // Caller should remove the whole RGA
 				}
-				item = reqsReading[offset];
+				RandomGrabArrayItem item = items.chooseEligible(context.fastWeakRandom);
 				if(item == null) {
-					if(logMINOR) Logger.minor(this, "Found null item at offset "+offset+" i="+i+" block = "+blockNumReading+" on "+this);
-					continue;
+					long wakeupTime = items.nextWakeupTime();
+					if(logMINOR) Logger.minor(this, "No valid items, "+items.cooldownCount()+" in cooldown on "+this);
+					setWakeupTime(wakeupTime, context);
+					return new RemoveRandomReturn(wakeupTime);
 				}
-				boolean excludeItem = false;
 				long itemWakeTime = item.getWakeupTime(context, now);
-				if (itemWakeTime > 0) {
-					// The item is in cooldown, will be wanted later.
-					excludeItem = true;
-					if (itemWakeTime < wakeupTime) {
-						wakeupTime = itemWakeTime;
-					}
-				} else if (itemWakeTime == -1) {
+				if(itemWakeTime == -1) {
 					// The item is no longer needed and should be removed.
-					if(logMINOR) {
-						Logger.minor(this, "Removing "+item+" on "+this);
-					}
-					// We are doing compaction here. We don't need to swap with the end; we write valid ones to the target location.
-					reqsReading[offset] = null;
+					if(logMINOR) Logger.minor(this, "Removing "+item+" on "+this);
+					items.remove(item);
 					item.setParentGrabArray(null);
 					continue;
-				} else {
-					long excludeTime = excluding.exclude(item, context, now);
-					if (excludeTime > 0) {
-						excludeItem = true;
-						if(excludeTime < wakeupTime) {
-							wakeupTime = excludeTime;
-						}
-					}
-				}
-				writeOffset++;
-				if(writeOffset == BLOCK_SIZE) {
-					writeOffset = 0;
-					blockNumWriting++;
-					reqsWriting = blocks[blockNumWriting].reqs;
 				}
-				if(i != target) {
-					reqsReading[offset] = null;
-					reqsWriting[writeOffset] = item;
-				} // else the request can happily stay where it is
-				target++;
-				if(excludeItem) {
-					exclude++;
-				} else {
-					if(valid == random) { // Picked on previous round
-						chosenItem = item;
-					}
-					if(validIndex == -1) {
-						// Take the first valid item
-						validIndex = target-1;
-						validItem = item;
-					}
-					valid++;
+				if(itemWakeTime == 0)
+					itemWakeTime = excluding.exclude(item, context, now);
+				if(itemWakeTime > 0) {
+					// Can't send it now, don't look at it again until it is ready.
+					items.cooldown(item, Math.max(now + 1, Math.min(itemWakeTime, now + MAX_COOLDOWN)));
+					continue;
 				}
+				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+item+" of "+items.size());
+				return new RemoveRandomReturn(item);
 			}
-			if(index != target) {
-				index = target;
-			}
-			// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
-			// or 2) we are on the first round anyway.
-			if(chosenItem != null) {
-				ret = chosenItem;
-				if(logMINOR) Logger.minor(this, "Chosen random item "+ret+" out of "+valid+" total "+index);
-				return new RemoveRandomReturn(ret);
-			}
-			if(valid == 0 && exclude == 0) {
-				if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
-				return null; // Caller should remove the whole RGA
-			} else if(valid == 0) {
-				if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
-				setWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else if(valid == 1) {
-				ret = validItem;
-				if(logMINOR) Logger.minor(this, "No valid or excluded items apart from "+ret+" total "+index);
-				return new RemoveRandomReturn(ret);
-			} else {
-				random = context.fastWeakRandom.nextInt(valid);
-				if(logMINOR) Logger.minor(this, "Looping to choose valid item "+random+" of "+valid+" (excluded "+exclude+")");
-				// Loop
-			}
-		}
-	}
-
-	/**
-	 * blockNo is assumed to be already active. The last block is assumed not 
-	 * to be.
-	 */
-	private void remove(int blockNo, int i) {
-		index--;
-		int endBlock = index / BLOCK_SIZE;
-		if(blocks.length == 1 || blockNo == endBlock) {
-			RandomGrabArrayItem[] items = blocks[blockNo].reqs;
-			int idx = index % BLOCK_SIZE;
-			items[i % BLOCK_SIZE] = items[idx];
-			items[idx] = null;
-		} else {
-			RandomGrabArrayItem[] toItems = blocks[blockNo].reqs;
-			RandomGrabArrayItem[] endItems = blocks[endBlock].reqs;
-			toItems[i % BLOCK_SIZE] = endItems[index % BLOCK_SIZE];
-			endItems[index % BLOCK_SIZE] = null;
 		}
 	}
 
@@ -351,44 +122,9 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		
 		boolean matched = false;
 		boolean empty = false;
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == it) {
-						block.reqs[i] = block.reqs[--index];
-						block.reqs[index] = null;
-						matched = true;
-						break;
-					}
-				}
-				if(index == 0) empty = true;
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[j] == it) {
-							int pullFrom = --index;
-							int idx = pullFrom % BLOCK_SIZE;
-							int endBlock = pullFrom / BLOCK_SIZE;
-							if(i == endBlock) {
-								block.reqs[j] = block.reqs[idx];
-								block.reqs[idx] = null;
-							} else {
-								Block fromBlock = blocks[endBlock];
-								block.reqs[j] = fromBlock.reqs[idx];
-								fromBlock.reqs[idx] = null;
-							}
-							matched = true;
-							break;
-						}
-					}
-				}
-				if(index == 0) empty = true;
-			}
+		synchronized(lock) {
+			matched = items.remove(it);
+			empty = items.size() == 0;
 		}
 		// Caller will typically clear it before calling for synchronization reasons.
 		RandomGrabArray oldArray = it.getParentGrabArray();
@@ -406,103 +142,92 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
-	        return index == 0;
+	    synchronized(lock) {
+	        return items.size() == 0;
 	    }
 	}
 	
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == item) {
-						return true;
-					}
-				}
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[i] == item) {
-							return true;
-						}
-					}
-				}
-			}
+		synchronized(lock) {
+			return items.contains(item);
 		}
-		return false;
 	}
 	
 	public int size() {
-	    synchronized(root) {
-	        return index;
+	    synchronized(lock) {
+	        return items.size();
 	    }
 	}
 
+	/** Get an item by index, for iterating. Indexes change whenever the RGA is used, so the 
+	 * caller should hold the lock. */
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
-	        int blockNo = idx / BLOCK_SIZE;
-	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
-	        return item;
+	    synchronized(lock) {
+	        return items.get(idx);
+	    }
+	}
+	
+	/** @return The number of items which are in cooldown. */
+	public int countInCooldown() {
+	    synchronized(lock) {
+	        return items.cooldownCount();
 	    }
 	}
 	
-	// REDFLAG this method does not move cooldown items.
-	// At present it is only called on startup so this is okay.
 	public void moveElementsTo(RandomGrabArray existingGrabber,
 			boolean canCommit) {
 		WrapperManager.signalStarting((int) MINUTES.toMillis(5));
-		for(Block block: blocks) {
-			for(int j=0;j<block.reqs.length;j++) {
-				RandomGrabArrayItem item = block.reqs[j];
-				if(item == null) continue;
-				item.setParentGrabArray(null);
-				existingGrabber.add(item, null);
-				block.reqs[j] = null;
-			}
-			System.out.println("Moved block in RGA "+this);
+		RandomGrabArrayItem[] toMove;
+		synchronized(lock) {
+			toMove = new RandomGrabArrayItem[items.size()];
+			for(int i=0;i<toMove.length;i++)
+				toMove[i] = items.get(i);
+			for(RandomGrabArrayItem item : toMove)
+				items.remove(item);
+		}
+		for(RandomGrabArrayItem item : toMove) {
+			item.setParentGrabArray(null);
+			existingGrabber.add(item, null);
 		}
+		System.out.println("Moved "+toMove.length+" items in RGA "+this);
 	}
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    if(newParent != null && newParent.getTreeLock() != lock)
+	        throw new IllegalArgumentException("Cannot move to a different subtree");
+	    synchronized(lock) {
 	        this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        long wakeupTime = this.wakeupTime;
+        if(wakeupTime < now) return 0;
+        return wakeupTime;
     }
     
     /** Set the wakeup time, and update parents recursively if it is reduced. If it is increased
      * we don't need to bother parents as they will recompute the next time they need to. Only
-     * called by removeRandomExhaustive() i.e. after checking <b>all</b> our 
-     * RandomGrabArrayItem's and finding that none of them are ready to send.
+     * called by removeRandom() after finding that none of our RandomGrabArrayItem's are ready to 
+     * send.
      * @param wakeupTime
      * @param context
      */
     private void setWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime; // Set before calling parent.
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
+                if(parent != null) parent.reduceWakeupTime(this, wakeupTime, context);
             } else {
                 this.wakeupTime = wakeupTime;
             }
@@ -512,22 +237,38 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
+                if(parent != null) parent.reduceWakeupTime(this, wakeupTime, context);
                 return true;
             }
             return false;
         }
     }
 
+    /** Called by an item when it will be ready to send sooner than it was. */
+    public boolean reduceWakeupTime(RandomGrabArrayItem item, long wakeupTime, ClientContext context) {
+        synchronized(lock) {
+            items.reduceWakeupTime(item, wakeupTime);
+            return reduceWakeupTime(wakeupTime, context);
+        }
+    }
+
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
+            if(parent != null) parent.clearWakeupTime(this, context);
+        }
+    }
+    
+    /** Called by an item when it is ready to send again. */
+    public void clearWakeupTime(RandomGrabArrayItem item, ClientContext context) {
+        synchronized(lock) {
+            items.wake(item);
+            clearWakeupTime(context);
         }
     }
 	
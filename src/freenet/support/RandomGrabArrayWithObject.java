@@ -13,14 +13,14 @@ public class RandomGrabArrayWithObject<T> extends RandomGrabArray implements Rem
 
 	@Override
 	public final T getObject() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return client;
 	    }
 	}
 
 	@Override
 	public void setObject(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.client = client;
 	    }
 	}
@@ -0,0 +1,228 @@
+package freenet.support;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+/**
+ * The contents of a RandomGrabArray or SectoredRandomGrabArray, split into the items which can be
+ * chosen now, and the items which are in cooldown, i.e. which we have found can't be sent until
+ * some time in the future. The latter are kept in a heap ordered by wakeup time, and are moved
+ * back when their time comes or when they tell us they are ready. Choosing a random eligible item
+ * is O(1), and moving an item between the two is O(log n), so choosing stays fast even when most
+ * of the items are in cooldown. Items are compared by identity.
+ *
+ * LOCKING: Not thread-safe, the caller must synchronize (on the tree lock).
+ */
+final class RandomGrabPartition<T> {
+
+	private static final class Entry {
+		final Object item;
+		/** Index in eligible if !inCooldown, otherwise index in cooldown. */
+		int index;
+		boolean inCooldown;
+		/** Time at which to move it back to eligible, if inCooldown. */
+		long wakeupTime;
+		Entry(Object item) {
+			this.item = item;
+		}
+	}
+
+	private static final int MIN_SIZE = 32;
+
+	private final IdentityHashMap<Object, Entry> entries;
+	/** Items which can be chosen now. Order doesn't matter. */
+	private Entry[] eligible;
+	private int eligibleCount;
+	/** Items in cooldown. A binary heap ordered by wakeupTime. */
+	private Entry[] cooldown;
+	private int cooldownCount;
+
+	RandomGrabPartition() {
+		entries = new IdentityHashMap<Object, Entry>();
+		eligible = new Entry[MIN_SIZE];
+		cooldown = new Entry[MIN_SIZE];
+	}
+
+	int size() {
+		return eligibleCount + cooldownCount;
+	}
+
+	int eligibleCount() {
+		return eligibleCount;
+	}
+
+	int cooldownCount() {
+		return cooldownCount;
+	}
+
+	boolean contains(Object item) {
+		return entries.containsKey(item);
+	}
+
+	/** Add an item, which can be chosen immediately.
+	 * @return False if it was already present. */
+	boolean add(T item) {
+		if(item == null) throw new NullPointerException();
+		if(entries.containsKey(item)) return false;
+		Entry entry = new Entry(item);
+		entries.put(item, entry);
+		addEligible(entry);
+		return true;
+	}
+
+	/** @return False if the item was not present. */
+	boolean remove(Object item) {
+		Entry entry = entries.remove(item);
+		if(entry == null) return false;
+		if(entry.inCooldown)
+			removeCooldown(entry.index);
+		else
+			removeEligible(entry.index);
+		return true;
+	}
+
+	/** Get an item by index, for iterating. The eligible items come first. Indexes change whenever
+	 * anything is added, removed, chosen or woken up. */
+	@SuppressWarnings("unchecked")
+	T get(int i) {
+		if(i < eligibleCount) return (T) eligible[i].item;
+		return (T) cooldown[i - eligibleCount].item;
+	}
+
+	/** Choose a random item from those not in cooldown, without removing it.
+	 * @return Null if all the items are in cooldown, or there are none. */
+	@SuppressWarnings("unchecked")
+	T chooseEligible(Random random) {
+		if(eligibleCount == 0) return null;
+		return (T) eligible[random.nextInt(eligibleCount)].item;
+	}
+
+	/** Put an item in cooldown until the given time, or change the time if it is already in
+	 * cooldown. */
+	void cooldown(Object item, long wakeupTime) {
+		Entry entry = entries.get(item);
+		if(entry == null) return;
+		if(entry.inCooldown) {
+			long old = entry.wakeupTime;
+			entry.wakeupTime = wakeupTime;
+			if(wakeupTime < old)
+				siftUp(entry.index);
+			else
+				siftDown(entry.index);
+		} else {
+			removeEligible(entry.index);
+			entry.inCooldown = true;
+			entry.wakeupTime = wakeupTime;
+			addCooldown(entry);
+		}
+	}
+
+	/** Move an item back from cooldown, so it can be chosen.
+	 * @return True if it was in cooldown. */
+	boolean wake(Object item) {
+		Entry entry = entries.get(item);
+		if(entry == null || !entry.inCooldown) return false;
+		removeCooldown(entry.index);
+		entry.inCooldown = false;
+		addEligible(entry);
+		return true;
+	}
+
+	/** If the item is in cooldown until later than the given time, change it to that time. */
+	void reduceWakeupTime(Object item, long wakeupTime) {
+		Entry entry = entries.get(item);
+		if(entry == null || !entry.inCooldown) return;
+		if(wakeupTime >= entry.wakeupTime) return;
+		entry.wakeupTime = wakeupTime;
+		siftUp(entry.index);
+	}
+
+	/** Move all the items whose cooldown has expired back to eligible. */
+	void wakeExpired(long now) {
+		while(cooldownCount > 0 && cooldown[0].wakeupTime <= now) {
+			Entry entry = cooldown[0];
+			removeCooldown(0);
+			entry.inCooldown = false;
+			addEligible(entry);
+		}
+	}
+
+	/** @return The earliest time at which an item comes out of cooldown, or Long.MAX_VALUE if
+	 * none are in cooldown. */
+	long nextWakeupTime() {
+		if(cooldownCount == 0) return Long.MAX_VALUE;
+		return cooldown[0].wakeupTime;
+	}
+
+	private void addEligible(Entry entry) {
+		if(eligibleCount == eligible.length)
+			eligible = Arrays.copyOf(eligible, eligible.length * 2);
+		entry.index = eligibleCount;
+		eligible[eligibleCount++] = entry;
+	}
+
+	private void removeEligible(int i) {
+		Entry last = eligible[--eligibleCount];
+		eligible[eligibleCount] = null;
+		if(i != eligibleCount) {
+			eligible[i] = last;
+			last.index = i;
+		}
+		if(eligible.length > MIN_SIZE && eligibleCount < eligible.length / 4)
+			eligible = Arrays.copyOf(eligible, Math.max(MIN_SIZE, eligible.length / 2));
+	}
+
+	private void addCooldown(Entry entry) {
+		if(cooldownCount == cooldown.length)
+			cooldown = Arrays.copyOf(cooldown, cooldown.length * 2);
+		entry.index = cooldownCount;
+		cooldown[cooldownCount++] = entry;
+		siftUp(entry.index);
+	}
+
+	private void removeCooldown(int i) {
+		Entry last = cooldown[--cooldownCount];
+		cooldown[cooldownCount] = null;
+		if(i != cooldownCount) {
+			cooldown[i] = last;
+			last.index = i;
+			siftDown(i);
+			siftUp(last.index);
+		}
+		if(cooldown.length > MIN_SIZE && cooldownCount < cooldown.length / 4)
+			cooldown = Arrays.copyOf(cooldown, Math.max(MIN_SIZE, cooldown.length / 2));
+	}
+
+	private void siftUp(int i) {
+		Entry entry = cooldown[i];
+		while(i > 0) {
+			int parent = (i - 1) >>> 1;
+			Entry p = cooldown[parent];
+			if(p.wakeupTime <= entry.wakeupTime) break;
+			cooldown[i] = p;
+			p.index = i;
+			i = parent;
+		}
+		cooldown[i] = entry;
+		entry.index = i;
+	}
+
+	private void siftDown(int i) {
+		Entry entry = cooldown[i];
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= cooldownCount) break;
+			if(child + 1 < cooldownCount && cooldown[child + 1].wakeupTime < cooldown[child].wakeupTime)
+				child++;
+			Entry c = cooldown[child];
+			if(entry.wakeupTime <= c.wakeupTime) break;
+			cooldown[i] = c;
+			c.index = i;
+			i = child;
+		}
+		cooldown[i] = entry;
+		entry.index = i;
+	}
+
+}
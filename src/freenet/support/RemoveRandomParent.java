@@ -10,4 +10,16 @@ public interface RemoveRandomParent extends RequestSelectionTreeNode {
 	 */
 	public void maybeRemove(RemoveRandom r, ClientContext context);
 
+	/** A child has become ready to send, so clear its wakeup time and ours, recursing up the 
+	 * tree. */
+	public void clearWakeupTime(RemoveRandom child, ClientContext context);
+
+	/** A child will be ready to send sooner than it was. Reduce its wakeup time and ours if 
+	 * necessary, recursing up the tree. Returns true if our wakeup time changed. */
+	public boolean reduceWakeupTime(RemoveRandom child, long wakeupTime, ClientContext context);
+
+	/** The lock for the subtree this node belongs to. Children use the same lock as their parent,
+	 * so there is one lock for each priority in the ClientRequestSelector. */
+	public Object getTreeLock();
+
 }
@@ -1,6 +1,6 @@
 package freenet.support;
 
-import java.util.Arrays;
+import java.util.IdentityHashMap;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestSelector;
@@ -10,13 +10,13 @@ import freenet.client.async.RequestSelectionTreeNode;
  * Like RandomGrabArray, but there is an equal chance of any given client's requests being
  * returned. Again, not persistent; this is reconstructed on restart.
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * The children are kept in a RandomGrabPartition, like the items in a RandomGrabArray, so a child
+ * which has nothing to send is moved aside until its wakeup time or until it tells us it is ready,
+ * and choosing a child is O(1) however many of them are in cooldown.
  * 
- * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
- * This is all kept in RAM now so we can change it at will, plus there is only one object 
- * queued per splitfile now, so memory pressure is much less of an issue. 
- * FIXME Simplify and improve performance!
+ * LOCKING: There is a single lock for each priority's subtree, see getTreeLock(). The methods 
+ * here take it themselves. isEmpty(), size() and the wakeup time may be read without taking the 
+ * lock. See the javadocs on ClientRequestSelector for deeper explanation.
  */
 public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> implements RemoveRandom, RemoveRandomParent, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
@@ -25,55 +25,58 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		Logger.registerClass(SectoredRandomGrabArray.class);
 	}
 
-	private RemoveRandomWithObject<T>[] grabArrays;
-	private T[] grabClients;
+	/** The children, split into those which may have something to send and those in cooldown. */
+	private final RandomGrabPartition<C> grabArrays;
+	/** The children by client. */
+	private final IdentityHashMap<T, C> grabClients;
+	/** Number of children. Written with the lock held, but may be read without it. */
+	private volatile int size;
 	private RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
-	private long wakeupTime;
+	/** Lock for the subtree. If we are the top of the subtree, this is us. */
+	protected final Object lock;
+	/** Written with the lock held, but may be read without it. */
+	private volatile long wakeupTime;
 
 	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		grabClients = newClientArray(0);
-		grabArrays = newGrabberArray(0);
+		grabArrays = new RandomGrabPartition<C>();
+		grabClients = new IdentityHashMap<T, C>();
 		this.parent = parent;
 		this.root = root;
+		this.lock = parent == null ? this : parent.getTreeLock();
 	}
 
-	protected void addElement(T client, C rga) {
-	    synchronized(root) {
-		final int len = grabArrays.length;
-
-		grabArrays = Arrays.copyOf(grabArrays, len+1);
-		grabArrays[len] = rga;
-		
-		grabClients = Arrays.copyOf(grabClients, len+1);
-		grabClients[len] = client;
-	    }
+	@Override
+	public Object getTreeLock() {
+		return lock;
 	}
 
-	protected int haveClient(T client) {
-	    synchronized(root) {
-		for(int i=0;i<grabClients.length;i++) {
-			if(grabClients[i] == client) return i;
+	protected void addElement(T client, C rga) {
+	    synchronized(lock) {
+		C old = grabClients.put(client, rga);
+		if(old != null && old != rga) {
+			Logger.error(this, "Replacing "+old+" with "+rga+" for "+client+" on "+this, new Exception("error"));
+			grabArrays.remove(old);
 		}
-		return -1;
+		grabArrays.add(rga);
+		size = grabArrays.size();
 	    }
 	}
 
 	/**
 	 * Get a grabber.
 	 */
-	@SuppressWarnings("unchecked")
 	public C getGrabber(T client) {
-	    synchronized(root) {
-		int idx = haveClient(client);
-		if(idx == -1) return null;
-		else return (C)grabArrays[idx];
+	    synchronized(lock) {
+		return grabClients.get(client);
 	    }
 	}
 	
+	/** Get a client by index, for iterating. Indexes change whenever the SRGA is used, so the 
+	 * caller should hold the lock. */
 	public T getClient(int x) {
-	    synchronized(root) {
-		return grabClients[x];
+	    synchronized(lock) {
+		return grabArrays.get(x).getObject();
 	    }
 	}
 
@@ -81,7 +84,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 * Put a grabber.
 	 */
 	public void addGrabber(T client, C requestGrabber, ClientContext context) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		if(requestGrabber.getObject() != client)
 			throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
 		addElement(client, requestGrabber);
@@ -93,323 +96,81 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
+		grabArrays.wakeExpired(now);
 		while(true) {
-			if(grabArrays.length == 0) return null;
-			if(grabArrays.length == 1) {
-				return removeRandomOneOnly(excluding, context, now);
-			}
-			if(grabArrays.length == 2) {
-				RemoveRandomReturn ret = removeRandomTwoOnly(excluding, context, now);
-				if(ret == null) continue; // Go around loop again, it has reduced to 1 or 0.
-				return ret;
+			if(grabArrays.size() == 0) return null;
+			C rga = grabArrays.chooseEligible(context.fastWeakRandom);
+			if(rga == null) {
+				long wakeupTime = grabArrays.nextWakeupTime();
+				if(logMINOR) 
+					Logger.minor(this, "All "+grabArrays.size()+" sub-arrays are in cooldown on "+this);
+				reduceWakeupTime(wakeupTime, context);
+				return new RemoveRandomReturn(wakeupTime);
 			}
-			RandomGrabArrayItem item = removeRandomLimited(excluding, context, now);
-			if(item != null)
-				return new RemoveRandomReturn(item);
-			else
-				return removeRandomExhaustive(excluding, context, now);
-		}
-	    }
-	}
-
-	private RemoveRandomReturn removeRandomExhaustive(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		if(grabArrays.length == 0) return null;
-		int x = context.fastWeakRandom.nextInt(grabArrays.length);
-		for(int i=0;i<grabArrays.length;i++) {
-			x++;
-			if(x >= grabArrays.length) x = 0;
-			RemoveRandomWithObject<T> rga = grabArrays[x];
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
-				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
+				grabArrays.cooldown(rga, cooldownTime(excludeTime, now));
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
-			RandomGrabArrayItem item = null;
+				Logger.minor(this, "Picked "+rga+" of "+grabArrays.size()+" on "+this);
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-			if(val != null) {
-				if(val.item != null)
-					item = val.item;
-				else {
-					if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-				}
-			}
-			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
-						" rga.isEmpty="+rga.isEmpty());
-			if(item != null) {
-				return new RemoveRandomReturn(item);
-			} else if(rga.isEmpty()) {
+			if(val != null && val.item != null) {
 				if(logMINOR)
-					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-				removeElement(x);
-			}
-		}
-		reduceWakeupTime(wakeupTime, context);
-		return new RemoveRandomReturn(wakeupTime);
-	    }
-	}
-
-	private RandomGrabArrayItem removeRandomLimited(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		/** Count of arrays that have items but didn't return anything because of exclusions */
-		final int MAX_EXCLUDED = 10;
-		int excluded = 0;
-		while(true) {
-			if(grabArrays.length == 0) return null;
-			int x = context.fastWeakRandom.nextInt(grabArrays.length);
-			RemoveRandomWithObject<T> rga = grabArrays[x];
-			if(rga == null) {
-				// We handle this in the other cases so we should handle it here.
-				Logger.error(this, "Slot "+x+" is null for client "+grabClients[x]);
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
-				continue;
+					Logger.minor(this, "RGA has picked "+val.item+" from "+rga);
+				return val;
 			}
-			long excludeTime = rga.getWakeupTime(context, now);
-			if(excludeTime > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
-				continue;
-			}
-			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
-			RandomGrabArrayItem item = null;
-			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-			if(val != null && val.item != null) item = val.item;
-			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
-						" rga.isEmpty="+rga.isEmpty());
-			// If it is not empty but returns null we exclude it, and count the exclusion.
-			// If it is empty we remove it, and don't count the exclusion.
-			if(item != null) {
-				return item;
-			} else {
-				if(rga.isEmpty()) {
-					if(logMINOR)
-						Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-					removeElement(x);
-				} else {
-					excluded++;
-					if(excluded > MAX_EXCLUDED) {
-						Logger.normal(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-						return null;
-					}
-				}
+			if(val == null || rga.isEmpty()) {
+				if(logMINOR)
+					Logger.minor(this, "Removing grab array "+rga+" (is empty)");
+				removeElement(rga);
 				continue;
 			}
+			// Nothing to send from it until val.wakeupTime.
+			grabArrays.cooldown(rga, cooldownTime(val.wakeupTime, now));
 		}
 	    }
 	}
 
-	private RemoveRandomReturn removeRandomTwoOnly(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		// Another simple common case
-		int x = context.fastWeakRandom.nextBoolean() ? 1 : 0;
-		RemoveRandomWithObject<T> rga = grabArrays[x];
-		RemoveRandomWithObject<T> firstRGA = rga;
-		if(rga == null) {
-			Logger.error(this, "rga = null on "+this);
-			if(grabArrays[1-x] == null) {
-				Logger.error(this, "other rga is also null on "+this);
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-				return null;
-			} else {
-				Logger.error(this, "grabArrays["+(1-x)+"] is valid but ["+x+"] is null, correcting...");
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-				return null;
-			}
-		}
-		RandomGrabArrayItem item = null;
-		RemoveRandomReturn val = null;
-		if(logMINOR) Logger.minor(this, "Only 2, trying "+rga);
-		long excludeTime = rga.getWakeupTime(context, now);
-		if(excludeTime > 0) {
-			wakeupTime = excludeTime;
-			rga = null;
-			firstRGA = null;
-		} else {
-			val = rga.removeRandom(excluding, context, now);
-			if(val != null) {
-				if(val.item != null)
-					item = val.item;
-				else {
-					if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-				}
-			}
-		}
-		if(item != null) {
-			if(logMINOR)
-				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
-			return new RemoveRandomReturn(item);
-		} else {
-			x = 1-x;
-			rga = grabArrays[x];
-			if(rga == null) {
-				Logger.error(this, "Other RGA is null later on on "+this);
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			}
-			excludeTime = rga.getWakeupTime(context, now);
-			if(excludeTime > 0) {
-				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
-				rga = null;
-			} else {
-				val = rga.removeRandom(excluding, context, now);
-				if(val != null) {
-					if(val.item != null)
-						item = val.item;
-					else {
-						if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-					}
-				}
-			}
-			if(firstRGA != null && firstRGA.isEmpty() && rga != null && rga.isEmpty()) {
-				if(logMINOR) Logger.minor(this, "Removing both on "+this+" : "+firstRGA+" and "+rga+" are empty");
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-			} else if(firstRGA != null && firstRGA.isEmpty()) {
-				if(logMINOR) Logger.minor(this, "Removing first: "+firstRGA+" is empty on "+this);
-				grabArrays = asGrabberArray(grabArrays[x]); // don't use RGA, it may be nulled out
-				grabClients = asClientArray(grabClients[x]);
-			}
-			if(logMINOR)
-				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
-			if(item == null) {
-				if(grabArrays.length == 0)
-					return null; // Remove this as well
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else return new RemoveRandomReturn(item);
-		}
-	    }
-	}
-
-	private RemoveRandomReturn removeRandomOneOnly(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		// Optimise the common case
-		RemoveRandomWithObject<T> rga = grabArrays[0];
-		if(logMINOR) Logger.minor(this, "Only one RGA: "+rga);
-		long excludeTime = rga.getWakeupTime(context, now);
-		if(excludeTime > 0)
-			return new RemoveRandomReturn(excludeTime);
-		if(rga == null) {
-			Logger.error(this, "Only one entry and that is null");
-			// We are sure
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-			return null;
-		}
-		RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-		RandomGrabArrayItem item = null;
-		if(val != null) { // val == null => remove it
-			if(val.item != null)
-				item = val.item;
-			else {
-				wakeupTime = val.wakeupTime;
-			}
-		}
-		if(rga.isEmpty()) {
-			if(logMINOR)
-				Logger.minor(this, "Removing only grab array (0) : "+rga);
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-		}
-		if(logMINOR)
-			Logger.minor(this, "Returning (one item only) "+item+" for "+rga);
-		if(item == null) {
-			if(grabArrays.length == 0) {
-				if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
-				return null; // Remove this as well
-			}
-            reduceWakeupTime(wakeupTime, context);
-			return new RemoveRandomReturn(wakeupTime);
-		} else return new RemoveRandomReturn(item);
-	    }
+	/** Cooldown time for a child. Capped, like items in RandomGrabArray, as a safety net in case
+	 * the child doesn't tell us when it is ready. */
+	private static long cooldownTime(long wakeupTime, long now) {
+		return Math.max(now + 1, Math.min(wakeupTime, now + RandomGrabArray.MAX_COOLDOWN));
 	}
 
-	private void removeElement(int x) {
-	    synchronized(root) {
-		final int grabArraysLength = grabArrays.length;
-		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
-		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabArrays, 0, newArray, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabArrays, x+1, newArray, x, grabArraysLength - (x+1));
-		grabArrays = newArray;
-		
-		T[] newClients = newClientArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabClients, 0, newClients, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
-		grabClients = newClients;
+	private void removeElement(C rga) {
+	    synchronized(lock) {
+		if(!grabArrays.remove(rga)) return;
+		T client = rga.getObject();
+		if(grabClients.get(client) == rga)
+			grabClients.remove(client);
+		size = grabArrays.size();
 	    }
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
-		return grabArrays.length == 0;
-	    }
+		return size == 0;
 	}
 	
 	public int size() {
-	    synchronized(root) {
-		return grabArrays.length;
-	    }
+		return size;
 	}
 	
 	@Override
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
-		int count = 0;
+		boolean found;
 		int finalSize;
-		synchronized(root) {
-			while(true) {
-				int found = -1;
-				for(int i=0;i<grabArrays.length;i++) {
-					if(grabArrays[i] == r) {
-						found = i;
-						break;
-					}
-				}
-				if(found != -1) {
-					count++;
-					if(count > 1) Logger.error(this, "Found "+r+" many times in "+this, new Exception("error"));
-					removeElement(found);
-				} else {
-					break;
-				}
-			}
-			finalSize = grabArrays.length;
+		synchronized(lock) {
+			found = grabArrays.contains(r);
+			if(found) {
+				@SuppressWarnings("unchecked")
+				C rga = (C) r;
+				removeElement(rga);
+			}
+			finalSize = grabArrays.size();
 		}
-		if(count == 0) {
+		if(!found) {
 			// This is not unusual, it was e.g. removed because of being empty.
 			// And it has already been removeFrom()'ed.
 			if(logMINOR) Logger.minor(this, "Not in parent: "+r+" for "+this, new Exception("error"));
@@ -421,34 +182,35 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    if(newParent != null && newParent.getTreeLock() != lock)
+	        throw new IllegalArgumentException("Cannot move to a different subtree");
+	    synchronized(lock) {
 		this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 	
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        long wakeupTime = this.wakeupTime;
+        if(wakeupTime < now) return 0;
+        return wakeupTime;
     }
     
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
         boolean reachedRoot = false;
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
+                if(parent != null) parent.reduceWakeupTime(this, wakeupTime, context);
                 else reachedRoot = true; // Even if it reduces it we need to wake it up.
             } else return false;
         }
@@ -457,34 +219,33 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
         return true;
     }
     
+    @Override
+    public boolean reduceWakeupTime(RemoveRandom child, long wakeupTime, ClientContext context) {
+        synchronized(lock) {
+            grabArrays.reduceWakeupTime(child, cooldownTime(wakeupTime, System.currentTimeMillis()));
+        }
+        return reduceWakeupTime(wakeupTime, context);
+    }
+    
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        boolean reachedRoot = false;
+        synchronized(lock) {
             wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
+            if(parent != null) parent.clearWakeupTime(this, context);
+            else reachedRoot = true; // The starter may be sleeping until the old wakeup time.
         }
+        if(reachedRoot)
+            root.wakeUp(context);
     }
 
-    private T[] asClientArray(T client) {
-        T[] clients = newClientArray(1);
-        clients[0] = client;
-        return clients;
-    }
-
-    @SuppressWarnings("unchecked")
-    private T[] newClientArray(int length) {
-        return (T[])new Object[length];
-    }
-
-    private RemoveRandomWithObject<T>[] asGrabberArray(RemoveRandomWithObject<T> grabber) {
-        RemoveRandomWithObject<T>[] grabbers = newGrabberArray(1);
-        grabbers[0] = grabber;
-        return grabbers;
+    @Override
+    public void clearWakeupTime(RemoveRandom child, ClientContext context) {
+        synchronized(lock) {
+            grabArrays.wake(child);
+            clearWakeupTime(context);
+        }
     }
 
-    @SuppressWarnings("unchecked")
-    private RemoveRandomWithObject<T>[] newGrabberArray(int length) {
-        return (RemoveRandomWithObject<T>[])new RemoveRandomWithObject<?>[length];
-    }
 }
@@ -22,7 +22,7 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
 
     /** Add directly to a RandomGrabArrayWithObject under us. */
     public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
+        synchronized(lock) {
         RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
         if(rga == null) {
             if(logMINOR)
@@ -13,7 +13,7 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	@Override
 	public MyType getObject() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return object;
 	    }
 	}
@@ -25,7 +25,7 @@ public class SectoredRandomGrabArrayWithObject<MyType,ChildType,GrabType extends
 
 	@Override
 	public void setObject(MyType client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        object = client;
 	    }
 	}
@@ -369,6 +369,20 @@ public class SimpleFieldSet {
     	put(key, value, true, false, false);
     }
 
+    /**
+     * Set a key to a value, exactly as if the key=value line had been read from a stream. For
+     * parsers which split the lines up themselves.
+     *
+     * @param key The key, already trimmed.
+     * @param value The value.
+     * @param allowMultiple If true and the key already exists, the value is appended to the
+     * existing value, otherwise it is ignored.
+     */
+    public void putParsed(String key, String value, boolean allowMultiple) {
+    	if(!shortLived) value = value.intern();
+    	put(key, value, allowMultiple, false, true);
+    }
+
     /**
      * Set a key to a value, overwriting any existing value if present.
      * This function is a little bit faster than putAppend() because it does not
@@ -28,7 +28,11 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// Multi-block variants, compressed on several threads. Older nodes can't decode these, so
+		// they are only used when explicitly requested.
+		BZIP2_MT("BZIP2_MT", new ParallelCompressor(new Bzip2Compressor()), (short)4),
+		LZMA_NEW_MT("LZMA_NEW_MT", new ParallelCompressor(new NewLZMACompressor()), (short)5);
 
 		public final String name;
 		public final Compressor compressor;
@@ -89,7 +93,8 @@ public interface Compressor {
 		 * make a COMPRESSOR_TYPE[] from a descriptor string<BR>
 		 * the descriptor string is a comma separated list of numbers or names(can be mixed)<BR>
 		 * it is better to store the string in db4o instead of the compressors?<BR>
-		 * if the string is null/empty, it returns COMPRESSOR_TYPE.values() as default
+		 * if the string is null/empty, it returns COMPRESSOR_TYPE.values() as default, except for
+		 * LZMA and the multi-block codecs
 		 * @param compressordescriptor
 		 * @return
 		 * @throws InvalidCompressionCodecException
@@ -97,17 +102,19 @@ public interface Compressor {
 		public static COMPRESSOR_TYPE[] getCompressorsArray(String compressordescriptor) throws InvalidCompressionCodecException {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[values.length-1];
-				int x = 0;
+				ArrayList<COMPRESSOR_TYPE> ret = new ArrayList<COMPRESSOR_TYPE>(values.length);
 				for(COMPRESSOR_TYPE v: values) {
 					// LZMA should no longer be used. Use LZMA_NEW instead.
 					if(v == LZMA) {
 						logLzmaOldRemovedWarning();
 						continue;
 					}
-					ret[x++] = v;
+					// Must be asked for explicitly.
+					if(v.isMultiBlock())
+						continue;
+					ret.add(v);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
@@ -184,6 +191,12 @@ public interface Compressor {
 			return compressor.decompress(dbuf, i, j, output);
 		}
 
+		/** @return True if this codec compresses independent blocks in parallel. Such data can't be
+		 * decoded by nodes which predate the multi-block codecs. */
+		public boolean isMultiBlock() {
+			return compressor instanceof ParallelCompressor;
+		}
+
 		public static int countCompressors() {
 			return values.length;
 		}
@@ -0,0 +1,314 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.CountedOutputStream;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
+
+/**
+ * {@link Compressor} which splits the input into independent blocks of {@link #BLOCK_SIZE} bytes
+ * and compresses them with another codec on a thread pool, so that a large insert can use more
+ * than one core. Blocks are decompressed in parallel too, which helps the
+ * {@link DecompressorThreadManager} chain when fetching.
+ *
+ * The container is a sequence of frames, each consisting of the compressed length and the
+ * uncompressed length (as ints) followed by the block compressed by the underlying codec. A frame
+ * with a compressed length of 0 ends the stream. The block size is fixed, so the output does not
+ * depend on the number of threads, and the same data always compresses to the same key.
+ *
+ * Nodes which do not know about the container cannot decode it, so the parallel codecs have their
+ * own metadata IDs, and are only used if they are explicitly requested.
+ */
+class ParallelCompressor extends AbstractCompressor {
+
+	/** Size of each independently compressed block. Larger than the LZMA dictionary and the bzip2
+	 * block size, so we lose very little compared to compressing a single stream. */
+	static final int BLOCK_SIZE = 4*1024*1024;
+	/** Worst case expansion of a block by the underlying codec. Anything bigger is corrupt. */
+	private static final int MAX_COMPRESSED_BLOCK_SIZE = BLOCK_SIZE + BLOCK_SIZE / 8 + 4096;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(ParallelCompressor.class);
+	}
+
+	/** Codec for the individual blocks */
+	private final Compressor blockCompressor;
+
+	ParallelCompressor(Compressor blockCompressor) {
+		this.blockCompressor = blockCompressor;
+	}
+
+	/** Shared between all parallel codecs. Created lazily because the codecs are instantiated
+	 * when COMPRESSOR_TYPE is loaded, so we can't use the node's executor. The threads are daemon
+	 * threads, and the pool is shut down when the node shuts down, like RealCompressor's. */
+	private static ExecutorService executor;
+	private static int threads;
+
+	private static synchronized ExecutorService getExecutor() {
+		if(executor == null) {
+			threads = RealCompressor.getMaxRunningCompressionThreads();
+			final ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new NativeThread(r, "Parallel compressor thread", NativeThread.MIN_PRIORITY, true);
+					t.setDaemon(true);
+					return t;
+				}
+
+			});
+			SemiOrderedShutdownHook.get().addEarlyJob(new NativeThread("Shutdown parallel compressor",
+					NativeThread.HIGH_PRIORITY, true) {
+
+				@Override
+				public void realRun() {
+					pool.shutdown();
+				}
+
+			});
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/** Maximum number of blocks in flight for a single stream. Bounds memory usage to roughly
+	 * 2 * BLOCK_SIZE per block, while keeping all the threads busy. */
+	private static synchronized int maxBlocksInFlight() {
+		getExecutor();
+		return threads * 2;
+	}
+
+	@Override
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength)
+			throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		try (InputStream is = data.getInputStream();
+			 OutputStream os = output.getOutputStream()) {
+			compress(is, os, maxReadLength, maxWriteLength);
+		}
+		return output;
+	}
+
+	@Override
+	public long compress(InputStream is, OutputStream os, long maxReadLength, final long maxWriteLength,
+						 long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage)
+			throws IOException, CompressionRatioException {
+		if(maxReadLength <= 0)
+			throw new IllegalArgumentException();
+		ExecutorService executor = getExecutor();
+		int maxInFlight = maxBlocksInFlight();
+		CountedOutputStream cos = new CountedOutputStream(os);
+		DataOutputStream dos = new DataOutputStream(cos);
+		ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>(maxInFlight);
+		ArrayDeque<Integer> inFlightLengths = new ArrayDeque<Integer>(maxInFlight);
+		boolean compressionEffectShouldBeChecked = minimumCompressionPercentage != 0;
+		long read = 0;
+		long consumed = 0;
+		try {
+			while(true) {
+				final byte[] block = readBlock(is, (int) Math.min(BLOCK_SIZE, maxReadLength - read));
+				if(block != null) {
+					read += block.length;
+					inFlight.add(executor.submit(new Callable<byte[]>() {
+
+						@Override
+						public byte[] call() throws Exception {
+							ByteArrayOutputStream baos = new ByteArrayOutputStream(block.length);
+							blockCompressor.compress(new ByteArrayInputStream(block), baos, block.length, maxWriteLength);
+							return baos.toByteArray();
+						}
+
+					}));
+					inFlightLengths.add(block.length);
+					if(inFlight.size() < maxInFlight) continue;
+				}
+				if(inFlight.isEmpty()) break;
+				// Write the oldest block, so the output is in order.
+				byte[] compressed = getBlock(inFlight.remove());
+				int length = inFlightLengths.remove();
+				dos.writeInt(compressed.length);
+				dos.writeInt(length);
+				dos.write(compressed);
+				consumed += length;
+				if(cos.written() > maxWriteLength)
+					throw new CompressionOutputSizeException(cos.written());
+				if(compressionEffectShouldBeChecked && consumed > amountOfDataToCheckCompressionRatio) {
+					checkCompressionEffect(consumed, cos.written(), minimumCompressionPercentage);
+					compressionEffectShouldBeChecked = false;
+				}
+			}
+			dos.writeInt(0);
+			dos.flush();
+		} finally {
+			for(Future<byte[]> f : inFlight)
+				f.cancel(false);
+		}
+		if(cos.written() > maxWriteLength)
+			throw new CompressionOutputSizeException(cos.written());
+		if(logMINOR)
+			Logger.minor(this, "Read "+read+" written "+cos.written()+" using "+blockCompressor);
+		return cos.written();
+	}
+
+	/** Read up to maxLength bytes, or return null if there is nothing left to read. */
+	private static byte[] readBlock(InputStream is, int maxLength) throws IOException {
+		if(maxLength <= 0) return null;
+		byte[] buf = new byte[maxLength];
+		int offset = 0;
+		while(offset < maxLength) {
+			int x = is.read(buf, offset, maxLength - offset);
+			if(x <= -1) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			offset += x;
+		}
+		if(offset == 0) return null;
+		if(offset < maxLength) {
+			byte[] shorter = new byte[offset];
+			System.arraycopy(buf, 0, shorter, 0, offset);
+			return shorter;
+		}
+		return buf;
+	}
+
+	/** Wait for a block job, and rethrow anything it threw as the appropriate exception. If we
+	 * are interrupted, we carry on waiting, and set the interrupt flag again afterwards. */
+	private static byte[] getBlock(Future<byte[]> future) throws IOException {
+		boolean interrupted = false;
+		try {
+			while(true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable t = e.getCause();
+					if(t instanceof IOException) throw (IOException) t;
+					if(t instanceof RuntimeException) throw (RuntimeException) t;
+					if(t instanceof Error) throw (Error) t;
+					throw new IOException(t);
+				}
+			}
+		} finally {
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		ExecutorService executor = getExecutor();
+		int maxInFlight = maxBlocksInFlight();
+		DataInputStream dis = new DataInputStream(is);
+		ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>(maxInFlight);
+		long written = 0;
+		long declared = 0;
+		boolean finished = false;
+		try {
+			while(true) {
+				if(!finished) {
+					int compressedLength = dis.readInt();
+					if(compressedLength == 0) {
+						finished = true;
+					} else {
+						final int length = dis.readInt();
+						if(compressedLength < 0 || compressedLength > MAX_COMPRESSED_BLOCK_SIZE)
+							throw new InvalidCompressedDataException("Invalid compressed block length "+compressedLength);
+						if(length <= 0 || length > BLOCK_SIZE)
+							throw new InvalidCompressedDataException("Invalid block length "+length);
+						declared += length;
+						if(declared > maxLength) {
+							// The headers tell us the total size, so we can skip the rest cheaply.
+							FileUtil.skipFully(dis, compressedLength);
+							throw new CompressionOutputSizeException(estimateSize(dis, declared, maxLength + maxCheckSizeBytes));
+						}
+						final byte[] compressed = new byte[compressedLength];
+						dis.readFully(compressed);
+						inFlight.add(executor.submit(new Callable<byte[]>() {
+
+							@Override
+							public byte[] call() throws Exception {
+								ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+								blockCompressor.decompress(new ByteArrayInputStream(compressed), baos, length, -1);
+								if(baos.size() != length)
+									throw new InvalidCompressedDataException("Block decompressed to "+baos.size()+" bytes, expected "+length);
+								return baos.toByteArray();
+							}
+
+						}));
+						if(inFlight.size() < maxInFlight) continue;
+					}
+				}
+				if(inFlight.isEmpty()) break;
+				byte[] block = getBlock(inFlight.remove());
+				os.write(block);
+				written += block.length;
+			}
+		} finally {
+			for(Future<byte[]> f : inFlight)
+				f.cancel(false);
+		}
+		return written;
+	}
+
+	/** Add up the declared lengths of the remaining blocks, without decompressing them, until we
+	 * have read them all or the total exceeds the limit. */
+	private static long estimateSize(DataInputStream dis, long declared, long limit) throws IOException {
+		try {
+			while(declared <= limit) {
+				int compressedLength = dis.readInt();
+				if(compressedLength <= 0 || compressedLength > MAX_COMPRESSED_BLOCK_SIZE) break;
+				int length = dis.readInt();
+				if(length <= 0 || length > BLOCK_SIZE) break;
+				declared += length;
+				FileUtil.skipFully(dis, compressedLength);
+			}
+		} catch (EOFException e) {
+			// Truncated, return what we have.
+		}
+		return declared;
+	}
+
+	@Override
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+blockCompressor;
+	}
+}
@@ -80,7 +80,7 @@ public class RealCompressor {
         }
     }
 
-    private static int getMaxRunningCompressionThreads() {
+    static int getMaxRunningCompressionThreads() {
         int maxRunningThreads = 1;
 
         String osName = System.getProperty("os.name");
@@ -172,7 +172,7 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 	 * attacks.
 	 * @author toad
 	 */
-	class FileBucketOutputStream extends FileOutputStream {
+	public class FileBucketOutputStream extends FileOutputStream {
 
 		private long restartCount;
 		private File tempfile;
@@ -224,6 +224,19 @@ public abstract class BaseFileBucket implements RandomAccessBucket {
 				super.write(b);
 			}
 		}
+
+		/** Copy part of a file to this stream without going through the Java heap. Like the
+		 * write() methods, checks that the bucket is still valid first.
+		 * @param source The file to copy from.
+		 * @param offset The offset in the source to start copying from.
+		 * @param length The number of bytes to copy.
+		 */
+		public void transferFrom(PooledFileRandomAccessBuffer source, long offset, long length) throws IOException {
+			synchronized (BaseFileBucket.this) {
+				confirmWriteSynchronized();
+				source.transferTo(offset, length, getChannel());
+			}
+		}
 		
 		@Override
 		public void close() throws IOException {
@@ -2,6 +2,7 @@ package freenet.support.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -61,6 +62,27 @@ public class DiskSpaceCheckingRandomAccessBufferFactory implements LockableRando
         }
     }
     
+    /** Create a RAF containing the data in a set of buffers, e.g. off-heap memory being migrated
+     * to disk, without copying it through the heap. Only supported if the underlying factory is a
+     * PooledFileRandomAccessBufferFactory. */
+    public LockableRandomAccessBuffer makeRAF(ByteBuffer[] initialContents, boolean readOnly)
+            throws IOException {
+        if(!(underlying instanceof PooledFileRandomAccessBufferFactory))
+            throw new UnsupportedOperationException();
+        long size = 0;
+        for(ByteBuffer buf : initialContents)
+            size += buf.remaining();
+        lock.lock();
+        try {
+            if(dir.getUsableSpace() > size + minDiskSpace)
+                return ((PooledFileRandomAccessBufferFactory) underlying).makeRAF(initialContents, readOnly);
+            else
+                throw new InsufficientDiskSpaceException();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
     public String toString() {
         return super.toString()+":"+underlying.toString();
     }
@@ -7,9 +7,14 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import freenet.client.async.ClientContext;
 import freenet.support.Logger;
@@ -17,8 +22,11 @@ import freenet.support.WrapperKeepalive;
 import freenet.support.api.LockableRandomAccessBuffer;
 
 /** Random access files with a limited number of open files, using a pool.
- * LOCKING OPTIMISATION: Contention on DEFAULT_FDTRACKER likely here. It's not clear how to avoid that, FIXME.
- * However, this is doing disk I/O (even if cached, system calls), so maybe it's not a big deal ...
+ *
+ * LOCKING: Locking a file which is already open, and unlocking it, only needs a compare-and-set
+ * on lockLevel, so reads and writes to different files don't contend on the pool. We only take
+ * the lock on the FDTracker to open or close a file descriptor, to wait for one, or to wake up a
+ * thread that is waiting for one.
  *
  * FIXME does this need a shutdown hook? I don't see why it would matter ... ??? */
 public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer, Serializable {
@@ -32,8 +40,24 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
 
     static class FDTracker implements Serializable {
         private int maxOpenFDs;
-        private int totalOpenFDs = 0;
-        private final LinkedHashSet<PooledFileRandomAccessBuffer> closables = new LinkedHashSet<PooledFileRandomAccessBuffer>();
+        /** Every buffer with an open fd, locked or not. Changed only when opening or closing a
+         * file, under the lock on the tracker. Each buffer knows its own index, so removal is
+         * cheap. */
+        private final ArrayList<PooledFileRandomAccessBuffer> open = new ArrayList<PooledFileRandomAccessBuffer>();
+        /** Clock hand for choosing which fd to close. A buffer which has been used since the hand
+         * last passed it gets a second chance, so this approximates LRU without having to
+         * reorder a list (and take a lock) every time a buffer is used. */
+        private int hand;
+        /** Number of threads waiting for an fd. Incremented before checking whether any can be
+         * closed, so an unlock() that doesn't see it will be seen by the waiter. */
+        private volatile int waiters;
+        /** Total number of files opened. */
+        private long opens;
+        /** Number of files opened again after we closed them to stay within the limit. A high
+         * rate of reopens relative to opens means the pool is too small. */
+        private long reopens;
+        /** Number of fds closed to stay within the limit. */
+        private long evictions;
         FDTracker(int maxOpenFDs) {
             this.maxOpenFDs = maxOpenFDs;
         }
@@ -44,29 +68,124 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             maxOpenFDs = max;
         }
 
+        synchronized int getMaxFDs() {
+            return maxOpenFDs;
+        }
+
         /** How many fd's are open right now? Mainly for tests but also for stats. */
         synchronized int getOpenFDs() {
-            return totalOpenFDs;
+            return open.size();
         }
 
         synchronized int getClosableFDs() {
-            return closables.size();
+            int count = 0;
+            for(PooledFileRandomAccessBuffer buf : open)
+                if(buf.lockLevel == 0) count++;
+            return count;
+        }
+
+        synchronized long getOpens() {
+            return opens;
+        }
+
+        synchronized long getReopens() {
+            return reopens;
+        }
+
+        synchronized long getEvictions() {
+            return evictions;
+        }
+
+        /** Caller must hold the lock on the tracker. */
+        private void add(PooledFileRandomAccessBuffer buf) {
+            buf.openIndex = open.size();
+            open.add(buf);
+            opens++;
+            if(buf.evicted) {
+                reopens++;
+                buf.evicted = false;
+            }
+        }
+
+        /** Caller must hold the lock on the tracker. */
+        private void remove(PooledFileRandomAccessBuffer buf) {
+            PooledFileRandomAccessBuffer last = open.remove(open.size()-1);
+            if(last != buf) {
+                open.set(buf.openIndex, last);
+                last.openIndex = buf.openIndex;
+            }
+            buf.openIndex = -1;
+        }
+
+        /** Close the fd of a buffer which is not locked and has not been used recently. Caller
+         * must hold the lock on the tracker.
+         * @return False if every open buffer is locked. */
+        private boolean closeOne() {
+            // Two full turns: The first may only clear the recently used flags.
+            for(int i=0;i<open.size()*2;i++) {
+                if(hand >= open.size()) hand = 0;
+                PooledFileRandomAccessBuffer buf = open.get(hand);
+                if(buf.lockLevel == 0) {
+                    if(buf.recentlyUsed) {
+                        buf.recentlyUsed = false;
+                    } else if(buf.tryCloseRAF()) {
+                        // The last buffer has moved into this slot, so don't advance the hand.
+                        buf.evicted = true;
+                        evictions++;
+                        return true;
+                    }
+                }
+                hand++;
+            }
+            return false;
         }
     }
+    /** The default pool uses at most a quarter of the process's fd limit, leaving the rest for
+     * sockets, the datastore, plugins etc., but never less than we always used to allow. */
+    private static final int MIN_DEFAULT_FDS = 100;
+    private static final int MAX_DEFAULT_FDS = 1000;
     // static variables are always transient
-    private static final FDTracker DEFAULT_FDTRACKER = new FDTracker(100);
+    private static final FDTracker DEFAULT_FDTRACKER = new FDTracker(defaultMaxFDs());
     private transient FDTracker fds;
 
+    static int defaultMaxFDs() {
+        try {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            // Only available on Unix, and not on every JVM.
+            Class<?> unix = Class.forName("com.sun.management.UnixOperatingSystemMXBean");
+            if(unix.isInstance(os)) {
+                long limit = (Long) unix.getMethod("getMaxFileDescriptorCount").invoke(os);
+                return (int) Math.max(MIN_DEFAULT_FDS, Math.min(MAX_DEFAULT_FDS, limit / 4));
+            }
+        } catch (Throwable t) {
+            Logger.normal(PooledFileRandomAccessBuffer.class, "Unable to get the file descriptor limit: "+t);
+        }
+        return MIN_DEFAULT_FDS;
+    }
+
+    private static final AtomicIntegerFieldUpdater<PooledFileRandomAccessBuffer> LOCK_LEVEL =
+        AtomicIntegerFieldUpdater.newUpdater(PooledFileRandomAccessBuffer.class, "lockLevel");
+
     public final File file;
     private final boolean readOnly;
     /** >0 means locked. We will wait until we get the lock if necessary, this is always accurate.
-     * LOCKING: Synchronized on fds. */
-    private int lockLevel;
-    /** The actual RAF. Non-null only if open. LOCKING: Synchronized on (this).
-     * LOCKING: Always take (this) last, i.e. after fds. */
-    private transient RandomAccessFile raf;
+     * -1 means the fd is being closed, by a thread holding the lock on fds.
+     * LOCKING: Changed with compare-and-set, see LOCK_LEVEL. Only goes from 0 to -1 and back
+     * under the lock on fds. */
+    private volatile int lockLevel;
+    /** The actual RAF. Non-null only if open. Only set and cleared under the lock on fds, and
+     * only cleared while lockLevel is -1. Seeking and reading or writing are synchronized on
+     * (this). LOCKING: Always take (this) last, i.e. after fds. */
+    private transient volatile RandomAccessFile raf;
+    /** Set whenever the buffer is locked while already open, cleared by the clock hand. See
+     * FDTracker.closeOne(). */
+    private transient volatile boolean recentlyUsed;
+    /** True if we closed the fd to make room for another one. LOCKING: Synchronized on fds. */
+    private transient boolean evicted;
+    /** Index in FDTracker.open, or -1. LOCKING: Synchronized on fds. */
+    private transient int openIndex = -1;
     private final long length;
-    private boolean closed;
+    private volatile boolean closed;
     /** -1 = not persistent-temp. Otherwise the ID. We need the ID so we can move files if the
      * prefix changes. */
     private final long persistentTempID;
@@ -111,10 +230,8 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             this.length = currentLength;
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
-                raf.close();
-                raf = null;
-            }
+            lock.unlock();
+            close();
             throw e;
         }
     }
@@ -133,10 +250,36 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             raf.write(initialContents, offset, size);
             lock.unlock();
         } catch (IOException e) {
-            synchronized(this) {
-                raf.close();
-                raf = null;
-            }
+            lock.unlock();
+            close();
+            throw e;
+        }
+    }
+
+    /** Create a file containing the data in a set of buffers, e.g. off-heap memory being
+     * migrated to disk. The buffers are written with the file's channel, so direct buffers are not
+     * copied through the Java heap. */
+    PooledFileRandomAccessBuffer(File file, ByteBuffer[] initialContents, long persistentTempID,
+            boolean deleteOnFree, boolean readOnly) throws IOException {
+        this.file = file;
+        this.readOnly = readOnly;
+        long size = 0;
+        for(ByteBuffer buf : initialContents)
+            size += buf.remaining();
+        this.length = size;
+        this.persistentTempID = persistentTempID;
+        this.deleteOnFree = deleteOnFree;
+        this.fds = DEFAULT_FDTRACKER;
+        lockLevel = 0;
+        RAFLock lock = lockOpen(true);
+        try {
+            FileChannel channel = raf.getChannel();
+            while(size > 0)
+                size -= channel.write(initialContents);
+            lock.unlock();
+        } catch (IOException e) {
+            lock.unlock();
+            close();
             throw e;
         }
     }
@@ -155,6 +298,9 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         in.defaultReadObject();
         // use the default fdtracker to avoid having one fd tracker per P F R A Buffer
         this.fds = DEFAULT_FDTRACKER;
+        // Not open, so not locked, whatever it was when it was stored.
+        lockLevel = 0;
+        openIndex = -1;
     }
 
     @Override
@@ -195,6 +341,36 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
 
+    /** Copy part of the file directly to a channel, e.g. another file. This avoids copying the
+     * data through the Java heap, and on most platforms avoids copying it into user space at all.
+     * @param fileOffset The offset in this file to start copying from.
+     * @param length The number of bytes to copy.
+     * @param target The channel to write to.
+     * @throws IOException If an error occurs, or the file ends before we have copied length bytes.
+     */
+    public void transferTo(long fileOffset, long length, WritableByteChannel target) throws IOException {
+        if(fileOffset < 0 || length < 0) throw new IllegalArgumentException();
+        if(fileOffset + length > this.length)
+            throw new IOException("Length limit exceeded");
+        RAFLock lock = lockOpen();
+        try {
+            // FileChannel.transferTo() uses its own position, so doesn't need the lock on this.
+            FileChannel channel = raf.getChannel();
+            while(length > 0) {
+                long moved = channel.transferTo(fileOffset, length, target);
+                if(moved <= 0) {
+                    if(fileOffset >= channel.size())
+                        throw new IOException("File truncated: "+this);
+                    continue;
+                }
+                fileOffset += moved;
+                length -= moved;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void close() {
         if(logMINOR) Logger.minor(this, "Closing "+this, new Exception("debug"));
@@ -203,9 +379,8 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
                 throw new IllegalStateException("Must unlock first!");
             closed = true;
             // Essential to avoid memory leak!
-            // Potentially slow but only happens on close(). Plus the size of closables is bounded anyway by the fd limit.
-            fds.closables.remove(this);
-            closeRAF();
+            if(!tryCloseRAF())
+                throw new IllegalStateException("Must unlock first!");
         }
     }
 
@@ -223,67 +398,84 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
             }
 
         };
+        // Fast path: Already open, may or may not be already locked.
+        int level;
+        while((level = lockLevel) >= 0 && raf != null && !closed) {
+            if(LOCK_LEVEL.compareAndSet(this, level, level+1)) {
+                // The fd can't be closed while we hold the lock, but it may have been closed
+                // just before we got it.
+                if(raf != null && !closed) {
+                    recentlyUsed = true;
+                    return lock;
+                }
+                unlock();
+                break;
+            }
+        }
         synchronized(fds) {
             while(true) {
-                fds.closables.remove(this);
                 if(closed) throw new IOException("Already closed "+this);
                 if(raf != null) {
-                    lockLevel++; // Already open, may or may not be already locked.
-                    return lock;
-                } else if(fds.totalOpenFDs < fds.maxOpenFDs) {
+                    // Opened by another thread. Nobody else can set -1 while we hold fds.
+                    level = lockLevel;
+                    if(LOCK_LEVEL.compareAndSet(this, level, level+1)) {
+                        recentlyUsed = true;
+                        return lock;
+                    }
+                    continue;
+                } else if(fds.open.size() < fds.maxOpenFDs) {
                     raf = new RandomAccessFile(file, (readOnly && !forceWrite) ? "r" : "rw");
-                    lockLevel++;
-                    fds.totalOpenFDs++;
+                    LOCK_LEVEL.incrementAndGet(this);
+                    // Not marked as used until it is used again, so a file which is only used
+                    // once is closed before the ones that are used all the time.
+                    recentlyUsed = false;
+                    fds.add(this);
                     return lock;
                 } else {
-                    PooledFileRandomAccessBuffer closable = pollFirstClosable();
-                    if(closable != null) {
-                        closable.closeRAF();
-                        continue;
-                    }
+                    fds.waiters++;
                     try {
+                        if(fds.closeOne()) continue;
                         fds.wait();
                     } catch (InterruptedException e) {
                         // Ignore
+                    } finally {
+                        fds.waiters--;
                     }
                 }
             }
         }
     }
 
-    private PooledFileRandomAccessBuffer pollFirstClosable() {
+    /** Exposed for tests only. Used internally. Must be unlocked. */
+    protected void closeRAF() {
         synchronized(fds) {
-            Iterator<PooledFileRandomAccessBuffer> it = fds.closables.iterator();
-            if (it.hasNext()) {
-                PooledFileRandomAccessBuffer first = it.next();
-                it.remove();
-                return first;
-            }
-            return null;
+            if(!tryCloseRAF()) throw new IllegalStateException();
         }
     }
 
-    /** Exposed for tests only. Used internally. Must be unlocked. */
-    protected void closeRAF() {
-        synchronized(fds) {
-            if(lockLevel != 0) throw new IllegalStateException();
-            if(raf == null) return;
-            try {
-                raf.close();
-            } catch (IOException e) {
-                Logger.error(this, "Error closing "+this+" : "+e, e);
-            }
-            raf = null;
-            fds.totalOpenFDs--;
+    /** Close the fd if it is open and not locked. Caller must hold the lock on fds.
+     * @return False if it is locked. */
+    private boolean tryCloseRAF() {
+        if(raf == null) return lockLevel == 0;
+        // Stop anyone locking it while we close it.
+        if(!LOCK_LEVEL.compareAndSet(this, 0, -1)) return false;
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Logger.error(this, "Error closing "+this+" : "+e, e);
         }
+        raf = null;
+        fds.remove(this);
+        lockLevel = 0;
+        return true;
     }
 
     private void unlock() {
-        synchronized(fds) {
-            lockLevel--;
-            if(lockLevel > 0) return;
-            fds.closables.add(this);
-            fds.notify();
+        if(LOCK_LEVEL.decrementAndGet(this) > 0) return;
+        if(fds.waiters > 0) {
+            synchronized(fds) {
+                fds.notify();
+            }
         }
     }
 
@@ -319,6 +511,27 @@ public class PooledFileRandomAccessBuffer implements LockableRandomAccessBuffer,
         }
     }
 
+    /** @return The number of files the default pool may have open at once. */
+    public static int getMaxOpenFiles() {
+        return DEFAULT_FDTRACKER.getMaxFDs();
+    }
+
+    /** @return The number of files the default pool has open right now. */
+    public static int getOpenFiles() {
+        return DEFAULT_FDTRACKER.getOpenFDs();
+    }
+
+    /** @return The total number of files the default pool has opened. */
+    public static long getFileOpens() {
+        return DEFAULT_FDTRACKER.getOpens();
+    }
+
+    /** @return The number of files the default pool has had to open again after closing them to
+     * stay within the limit. */
+    public static long getFileReopens() {
+        return DEFAULT_FDTRACKER.getReopens();
+    }
+
     @Override
     public void onResume(ClientContext context) throws ResumeFailedException {
         if(!file.exists()) throw new ResumeFailedException("File does not exist: "+file);
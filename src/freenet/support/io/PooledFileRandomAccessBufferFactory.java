@@ -2,6 +2,7 @@ package freenet.support.io;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import freenet.support.api.LockableRandomAccessBuffer;
@@ -50,4 +51,19 @@ public class PooledFileRandomAccessBufferFactory implements LockableRandomAccess
         }
     }
 
+    /** Create a RAF containing the data in a set of buffers, e.g. off-heap memory being migrated
+     * to disk. */
+    public LockableRandomAccessBuffer makeRAF(ByteBuffer[] initialContents, boolean readOnly)
+            throws IOException {
+        long id = fg.makeRandomFilename();
+        File file = fg.getFilename(id);
+        LockableRandomAccessBuffer ret = null;
+        try {
+            ret = new PooledFileRandomAccessBuffer(file, initialContents, id, true, readOnly);
+            return ret;
+        } finally {
+            if(ret == null) file.delete();
+        }
+    }
+
 }
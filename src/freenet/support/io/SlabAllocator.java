@@ -0,0 +1,97 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out fixed size slabs of off-heap memory for in-RAM temporary data (see
+ * {@link SlabBucket} and {@link SlabRandomAccessBuffer}), and keeps the slabs which have been
+ * freed for reuse. Data in flight therefore doesn't churn the Java heap: Filling and freeing a
+ * bucket doesn't create any garbage apart from a few small objects, and the data is never moved
+ * by the garbage collector.
+ *
+ * Slabs are carved out of bigger direct buffers, because allocating direct memory is slow and has
+ * a significant overhead for each buffer. Memory is kept once it has been allocated, so the total
+ * is the peak usage, which is limited by the caller, e.g. {@link TempBucketFactory} only keeps
+ * buckets in RAM up to its limit on RAM used, plus rounding up to whole slabs.
+ *
+ * Slabs are always zeroed when they are handed out.
+ *
+ * LOCKING: Synchronized on this.
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 4096;
+    /** Number of slabs allocated from the JVM at once. */
+    private static final int SLABS_PER_CHUNK = 64;
+
+    private final int slabSize;
+    private final ArrayDeque<ByteBuffer> free;
+    /** Zeros, for clearing freed slabs. */
+    private final byte[] zeros;
+    /** Total off-heap memory allocated. */
+    private long allocatedBytes;
+    /** Number of slabs handed out and not yet freed. */
+    private long slabsInUse;
+
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    public SlabAllocator(int slabSize) {
+        if(slabSize <= 0) throw new IllegalArgumentException();
+        this.slabSize = slabSize;
+        free = new ArrayDeque<ByteBuffer>();
+        zeros = new byte[slabSize];
+    }
+
+    public int slabSize() {
+        return slabSize;
+    }
+
+    /** @return A zeroed slab, with position 0 and limit slabSize().
+     * @throws IOException If we run out of direct memory, see -XX:MaxDirectMemorySize. */
+    public synchronized ByteBuffer allocate() throws IOException {
+        if(free.isEmpty()) {
+            ByteBuffer chunk;
+            try {
+                chunk = ByteBuffer.allocateDirect(slabSize * SLABS_PER_CHUNK);
+            } catch (OutOfMemoryError e) {
+                throw new IOException("Out of off-heap memory for temporary data: "+e);
+            }
+            allocatedBytes += chunk.capacity();
+            for(int i=0;i<SLABS_PER_CHUNK;i++) {
+                chunk.limit((i+1)*slabSize);
+                chunk.position(i*slabSize);
+                free.add(chunk.slice());
+            }
+        }
+        slabsInUse++;
+        return free.removeLast();
+    }
+
+    /** Return a slab to the pool. The caller must not use it again. */
+    public synchronized void free(ByteBuffer slab) {
+        if(slab.capacity() != slabSize) throw new IllegalArgumentException();
+        slab.clear();
+        slab.put(zeros);
+        slab.clear();
+        slabsInUse--;
+        free.add(slab);
+    }
+
+    /** @return The total off-heap memory allocated, including slabs waiting to be reused. */
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /** @return The memory in slabs which are in use. */
+    public synchronized long getUsedBytes() {
+        return slabsInUse * slabSize;
+    }
+
+}
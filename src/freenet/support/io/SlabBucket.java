@@ -0,0 +1,277 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.api.RandomAccessBucket;
+
+/**
+ * A bucket kept in off-heap memory from a {@link SlabAllocator}. The off-heap equivalent of
+ * {@link ArrayBucket}, used by {@link TempBucketFactory} for in-RAM temporary buckets. It grows a
+ * slab at a time, so unlike a ByteArrayOutputStream it never copies the data it already has.
+ *
+ * The memory is reused after free(), so free() must be called, and nothing can be read
+ * afterwards. After toRandomAccessBuffer(), the slabs belong to the RandomAccessBuffer, and the
+ * bucket reads through it.
+ *
+ * LOCKING: Synchronized on this.
+ */
+public class SlabBucket implements RandomAccessBucket {
+
+    private final SlabAllocator allocator;
+    private final int slabSize;
+    private final ArrayList<ByteBuffer> slabs;
+    private long size;
+    private boolean readOnly;
+    private boolean freed;
+    /** Set by toRandomAccessBuffer(), which takes over the data. */
+    private SlabRandomAccessBuffer converted;
+
+    public SlabBucket(SlabAllocator allocator) {
+        this.allocator = allocator;
+        this.slabSize = allocator.slabSize();
+        slabs = new ArrayList<ByteBuffer>();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        if(freed) throw new IOException("Already freed");
+        // Overwrite, like ArrayBucket.
+        freeSlabs();
+        size = 0;
+        return new SlabBucketOutputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStreamUnbuffered() throws IOException {
+        return getOutputStream();
+    }
+
+    private class SlabBucketOutputStream extends OutputStream {
+
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            synchronized(SlabBucket.this) {
+                checkWrite();
+                slabForWrite().put((byte) b);
+                size++;
+            }
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            synchronized(SlabBucket.this) {
+                checkWrite();
+                while(length > 0) {
+                    ByteBuffer slab = slabForWrite();
+                    int chunk = Math.min(length, slab.remaining());
+                    slab.put(buf, offset, chunk);
+                    offset += chunk;
+                    length -= chunk;
+                    size += chunk;
+                }
+            }
+        }
+
+        private void checkWrite() throws IOException {
+            if(closed) throw new IOException("Closed");
+            if(freed) throw new IOException("Already freed");
+            if(readOnly) throw new IOException("Read only");
+        }
+
+        /** @return The last slab, positioned at the end of the data, adding a slab if the last
+         * one is full. */
+        private ByteBuffer slabForWrite() throws IOException {
+            int offset = (int) (size % slabSize);
+            if(offset == 0 && size == (long) slabs.size() * slabSize)
+                slabs.add(allocator.allocate());
+            ByteBuffer slab = slabs.get((int) (size / slabSize));
+            slab.position(offset);
+            return slab;
+        }
+
+        @Override
+        public void close() {
+            synchronized(SlabBucket.this) {
+                closed = true;
+            }
+        }
+
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return getInputStreamUnbuffered();
+    }
+
+    @Override
+    public synchronized InputStream getInputStreamUnbuffered() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        return new SlabBucketInputStream();
+    }
+
+    private class SlabBucketInputStream extends InputStream {
+
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            synchronized(SlabBucket.this) {
+                if(freed) throw new IOException("Already freed");
+                if(position >= size) return -1;
+                int b;
+                if(converted != null) {
+                    byte[] buf = new byte[1];
+                    converted.pread(position, buf, 0, 1);
+                    b = buf[0] & 0xFF;
+                } else {
+                    b = slabs.get((int) (position / slabSize)).get((int) (position % slabSize)) & 0xFF;
+                }
+                position++;
+                return b;
+            }
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            int read = SlabBucket.this.read(position, buf, offset, length);
+            if(read > 0) position += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized(SlabBucket.this) {
+                if(n <= 0) return 0;
+                long skipped = Math.max(0, Math.min(n, size - position));
+                position += skipped;
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized(SlabBucket.this) {
+                return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - position));
+            }
+        }
+
+    }
+
+    private synchronized int read(long position, byte[] buf, int offset, int length) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(length == 0) return 0;
+        if(position >= size) return -1;
+        length = (int) Math.min(length, size - position);
+        if(converted != null) {
+            converted.pread(position, buf, offset, length);
+            return length;
+        }
+        int read = 0;
+        while(read < length) {
+            ByteBuffer slab = slabs.get((int) (position / slabSize)).duplicate();
+            slab.position((int) (position % slabSize));
+            int chunk = Math.min(length - read, slab.remaining());
+            slab.get(buf, offset + read, chunk);
+            position += chunk;
+            read += chunk;
+        }
+        return read;
+    }
+
+    /** Write the whole contents to a stream, e.g. when migrating to disk. Uses one slab-sized
+     * buffer, rather than copying through an InputStream and a BufferedInputStream. */
+    public synchronized void writeTo(OutputStream os) throws IOException {
+        if(freed) throw new IOException("Already freed");
+        byte[] buf = new byte[(int) Math.min(slabSize, size)];
+        long pos = 0;
+        while(pos < size) {
+            int read = read(pos, buf, 0, buf.length);
+            os.write(buf, 0, read);
+            pos += read;
+        }
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    @Override
+    public String getName() {
+        return "SlabBucket";
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public void free() {
+        synchronized(this) {
+            if(freed) return;
+            freed = true;
+            // The RandomAccessBuffer is freed by whoever it was given to.
+            if(converted != null) return;
+        }
+        freeSlabs();
+    }
+
+    private synchronized void freeSlabs() {
+        for(ByteBuffer slab : slabs)
+            allocator.free(slab);
+        slabs.clear();
+    }
+
+    /** @return The memory used, which is size() rounded up to whole slabs. */
+    public synchronized long usedBytes() {
+        return (long) slabs.size() * slabSize;
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        // Should not be used for persistent requests.
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        if(freed) throw new IOException("Already freed");
+        if(converted != null) return converted;
+        if(size > Integer.MAX_VALUE) throw new IOException("Too big");
+        readOnly = true;
+        converted = new SlabRandomAccessBuffer(allocator, slabs.toArray(new ByteBuffer[slabs.size()]),
+                (int) size, true);
+        slabs.clear();
+        return converted;
+    }
+
+}
@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.LockableRandomAccessBuffer;
+
+/**
+ * A fixed size RandomAccessBuffer kept in off-heap memory from a {@link SlabAllocator}. The
+ * off-heap equivalent of {@link ByteArrayRandomAccessBuffer}. Unlike that class, the memory is
+ * reused after free(), so free() must be called, and nothing can be read afterwards.
+ */
+public class SlabRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+    private final SlabAllocator allocator;
+    /** Null once freed. */
+    private ByteBuffer[] slabs;
+    private final int slabSize;
+    private final int size;
+    private boolean readOnly;
+    private boolean closed;
+
+    public SlabRandomAccessBuffer(SlabAllocator allocator, int size) throws IOException {
+        if(size < 0) throw new IllegalArgumentException();
+        this.allocator = allocator;
+        this.slabSize = allocator.slabSize();
+        this.size = size;
+        slabs = new ByteBuffer[(int) ((size + (long) slabSize - 1) / slabSize)];
+        try {
+            for(int i=0;i<slabs.length;i++)
+                slabs[i] = allocator.allocate();
+        } catch (IOException e) {
+            free();
+            throw e;
+        }
+    }
+
+    public SlabRandomAccessBuffer(SlabAllocator allocator, byte[] initialContents, int offset, int size,
+            boolean readOnly) throws IOException {
+        this(allocator, size);
+        pwrite(0, initialContents, offset, size);
+        this.readOnly = readOnly;
+    }
+
+    /** Take over slabs which have already been filled, e.g. by a {@link SlabBucket}. */
+    SlabRandomAccessBuffer(SlabAllocator allocator, ByteBuffer[] slabs, int size, boolean readOnly) {
+        this.allocator = allocator;
+        this.slabSize = allocator.slabSize();
+        this.slabs = slabs;
+        this.size = size;
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length)
+            throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(slabs == null) throw new IOException("Already freed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        int pos = (int) fileOffset;
+        while(length > 0) {
+            ByteBuffer slab = slabs[pos / slabSize].duplicate();
+            slab.position(pos % slabSize);
+            int chunk = Math.min(length, slab.remaining());
+            slab.get(buf, bufOffset, chunk);
+            pos += chunk;
+            bufOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    @Override
+    public synchronized void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
+            throws IOException {
+        if(closed) throw new IOException("Closed");
+        if(slabs == null) throw new IOException("Already freed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot write before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot write after end: trying to write from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        if(readOnly) throw new IOException("Read-only");
+        int pos = (int) fileOffset;
+        while(length > 0) {
+            ByteBuffer slab = slabs[pos / slabSize].duplicate();
+            slab.position(pos % slabSize);
+            int chunk = Math.min(length, slab.remaining());
+            slab.put(buf, bufOffset, chunk);
+            pos += chunk;
+            bufOffset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /** @return Read-only views of the data, size() bytes in total, e.g. for writing them to a
+     * file with a single gathering write when migrating to disk. Only valid until free(). */
+    synchronized ByteBuffer[] getBuffers() throws IOException {
+        if(slabs == null) throw new IOException("Already freed");
+        ByteBuffer[] buffers = new ByteBuffer[slabs.length];
+        int left = size;
+        for(int i=0;i<slabs.length;i++) {
+            buffers[i] = slabs[i].asReadOnlyBuffer();
+            buffers[i].clear();
+            buffers[i].limit(Math.min(left, slabSize));
+            left -= buffers[i].limit();
+        }
+        return buffers;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void free() {
+        ByteBuffer[] toFree;
+        synchronized(this) {
+            toFree = slabs;
+            if(toFree == null) return;
+            slabs = null;
+        }
+        for(ByteBuffer slab : toFree)
+            if(slab != null) allocator.free(slab);
+    }
+
+    public synchronized boolean hasBeenFreed() {
+        return slabs == null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Not persistent.
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Default hashCode() and equals() are correct for this type.
+
+}
@@ -41,11 +41,11 @@ import freenet.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- SlabBuckets, kept in off-heap memory (@see SlabAllocator)
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * SlabBuckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -67,6 +67,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final Executor executor;
 	private volatile boolean reallyEncrypt;
 	private final MasterSecret secret;
+	/** Off-heap memory for RAM buckets and RAFs, so temp data in flight doesn't churn the heap. */
+	private final SlabAllocator slabAllocator = new SlabAllocator();
 	
 	/** How big can the defaultSize be for us to consider using RAMBuckets? */
 	private long maxRAMBucketSize;
@@ -169,12 +171,12 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStreamUnbuffered();
 					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
+						((SlabBucket) toMigrate).writeTo(os);
 				} else {
 					if(size > 0) {
 						OutputStream temp = tempFB.getOutputStreamUnbuffered();
 						try {
-						BucketTools.copyTo(toMigrate, temp, size);
+						((SlabBucket) toMigrate).writeTo(temp);
 						} finally {
 						temp.close();
 						}
@@ -183,10 +185,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				if(toMigrate.isReadOnly())
 					tempFB.setReadOnly();
 				
-				closeInputStreams(false);
-				
 				currentBucket = tempFB;
-				// We need streams to be reset to point to the new bucket
+				// We need streams to be reset to point to the new bucket, before we free the old 
+				// one, whose memory will be reused.
+				closeInputStreams(false);
 			}
 			if(logMINOR)
 				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
@@ -203,7 +205,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof SlabBucket);
 		}
 		
 		@Override
@@ -575,6 +577,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return bytesInUse;
 	}
 	
+	/** @return The off-heap memory allocated for RAM buckets, including memory kept for reuse. */
+	public long getOffHeapAllocated() {
+		return slabAllocator.getAllocatedBytes();
+	}
+	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
 	}
@@ -638,7 +645,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new SlabBucket(slabAllocator) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -802,7 +809,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    private final Throwable tracer;
 	    
 	    TempRandomAccessBuffer(int size, long time) throws IOException {
-	        super(new ByteArrayRandomAccessBuffer(size), size);
+	        super(new SlabRandomAccessBuffer(slabAllocator, size), size);
 	        creationTime = time;
 	        hasMigrated = false;
 	        original = null;
@@ -813,7 +820,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    }
 
         public TempRandomAccessBuffer(byte[] initialContents, int offset, int size, long time, boolean readOnly) throws IOException {
-            super(new ByteArrayRandomAccessBuffer(initialContents, offset, size, readOnly), size);
+            super(new SlabRandomAccessBuffer(slabAllocator, initialContents, offset, size, readOnly), size);
             creationTime = time;
             hasMigrated = false;
             original = null;
@@ -836,9 +843,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         @Override
         protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
-            ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
-            byte[] buf = b.getBuffer();
-            return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
+            SlabRandomAccessBuffer b = (SlabRandomAccessBuffer)underlying;
+            return diskRAFFactory.makeRAF(b.getBuffers(), b.isReadOnly());
         }
 
         @Override
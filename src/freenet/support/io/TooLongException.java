@@ -5,11 +5,12 @@ package freenet.support.io;
 
 import java.io.IOException;
 
-/** Exception thrown by a LineReadingInputStream when a line is too long. */
+/** Exception thrown by a LineReadingInputStream, or anything else reading lines, when a line is
+ * too long. */
 public class TooLongException extends IOException {
 	private static final long serialVersionUID = -1;
 
-	TooLongException(String s) {
+	public TooLongException(String s) {
 		super(s);
 	}
 }
\ No newline at end of file
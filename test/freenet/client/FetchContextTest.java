@@ -29,4 +29,21 @@ public class FetchContextTest extends TestCase {
         bucket.free();
     }
 
+    public void testPersistenceFetchInOrder() throws IOException, StorageFormatException {
+        FetchContext context = 
+            HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE, Long.MAX_VALUE, 
+                    new ArrayBucketFactory(), new SimpleEventProducer());
+        context.fetchInOrder = true;
+        ArrayBucket bucket = new ArrayBucket();
+        DataOutputStream dos = new DataOutputStream(bucket.getOutputStream());
+        context.writeTo(dos);
+        dos.close();
+        DataInputStream dis = new DataInputStream(bucket.getInputStream());
+        FetchContext ctx = new FetchContext(dis);
+        dis.close();
+        assertTrue(ctx.fetchInOrder);
+        assertTrue(ctx.equals(context));
+        bucket.free();
+    }
+
 }
@@ -0,0 +1,300 @@
+package freenet.client.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.clients.fcp.ClientRequest;
+import freenet.clients.fcp.DummyClientRequest;
+import freenet.clients.fcp.PersistentRequestRoot;
+import freenet.node.MasterKeysWrongPasswordException;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.node.RequestStarterGroup;
+import freenet.support.CheatingTicker;
+import freenet.support.PooledExecutor;
+import freenet.support.Ticker;
+import freenet.support.WaitableExecutor;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.TempBucketFactory;
+
+/** Tests that the journal and the backups written by {@link ClientLayerPersister} are read back
+ * correctly, including after a crash while writing client.dat. */
+public class ClientLayerPersisterTest {
+
+    private static final String BASE_NAME = "client.dat";
+
+    private final File dir = new File("tmp.client-layer-persister-test");
+    private final WaitableExecutor exec = new WaitableExecutor(new PooledExecutor());
+    private final Ticker ticker = new CheatingTicker(exec);
+
+    /** Doesn't need the node. */
+    private static class StatsPutter extends PersistentStatsPutter {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void updateData(Node n) {
+            // Ignore.
+        }
+
+    }
+
+    /** A persister and the queue it loaded into. */
+    private class Session {
+
+        final PersistentRequestRoot root = new PersistentRequestRoot();
+        /** The requests written by the persister. Null to write those in {@link #root}. */
+        final List<ClientRequest> queue;
+        final ClientLayerPersister persister;
+
+        Session(List<ClientRequest> queue) throws IOException, MasterKeysWrongPasswordException {
+            this.queue = queue;
+            NodeClientCore core = mock(NodeClientCore.class);
+            when(core.getPersistentRequests()).thenAnswer(new Answer<ClientRequest[]>() {
+
+                @Override
+                public ClientRequest[] answer(InvocationOnMock invocation) {
+                    if(Session.this.queue == null) return root.getPersistentRequests();
+                    synchronized(Session.this.queue) {
+                        return Session.this.queue.toArray(new ClientRequest[Session.this.queue.size()]);
+                    }
+                }
+
+            });
+            TempBucketFactory tempBucketFactory = mock(TempBucketFactory.class);
+            when(tempBucketFactory.makeBucket(anyLong())).thenAnswer(new Answer<RandomAccessBucket>() {
+
+                @Override
+                public RandomAccessBucket answer(InvocationOnMock invocation) {
+                    return new ArrayBucket();
+                }
+
+            });
+            persister = new ClientLayerPersister(exec, ticker, mock(Node.class), core,
+                    mock(PersistentTempBucketFactory.class), tempBucketFactory, new StatsPutter());
+            ClientContext context = new ClientContext(0, persister, exec, null, null, tempBucketFactory,
+                    null, null, null, null, null, ticker, null, null, null, null, null, null, null, null,
+                    null, root, null, null, null, null, null);
+            persister.start(context);
+            persister.setFilesAndLoad(dir, BASE_NAME, false, false, null, context,
+                    mock(RequestStarterGroup.class), new Random(0));
+            // Wait for the first checkpoint, which writes everything.
+            exec.waitForIdle();
+        }
+
+        /** Tell the persister that the request has changed, as ClientRequester does. */
+        void setChanged(DummyClientRequest request) {
+            ClientRequester requester = mock(ClientRequester.class);
+            when(requester.getCallback()).thenReturn(request);
+            persister.setChanged(requester);
+        }
+
+        void add(ClientRequest request) {
+            synchronized(queue) {
+                queue.add(request);
+            }
+        }
+
+        void remove(ClientRequest request) {
+            synchronized(queue) {
+                queue.remove(request);
+            }
+        }
+
+        DummyClientRequest get(String identifier) {
+            return DummyClientRequest.get(root, identifier);
+        }
+
+    }
+
+    @Before
+    public void setUp() {
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    /** Start with requests A to D in client.dat, all with value 1. */
+    private Session start() throws IOException, MasterKeysWrongPasswordException {
+        List<ClientRequest> queue = new ArrayList<ClientRequest>();
+        Session session = new Session(queue);
+        for(String identifier : new String[] { "A", "B", "C", "D" })
+            queue.add(new DummyClientRequest(session.root, identifier, 1));
+        session.persister.save(true);
+        assertTrue(file(BASE_NAME).exists());
+        return session;
+    }
+
+    private Session load() throws IOException, MasterKeysWrongPasswordException {
+        return new Session(null);
+    }
+
+    private File file(String name) {
+        return new File(dir, name);
+    }
+
+    /** Write a journal file, and check that it was a journal file rather than everything. */
+    private void saveJournal(Session session, int index) {
+        long modified = file(BASE_NAME).lastModified();
+        long length = file(BASE_NAME).length();
+        session.persister.save(false);
+        assertTrue(file(BASE_NAME + ".journal." + index).exists());
+        assertEquals(length, file(BASE_NAME).length());
+        assertEquals(modified, file(BASE_NAME).lastModified());
+    }
+
+    @Test
+    public void testLoadClientDat() throws Exception {
+        start();
+        Session loaded = load();
+        for(String identifier : new String[] { "A", "B", "C", "D" })
+            assertEquals(1, loaded.get(identifier).value);
+    }
+
+    @Test
+    public void testJournalChangeOverridesClientDat() throws Exception {
+        Session session = start();
+        DummyClientRequest b = (DummyClientRequest) session.queue.get(1);
+        b.value = 2;
+        session.setChanged(b);
+        saveJournal(session, 0);
+        b.value = 3;
+        session.setChanged(b);
+        saveJournal(session, 1);
+        Session loaded = load();
+        assertEquals(1, loaded.get("A").value);
+        assertEquals(3, loaded.get("B").value);
+    }
+
+    @Test
+    public void testUnchangedRequestNotInJournal() throws Exception {
+        Session session = start();
+        session.add(new DummyClientRequest(session.root, "E", 1));
+        saveJournal(session, 0);
+        long length = file(BASE_NAME + ".journal.0").length();
+        // Nothing has changed since, so there is nothing to write.
+        session.persister.save(false);
+        assertFalse(file(BASE_NAME + ".journal.1").exists());
+        assertEquals(length, file(BASE_NAME + ".journal.0").length());
+    }
+
+    @Test
+    public void testJournalAddition() throws Exception {
+        Session session = start();
+        session.add(new DummyClientRequest(session.root, "E", 5));
+        saveJournal(session, 0);
+        Session loaded = load();
+        assertEquals(5, loaded.get("E").value);
+        assertEquals(1, loaded.get("A").value);
+    }
+
+    @Test
+    public void testJournalRemovalOverridesClientDat() throws Exception {
+        Session session = start();
+        session.remove(session.queue.get(1));
+        saveJournal(session, 0);
+        Session loaded = load();
+        assertNull(loaded.get("B"));
+        assertNotNull(loaded.get("A"));
+    }
+
+    @Test
+    public void testRemovalOverridesOlderJournal() throws Exception {
+        Session session = start();
+        DummyClientRequest b = (DummyClientRequest) session.queue.get(1);
+        b.value = 2;
+        session.setChanged(b);
+        saveJournal(session, 0);
+        session.remove(b);
+        saveJournal(session, 1);
+        Session loaded = load();
+        assertNull(loaded.get("B"));
+        assertNotNull(loaded.get("A"));
+    }
+
+    @Test
+    public void testRemovedRequestNotLoadedFromBackup() throws Exception {
+        Session session = start();
+        session.remove(session.queue.get(1));
+        saveJournal(session, 0);
+        // Write everything. client.dat.bak still has B, and the journal which removed it becomes
+        // the journal for client.dat.bak.
+        session.persister.save(true);
+        assertTrue(file(BASE_NAME + ".bak").exists());
+        assertTrue(file(BASE_NAME + ".bak.journal.0").exists());
+        assertFalse(file(BASE_NAME + ".journal.0").exists());
+        Session loaded = load();
+        assertNull(loaded.get("B"));
+        assertNotNull(loaded.get("A"));
+    }
+
+    /** Change B, add E and remove D in the journal, then write everything again. */
+    private void startAndWriteAllAfterJournal() throws Exception {
+        Session session = start();
+        DummyClientRequest b = (DummyClientRequest) session.queue.get(1);
+        b.value = 2;
+        session.setChanged(b);
+        session.add(new DummyClientRequest(session.root, "E", 1));
+        session.remove(session.queue.get(3));
+        saveJournal(session, 0);
+        session.persister.save(true);
+        assertTrue(file(BASE_NAME + ".bak").exists());
+        assertTrue(file(BASE_NAME + ".bak.journal.0").exists());
+    }
+
+    private void checkRecovered(Session loaded) {
+        assertEquals(1, loaded.get("A").value);
+        assertEquals(2, loaded.get("B").value);
+        assertEquals(1, loaded.get("C").value);
+        assertNull(loaded.get("D"));
+        assertEquals(1, loaded.get("E").value);
+    }
+
+    @Test
+    public void testRecoverWhenClientDatMissing() throws Exception {
+        startAndWriteAllAfterJournal();
+        // Crashed after moving client.dat and the journal to the backup, before writing client.dat.
+        assertTrue(file(BASE_NAME).delete());
+        checkRecovered(load());
+    }
+
+    @Test
+    public void testRecoverWhenClientDatTruncated() throws Exception {
+        startAndWriteAllAfterJournal();
+        // Crashed while writing client.dat.
+        RandomAccessFile raf = new RandomAccessFile(file(BASE_NAME), "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+        checkRecovered(load());
+    }
+
+}
@@ -32,13 +32,19 @@ import freenet.keys.Key;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
 import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.PooledExecutor;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
@@ -375,4 +381,220 @@ public class ClientRequestSelectorTest extends TestCase {
 
 
     
+    /** Simple request for testing the tree structure. */
+    static class MyItem implements RandomGrabArrayItem {
+        
+        final int id;
+        volatile long wakeupTime;
+        private RandomGrabArray parent;
+        
+        MyItem(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            long w = wakeupTime;
+            if(w > 0 && w < now) return 0;
+            return w;
+        }
+
+        @Override
+        public boolean knowsParentGrabArray() {
+            return true;
+        }
+
+        @Override
+        public synchronized void setParentGrabArray(RandomGrabArray parent) {
+            this.parent = parent;
+        }
+
+        @Override
+        public synchronized RandomGrabArray getParentGrabArray() {
+            return parent;
+        }
+
+        @Override
+        public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
+            RandomGrabArray parent = getParentGrabArray();
+            if(parent == null) return false;
+            return parent.reduceWakeupTime(this, wakeupTime, context);
+        }
+
+        @Override
+        public void clearWakeupTime(ClientContext context) {
+            RandomGrabArray parent = getParentGrabArray();
+            if(parent == null) return;
+            parent.clearWakeupTime(this, context);
+        }
+        
+    }
+    
+    static class MyClient implements RequestClient, ClientRequestSchedulerGroup {
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public boolean realTimeFlag() {
+            return false;
+        }
+        
+    }
+    
+    static final RandomGrabArrayItemExclusionList NO_EXCLUSIONS = new RandomGrabArrayItemExclusionList() {
+
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+        
+    };
+    
+    private ClientContext makeContext(Random random) {
+        return new ClientContext(0, null, executor, null, null, null, null, null, null, null, 
+                random, ticker, null, null, null, null, null, null, null, null, null, null, null, 
+                null, null, null, null);
+    }
+    
+    /** Add a client with a single group containing the given items. */
+    private void addClient(ClientRequestSelector selector, int prio, MyItem[] items, 
+            ClientContext context) {
+        ClientRequestSelector.RequestClientRGANode top = selector.priorities[prio];
+        MyClient client = new MyClient();
+        synchronized(top) {
+            ClientRequestSelector.ClientRequestRGANode node = 
+                new ClientRequestSelector.ClientRequestRGANode(client, top, selector);
+            top.addGrabber(client, node, context);
+            for(MyItem item : items)
+                node.add(client, item, context);
+        }
+    }
+    
+    private MyItem[] makeItems(int start, int count) {
+        MyItem[] items = new MyItem[count];
+        for(int i=0;i<count;i++)
+            items[i] = new MyItem(start + i);
+        return items;
+    }
+    
+    public void testSelectionFairness() {
+        ClientContext context = makeContext(new Random(1010));
+        ClientRequestSelector selector = new ClientRequestSelector(false, false, false, null);
+        addClient(selector, 1, makeItems(0, 1), context);
+        addClient(selector, 1, makeItems(1, 50), context);
+        ClientRequestSelector.RequestClientRGANode top = selector.priorities[1];
+        int tries = 10000;
+        int first = 0;
+        long now = System.currentTimeMillis();
+        for(int i=0;i<tries;i++) {
+            RemoveRandomReturn ret;
+            synchronized(top) {
+                ret = top.removeRandom(NO_EXCLUSIONS, context, now);
+            }
+            assertNotNull(ret.item);
+            if(((MyItem)ret.item).id == 0) first++;
+        }
+        // Each client gets an equal share, regardless of how many requests it has.
+        assertTrue(first > tries * 0.45);
+        assertTrue(first < tries * 0.55);
+    }
+    
+    public void testWakeupTimes() {
+        ClientContext context = makeContext(new Random(1011));
+        ClientRequestSelector selector = new ClientRequestSelector(false, false, false, null);
+        long now = System.currentTimeMillis();
+        MyItem[] items = makeItems(0, 3);
+        for(int i=0;i<items.length;i++)
+            items[i].wakeupTime = now + 100000 + i;
+        addClient(selector, 2, items, context);
+        ClientRequestSelector.RequestClientRGANode top = selector.priorities[2];
+        RemoveRandomReturn ret;
+        synchronized(top) {
+            ret = top.removeRandom(NO_EXCLUSIONS, context, now);
+        }
+        assertNull(ret.item);
+        assertEquals(now + 100000, ret.wakeupTime);
+        RandomGrabArray rga = items[0].getParentGrabArray();
+        assertEquals(now + 100000, rga.getWakeupTime(context, now));
+        // Wakeup time expires.
+        assertEquals(0, rga.getWakeupTime(context, now + 100001));
+        // Request becomes ready.
+        items[2].wakeupTime = 0;
+        items[2].clearWakeupTime(context);
+        assertEquals(0, rga.getWakeupTime(context, now));
+        assertEquals(0, top.getWakeupTime(context, now));
+        synchronized(top) {
+            ret = top.removeRandom(NO_EXCLUSIONS, context, now);
+        }
+        assertSame(items[2], ret.item);
+    }
+    
+    /** Choose requests from every priority at once, while adding and removing requests, and
+     * check that the tree stays consistent. Also reports the throughput. */
+    public void testConcurrentSelection() throws InterruptedException {
+        final ClientContext context = makeContext(new Random(1012));
+        final ClientRequestSelector selector = new ClientRequestSelector(false, false, false, null);
+        final int priorities = RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS + 1;
+        final int clients = 10;
+        final int itemsPerClient = 20;
+        final int choices = 20000;
+        for(int prio=0;prio<priorities;prio++)
+            for(int i=0;i<clients;i++)
+                addClient(selector, prio, makeItems(i * itemsPerClient, itemsPerClient), context);
+        final Throwable[] failed = new Throwable[1];
+        final int[] chosen = new int[priorities];
+        Thread[] threads = new Thread[priorities * 2];
+        for(int p=0;p<priorities;p++) {
+            final int prio = p;
+            threads[p*2] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ClientRequestSelector.RequestClientRGANode top = selector.priorities[prio];
+                        for(int i=0;i<choices;i++) {
+                            RemoveRandomReturn ret;
+                            synchronized(top) {
+                                ret = top.removeRandom(NO_EXCLUSIONS, context, System.currentTimeMillis());
+                            }
+                            if(ret != null && ret.item != null) chosen[prio]++;
+                        }
+                    } catch (Throwable t) {
+                        failed[0] = t;
+                    }
+                }
+            };
+            threads[p*2+1] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i=0;i<choices/100;i++) {
+                            MyItem[] items = makeItems(1000000 + i * 10, 10);
+                            addClient(selector, prio, items, context);
+                            for(MyItem item : items)
+                                item.getParentGrabArray().remove(item, context);
+                        }
+                    } catch (Throwable t) {
+                        failed[0] = t;
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for(Thread t : threads) t.start();
+        for(Thread t : threads) t.join();
+        long time = System.nanoTime() - start;
+        if(failed[0] != null) throw new AssertionError(failed[0]);
+        for(int prio=0;prio<priorities;prio++) {
+            assertEquals(choices, chosen[prio]);
+            // The temporary clients have all gone.
+            assertEquals(clients, selector.priorities[prio].size());
+        }
+        if(TestProperty.BENCHMARK)
+            System.out.println("Chose "+(choices*priorities)+" requests in "+(time/(1000*1000))+"ms on "+
+                    priorities+" threads");
+    }
+
 }
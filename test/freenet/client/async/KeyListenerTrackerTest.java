@@ -0,0 +1,172 @@
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+import freenet.support.TestProperty;
+
+public class KeyListenerTrackerTest extends TestCase {
+
+    /** Wants a single key, like a single block fetch. */
+    private static class SingleKeyListener implements KeyListener {
+
+        final Key key;
+        boolean found;
+        boolean removed;
+
+        SingleKeyListener(Key key) {
+            this.key = key;
+        }
+
+        @Override
+        public synchronized boolean probablyWantKey(Key key, byte[] saltedKey) {
+            return !found && this.key.equals(key);
+        }
+
+        @Override
+        public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+            return (short) (probablyWantKey(key, saltedKey) ? 0 : -1);
+        }
+
+        @Override
+        public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public synchronized boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+            if(!probablyWantKey(key, saltedKey)) return false;
+            this.found = true;
+            return true;
+        }
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 0;
+        }
+
+        @Override
+        public long countKeys() {
+            return 1;
+        }
+
+        @Override
+        public HasKeyListener getHasKeyListener() {
+            return null;
+        }
+
+        @Override
+        public synchronized void onRemove() {
+            removed = true;
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return found;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+    }
+
+    private static class IndexableSingleKeyListener extends SingleKeyListener 
+    implements IndexableKeyListener {
+
+        IndexableSingleKeyListener(Key key) {
+            super(key);
+        }
+
+        @Override
+        public long countIndexableKeys() {
+            return 1;
+        }
+
+        @Override
+        public Key[] listKeys() {
+            return new Key[] { key };
+        }
+
+    }
+
+    private final Random random = new Random(1234);
+
+    private Key randomKey() {
+        byte[] routingKey = new byte[32];
+        random.nextBytes(routingKey);
+        return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    private KeyListenerTracker makeTracker() {
+        byte[] salt = new byte[32];
+        random.nextBytes(salt);
+        return new KeyListenerTracker(false, false, false, null, null, salt, false);
+    }
+
+    private SingleKeyListener[] addListeners(KeyListenerTracker tracker, int count, boolean indexable) {
+        SingleKeyListener[] listeners = new SingleKeyListener[count];
+        for(int i=0;i<count;i++) {
+            Key key = randomKey();
+            listeners[i] = indexable ? new IndexableSingleKeyListener(key) : new SingleKeyListener(key);
+            tracker.addPendingKeys(listeners[i]);
+        }
+        return listeners;
+    }
+
+    public void testBlockArrival() {
+        for(boolean indexable : new boolean[] { false, true }) {
+            KeyListenerTracker tracker = makeTracker();
+            SingleKeyListener[] listeners = addListeners(tracker, 100, indexable);
+            assertFalse(tracker.anyProbablyWantKey(randomKey(), null));
+            for(SingleKeyListener listener : listeners) {
+                assertTrue(tracker.anyProbablyWantKey(listener.key, null));
+                assertTrue(tracker.tripPendingKey(listener.key, null, null));
+                assertTrue(listener.found);
+                // Removed once it has everything.
+                assertTrue(listener.removed);
+                assertFalse(tracker.anyProbablyWantKey(listener.key, null));
+                assertFalse(tracker.tripPendingKey(listener.key, null, null));
+            }
+            assertEquals(0, tracker.countWaitingKeys());
+        }
+    }
+
+    /** Blocks arriving for 5000 single block fetches, plus blocks nobody wants, with and without
+     * the index. */
+    public void testBenchmarkBlockArrival() {
+        if(!TestProperty.BENCHMARK) return;
+        int fetches = 5000;
+        for(int run=0;run<3;run++) {
+            for(boolean indexable : new boolean[] { false, true }) {
+                KeyListenerTracker tracker = makeTracker();
+                SingleKeyListener[] listeners = addListeners(tracker, fetches, indexable);
+                Key[] unwanted = new Key[fetches];
+                for(int i=0;i<fetches;i++)
+                    unwanted[i] = randomKey();
+                long start = System.nanoTime();
+                for(Key key : unwanted)
+                    tracker.tripPendingKey(key, null, null);
+                long middle = System.nanoTime();
+                for(SingleKeyListener listener : listeners)
+                    tracker.tripPendingKey(listener.key, null, null);
+                long end = System.nanoTime();
+                System.out.println((indexable ? "Indexed" : "Not indexed")+": unwanted block "+
+                        (middle - start) / fetches+"ns, wanted block (and removing the fetch) "+
+                        (end - middle) / fetches+"ns, with "+fetches+" fetches");
+            }
+        }
+    }
+
+}
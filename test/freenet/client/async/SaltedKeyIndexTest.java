@@ -0,0 +1,177 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+
+public class SaltedKeyIndexTest extends TestCase {
+
+    private static class MyListener implements KeyListener {
+
+        @Override
+        public boolean probablyWantKey(Key key, byte[] saltedKey) {
+            return false;
+        }
+
+        @Override
+        public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+            return -1;
+        }
+
+        @Override
+        public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+            return false;
+        }
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 0;
+        }
+
+        @Override
+        public long countKeys() {
+            return 0;
+        }
+
+        @Override
+        public HasKeyListener getHasKeyListener() {
+            return null;
+        }
+
+        @Override
+        public void onRemove() {
+            // Ignore.
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+    }
+
+    private final Random random = new Random(1234);
+
+    private byte[] randomKey() {
+        byte[] buf = new byte[32];
+        random.nextBytes(buf);
+        return buf;
+    }
+
+    private List<KeyListener> get(SaltedKeyIndex index, byte[] key) {
+        List<KeyListener> matches = new ArrayList<KeyListener>();
+        index.get(key, matches);
+        return matches;
+    }
+
+    public void testAddGet() {
+        SaltedKeyIndex index = new SaltedKeyIndex(1000);
+        KeyListener a = new MyListener();
+        KeyListener b = new MyListener();
+        byte[] k1 = randomKey();
+        byte[] k2 = randomKey();
+        index.add(k1, a);
+        index.add(k2, b);
+        index.add(k2, a);
+        assertEquals(3, index.size());
+        List<KeyListener> matches = get(index, k1);
+        assertEquals(1, matches.size());
+        assertSame(a, matches.get(0));
+        matches = get(index, k2);
+        assertEquals(2, matches.size());
+        assertTrue(matches.contains(a));
+        assertTrue(matches.contains(b));
+        assertTrue(get(index, randomKey()).isEmpty());
+    }
+
+    public void testRemoveAll() {
+        SaltedKeyIndex index = new SaltedKeyIndex(100000);
+        KeyListener a = new MyListener();
+        KeyListener b = new MyListener();
+        byte[][] keysA = new byte[5000][];
+        byte[][] keysB = new byte[5000][];
+        long[] fpA = new long[keysA.length];
+        long[] fpB = new long[keysB.length];
+        for(int i=0;i<keysA.length;i++) {
+            keysA[i] = randomKey();
+            fpA[i] = index.add(keysA[i], a);
+            keysB[i] = randomKey();
+            fpB[i] = index.add(keysB[i], b);
+        }
+        assertEquals(10000, index.size());
+        assertEquals(5000, index.removeAll(a, fpA));
+        assertEquals(5000, index.size());
+        for(int i=0;i<keysA.length;i++) {
+            assertTrue(get(index, keysA[i]).isEmpty());
+            List<KeyListener> matches = get(index, keysB[i]);
+            assertEquals(1, matches.size());
+            assertSame(b, matches.get(0));
+        }
+        // Re-adding after removal reuses the space.
+        for(int i=0;i<keysA.length;i++)
+            fpA[i] = index.add(keysA[i], a);
+        for(int i=0;i<keysA.length;i++)
+            assertSame(a, get(index, keysA[i]).get(0));
+        assertEquals(5000, index.removeAll(b, fpB));
+        assertEquals(5000, index.removeAll(a, fpA));
+        assertEquals(0, index.size());
+        // Removing again does nothing.
+        assertEquals(0, index.removeAll(a, fpA));
+    }
+
+    public void testRemoveSharedKey() {
+        SaltedKeyIndex index = new SaltedKeyIndex(1000);
+        KeyListener a = new MyListener();
+        KeyListener b = new MyListener();
+        byte[] key = randomKey();
+        long fpA = index.add(key, a);
+        long fpB = index.add(key, b);
+        assertEquals(1, index.removeAll(b, new long[] { fpB }));
+        List<KeyListener> matches = get(index, key);
+        assertEquals(1, matches.size());
+        assertSame(a, matches.get(0));
+        assertEquals(1, index.removeAll(a, new long[] { fpA }));
+        assertTrue(get(index, key).isEmpty());
+    }
+
+    public void testLimit() {
+        SaltedKeyIndex index = new SaltedKeyIndex(100);
+        KeyListener a = new MyListener();
+        assertTrue(index.hasSpaceFor(100));
+        assertFalse(index.hasSpaceFor(101));
+        long[] fps = new long[100];
+        for(int i=0;i<100;i++)
+            fps[i] = index.add(randomKey(), a);
+        assertFalse(index.hasSpaceFor(1));
+        try {
+            index.add(randomKey(), a);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        index.removeAll(a, fps);
+        assertTrue(index.hasSpaceFor(100));
+    }
+
+}
@@ -821,6 +821,54 @@ public class SplitFileFetcherStorageTest extends TestCase {
         cb.checkFailed();
     }
 
+    public void testFetchInOrder() throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        TestSplitfile test = TestSplitfile.constructMultipleSegments(32768*9-1, 
+                new int[] { 3, 3, 3 }, new int[] { 4, 4, 4 }, 3, 4, 0, 
+                InsertContext.CompatibilityMode.COMPAT_1416, null, false);
+        StorageCallback cb = test.createStorageCallback();
+        FetchContext ctx = test.makeFetchContext();
+        ctx.fetchInOrder = true;
+        SplitFileFetcherStorage storage = test.createStorage(cb, ctx);
+        byte[] original = BucketTools.toByteArray(test.originalData);
+        InputStream is = storage.openInOrderStream();
+        int read = 0;
+        for(int seg=0;seg<storage.segments.length;seg++) {
+            SplitFileFetcherSegmentStorage segment = storage.segments[seg];
+            // Keys are chosen from the first incomplete segment.
+            for(int i=0;i<10;i++)
+                assertEquals(seg, storage.chooseRandomKey().segmentNumber);
+            int dataBlocks = 0;
+            for(int block=0;block<test.dataBlocks.length;block++) {
+                if(test.segmentFor(block) == seg) dataBlocks++;
+            }
+            for(int i=dataBlocks;i<segment.totalBlocks();i++)
+                segment.onNonFatalFailure(i); // We want healing on all blocks that aren't found.
+            for(int block=0;block<test.dataBlocks.length;block++) {
+                if(test.segmentFor(block) != seg) continue;
+                assertTrue(segment.onGotKey(test.getCHK(block), test.encodeBlock(block)));
+                cb.markDownloadedBlock(block);
+            }
+            waitForDecode(segment);
+            cb.checkFailed();
+            // The segment can be read without waiting for the rest.
+            byte[] buf = new byte[(int) segment.dataLength()];
+            new DataInputStream(is).readFully(buf);
+            assertTrue(Arrays.equals(Arrays.copyOfRange(original, read, read + buf.length), buf));
+            read += buf.length;
+        }
+        assertEquals(original.length, read);
+        assertEquals(-1, is.read());
+        is.close();
+        cb.waitForFinished();
+        cb.checkFailed();
+        test.verifyOutput(storage);
+        storage.finishedFetcher();
+        for(SplitFileFetcherSegmentStorage segment : storage.segments)
+            waitForFinished(segment);
+        cb.waitForFree(storage);
+        test.free();
+    }
+
     private void printChosenBlocks(boolean[] hits) {
         StringBuilder sb = new StringBuilder();
         sb.append("Blocks: ");
@@ -1153,4 +1201,52 @@ public class SplitFileFetcherStorageTest extends TestCase {
         cb.checkFailed();
     }
     
+    /** More blocks than are written to disk at once, with a reload in the middle, so some of 
+     * them are only written when the metadata is. */
+    public void testPersistenceReloadWithBatchedWrites() throws IOException, StorageFormatException, CHKEncodeException, MetadataUnresolvedException, MetadataParseException, FetchException {
+        int dataBlocks = SplitFileFetcherStorage.WRITE_BLOCKS_BATCH + 5;
+        int checkBlocks = 3;
+        long size = 32768*dataBlocks-1;
+        TestSplitfile test = TestSplitfile.constructSingleSegment(size, checkBlocks, null, true);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        SplitFileFetcherSegmentStorage segment = storage.segments[0];
+        int total = test.dataBlocks.length+test.checkBlocks.length;
+        for(int i=0;i<total;i++)
+            segment.onNonFatalFailure(i); // We want healing on all blocks that aren't found.
+        boolean[] hits = new boolean[total];
+        for(int i=0;i<test.dataBlocks.length;i++) {
+            int block;
+            do {
+                block = random.nextInt(total);
+            } while (hits[block]);
+            hits[block] = true;
+            assertFalse(segment.hasStartedDecode());
+            assertTrue(segment.onGotKey(test.getCHK(block), test.encodeBlock(block)));
+            cb.markDownloadedBlock(block);
+            if(i == SplitFileFetcherStorage.WRITE_BLOCKS_BATCH + 2) {
+                // Reload.
+                exec.waitForIdle();
+                storage = test.createStorage(cb, test.makeFetchContext(), cb.getRAF());
+                segment = storage.segments[0];
+                assertFalse(segment.corruptMetadata());
+                storage.start(false);
+            }
+        }
+        cb.checkFailed();
+        assertTrue(segment.hasStartedDecode());
+        waitForDecode(segment);
+        cb.checkFailed();
+        cb.waitForFinished();
+        cb.checkFailed();
+        test.verifyOutput(storage);
+        cb.checkFailed();
+        storage.finishedFetcher();
+        cb.checkFailed();
+        waitForFinished(segment);
+        cb.checkFailed();
+        cb.waitForFree(storage);
+        cb.checkFailed();
+    }
+    
 }
@@ -0,0 +1,137 @@
+package freenet.clients.fcp;
+
+import freenet.client.async.ClientBaseCallback;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequester;
+import freenet.node.RequestStarter;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * A persistent request on the global queue which doesn't do anything, for testing the
+ * persistence of the queue. Only {@link #value} can change.
+ */
+public class DummyClientRequest extends ClientRequest implements ClientBaseCallback {
+
+    private static final long serialVersionUID = 1L;
+
+    public int value;
+
+    public DummyClientRequest(PersistentRequestRoot root, String identifier, int value) {
+        super(null, identifier, 0, null, null, root.globalForeverClient,
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, Persistence.FOREVER, false, null, true);
+        this.value = value;
+    }
+
+    /** @return The request with this identifier on the global queue, or null. */
+    public static DummyClientRequest get(PersistentRequestRoot root, String identifier) {
+        return (DummyClientRequest) root.globalForeverClient.getRequest(identifier);
+    }
+
+    @Override
+    public void onLostConnection(ClientContext context) {
+        // Ignore.
+    }
+
+    @Override
+    public void sendPendingMessages(FCPConnectionOutputHandler handler, String listRequestIdentifier,
+            boolean includeData, boolean onlyData) {
+        // Ignore.
+    }
+
+    @Override
+    void register(boolean noTags) throws IdentifierCollisionException {
+        // Ignore.
+    }
+
+    @Override
+    protected ClientRequester getClientRequest() {
+        return null;
+    }
+
+    @Override
+    protected void freeData() {
+        // Ignore.
+    }
+
+    @Override
+    public double getSuccessFraction() {
+        return 0;
+    }
+
+    @Override
+    public double getTotalBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getMinBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFetchedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFatalyFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public String getFailureReason(boolean longDescription) {
+        return null;
+    }
+
+    @Override
+    public boolean isTotalFinalized() {
+        return false;
+    }
+
+    @Override
+    public void start(ClientContext context) {
+        // Ignore.
+    }
+
+    @Override
+    public boolean hasSucceeded() {
+        return false;
+    }
+
+    @Override
+    public boolean canRestart() {
+        return false;
+    }
+
+    @Override
+    public boolean restart(ClientContext context, boolean disableFilterData) {
+        return false;
+    }
+
+    @Override
+    RequestStatus getStatus() {
+        return null;
+    }
+
+    @Override
+    protected void innerResume(ClientContext context) throws ResumeFailedException {
+        // Ignore.
+    }
+
+    @Override
+    RequestIdentifier.RequestType getType() {
+        // Not GET, so it is never restarted from the recovery data.
+        return RequestIdentifier.RequestType.PUT;
+    }
+
+    @Override
+    public boolean fullyResumed() {
+        return false;
+    }
+
+}
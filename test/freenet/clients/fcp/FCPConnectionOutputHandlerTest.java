@@ -0,0 +1,197 @@
+package freenet.clients.fcp;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.PersistentJobRunner;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.crypt.RandomSource;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.support.PrioritizedTicker;
+import freenet.support.SimpleFieldSet;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Unit test for the coalescing of progress messages in {@link FCPConnectionOutputHandler}.
+ */
+@SuppressWarnings("deprecation")
+public class FCPConnectionOutputHandlerTest {
+
+    private static final String IDENTIFIER = "identifier";
+    private static final String OTHER_IDENTIFIER = "other";
+
+    private final PrioritizedTicker ticker = mock(PrioritizedTicker.class);
+    private final PersistentJobRunner jobRunner = mock(PersistentJobRunner.class);
+    private final Node node = mock(Node.class);
+    private FCPConnectionHandler handler;
+
+    private FCPConnectionOutputHandler createOutputHandler(int progressInterval) throws Exception {
+        NodeClientCore core = mock(NodeClientCore.class);
+        ClientContext context = mock(ClientContext.class);
+        setField(context, "jobRunner", jobRunner);
+        setField(core, "clientContext", context);
+        setField(node, "clientCore", core);
+        setField(node, "ticker", ticker);
+        setField(node, "random", mock(RandomSource.class));
+        FCPServer server = new FCPServer(null, "127.0.0.1", "127.0.0.1", 0, node, core, false, false, false, false, 1024, progressInterval, new PersistentRequestRoot());
+        handler = new FCPConnectionHandler(null, server);
+        setField(handler, "rebootClient", new PersistentRequestClient("test", handler, false, null, Persistence.REBOOT, null));
+        return handler.outputHandler;
+    }
+
+    private static void setField(Object object, String name, Object value) throws Exception {
+        Class<?> clazz = object.getClass();
+        while (true) {
+            try {
+                Field field = clazz.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(object, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                clazz = clazz.getSuperclass();
+                if (clazz == null) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static List<FCPMessage> sent(FCPConnectionOutputHandler outputHandler) {
+        synchronized (outputHandler.outQueue) {
+            return new ArrayList<FCPMessage>(outputHandler.outQueue);
+        }
+    }
+
+    private Runnable scheduledFlush() {
+        ArgumentCaptor<Runnable> job = ArgumentCaptor.forClass(Runnable.class);
+        verify(ticker).queueTimedJob(job.capture(), anyString(), anyLong(), anyBoolean(), anyBoolean());
+        return job.getValue();
+    }
+
+    @Test
+    public void onlyLatestProgressForEachRequestIsSent() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        SimpleProgressMessage first = new SimpleProgressMessage(IDENTIFIER, false, null);
+        SimpleProgressMessage other = new SimpleProgressMessage(OTHER_IDENTIFIER, false, null);
+        SimpleProgressMessage second = new SimpleProgressMessage(IDENTIFIER, false, null);
+        outputHandler.queueProgress(first);
+        outputHandler.queueProgress(other);
+        outputHandler.queueProgress(second);
+        assertThat(sent(outputHandler), empty());
+        scheduledFlush().run();
+        assertThat(sent(outputHandler), contains((FCPMessage) other, second));
+        assertThat(handler.server.getProgressMessages(), is(3L));
+        assertThat(handler.server.getCoalescedProgressMessages(), is(1L));
+    }
+
+    @Test
+    public void progressForGlobalAndLocalRequestsIsKeptApart() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        SimpleProgressMessage local = new SimpleProgressMessage(IDENTIFIER, false, null);
+        SimpleProgressMessage global = new SimpleProgressMessage(IDENTIFIER, true, null);
+        outputHandler.queueProgress(local);
+        outputHandler.queueProgress(global);
+        scheduledFlush().run();
+        assertThat(sent(outputHandler), contains((FCPMessage) local, global));
+    }
+
+    @Test
+    public void terminalMessageIsPrecededByHeldProgress() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        SimpleProgressMessage progress = new SimpleProgressMessage(IDENTIFIER, false, null);
+        SimpleProgressMessage otherProgress = new SimpleProgressMessage(OTHER_IDENTIFIER, false, null);
+        PersistentRequestRemovedMessage removed = new PersistentRequestRemovedMessage(IDENTIFIER, false);
+        outputHandler.queueProgress(progress);
+        outputHandler.queueProgress(otherProgress);
+        outputHandler.queue(removed);
+        assertThat(sent(outputHandler), contains((FCPMessage) progress, removed));
+        scheduledFlush().run();
+        assertThat(sent(outputHandler), contains((FCPMessage) progress, removed, otherProgress));
+    }
+
+    @Test
+    public void wrappedTerminalMessageIsPrecededByHeldProgress() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        SimpleProgressMessage progress = new SimpleProgressMessage(IDENTIFIER, true, null);
+        FCPMessage removed = FCPMessage.withListRequestIdentifier(new PersistentRequestRemovedMessage(IDENTIFIER, true), "list");
+        outputHandler.queueProgress(progress);
+        outputHandler.queue(removed);
+        assertThat(sent(outputHandler), contains((FCPMessage) progress, removed));
+    }
+
+    @Test
+    public void listPersistentRequestsFlushesHeldProgress() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        SimpleProgressMessage progress = new SimpleProgressMessage(IDENTIFIER, false, null);
+        outputHandler.queueProgress(progress);
+        assertThat(sent(outputHandler), empty());
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Identifier", "list");
+        new ListPersistentRequestsMessage(fs).run(handler, node);
+        List<FCPMessage> sent = sent(outputHandler);
+        assertThat(sent.get(0), sameInstance((FCPMessage) progress));
+        // The scheduled flush finds nothing left to send.
+        scheduledFlush().run();
+        assertThat(sent(outputHandler).size(), is(sent.size()));
+    }
+
+    @Test
+    public void zeroProgressIntervalDisablesCoalescing() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(0);
+        SimpleProgressMessage first = new SimpleProgressMessage(IDENTIFIER, false, null);
+        SimpleProgressMessage second = new SimpleProgressMessage(IDENTIFIER, false, null);
+        outputHandler.queueProgress(first);
+        outputHandler.queueProgress(second);
+        assertThat(sent(outputHandler), contains((FCPMessage) first, second));
+        verify(ticker, never()).queueTimedJob(any(Runnable.class), anyString(), anyLong(), anyBoolean(), anyBoolean());
+        assertThat(handler.server.getProgressMessages(), is(0L));
+    }
+
+    @Test
+    public void heldProgressDoesNotExceedQueueLimit() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        SimpleProgressMessage progress = new SimpleProgressMessage(IDENTIFIER, false, null);
+        outputHandler.queueProgress(progress);
+        for (int i = 0; i < 1023; i++) {
+            outputHandler.queue(new PersistentRequestRemovedMessage(OTHER_IDENTIFIER, false));
+        }
+        // Only room for one more, so the out of date progress is dropped.
+        PersistentRequestRemovedMessage removed = new PersistentRequestRemovedMessage(IDENTIFIER, false);
+        outputHandler.queue(removed);
+        List<FCPMessage> sent = sent(outputHandler);
+        assertThat(sent.size(), is(1024));
+        assertThat(sent.get(1023), sameInstance((FCPMessage) removed));
+        assertThat(sent.contains(progress), is(false));
+        // The queue is full.
+        outputHandler.queue(new PersistentRequestRemovedMessage(OTHER_IDENTIFIER, false));
+        assertThat(sent(outputHandler).size(), is(1024));
+    }
+
+    @Test
+    public void otherMessagesAreNotHeldBack() throws Exception {
+        FCPConnectionOutputHandler outputHandler = createOutputHandler(1000);
+        FCPMessage message = new PersistentRequestRemovedMessage(IDENTIFIER, false);
+        outputHandler.queueProgress(message);
+        assertThat(sent(outputHandler), contains(message));
+        verify(ticker, never()).queueTimedJob(any(Runnable.class), anyString(), anyLong(), anyBoolean(), anyBoolean());
+    }
+
+}
@@ -0,0 +1,162 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import freenet.clients.fcp.FCPMessageParser.RawMessage;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+import freenet.support.io.LineReadingInputStream;
+import freenet.support.io.TooLongException;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FCPMessageParser}.
+ */
+public class FCPMessageParserTest {
+
+    private static ByteBuffer buffer(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void parsesMessagesOneAtATime() throws IOException {
+        FCPMessageParser parser = new FCPMessageParser();
+        ByteBuffer buf = buffer("\nClientHello\r\nName=test\r\nExpectedVersion=2.0\r\nEndMessage\r\n" +
+                "ClientPut\n# comment\nIdentifier=a=b\n\nDataLength=4\nData\nabcd");
+        RawMessage message = parser.parse(buf);
+        assertEquals("ClientHello", message.messageType);
+        assertEquals("test", message.fs.get("Name"));
+        assertEquals("2.0", message.fs.get("ExpectedVersion"));
+        assertEquals("EndMessage", message.fs.getEndMarker());
+        message = parser.parse(buf);
+        assertEquals("ClientPut", message.messageType);
+        assertEquals("a=b", message.fs.get("Identifier"));
+        assertEquals("Data", message.fs.getEndMarker());
+        // Stops at the payload.
+        assertEquals(4, buf.remaining());
+        assertEquals('a', buf.get());
+    }
+
+    @Test
+    public void parsesAByteAtATime() throws IOException {
+        FCPMessageParser parser = new FCPMessageParser();
+        byte[] data = "ListPeers\nWithMetadata=true\nEndMessage\nListPeers\nEndMessage\n".getBytes(StandardCharsets.UTF_8);
+        int messages = 0;
+        for(int i = 0; i < data.length; i++) {
+            RawMessage message = parser.parse(ByteBuffer.wrap(data, i, 1));
+            if(message != null) {
+                assertEquals("ListPeers", message.messageType);
+                messages++;
+            }
+        }
+        assertEquals(2, messages);
+        assertNull(parser.finish());
+    }
+
+    @Test
+    public void finishReturnsPartialMessage() throws IOException {
+        FCPMessageParser parser = new FCPMessageParser();
+        assertNull(parser.parse(buffer("ClientHello\nName=test\nExpectedVersion=2")));
+        RawMessage message = parser.finish();
+        assertEquals("ClientHello", message.messageType);
+        assertEquals("test", message.fs.get("Name"));
+        assertEquals("2", message.fs.get("ExpectedVersion"));
+        assertNull(message.fs.getEndMarker());
+
+        parser = new FCPMessageParser();
+        assertNull(parser.parse(buffer("ClientHello\n")));
+        assertNull(parser.finish());
+    }
+
+    @Test
+    public void rejectsLongLines() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < FCPMessageParser.MAX_MESSAGE_TYPE_LENGTH; i++)
+            sb.append('x');
+        FCPMessageParser parser = new FCPMessageParser();
+        // Exactly the maximum is fine.
+        assertNull(parser.parse(buffer(sb.toString() + "\n")));
+        try {
+            new FCPMessageParser().parse(buffer(sb.toString() + "x\n"));
+            fail();
+        } catch (TooLongException e) {
+            // Expected.
+        }
+        // Fields may be longer.
+        sb.setLength(0);
+        sb.append("Field=");
+        for(int i = 0; i < 1000; i++)
+            sb.append('y');
+        RawMessage message = parser.parse(buffer(sb.toString() + "\nEndMessage\n"));
+        assertEquals(1000, message.fs.get("Field").length());
+    }
+
+    @Test
+    public void matchesSimpleFieldSet() throws IOException {
+        String message = "# Header\n#  Second header\nIdentifier=test\n Spaced.Key =value \n" +
+                "# comment\nFiles.0.Name=a\nFiles.0.DataLength=10\nFiles.1.Name=b\n" +
+                "Multiple=a\nMultiple=b;c\nEmpty=\nUnicode=\u00e9\u4e2d\nEndMessage\n";
+        RawMessage parsed = new FCPMessageParser().parse(buffer("ClientPutComplexDir\n" + message));
+        SimpleFieldSet expected = new SimpleFieldSet(new LineReadingInputStream(
+                new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8))), 4096, 128, true, true, true);
+        assertEquals(expected.toOrderedString(), parsed.fs.toOrderedString());
+        assertArrayEquals(expected.getHeader(), parsed.fs.getHeader());
+        assertEquals("a;b;c", parsed.fs.get("Multiple"));
+        assertEquals("value ", parsed.fs.get("Spaced.Key"));
+        assertEquals("b", parsed.fs.subset("Files").subset("1").get("Name"));
+    }
+
+    @Test
+    public void reusesNames() throws IOException {
+        FCPMessageParser parser = new FCPMessageParser();
+        RawMessage first = parser.parse(buffer("ClientGet\nIdentifier=1\nEndMessage\n"));
+        RawMessage second = parser.parse(buffer("ClientGet\nIdentifier=2\nEndMessage\n"));
+        assertSame(first.messageType, second.messageType);
+        assertSame(first.fs.getEndMarker(), second.fs.getEndMarker());
+        assertSame(first.fs.directKeys().iterator().next(), second.fs.directKeys().iterator().next());
+    }
+
+    /** Compare parsing with reading a SimpleFieldSet from a stream, as we used to. */
+    @Test
+    public void benchmarkParsing() throws IOException {
+        if(!TestProperty.BENCHMARK) return;
+        int count = 20000;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for(int i = 0; i < count; i++) {
+            baos.write(("ClientGet\nIdentifier=request-" + i + "\nURI=CHK@abcdefghijklmnopqrstuvwxyz0123456789ABCDEFG," +
+                    "abcdefghijklmnopqrstuvwxyz0123456789ABCDEFG,AAMC--8/file" + i + "\nVerbosity=1\n" +
+                    "ReturnType=direct\nPriorityClass=2\nMaxRetries=-1\nPersistence=forever\n" +
+                    "Global=true\nRealTimeFlag=false\nEndMessage\n").getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] data = baos.toByteArray();
+        for(int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            LineReadingInputStream lis = new LineReadingInputStream(new ByteArrayInputStream(data));
+            for(int i = 0; i < count; i++) {
+                assertEquals("ClientGet", lis.readLine(128, 128, true));
+                new SimpleFieldSet(lis, 4096, 128, true, true, true);
+            }
+            long old = System.nanoTime() - start;
+            start = System.nanoTime();
+            FCPMessageParser parser = new FCPMessageParser();
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            for(int i = 0; i < count; i++)
+                assertEquals("ClientGet", parser.parse(buf).messageType);
+            long parsed = System.nanoTime() - start;
+            System.out.println("Parsed " + count + " messages: SimpleFieldSet " + (count * 1000000000L / old) +
+                    " messages/sec, FCPMessageParser " + (count * 1000000000L / parsed) + " messages/sec");
+        }
+    }
+
+}
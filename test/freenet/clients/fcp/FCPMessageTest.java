@@ -72,6 +72,14 @@ public class FCPMessageTest {
         verify(originalMessage).getEndString();
     }
 
+    @Test
+    public void wrappedMessageDelegatesProgressKey() {
+        FCPMessage wrappedMessage = FCPMessage.withListRequestIdentifier(originalMessage, IDENTIFIER);
+        when(originalMessage.progressKey()).thenReturn(IDENTIFIER);
+        assertThat(wrappedMessage.progressKey(), is(IDENTIFIER));
+        verify(originalMessage).progressKey();
+    }
+
     @Test
     public void wrappedMessageDelegatesSend() throws IOException {
         FCPMessage wrappedMessage = FCPMessage.withListRequestIdentifier(originalMessage, IDENTIFIER);
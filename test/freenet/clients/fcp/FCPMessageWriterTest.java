@@ -0,0 +1,92 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.clients.fcp.FCPMessageParser.RawMessage;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TestProperty;
+
+import org.junit.Test;
+
+/**
+ * Unit test for {@link FCPMessageWriter}.
+ */
+public class FCPMessageWriterTest {
+
+    private static SimpleProgressMessage progress(int i) {
+        return new SimpleProgressMessage("request-" + i, true,
+                new SplitfileProgressEvent(1000, i % 1000, new Date(1500000000000L + i), 3, 1, null, 500, 0, true));
+    }
+
+    private static byte[] send(FCPMessage message) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        message.send(baos);
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void writesSameFieldsAsFieldSet() throws IOException {
+        for(int i = 0; i < 10; i++) {
+            SimpleProgressMessage message = progress(i * 123);
+            RawMessage parsed = new FCPMessageParser().parse(ByteBuffer.wrap(send(message)));
+            assertEquals("SimpleProgress", parsed.messageType);
+            assertEquals("EndMessage", parsed.fs.getEndMarker());
+            SimpleFieldSet expected = message.getFieldSet();
+            expected.setEndMarker("EndMessage");
+            assertEquals(expected.toOrderedString(), parsed.fs.toOrderedString());
+        }
+    }
+
+    @Test
+    public void writesValues() {
+        FCPMessageWriter writer = new FCPMessageWriter();
+        writer.start("Test");
+        writer.put("Zero", 0);
+        writer.put("Negative", -1234567890123L);
+        writer.put("Max", Long.MAX_VALUE);
+        writer.put("Min", Long.MIN_VALUE);
+        writer.put("Flag", false);
+        writer.putSingle("Null", null);
+        writer.putSingle("Unicode", "aé中");
+        writer.end("EndMessage");
+        assertEquals("Test\nZero=0\nNegative=-1234567890123\nMax=" + Long.MAX_VALUE + "\nMin=" + Long.MIN_VALUE +
+                "\nFlag=false\nUnicode=aé中\nEndMessage\n",
+                new String(writer.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /** Compare writing directly with building a SimpleFieldSet, as we used to. */
+    @Test
+    public void benchmarkWriting() throws IOException {
+        if(!TestProperty.BENCHMARK) return;
+        int count = 50000;
+        SimpleProgressMessage[] messages = new SimpleProgressMessage[count];
+        for(int i = 0; i < count; i++)
+            messages[i] = progress(i);
+        for(int round = 0; round < 3; round++) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            for(SimpleProgressMessage message : messages) {
+                SimpleFieldSet fs = message.getFieldSet();
+                fs.setEndMarker("EndMessage");
+                baos.write((message.getName() + '\n').getBytes("UTF-8"));
+                baos.write(fs.toString().getBytes("UTF-8"));
+            }
+            long old = System.nanoTime() - start;
+            baos.reset();
+            start = System.nanoTime();
+            for(SimpleProgressMessage message : messages)
+                message.send(baos);
+            long direct = System.nanoTime() - start;
+            System.out.println("Wrote " + count + " messages: SimpleFieldSet " + (count * 1000000000L / old) +
+                    " messages/sec, FCPMessageWriter " + (count * 1000000000L / direct) + " messages/sec");
+        }
+    }
+
+}
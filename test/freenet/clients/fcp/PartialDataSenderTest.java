@@ -0,0 +1,190 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Unit test for {@link PartialDataSender}: the data is sent in order, only a limited amount is
+ * queued at once, and nothing is sent after {@link PartialDataSender#finish()}.
+ */
+@SuppressWarnings("deprecation")
+public class PartialDataSenderTest {
+
+    private static final String IDENTIFIER = "identifier";
+
+    private final FCPConnectionOutputHandler handler = mock(FCPConnectionOutputHandler.class);
+    /** Messages queued on the handler. Protected by itself. */
+    private final List<PartialDataMessage> queued = new ArrayList<PartialDataMessage>();
+
+    @Before
+    public void setUp() {
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                synchronized (queued) {
+                    queued.add((PartialDataMessage) invocation.getArguments()[0]);
+                    queued.notifyAll();
+                }
+                return null;
+            }
+
+        }).when(handler).queue(any(FCPMessage.class));
+    }
+
+    /** Returns the data, then fails like a stream from a failed fetch. */
+    private static class FailingStream extends InputStream {
+
+        private final byte[] data;
+        private int offset;
+        boolean closed;
+
+        FailingStream(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (offset == data.length) {
+                throw new IOException("Fetch failed");
+            }
+            len = Math.min(len, data.length - offset);
+            System.arraycopy(data, offset, buf, off, len);
+            offset += len;
+            return len;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private List<PartialDataMessage> queued() {
+        synchronized (queued) {
+            return new ArrayList<PartialDataMessage>(queued);
+        }
+    }
+
+    private void waitForQueued(int count) throws InterruptedException {
+        synchronized (queued) {
+            while (queued.size() < count) {
+                queued.wait();
+            }
+        }
+    }
+
+    private static void waitForBlocked(Thread thread) throws InterruptedException {
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(thread.isAlive());
+            Thread.sleep(10);
+        }
+    }
+
+    /** Write the message as the output handler would, which tells the sender it has gone. */
+    private static byte[] write(PartialDataMessage message) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        message.send(os);
+        byte[] written = os.toByteArray();
+        byte[] data = new byte[message.dataLength];
+        System.arraycopy(written, written.length - data.length, data, 0, data.length);
+        return data;
+    }
+
+    @Test
+    public void dataIsSentInOrder() throws IOException {
+        byte[] data = randomData(PartialDataSender.CHUNK_SIZE * 3 + 100);
+        new PartialDataSender(new ByteArrayInputStream(data), handler, IDENTIFIER, false).run();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        for (PartialDataMessage message : queued()) {
+            assertEquals(received.size(), message.startOffset);
+            assertEquals(IDENTIFIER, message.identifier);
+            received.write(write(message));
+        }
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(4, queued().size());
+    }
+
+    @Test
+    public void queuedDataIsLimited() throws Exception {
+        int maxMessages = PartialDataSender.MAX_QUEUED_BYTES / PartialDataSender.CHUNK_SIZE;
+        byte[] data = randomData(PartialDataSender.MAX_QUEUED_BYTES * 2);
+        Thread thread = new Thread(new PartialDataSender(new ByteArrayInputStream(data), handler, IDENTIFIER, false));
+        thread.start();
+        waitForQueued(maxMessages);
+        waitForBlocked(thread);
+        assertEquals(maxMessages, queued().size());
+        // Writing one message makes room for one more.
+        write(queued().get(0));
+        waitForQueued(maxMessages + 1);
+        waitForBlocked(thread);
+        assertEquals(maxMessages + 1, queued().size());
+        // Writing the rest lets it finish.
+        for (int i = 1; i < maxMessages * 2; i++) {
+            waitForQueued(i + 1);
+            write(queued().get(i));
+        }
+        thread.join();
+        assertEquals(maxMessages * 2, queued().size());
+    }
+
+    @Test
+    public void nothingIsSentAfterFinish() throws Exception {
+        FailingStream stream = new FailingStream(randomData(PartialDataSender.MAX_QUEUED_BYTES * 2));
+        PartialDataSender sender = new PartialDataSender(stream, handler, IDENTIFIER, true);
+        Thread thread = new Thread(sender);
+        thread.start();
+        waitForQueued(1);
+        waitForBlocked(thread);
+        int count = queued().size();
+        sender.finish();
+        thread.join();
+        for (PartialDataMessage message : queued()) {
+            write(message);
+        }
+        assertEquals(count, queued().size());
+        assertTrue(stream.closed);
+        assertTrue(queued().get(0).global);
+    }
+
+    @Test
+    public void failedFetchStopsSending() {
+        FailingStream stream = new FailingStream(randomData(100));
+        new PartialDataSender(stream, handler, IDENTIFIER, false).run();
+        assertEquals(1, queued().size());
+        assertEquals(100, queued().get(0).dataLength);
+        assertFalse(queued().get(0).global);
+        assertTrue(stream.closed);
+    }
+
+}
@@ -0,0 +1,72 @@
+package freenet.clients.fcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.clients.fcp.ClientRequest.Persistence;
+import freenet.keys.FreenetURI;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the change log of {@link RequestStatusCache}.
+ */
+public class RequestStatusCacheTest {
+
+    private static DownloadRequestStatus download(String identifier) throws MalformedURLException {
+        return new DownloadRequestStatus(identifier, Persistence.FOREVER, true, false, false, 0, 0, 0, null, 0, 0,
+                null, false, (short) 2, null, null, 0, null, new CompatibilityMode[0], null,
+                new FreenetURI("KSK@" + identifier), null, null, false, null, false, false);
+    }
+
+    @Test
+    public void listsChangesSinceSequence() throws MalformedURLException {
+        RequestStatusCache cache = new RequestStatusCache();
+        cache.addDownload(download("a"));
+        cache.addDownload(download("b"));
+        cache.addDownload(download("c"));
+        long since = RequestStatusCache.currentChangeSequence();
+        assertTrue(cache.canListChangesSince(since));
+        assertFalse(cache.changedSince("a", since));
+        assertFalse(cache.changedSince("b", since));
+
+        cache.setPriority("a", (short) 1);
+        cache.removeByIdentifier("b");
+        cache.addDownload(download("d"));
+        assertTrue(cache.changedSince("a", since));
+        assertFalse(cache.changedSince("c", since));
+        assertTrue(cache.changedSince("d", since));
+        assertEquals(Arrays.asList("b"), cache.removedSince(since));
+
+        // Adding it again means it is no longer removed.
+        cache.addDownload(download("b"));
+        assertTrue(cache.changedSince("b", since));
+        assertEquals(Collections.emptyList(), cache.removedSince(since));
+
+        // Unknown requests, and sequence numbers from the future, can't be trusted.
+        assertTrue(cache.changedSince("unknown", since));
+        assertFalse(cache.canListChangesSince(RequestStatusCache.currentChangeSequence() + 1));
+    }
+
+    @Test
+    public void forgetsOldRemovals() throws MalformedURLException {
+        RequestStatusCache cache = new RequestStatusCache();
+        long since = RequestStatusCache.currentChangeSequence();
+        for(int i = 0; i < RequestStatusCache.MAX_REMOVED_REQUESTS + 1; i++) {
+            cache.addDownload(download("r" + i));
+            cache.removeByIdentifier("r" + i);
+        }
+        assertFalse(cache.canListChangesSince(since));
+        long later = RequestStatusCache.currentChangeSequence();
+        assertTrue(cache.canListChangesSince(later));
+        cache.clear();
+        assertFalse(cache.canListChangesSince(later));
+    }
+
+}
@@ -0,0 +1,167 @@
+package freenet.clients.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.HighLevelSimpleClientImpl;
+import freenet.client.events.SimpleEventProducer;
+import freenet.client.filter.TagReplacerCallback;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Unit test for {@link FilteredContentCache}.
+ */
+public class FilteredContentCacheTest {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI/";
+	private static final String USK = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/site/23/";
+
+	private FetchContext fctx;
+
+	@Before
+	public void setUp() {
+		fctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE, Long.MAX_VALUE,
+				new ArrayBucketFactory(), new SimpleEventProducer());
+		fctx.filterData = true;
+	}
+
+	private static Bucket data(int size) {
+		return new ArrayBucket(new byte[size]);
+	}
+
+	@Test
+	public void returnsCachedData() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1000, 100);
+		FreenetURI uri = new FreenetURI(CHK+"index.html");
+		assertNull(cache.get(uri, fctx, Long.MAX_VALUE));
+		Bucket data = new ArrayBucket(new byte[] { 1, 2, 3 });
+		Bucket reader = cache.put(uri, fctx, "text/html", data);
+		assertNotSame(data, reader);
+		reader.free();
+		// Still cached after the first user has finished with it.
+		FetchResult result = cache.get(uri, fctx, Long.MAX_VALUE);
+		assertEquals("text/html", result.getMimeType());
+		assertArrayEquals(new byte[] { 1, 2, 3 }, BucketTools.toByteArray(result.asBucket()));
+		result.asBucket().free();
+		// Too big for the request.
+		assertNull(cache.get(uri, fctx, 2));
+		assertEquals(1, cache.hits());
+		assertEquals(2, cache.misses());
+	}
+
+	@Test
+	public void keyIncludesFilterOptions() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1000, 100);
+		FreenetURI uri = new FreenetURI(CHK+"index.html");
+		cache.put(uri, fctx, "text/html", data(10)).free();
+		fctx.overrideMIME = "text/plain";
+		assertNull(cache.get(uri, fctx, Long.MAX_VALUE));
+		fctx.overrideMIME = null;
+		fctx.charset = "UTF-8";
+		assertNull(cache.get(uri, fctx, Long.MAX_VALUE));
+		fctx.charset = null;
+		assertNull(cache.get(new FreenetURI(CHK+"other.html"), fctx, Long.MAX_VALUE));
+		FetchResult result = cache.get(uri, fctx, Long.MAX_VALUE);
+		result.asBucket().free();
+		// Unfiltered data isn't cached.
+		fctx.filterData = false;
+		assertNull(cache.get(uri, fctx, Long.MAX_VALUE));
+		Bucket data = data(10);
+		assertSame(data, cache.put(uri, fctx, "text/html", data));
+	}
+
+	@Test
+	public void doesNotCacheWithTagReplacer() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1000, 100);
+		FreenetURI uri = new FreenetURI(CHK+"index.html");
+		fctx.tagReplacer = mock(TagReplacerCallback.class);
+		Bucket data = data(10);
+		assertSame(data, cache.put(uri, fctx, "text/html", data));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void clearDropsEverything() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1000, 100);
+		FreenetURI uri = new FreenetURI(CHK+"index.html");
+		Bucket reader = cache.put(uri, fctx, "text/html", new ArrayBucket(new byte[] { 1, 2, 3 }));
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.totalSize());
+		assertNull(cache.get(uri, fctx, Long.MAX_VALUE));
+		// Still readable by whoever was using it.
+		assertArrayEquals(new byte[] { 1, 2, 3 }, BucketTools.toByteArray(reader));
+		reader.free();
+	}
+
+	@Test
+	public void doesNotCacheMutableKeys() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(1000, 100);
+		FreenetURI uri = new FreenetURI(USK+"index.html");
+		assertFalse(FilteredContentCache.canCache(uri));
+		Bucket data = data(10);
+		assertSame(data, cache.put(uri, fctx, "text/html", data));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void dropsLeastRecentlyUsed() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(250, 100);
+		FreenetURI[] uris = new FreenetURI[3];
+		for(int i=0;i<uris.length;i++) {
+			uris[i] = new FreenetURI(CHK+"page"+i+".html");
+			cache.put(uris[i], fctx, "text/html", data(100)).free();
+		}
+		assertEquals(2, cache.size());
+		assertEquals(200, cache.totalSize());
+		assertNull(cache.get(uris[0], fctx, Long.MAX_VALUE));
+		// Use 1, so 2 is dropped next.
+		cache.get(uris[1], fctx, Long.MAX_VALUE).asBucket().free();
+		cache.put(new FreenetURI(CHK+"page3.html"), fctx, "text/html", data(100)).free();
+		assertNull(cache.get(uris[2], fctx, Long.MAX_VALUE));
+		cache.get(uris[1], fctx, Long.MAX_VALUE).asBucket().free();
+		// Too big to cache at all.
+		Bucket big = data(101);
+		assertSame(big, cache.put(uris[0], fctx, "text/html", big));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void droppedDataIsKeptUntilRead() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(100, 100);
+		FreenetURI uri = new FreenetURI(CHK+"index.html");
+		Bucket reader = cache.put(uri, fctx, "text/html", new ArrayBucket(new byte[] { 1, 2, 3 }));
+		// Push it out of the cache.
+		FreenetURI other = new FreenetURI(CHK+"other.html");
+		cache.put(other, fctx, "text/html", data(100)).free();
+		assertEquals(1, cache.size());
+		assertNull(cache.get(uri, fctx, Long.MAX_VALUE));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, BucketTools.toByteArray(reader));
+		reader.free();
+		try {
+			reader.getInputStream();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+		assertEquals(100, cache.totalSize());
+	}
+
+}
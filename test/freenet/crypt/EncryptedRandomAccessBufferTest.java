@@ -27,6 +27,7 @@ import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import freenet.client.async.ClientContext;
+import freenet.support.TestProperty;
 import freenet.support.io.BucketTools;
 import freenet.support.io.ByteArrayRandomAccessBuffer;
 import freenet.support.io.FileUtil;
@@ -336,4 +337,113 @@ public class EncryptedRandomAccessBufferTest {
         restored.free();
     }
     
+    @Test
+    public void testConcurrentReadsAndWrites() throws Exception {
+        final int size = 1024*1024;
+        final byte[] data = new byte[size];
+        new Random(9876).nextBytes(data);
+        ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(size+types[0].headerLen);
+        final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], barat, secret, true);
+        final int threads = 4;
+        // Each thread writes its own quarter in random sized pieces, some bigger than the 
+        // write buffer, and then reads random ranges from the whole buffer.
+        final int[] written = new int[threads];
+        final Throwable[] failures = new Throwable[threads];
+        Thread[] t = new Thread[threads];
+        for(int i=0;i<threads;i++) {
+            final int thread = i;
+            t[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Random r = new Random(thread);
+                        int start = thread * (size / threads);
+                        int end = start + size / threads;
+                        for(int offset = start; offset < end;) {
+                            int length = Math.min(end - offset, 1 + r.nextInt(100000));
+                            erat.pwrite(offset, data, offset, length);
+                            offset += length;
+                        }
+                        synchronized(written) {
+                            written[thread] = 1;
+                            written.notifyAll();
+                            while(sum(written) < threads) written.wait();
+                        }
+                        for(int j=0;j<200;j++) {
+                            int offset = r.nextInt(size);
+                            int length = r.nextInt(Math.min(size - offset, 65536) + 1);
+                            byte[] buf = new byte[length + 2];
+                            erat.pread(offset, buf, 1, length);
+                            for(int k=0;k<length;k++)
+                                if(buf[k+1] != data[offset+k]) throw new AssertionError("Mismatch at "+(offset+k));
+                        }
+                    } catch (Throwable e) {
+                        failures[thread] = e;
+                        synchronized(written) {
+                            written[thread] = 1;
+                            written.notifyAll();
+                        }
+                    }
+                }
+            };
+            t[i].start();
+        }
+        for(int i=0;i<threads;i++) {
+            t[i].join();
+            if(failures[i] != null) throw new AssertionError(failures[i]);
+        }
+        byte[] result = new byte[size];
+        erat.pread(0, result, 0, size);
+        assertArrayEquals(data, result);
+        erat.close();
+    }
+    
+    private static int sum(int[] values) {
+        int total = 0;
+        for(int v : values) total += v;
+        return total;
+    }
+    
+    /** Random 4KB reads from an encrypted buffer, with one and with several threads. */
+    @Test
+    public void benchmarkConcurrentReads() throws Exception {
+        if(!TestProperty.BENCHMARK) return;
+        final int size = 16*1024*1024;
+        final int blockSize = 4096;
+        final int reads = 4096;
+        ByteArrayRandomAccessBuffer barat = new ByteArrayRandomAccessBuffer(size+types[0].headerLen);
+        final EncryptedRandomAccessBuffer erat = new EncryptedRandomAccessBuffer(types[0], barat, secret, true);
+        byte[] data = new byte[size];
+        new Random(1234).nextBytes(data);
+        erat.pwrite(0, data, 0, size);
+        for(int threads : new int[] { 1, 4, 1, 4 }) {
+            Thread[] t = new Thread[threads];
+            final IOException[] failure = new IOException[1];
+            long start = System.nanoTime();
+            for(int i=0;i<threads;i++) {
+                final Random r = new Random(i);
+                t[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        byte[] buf = new byte[blockSize];
+                        try {
+                            for(int j=0;j<reads;j++)
+                                erat.pread(r.nextInt(size / blockSize) * (long)blockSize, buf, 0, blockSize);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                t[i].start();
+            }
+            for(Thread thread : t) thread.join();
+            if(failure[0] != null) throw failure[0];
+            long time = System.nanoTime() - start;
+            long bytes = (long)threads * reads * blockSize;
+            System.out.println("Read "+bytes+" bytes in "+blockSize+" byte blocks with "+threads+
+                    " threads: "+(bytes * 1000 / time)+" MB/s");
+        }
+        erat.close();
+    }
+    
 }
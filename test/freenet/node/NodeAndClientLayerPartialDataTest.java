@@ -0,0 +1,156 @@
+package freenet.node;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+import freenet.client.ClientMetadata;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertBlock;
+import freenet.client.InsertContext;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.node.NodeStarter.TestNodeParameters;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.PooledExecutor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
+import freenet.support.io.FileUtil;
+
+/** Creates a node with FCP, inserts a splitfile of several segments to it, and fetches it over
+ * FCP with FetchInOrder=true, checking that the data arrives in PartialData messages before the
+ * fetch completes, followed by all of it in AllData.
+ * Note that we need one JUnit class per node because we need to actually exit the JVM
+ * to get rid of all the node threads.
+ */
+public class NodeAndClientLayerPartialDataTest {
+
+    private static final File dir = new File("test-fetch-partial-data");
+    /** Several segments. */
+    private static final int DATA_SIZE = 10*1024*1024;
+    private static final int FCP_PORT = 9481;
+    private static final String IDENTIFIER = "partial";
+
+    @Test
+    public void testPartialDataOverFCP() throws Exception {
+        if(!TestProperty.EXTENSIVE) return;
+        DummyRandomSource random = new DummyRandomSource(25313);
+        final Executor executor = new PooledExecutor();
+        FileUtil.removeAll(dir);
+        dir.mkdir();
+        NodeStarter.globalTestInit(dir, false,
+                Logger.LogLevel.ERROR, "", true, random);
+        TestNodeParameters params = new TestNodeParameters();
+        params.random = new DummyRandomSource(253131);
+        params.ramStore = true;
+        params.storeSize = DATA_SIZE * 3;
+        params.baseDirectory = dir;
+        params.executor = executor;
+        params.enableFCP = true;
+        Node node = NodeStarter.createTestNode(params);
+        node.start(false);
+        HighLevelSimpleClient client =
+                node.clientCore.makeClient((short)0, false, false);
+        InsertContext ictx = client.getInsertContext(true);
+        ictx.localRequestOnly = true;
+        ictx.dontCompress = true;
+        byte[] data = new byte[DATA_SIZE];
+        random.nextBytes(data);
+        InsertBlock block = new InsertBlock(new SimpleReadOnlyArrayBucket(data),
+                new ClientMetadata(null), FreenetURI.EMPTY_CHK_URI);
+        FreenetURI uri = client.insert(block, "", (short)0, ictx);
+
+        Socket sock = new Socket("127.0.0.1", FCP_PORT);
+        try {
+            OutputStream os = sock.getOutputStream();
+            DataInputStream is = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+            send(os, "ClientHello\nName=PartialDataTest\nExpectedVersion=2.0\nEndMessage\n");
+            assertEquals("NodeHello", readMessage(is, null).getString("Name"));
+            send(os, "ClientGet\nURI="+uri+"\nIdentifier="+IDENTIFIER+"\nReturnType=direct\n"+
+                    "DSOnly=true\nFetchInOrder=true\nEndMessage\n");
+            ByteArrayOutputStream partial = new ByteArrayOutputStream();
+            int partialMessages = 0;
+            boolean dataFound = false;
+            while(true) {
+                ByteArrayOutputStream messageData = new ByteArrayOutputStream();
+                SimpleFieldSet fs = readMessage(is, messageData);
+                String name = fs.getString("Name");
+                if(name.equals("PartialData")) {
+                    assertFalse("PartialData after DataFound", dataFound);
+                    assertEquals(IDENTIFIER, fs.get("Identifier"));
+                    assertEquals(partial.size(), fs.getLong("StartOffset"));
+                    partial.write(messageData.toByteArray());
+                    partialMessages++;
+                } else if(name.equals("DataFound")) {
+                    dataFound = true;
+                } else if(name.equals("AllData")) {
+                    assertTrue(dataFound);
+                    assertTrue(Arrays.equals(data, messageData.toByteArray()));
+                    break;
+                } else if(name.equals("GetFailed") || name.equals("ProtocolError")) {
+                    fail("Fetch failed: "+fs.toOrderedString());
+                }
+            }
+            // The fetch can complete before all of it has been sent as PartialData, but it
+            // must have started sending it, and what it sent must be right.
+            assertTrue(partialMessages > 0);
+            byte[] received = partial.toByteArray();
+            assertTrue(Arrays.equals(Arrays.copyOf(data, received.length), received));
+        } finally {
+            sock.close();
+        }
+    }
+
+    private static void send(OutputStream os, String message) throws IOException {
+        os.write(message.getBytes("UTF-8"));
+        os.flush();
+    }
+
+    /** Read a message. The name is returned as "Name". If it carries data, it is written to
+     * data. */
+    private static SimpleFieldSet readMessage(DataInputStream is, OutputStream data) throws IOException {
+        SimpleFieldSet fs = new SimpleFieldSet(true);
+        fs.putSingle("Name", readLine(is));
+        while(true) {
+            String line = readLine(is);
+            if(line.equals("EndMessage")) return fs;
+            if(line.equals("Data")) {
+                byte[] buf = new byte[(int) fs.getLong("DataLength", 0)];
+                is.readFully(buf);
+                if(data != null) data.write(buf);
+                return fs;
+            }
+            int idx = line.indexOf('=');
+            fs.putSingle(line.substring(0, idx), line.substring(idx+1));
+        }
+    }
+
+    private static String readLine(InputStream is) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while(true) {
+            int b = is.read();
+            if(b == -1) throw new IOException("Connection closed");
+            if(b == '\n') return new String(line.toByteArray(), "UTF-8");
+            line.write(b);
+        }
+    }
+
+    @After
+    public void cleanUp() {
+        FileUtil.removeAll(dir);
+    }
+
+}
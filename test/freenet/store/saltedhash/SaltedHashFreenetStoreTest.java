@@ -126,6 +126,28 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 
+	/* getSlot() maps each routing key to a valid slot, the same one every time */
+	public void testGetSlot() throws IOException, CHKEncodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreCHK", store, weakPRNG, 100, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		for(int i=0;i<10;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			byte[] routingKey = block.getKey().getRoutingKey();
+			long slot = saltStore.getSlot(routingKey);
+			assertTrue(slot >= 0);
+			assertTrue(slot < 100);
+			// Same key always maps to the same slot.
+			assertEquals(slot, saltStore.getSlot(routingKey));
+		}
+
+		saltStore.close();
+	}
+
 	private String decodeBlockCHK(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
 		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
 		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
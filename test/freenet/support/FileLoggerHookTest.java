@@ -0,0 +1,102 @@
+package freenet.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Unit test for {@link FileLoggerHook}.
+ */
+public class FileLoggerHookTest {
+
+	/** Captures the output, which is complete once the writer thread closes the stream. */
+	private static class CapturingStream extends ByteArrayOutputStream {
+		final CountDownLatch closed = new CountDownLatch(1);
+
+		@Override
+		public void close() throws IOException {
+			super.close();
+			closed.countDown();
+		}
+
+		String await() throws InterruptedException, IOException {
+			assertTrue(closed.await(10, TimeUnit.SECONDS));
+			return new String(toByteArray(), "UTF-8");
+		}
+	}
+
+	@Test
+	public void formatsOnWriterThread() throws Exception {
+		CapturingStream os = new CapturingStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "d (c, t, p): m", "MMM dd, yyyy HH:mm:ss:SSS", LogLevel.MINOR);
+		hook.start();
+		hook.log(this, FileLoggerHookTest.class, "first", null, LogLevel.NORMAL);
+		hook.log(this, FileLoggerHookTest.class, "too low", null, LogLevel.DEBUG);
+		hook.log(this, FileLoggerHookTest.class, "second", new Exception("oops"), LogLevel.ERROR);
+		hook.logString("raw\n".getBytes("UTF-8"));
+		hook.close();
+		String[] lines = os.await().split("\n");
+		String prefix = "(freenet.support.FileLoggerHookTest, "+Thread.currentThread().getName()+", ";
+		assertTrue(lines[0].matches("[A-Z][a-z]{2} \\d\\d, \\d{4} \\d\\d:\\d\\d:\\d\\d:\\d{3} .*"));
+		assertTrue(lines[0].endsWith(prefix+"NORMAL): first"));
+		assertTrue(lines[1].endsWith(prefix+"ERROR): second"));
+		assertEquals("java.lang.Exception: oops", lines[2]);
+		assertTrue(lines[3].startsWith("\tat freenet.support.FileLoggerHookTest.formatsOnWriterThread("));
+		assertEquals("raw", lines[lines.length-1]);
+	}
+
+	@Test
+	public void keepsOrderAcrossThreads() throws Exception {
+		CapturingStream os = new CapturingStream();
+		final FileLoggerHook hook = new FileLoggerHook(os, "t m", "", LogLevel.MINOR);
+		hook.start();
+		final int perThread = 2000;
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread("logger"+i) {
+				@Override
+				public void run() {
+					for(int j=0;j<perThread;j++)
+						hook.log(null, FileLoggerHookTest.class, Integer.toString(j), null, LogLevel.MINOR);
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads) t.join();
+		hook.close();
+		int[] next = new int[threads.length];
+		for(String line : os.await().split("\n")) {
+			String[] parts = line.split(" ");
+			int thread = parts[0].charAt(parts[0].length()-1) - '0';
+			assertEquals(next[thread]++, Integer.parseInt(parts[1]));
+		}
+		for(int count : next)
+			assertEquals(perThread, count);
+	}
+
+	@Test
+	public void dropsOldestWhenFull() throws Exception {
+		CapturingStream os = new CapturingStream();
+		FileLoggerHook hook = new FileLoggerHook(os, "m", "", LogLevel.MINOR);
+		// Logging before start() so nothing is written until we close.
+		for(int i=0;i<15000;i++)
+			hook.log(null, FileLoggerHookTest.class, Integer.toString(i), null, LogLevel.MINOR);
+		hook.start();
+		hook.close();
+		String[] lines = os.await().split("\n");
+		assertTrue(lines[0].startsWith("GRRR: ERROR: Logging too fast, chopped "));
+		assertEquals("14999", lines[lines.length-1]);
+		// Still in order after wrapping around.
+		for(int i=2;i<lines.length;i++)
+			assertEquals(Integer.parseInt(lines[i-1]) + 1, Integer.parseInt(lines[i]));
+	}
+
+}
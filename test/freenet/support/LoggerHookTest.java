@@ -0,0 +1,89 @@
+package freenet.support;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import freenet.io.comm.MessageCore;
+import freenet.node.NewPacketFormat;
+import freenet.node.PeerMessageQueue;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Unit test for the per-class thresholds in {@link LoggerHook}.
+ */
+public class LoggerHookTest {
+
+	@Test
+	public void detailedThresholdsOverrideByPrefix() throws Exception {
+		LoggerHookChain hook = new LoggerHookChain(LogLevel.NORMAL);
+		hook.setDetailedThresholds("freenet.node:MINOR,freenet.node.NewPacketFormat:ERROR");
+		assertTrue(hook.instanceShouldLog(LogLevel.MINOR, PeerMessageQueue.class));
+		assertFalse(hook.instanceShouldLog(LogLevel.NORMAL, NewPacketFormat.class));
+		assertTrue(hook.instanceShouldLog(LogLevel.ERROR, NewPacketFormat.class));
+		assertFalse(hook.instanceShouldLog(LogLevel.MINOR, MessageCore.class));
+		assertTrue(hook.instanceShouldLog(LogLevel.NORMAL, MessageCore.class));
+		assertTrue(hook.instanceShouldLog(LogLevel.NORMAL, (Class<?>) null));
+		assertFalse(hook.instanceShouldLog(LogLevel.MINOR, (Class<?>) null));
+	}
+
+	@Test
+	public void changesApplyToClassesAlreadyChecked() throws Exception {
+		LoggerHookChain hook = new LoggerHookChain(LogLevel.NORMAL);
+		assertFalse(hook.instanceShouldLog(LogLevel.MINOR, MessageCore.class));
+		hook.setThreshold(LogLevel.MINOR);
+		assertTrue(hook.instanceShouldLog(LogLevel.MINOR, MessageCore.class));
+		hook.setDetailedThresholds("freenet.io.comm:ERROR");
+		assertFalse(hook.instanceShouldLog(LogLevel.NORMAL, MessageCore.class));
+		assertTrue(hook.instanceShouldLog(LogLevel.MINOR, NewPacketFormat.class));
+		hook.setDetailedThresholds("");
+		assertTrue(hook.instanceShouldLog(LogLevel.MINOR, MessageCore.class));
+		// Another hook has its own thresholds for the same class.
+		LoggerHookChain other = new LoggerHookChain(LogLevel.ERROR);
+		assertFalse(other.instanceShouldLog(LogLevel.MINOR, MessageCore.class));
+	}
+
+	@Test
+	public void callbacksSeeNewThresholds() throws Exception {
+		final LoggerHookChain hook = new LoggerHookChain(LogLevel.NORMAL);
+		final boolean[] logMINOR = new boolean[1];
+		hook.instanceRegisterLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR[0] = hook.instanceShouldLog(LogLevel.MINOR, MessageCore.class);
+			}
+		});
+		assertFalse(logMINOR[0]);
+		hook.setDetailedThresholds("freenet.io.comm.MessageCore:MINOR");
+		assertTrue(logMINOR[0]);
+		hook.setThreshold(LogLevel.ERROR);
+		assertTrue(logMINOR[0]);
+		hook.setDetailedThresholds("");
+		assertFalse(logMINOR[0]);
+	}
+
+	/** Cost of a MINOR log statement which isn't logged, with some detailed thresholds set, for
+	 * the classes on the packet handling paths. Hot paths should still check logMINOR first. */
+	@Test
+	public void benchmarkDisabledLogging() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		LoggerHookChain hook = new LoggerHookChain(LogLevel.NORMAL);
+		hook.setDetailedThresholds("freenet.client:MINOR,freenet.store:MINOR,freenet.node.updater:DEBUG," +
+				"freenet.support.io:MINOR,freenet.crypt:MINOR,freenet.clients.http:MINOR");
+		Class<?>[] classes = new Class<?>[] { MessageCore.class, NewPacketFormat.class };
+		int iterations = 10000000;
+		for(int run=0;run<3;run++) {
+			for(Class<?> c : classes) {
+				long start = System.nanoTime();
+				for(int i=0;i<iterations;i++)
+					hook.log(c, "Not logged", LogLevel.MINOR);
+				long end = System.nanoTime();
+				System.out.println("Disabled log statement for "+c.getSimpleName()+": "+
+						((double) (end - start) / iterations)+"ns");
+			}
+		}
+	}
+
+}
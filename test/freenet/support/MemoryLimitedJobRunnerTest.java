@@ -1,5 +1,9 @@
 package freenet.support;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import freenet.support.io.NativeThread;
@@ -324,6 +328,96 @@ public class MemoryLimitedJobRunnerTest extends TestCase {
         waitForZero(runner);
     }
 
+    class OrderedJob extends MemoryLimitedJob {
+        
+        private final List<Long> started;
+
+        OrderedJob(long size, List<Long> started) {
+            super(size);
+            this.started = started;
+        }
+
+        OrderedJob(long size, long requestSize, List<Long> started) {
+            super(size, requestSize);
+            this.started = started;
+        }
+
+        @Override
+        public int getPriority() {
+            return NativeThread.NORM_PRIORITY;
+        }
+
+        @Override
+        public boolean start(MemoryLimitedChunk chunk) {
+            synchronized(started) {
+                started.add(initialAllocation * 1000 + requestSize);
+                started.notifyAll();
+            }
+            return true;
+        }
+        
+    }
+    
+    public void testSmallestJobFirst() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        // Block the only thread until all the other jobs are queued.
+        SynchronousJob blocker = new SynchronousJob(1, true, completion);
+        runner.queueJob(blocker);
+        waitForAllStarted(new SynchronousJob[] { blocker }, completion);
+        List<Long> started = new ArrayList<Long>();
+        runner.queueJob(new OrderedJob(8, started));
+        runner.queueJob(new OrderedJob(2, started));
+        runner.queueJob(new OrderedJob(5, started));
+        runner.queueJob(new OrderedJob(2, started));
+        assertEquals(4, runner.getQueuedJobsByPriority()[NativeThread.NORM_PRIORITY]);
+        blocker.setCanFinish();
+        synchronized(started) {
+            while(started.size() < 4)
+                started.wait();
+        }
+        assertEquals(Arrays.asList(2002L, 2002L, 5005L, 8008L), started);
+        waitForZero(runner);
+        assertEquals(0, runner.getQueuedJobsByPriority()[NativeThread.NORM_PRIORITY]);
+        long total = 0;
+        for(long count : runner.getWaitTimeHistogram()[NativeThread.NORM_PRIORITY])
+            total += count;
+        assertEquals(5, total);
+    }
+    
+    public void testSmallestRequestFirst() throws InterruptedException {
+        final Object completion = new Object();
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        SynchronousJob blocker = new SynchronousJob(1, true, completion);
+        runner.queueJob(blocker);
+        waitForAllStarted(new SynchronousJob[] { blocker }, completion);
+        List<Long> started = new ArrayList<Long>();
+        // Segments of a big request, then of a small one, then a bigger segment of the small one.
+        runner.queueJob(new OrderedJob(2, 900, started));
+        runner.queueJob(new OrderedJob(2, 900, started));
+        runner.queueJob(new OrderedJob(2, 100, started));
+        runner.queueJob(new OrderedJob(3, 100, started));
+        blocker.setCanFinish();
+        synchronized(started) {
+            while(started.size() < 4)
+                started.wait();
+        }
+        assertEquals(Arrays.asList(2100L, 3100L, 2900L, 2900L), started);
+        waitForZero(runner);
+    }
+    
+    public void testAutoSize() {
+        MemoryLimitedJobRunner runner = new MemoryLimitedJobRunner(10, 1, executor, NativeThread.JAVA_PRIORITY_RANGE);
+        assertEquals(1, runner.getEffectiveMaxThreads());
+        assertEquals(10, runner.getEffectiveCapacity());
+        runner.setAutoSize(true);
+        // The configured limits are a minimum.
+        assertTrue(runner.getEffectiveMaxThreads() >= 1);
+        assertTrue(runner.getEffectiveMaxThreads() >= Runtime.getRuntime().availableProcessors());
+        assertTrue(runner.getEffectiveCapacity() >= 10);
+        assertTrue(runner.getEffectiveCapacity() <= Math.max(10, Runtime.getRuntime().maxMemory()));
+    }
+
     protected void checkRunner(MemoryLimitedJobRunner runner) {
         long used = runner.used();
         assertTrue(used <= runner.capacity);
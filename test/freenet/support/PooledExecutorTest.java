@@ -0,0 +1,191 @@
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class PooledExecutorTest extends TestCase {
+
+	private PooledExecutor exec;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		exec = new PooledExecutor();
+		exec.start();
+	}
+
+	private class CountingJob implements PrioRunnable {
+		private final int prio;
+		private final CountDownLatch done;
+		private final AtomicInteger wrongPriority;
+
+		CountingJob(int prio, CountDownLatch done, AtomicInteger wrongPriority) {
+			this.prio = prio;
+			this.done = done;
+			this.wrongPriority = wrongPriority;
+		}
+
+		@Override
+		public void run() {
+			if(((NativeThread) Thread.currentThread()).getNativePriority() != prio)
+				wrongPriority.incrementAndGet();
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	/** Bursts of jobs from several threads, at all priorities. */
+	public void testRunsAllJobs() throws InterruptedException {
+		final int perThread = 5000;
+		final CountDownLatch done = new CountDownLatch(perThread * 4);
+		final AtomicInteger wrongPriority = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<perThread;j++) {
+						int prio = NativeThread.MIN_PRIORITY + j % (NativeThread.MAX_PRIORITY - NativeThread.MIN_PRIORITY + 1);
+						exec.execute(new CountingJob(prio, done, wrongPriority), "test");
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertEquals(0, wrongPriority.get());
+	}
+
+	/** Jobs which wait for jobs queued after them must not deadlock. */
+	public void testBlockingJobs() throws InterruptedException {
+		final int count = 50;
+		final CountDownLatch started = new CountDownLatch(count);
+		final CountDownLatch done = new CountDownLatch(count);
+		for(int i=0;i<count;i++) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						started.await();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					done.countDown();
+				}
+			});
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+	}
+
+	public void testReusesThreadsAndReportsThem() throws InterruptedException {
+		int prio = NativeThread.NORM_PRIORITY;
+		for(int i=0;i<100;i++) {
+			CountDownLatch done = new CountDownLatch(1);
+			exec.execute(new CountingJob(prio, done, new AtomicInteger()), "test");
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			waitForWaiting(prio, 1);
+		}
+		assertEquals(0, exec.runningThreads()[prio - 1]);
+		assertEquals(1, exec.getWaitingThreadsCount());
+		// Block some threads.
+		final int blocked = 5;
+		final CountDownLatch started = new CountDownLatch(blocked);
+		final CountDownLatch release = new CountDownLatch(1);
+		for(int i=0;i<blocked;i++) {
+			exec.execute(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+				}
+			});
+		}
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		assertEquals(blocked, exec.runningThreads()[prio - 1]);
+		assertEquals(0, exec.waitingThreads()[prio - 1]);
+		release.countDown();
+		waitForWaiting(prio, blocked);
+		assertEquals(0, exec.runningThreads()[prio - 1]);
+	}
+
+	private void waitForWaiting(int prio, int threads) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(exec.waitingThreads()[prio - 1] != threads) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+	}
+
+	/** An idle thread which has been interrupted must park rather than spin. */
+	public void testInterruptedThreadStaysParked() throws InterruptedException {
+		final Thread[] thread = new Thread[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		exec.execute(new Runnable() {
+			@Override
+			public void run() {
+				thread[0] = Thread.currentThread();
+				// E.g. a job which interrupts itself.
+				thread[0].interrupt();
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		waitForWaiting(NativeThread.NORM_PRIORITY, 1);
+		assertParked(thread[0]);
+		// Interrupted by another thread while idle.
+		thread[0].interrupt();
+		assertParked(thread[0]);
+		// Still usable.
+		CountDownLatch ran = new CountDownLatch(1);
+		exec.execute(new CountingJob(NativeThread.NORM_PRIORITY, ran, new AtomicInteger()), "test");
+		assertTrue(ran.await(10, TimeUnit.SECONDS));
+	}
+
+	private void assertParked(Thread t) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while(t.getState() != Thread.State.TIMED_WAITING) {
+			assertTrue(System.currentTimeMillis() < deadline);
+			Thread.sleep(1);
+		}
+		// A spinning thread would be seen running most of the time.
+		for(int i=0;i<50;i++) {
+			assertEquals(Thread.State.TIMED_WAITING, t.getState());
+			Thread.sleep(2);
+		}
+		assertFalse(t.isInterrupted());
+	}
+
+	/** Throughput for bursts of short jobs. */
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		final int jobs = 100000;
+		for(int run=0;run<5;run++) {
+			final CountDownLatch done = new CountDownLatch(jobs);
+			final AtomicInteger wrongPriority = new AtomicInteger();
+			long start = System.nanoTime();
+			for(int i=0;i<jobs;i++)
+				exec.execute(new CountingJob(NativeThread.NORM_PRIORITY, done, wrongPriority), "benchmark");
+			assertTrue(done.await(60, TimeUnit.SECONDS));
+			long end = System.nanoTime();
+			System.out.println(jobs+" jobs: "+((end - start) / jobs)+"ns each, "+
+					exec.waitingThreads()[NativeThread.NORM_PRIORITY - 1]+" threads");
+		}
+	}
+
+}
@@ -1,5 +1,9 @@
 package freenet.support;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
 import freenet.node.FastRunnable;
 import junit.framework.TestCase;
 
@@ -263,4 +267,118 @@ public class PrioritizedTickerTest extends TestCase {
 		}
 	}
 
+	/** Jobs on the higher levels of the wheel are moved down and run on time, in order. */
+	public void testLaterJobsRunInOrder() throws InterruptedException {
+	    final long start = System.currentTimeMillis();
+	    final long[] offsets = new long[] { 1000, 20, 300, 600, 255, 256, 257 };
+	    final ArrayList<Long> ran = new ArrayList<Long>();
+	    for(final long offset : offsets) {
+	        ticker.queueTimedJobAbsolute(new FastRunnable() {
+
+	            @Override
+	            public void run() {
+	                synchronized(ran) {
+	                    assertTrue(System.currentTimeMillis() >= start + offset);
+	                    ran.add(offset);
+	                    ran.notifyAll();
+	                }
+	            }
+
+	        }, "test", start + offset, true, false);
+	    }
+	    synchronized(ran) {
+	        long deadline = System.currentTimeMillis() + 10000;
+	        while(ran.size() < offsets.length && System.currentTimeMillis() < deadline)
+	            ran.wait(1000);
+	    }
+	    long[] sorted = offsets.clone();
+	    Arrays.sort(sorted);
+	    assertEquals(offsets.length, ran.size());
+	    for(int i=0;i<sorted.length;i++)
+	        assertEquals(sorted[i], ran.get(i).longValue());
+	}
+
+	/** Queue and remove lots of jobs from several threads. */
+	public void testQueueAndRemoveMany() throws InterruptedException {
+	    synchronized(PrioritizedTickerTest.this) {
+	        runCount = 0;
+	    }
+	    final int perThread = 10000;
+	    final Runnable[][] jobs = new Runnable[4][perThread];
+	    Thread[] threads = new Thread[jobs.length];
+	    for(int i=0;i<threads.length;i++) {
+	        final Runnable[] myJobs = jobs[i];
+	        threads[i] = new Thread() {
+	            @Override
+	            public void run() {
+	                Random random = new Random();
+	                for(int j=0;j<myJobs.length;j++) {
+	                    myJobs[j] = new FastRunnable() {
+	                        @Override
+	                        public void run() {
+	                            synchronized(PrioritizedTickerTest.this) {
+	                                runCount++;
+	                            }
+	                        }
+	                    };
+	                    // Up to a day ahead, so some are on every level.
+	                    ticker.queueTimedJob(myJobs[j], "test", 1000 + random.nextInt(86400000), true, false);
+	                }
+	                for(Runnable job : myJobs)
+	                    ticker.removeQueuedJob(job);
+	            }
+	        };
+	        threads[i].start();
+	    }
+	    for(Thread t : threads)
+	        t.join();
+	    assertEquals(0, ticker.queuedJobs());
+	    ticker.queueTimedJob(simpleRunnable, "test", 0, true, false);
+	    ticker.waitForIdle();
+	    realExec.waitForIdle();
+	    synchronized(PrioritizedTickerTest.this) {
+	        assertEquals(1, runCount);
+	    }
+	}
+
+	/** Time to queue and remove jobs with 100k jobs queued. */
+	public void testBenchmark() throws InterruptedException {
+	    if(!TestProperty.BENCHMARK) return;
+	    int pending = 100000;
+	    Random random = new Random();
+	    Runnable[] jobs = new Runnable[pending];
+	    for(int i=0;i<pending;i++)
+	        jobs[i] = new Runnable() {
+	            @Override
+	            public void run() {
+	                // Do nothing.
+	            }
+	        };
+	    for(int run=0;run<5;run++) {
+	        long start = System.nanoTime();
+	        for(Runnable job : jobs)
+	            ticker.queueTimedJob(job, "benchmark", 60000 + random.nextInt(3600000), true, false);
+	        long queued = System.nanoTime();
+	        for(Runnable job : jobs)
+	            ticker.removeQueuedJob(job);
+	        long removed = System.nanoTime();
+	        System.out.println("Queueing "+pending+" jobs: "+((queued - start) / pending)+"ns each, removing: "+
+	                ((removed - queued) / pending)+"ns each");
+	    }
+	    // Cost of queueing and removing one job while 100k are queued.
+	    for(Runnable job : jobs)
+	        ticker.queueTimedJob(job, "benchmark", 60000 + random.nextInt(3600000), true, false);
+	    Runnable extra = simpleRunnable;
+	    int iterations = 1000000;
+	    long start = System.nanoTime();
+	    for(int i=0;i<iterations;i++) {
+	        ticker.queueTimedJob(extra, "benchmark", 1000 + (i % 100000), true, false);
+	        ticker.removeQueuedJob(extra);
+	    }
+	    long end = System.nanoTime();
+	    System.out.println("Queue and remove with "+pending+" jobs queued: "+((end - start) / iterations)+"ns");
+	    for(Runnable job : jobs)
+	        ticker.removeQueuedJob(job);
+	}
+
 }
@@ -0,0 +1,240 @@
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import junit.framework.TestCase;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientRequestSelector;
+import freenet.support.RemoveRandom.RemoveRandomReturn;
+
+public class RandomGrabArrayTest extends TestCase {
+
+	static class MyItem implements RandomGrabArrayItem {
+
+		final int id;
+		volatile long wakeupTime;
+		private RandomGrabArray parent;
+
+		MyItem(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public long getWakeupTime(ClientContext context, long now) {
+			long w = wakeupTime;
+			if(w > 0 && w <= now) return 0;
+			return w;
+		}
+
+		@Override
+		public boolean knowsParentGrabArray() {
+			return true;
+		}
+
+		@Override
+		public synchronized void setParentGrabArray(RandomGrabArray parent) {
+			this.parent = parent;
+		}
+
+		@Override
+		public synchronized RandomGrabArray getParentGrabArray() {
+			return parent;
+		}
+
+		@Override
+		public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
+			RandomGrabArray parent = getParentGrabArray();
+			if(parent == null) return false;
+			return parent.reduceWakeupTime(this, wakeupTime, context);
+		}
+
+		@Override
+		public void clearWakeupTime(ClientContext context) {
+			RandomGrabArray parent = getParentGrabArray();
+			if(parent == null) return;
+			parent.clearWakeupTime(this, context);
+		}
+
+	}
+
+	static final RandomGrabArrayItemExclusionList NO_EXCLUSIONS = new RandomGrabArrayItemExclusionList() {
+
+		@Override
+		public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+			return 0;
+		}
+
+	};
+
+	private static ClientContext makeContext(Random random) {
+		return new ClientContext(0, null, null, null, null, null, null, null, null, null, random,
+				null, null, null, null, null, null, null, null, null, null, null, null, null, null,
+				null, null);
+	}
+
+	public void testPartition() {
+		Random random = new Random(2020);
+		RandomGrabPartition<Integer> partition = new RandomGrabPartition<Integer>();
+		ArrayList<Integer> items = new ArrayList<Integer>();
+		// Reference model: item -> wakeup time, 0 = eligible.
+		long[] wakeup = new long[1000];
+		boolean[] present = new boolean[1000];
+		for(int i=0;i<1000;i++)
+			items.add(Integer.valueOf(i)); // Distinct objects, compared by identity.
+		for(int i=0;i<100000;i++) {
+			int x = random.nextInt(items.size());
+			Integer item = items.get(x);
+			switch(random.nextInt(5)) {
+			case 0:
+				assertEquals(!present[x], partition.add(item));
+				if(!present[x]) wakeup[x] = 0;
+				present[x] = true;
+				break;
+			case 1:
+				assertEquals(present[x], partition.remove(item));
+				present[x] = false;
+				break;
+			case 2:
+				long time = 1 + random.nextInt(1000);
+				partition.cooldown(item, time);
+				if(present[x]) wakeup[x] = time;
+				break;
+			case 3:
+				assertEquals(present[x] && wakeup[x] != 0, partition.wake(item));
+				if(present[x]) wakeup[x] = 0;
+				break;
+			case 4:
+				long now = random.nextInt(1000);
+				partition.wakeExpired(now);
+				for(int j=0;j<wakeup.length;j++)
+					if(present[j] && wakeup[j] != 0 && wakeup[j] <= now) wakeup[j] = 0;
+				break;
+			}
+			int eligible = 0;
+			int cooldown = 0;
+			long next = Long.MAX_VALUE;
+			for(int j=0;j<wakeup.length;j++) {
+				if(!present[j]) continue;
+				if(wakeup[j] == 0) {
+					eligible++;
+				} else {
+					cooldown++;
+					next = Math.min(next, wakeup[j]);
+				}
+			}
+			assertEquals(eligible, partition.eligibleCount());
+			assertEquals(cooldown, partition.cooldownCount());
+			assertEquals(next, partition.nextWakeupTime());
+			Integer chosen = partition.chooseEligible(random);
+			if(eligible == 0) {
+				assertNull(chosen);
+			} else {
+				assertTrue(present[chosen]);
+				assertEquals(0, wakeup[chosen]);
+			}
+		}
+	}
+
+	public void testRemoveRandomSkipsCooldown() {
+		ClientContext context = makeContext(new Random(2021));
+		RandomGrabArray rga = new RandomGrabArray(null, null);
+		long now = System.currentTimeMillis();
+		MyItem[] items = new MyItem[100];
+		for(int i=0;i<items.length;i++) {
+			items[i] = new MyItem(i);
+			if(i % 10 != 0) items[i].wakeupTime = now + 1000 + i;
+			rga.add(items[i], context);
+		}
+		for(int i=0;i<1000;i++) {
+			RemoveRandomReturn ret = rga.removeRandom(NO_EXCLUSIONS, context, now);
+			assertEquals(0, ((MyItem) ret.item).id % 10);
+		}
+		assertEquals(90, rga.countInCooldown());
+		assertEquals(100, rga.size());
+		// Finished items are removed.
+		for(int i=0;i<items.length;i+=10)
+			items[i].wakeupTime = -1;
+		RemoveRandomReturn ret = rga.removeRandom(NO_EXCLUSIONS, context, now);
+		assertNull(ret.item);
+		assertEquals(now + 1001, ret.wakeupTime);
+		assertEquals(90, rga.size());
+		assertNull(items[0].getParentGrabArray());
+		// An item says it is ready.
+		items[55].wakeupTime = 0;
+		items[55].clearWakeupTime(context);
+		ret = rga.removeRandom(NO_EXCLUSIONS, context, now);
+		assertSame(items[55], ret.item);
+		// Cooldowns expire.
+		HashSet<MyItem> seen = new HashSet<MyItem>();
+		for(int i=0;i<10000;i++) {
+			ret = rga.removeRandom(NO_EXCLUSIONS, context, now + 2000);
+			seen.add((MyItem) ret.item);
+		}
+		assertEquals(90, seen.size());
+		assertEquals(0, rga.countInCooldown());
+	}
+
+	/** When an item in cooldown is ready again, the starter must be woken, as it may be sleeping
+	 * until the old wakeup time. */
+	public void testClearWakeupTimeWakesStarter() {
+		ClientContext context = makeContext(new Random(2023));
+		ClientRequestSelector root = mock(ClientRequestSelector.class);
+		SectoredRandomGrabArraySimple<Integer, Integer> srga =
+			new SectoredRandomGrabArraySimple<Integer, Integer>(null, null, root);
+		long now = System.currentTimeMillis();
+		MyItem item = new MyItem(0);
+		item.wakeupTime = Long.MAX_VALUE;
+		srga.add(1, item, null);
+		RemoveRandomReturn ret = srga.removeRandom(NO_EXCLUSIONS, context, now);
+		assertNull(ret.item);
+		assertTrue(ret.wakeupTime > now);
+		verify(root, never()).wakeUp(context);
+		item.wakeupTime = 0;
+		item.clearWakeupTime(context);
+		verify(root).wakeUp(context);
+		ret = srga.removeRandom(NO_EXCLUSIONS, context, now);
+		assertSame(item, ret.item);
+	}
+
+	/** Benchmark choosing from 100k items with 90% in cooldown. */
+	public void testCooldownBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		ClientContext context = makeContext(new Random(2022));
+		RandomGrabArray rga = new RandomGrabArray(null, null);
+		long now = System.currentTimeMillis();
+		int count = 100000;
+		for(int i=0;i<count;i++) {
+			MyItem item = new MyItem(i);
+			if(i % 10 != 0) item.wakeupTime = now + 60000;
+			rga.add(item, context);
+		}
+		int choices = 100000;
+		long start = System.nanoTime();
+		// The first choices move the items in cooldown aside as they are found.
+		int firstChoices = 0;
+		while(rga.countInCooldown() < count * 9 / 10) {
+			RemoveRandomReturn ret = rga.removeRandom(NO_EXCLUSIONS, context, now);
+			assertNotNull(ret.item);
+			firstChoices++;
+			assertTrue(firstChoices < count * 10);
+		}
+		long first = System.nanoTime() - start;
+		start = System.nanoTime();
+		for(int i=0;i<choices;i++) {
+			RemoveRandomReturn ret = rga.removeRandom(NO_EXCLUSIONS, context, now);
+			assertEquals(0, ((MyItem) ret.item).id % 10);
+		}
+		long second = System.nanoTime() - start;
+		System.out.println("Moved "+(count * 9 / 10)+" of "+count+" items to cooldown in "+
+				firstChoices+" choices, "+(first / 1000000)+"ms, then chose "+choices+" items in "+
+				(second / 1000000)+"ms");
+	}
+
+}
@@ -0,0 +1,128 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+
+/**
+ * Test case for {@link freenet.support.compress.ParallelCompressor} class.
+ */
+public class ParallelCompressorTest extends TestCase {
+
+	public void testMetadataIDs() {
+		assertEquals(COMPRESSOR_TYPE.BZIP2_MT, COMPRESSOR_TYPE.getCompressorByMetadataID((short)4));
+		assertEquals(COMPRESSOR_TYPE.LZMA_NEW_MT, COMPRESSOR_TYPE.getCompressorByMetadataID((short)5));
+		assertTrue(COMPRESSOR_TYPE.BZIP2_MT.isMultiBlock());
+		assertFalse(COMPRESSOR_TYPE.BZIP2.isMultiBlock());
+	}
+
+	public void testNotUsedByDefault() throws InvalidCompressionCodecException {
+		for(COMPRESSOR_TYPE c : COMPRESSOR_TYPE.getCompressorsArray(null))
+			assertFalse(c.isMultiBlock());
+		COMPRESSOR_TYPE[] explicit = COMPRESSOR_TYPE.getCompressorsArray("GZIP, LZMA_NEW_MT");
+		assertEquals(2, explicit.length);
+		assertEquals(COMPRESSOR_TYPE.LZMA_NEW_MT, explicit[1]);
+	}
+
+	public void testRoundTripBzip2() throws IOException {
+		checkRoundTrip(COMPRESSOR_TYPE.BZIP2_MT);
+	}
+
+	public void testRoundTripLZMA() throws IOException {
+		checkRoundTrip(COMPRESSOR_TYPE.LZMA_NEW_MT);
+	}
+
+	public void testDeterministic() throws IOException {
+		byte[] data = makeData(ParallelCompressor.BLOCK_SIZE * 2 + 100);
+		byte[] first = compress(COMPRESSOR_TYPE.BZIP2_MT, data);
+		byte[] second = compress(COMPRESSOR_TYPE.BZIP2_MT, data);
+		assertTrue(Arrays.equals(first, second));
+	}
+
+	public void testDecompressTooBig() throws IOException {
+		int length = ParallelCompressor.BLOCK_SIZE * 2 + 100;
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2_MT, makeData(length));
+		try {
+			COMPRESSOR_TYPE.BZIP2_MT.decompress(new ByteArrayInputStream(compressed),
+					new ByteArrayOutputStream(), ParallelCompressor.BLOCK_SIZE, length);
+			fail("did not throw expected CompressionOutputSizeException");
+		} catch (CompressionOutputSizeException e) {
+			// The size is taken from the block headers.
+			assertEquals(length, e.estimatedSize);
+		}
+	}
+
+	public void testCompressTooBig() throws IOException {
+		byte[] data = new byte[ParallelCompressor.BLOCK_SIZE + 100];
+		new Random(1).nextBytes(data);
+		try {
+			COMPRESSOR_TYPE.BZIP2_MT.compress(new ByteArrayInputStream(data), new ByteArrayOutputStream(),
+					data.length, data.length / 2);
+			fail("did not throw expected CompressionOutputSizeException");
+		} catch (CompressionOutputSizeException e) {
+			// expect this
+		}
+	}
+
+	public void testCorruptBlockLength() throws IOException {
+		byte[] compressed = compress(COMPRESSOR_TYPE.BZIP2_MT, makeData(1000));
+		// Uncompressed length of the first block.
+		compressed[4] = (byte) 0x7f;
+		try {
+			COMPRESSOR_TYPE.BZIP2_MT.decompress(new ByteArrayInputStream(compressed),
+					new ByteArrayOutputStream(), Long.MAX_VALUE, -1);
+			fail("did not throw expected InvalidCompressedDataException");
+		} catch (InvalidCompressedDataException e) {
+			// expect this
+		}
+	}
+
+	public void testInterruptIsKept() throws IOException {
+		byte[] data = makeData(ParallelCompressor.BLOCK_SIZE + 100);
+		Thread.currentThread().interrupt();
+		byte[] compressed;
+		try {
+			compressed = compress(COMPRESSOR_TYPE.BZIP2_MT, data);
+		} finally {
+			// Clears the flag, so it doesn't affect other tests.
+			assertTrue(Thread.interrupted());
+		}
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(data.length);
+		COMPRESSOR_TYPE.BZIP2_MT.decompress(new ByteArrayInputStream(compressed), baos, data.length, -1);
+		assertTrue(Arrays.equals(data, baos.toByteArray()));
+	}
+
+	private void checkRoundTrip(COMPRESSOR_TYPE type) throws IOException {
+		for(int length : new int[] { 1, 5000, ParallelCompressor.BLOCK_SIZE * 2 + 12345 }) {
+			byte[] data = makeData(length);
+			byte[] compressed = compress(type, data);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(length);
+			long written = type.decompress(new ByteArrayInputStream(compressed), baos, length, -1);
+			assertEquals(length, written);
+			assertTrue(Arrays.equals(data, baos.toByteArray()));
+		}
+	}
+
+	private byte[] compress(COMPRESSOR_TYPE type, byte[] data) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		type.compress(new ByteArrayInputStream(data), baos, data.length, Long.MAX_VALUE);
+		return baos.toByteArray();
+	}
+
+	/** Compressible but not trivially so. */
+	private byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		Random r = new Random(length);
+		for(int i = 0; i < length; i++)
+			data[i] = (byte) ('a' + r.nextInt(8));
+		return data;
+	}
+}
@@ -1,11 +1,16 @@
 package freenet.support.io;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
+import freenet.support.TestProperty;
 import freenet.support.api.LockableRandomAccessBuffer.RAFLock;
+import freenet.support.io.BaseFileBucket.FileBucketOutputStream;
 import freenet.support.io.PooledFileRandomAccessBuffer.FDTracker;
 
 public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase {
@@ -154,7 +159,7 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         // Open and open FD -> locked
         RAFLock la = a.lockOpen();
         assertEquals(fds.getOpenFDs(), 1);
-        assertEquals(fds.getClosableFDs(), 1);
+        assertEquals(fds.getClosableFDs(), 0);
         RAFLock lb = b.lockOpen();
         assertEquals(fds.getOpenFDs(), 2);
         assertEquals(fds.getClosableFDs(), 0);
@@ -283,6 +288,182 @@ public class PooledFileRandomAccessBufferTest extends RandomAccessBufferTestBase
         b.free();
     }
     
+    public void testTransferTo() throws IOException {
+        for(int sz : TEST_LIST)
+            innerTestTransferTo(sz);
+    }
+    
+    private void innerTestTransferTo(int sz) throws IOException {
+        fds.setMaxFDs(1);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        byte[] buf = new byte[sz];
+        new Random(1153).nextBytes(buf);
+        a.pwrite(0, buf, 0, buf.length);
+        // Copy the second half, with something already in the file, and not holding the fd.
+        a.closeRAF();
+        File f = File.createTempFile("test", ".tmp", base);
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(1);
+        int offset = sz / 2;
+        a.transferTo(offset, sz - offset, fos.getChannel());
+        fos.close();
+        byte[] cmp = Files.readAllBytes(f.toPath());
+        assertEquals(sz - offset + 1, cmp.length);
+        assertEquals(1, cmp[0]);
+        for(int i=offset;i<sz;i++)
+            assertEquals(buf[i], cmp[i-offset+1]);
+        try {
+            a.transferTo(offset, sz - offset + 1, fos.getChannel());
+            fail("Should not be able to read past the end");
+        } catch (IOException e) {
+            // Expected.
+        }
+        a.close();
+        a.free();
+    }
+    
+    public void testTransferToFileBucket() throws IOException {
+        int sz = 65536;
+        PooledFileRandomAccessBuffer a = construct(sz);
+        byte[] buf = new byte[sz];
+        new Random(1154).nextBytes(buf);
+        a.pwrite(0, buf, 0, buf.length);
+        File f = File.createTempFile("test", ".tmp", base);
+        FileBucket bucket = new FileBucket(f, false, false, false, true);
+        FileBucketOutputStream os = (FileBucketOutputStream) bucket.getOutputStreamUnbuffered();
+        os.write(1);
+        os.transferFrom(a, 0, sz);
+        os.close();
+        byte[] cmp = Files.readAllBytes(f.toPath());
+        assertEquals(sz + 1, cmp.length);
+        assertEquals(1, cmp[0]);
+        assertTrue(Arrays.equals(buf, Arrays.copyOfRange(cmp, 1, cmp.length)));
+        // Writing to a freed bucket fails, even without going through write().
+        os = (FileBucketOutputStream) bucket.getOutputStreamUnbuffered();
+        bucket.free();
+        try {
+            os.transferFrom(a, 0, sz);
+            fail("Should not be able to write to a freed bucket");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertFalse(f.exists());
+        a.close();
+        a.free();
+    }
+    
+    public void testReopenStats() throws IOException {
+        int sz = 1024;
+        fds.setMaxFDs(1);
+        PooledFileRandomAccessBuffer a = construct(sz);
+        PooledFileRandomAccessBuffer b = construct(sz);
+        assertEquals(2, fds.getOpens());
+        assertEquals(0, fds.getReopens());
+        assertEquals(1, fds.getEvictions());
+        byte[] buf = new byte[sz];
+        a.pread(0, buf, 0, sz);
+        assertEquals(3, fds.getOpens());
+        assertEquals(1, fds.getReopens());
+        assertEquals(2, fds.getEvictions());
+        // Closing explicitly is not an eviction, and neither is the open that follows.
+        a.closeRAF();
+        b.pread(0, buf, 0, sz);
+        assertEquals(4, fds.getOpens());
+        assertEquals(2, fds.getReopens());
+        assertEquals(2, fds.getEvictions());
+        a.close();
+        b.close();
+        assertEquals(0, fds.getOpenFDs());
+        a.free();
+        b.free();
+    }
+
+    /** The least recently used files should be closed first, so a small working set of files
+     * stays open even when other files are used now and then. */
+    public void testEvictsUnusedFirst() throws IOException {
+        int sz = 1024;
+        fds.setMaxFDs(3);
+        PooledFileRandomAccessBuffer[] files = new PooledFileRandomAccessBuffer[6];
+        for(int i=0;i<files.length;i++)
+            files[i] = construct(sz);
+        byte[] buf = new byte[sz];
+        for(int i=0;i<10;i++) {
+            files[0].pread(0, buf, 0, sz);
+            files[1].pread(0, buf, 0, sz);
+            files[2+(i%4)].pread(0, buf, 0, sz);
+        }
+        assertTrue(files[0].isOpen());
+        assertTrue(files[1].isOpen());
+        assertEquals(3, fds.getOpenFDs());
+        for(PooledFileRandomAccessBuffer f : files) {
+            f.close();
+            f.free();
+        }
+        assertEquals(0, fds.getOpenFDs());
+    }
+
+    public void testDefaultMaxFDs() {
+        int max = PooledFileRandomAccessBuffer.defaultMaxFDs();
+        assertTrue(max >= 100);
+        assertTrue(max <= 1000);
+    }
+
+    /** Many threads reading many files through a pool smaller than the number of files. Checks
+     * the data and the limit, and reports throughput and how often files were reopened. */
+    public void testContention() throws Exception {
+        final int files = 64;
+        final int threads = 8;
+        final int reads = 5000;
+        final int sz = 4096;
+        fds.setMaxFDs(files / 2);
+        final PooledFileRandomAccessBuffer[] bufs = new PooledFileRandomAccessBuffer[files];
+        for(int i=0;i<files;i++) {
+            bufs[i] = construct(sz);
+            byte[] data = new byte[sz];
+            Arrays.fill(data, (byte) i);
+            bufs[i].pwrite(0, data, 0, sz);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for(int t=0;t<threads;t++) {
+            final Random random = new Random(t);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buf = new byte[64];
+                    try {
+                        for(int i=0;i<reads;i++) {
+                            // Mostly a hot set that fits in the pool, sometimes the rest.
+                            int f = random.nextInt(8) == 0 ? random.nextInt(files) : random.nextInt(files / 4);
+                            bufs[f].pread(random.nextInt(sz - buf.length), buf, 0, buf.length);
+                            for(byte b : buf)
+                                if(b != (byte) f) throw new AssertionError("Wrong data in file "+f);
+                            if(fds.getOpenFDs() > files / 2) throw new AssertionError("Too many open files");
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for(Thread t : workers)
+            t.join();
+        long time = System.nanoTime() - start;
+        if(failure.get() != null) throw new AssertionError(failure.get());
+        if(TestProperty.BENCHMARK)
+            System.out.println("Pooled file contention: "+threads+" threads, "+(threads*reads*1000000000L/time)+
+                    " reads/sec, "+fds.getOpens()+" opens, "+fds.getReopens()+" reopens, "+fds.getEvictions()+" evictions");
+        assertTrue(fds.getOpenFDs() <= files / 2);
+        for(PooledFileRandomAccessBuffer b : bufs) {
+            assertFalse(b.isLocked());
+            b.close();
+            b.free();
+        }
+        assertEquals(0, fds.getOpenFDs());
+    }
+
     // FIXME more tests???
     
 }
@@ -0,0 +1,144 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBuffer;
+
+public class SlabBucketTest extends BucketTestBase {
+	private final SlabAllocator allocator = new SlabAllocator();
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new SlabBucket(allocator);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	public void testFreeReturnsMemory() throws IOException {
+		SlabBucket bucket = new SlabBucket(allocator);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[10000]);
+		os.close();
+		assertEquals(10000, bucket.size());
+		assertEquals(3 * allocator.slabSize(), bucket.usedBytes());
+		assertEquals(3 * allocator.slabSize(), allocator.getUsedBytes());
+		InputStream is = bucket.getInputStream();
+		bucket.free();
+		assertEquals(0, allocator.getUsedBytes());
+		try {
+			is.read();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testToRandomAccessBuffer() throws IOException {
+		byte[] data = new byte[9000];
+		new Random(1234).nextBytes(data);
+		SlabBucket bucket = new SlabBucket(allocator);
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		RandomAccessBuffer raf = bucket.toRandomAccessBuffer();
+		assertTrue(bucket.isReadOnly());
+		assertEquals(data.length, raf.size());
+		byte[] cmp = new byte[data.length];
+		raf.pread(0, cmp, 0, cmp.length);
+		assertTrue(Arrays.equals(data, cmp));
+		// The bucket can still be read, through the RAF.
+		assertTrue(Arrays.equals(data, BucketTools.toByteArray(bucket)));
+		// The RAF owns the memory now.
+		bucket.free();
+		assertEquals(3 * allocator.slabSize(), allocator.getUsedBytes());
+		raf.free();
+		assertEquals(0, allocator.getUsedBytes());
+	}
+
+	public void testWriteTo() throws IOException {
+		byte[] data = new byte[10000];
+		new Random(4321).nextBytes(data);
+		SlabBucket bucket = new SlabBucket(allocator);
+		OutputStream os = bucket.getOutputStream();
+		for(int i=0;i<data.length;i+=100)
+			os.write(data, i, 100);
+		os.close();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bucket.writeTo(baos);
+		assertTrue(Arrays.equals(data, baos.toByteArray()));
+		bucket.free();
+	}
+
+	/** Simulates temp buckets for fetched and filtered pages and FCP data: Fill a bucket, read it
+	 * back, free it, with many of them alive at once. Reports GC activity for ArrayBucket and
+	 * SlabBucket. */
+	public void testHeapChurn() throws IOException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int round=0;round<2;round++) {
+			runChurn(false);
+			runChurn(true);
+		}
+	}
+
+	private void runChurn(boolean slabs) throws IOException {
+		Random r = new Random(5678);
+		byte[] buf = new byte[4096];
+		Bucket[] live = new Bucket[64];
+		long gcCount = gcCount(), gcTime = gcTime();
+		long start = System.nanoTime();
+		long bytes = 0;
+		for(int i=0;i<4000;i++) {
+			int slot = r.nextInt(live.length);
+			if(live[slot] != null) {
+				InputStream is = live[slot].getInputStream();
+				while(is.read(buf) > 0);
+				is.close();
+				live[slot].free();
+			}
+			Bucket bucket = slabs ? new SlabBucket(allocator) : new ArrayBucket();
+			int size = 1024 + r.nextInt(256*1024);
+			OutputStream os = bucket.getOutputStream();
+			for(int written=0;written<size;written+=buf.length)
+				os.write(buf, 0, Math.min(buf.length, size - written));
+			os.close();
+			bytes += size;
+			live[slot] = bucket;
+		}
+		for(Bucket b : live)
+			if(b != null) b.free();
+		long time = System.nanoTime() - start;
+		System.out.println((slabs ? "SlabBucket" : "ArrayBucket")+": "+(bytes / (1024*1024))+"MB in "+
+				(time / 1000000)+"ms, "+(gcCount() - gcCount)+" collections, "+(gcTime() - gcTime)+
+				"ms in GC, off-heap allocated "+(allocator.getAllocatedBytes() / 1024)+"KB");
+		if(slabs) assertEquals(0, allocator.getUsedBytes());
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			count += gc.getCollectionCount();
+		return count;
+	}
+
+	private static long gcTime() {
+		long time = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			time += gc.getCollectionTime();
+		return time;
+	}
+}
@@ -0,0 +1,69 @@
+package freenet.support.io;
+
+import java.io.IOException;
+
+import freenet.support.api.RandomAccessBuffer;
+
+public class SlabRandomAccessBufferTest extends RandomAccessBufferTestBase {
+
+    private static final int[] TEST_LIST = new int[] { 0, 1, 32, 64, 4095, 4096, 4097, 32768, 1024*1024, 1024*1024+1 };
+    
+    private final SlabAllocator allocator = new SlabAllocator();
+    
+    public SlabRandomAccessBufferTest() {
+        super(TEST_LIST);
+    }
+
+    @Override
+    protected RandomAccessBuffer construct(long size) throws IOException {
+        assert(size < Integer.MAX_VALUE);
+        return new SlabRandomAccessBuffer(allocator, (int)size);
+    }
+    
+    public void testFreeReturnsMemory() throws IOException {
+        SlabRandomAccessBuffer raf = new SlabRandomAccessBuffer(allocator, 10000);
+        assertEquals(3 * allocator.slabSize(), allocator.getUsedBytes());
+        byte[] buf = new byte[] { 1, 2, 3 };
+        raf.pwrite(4094, buf, 0, buf.length);
+        raf.free();
+        assertEquals(0, allocator.getUsedBytes());
+        try {
+            raf.pread(0, buf, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        // Reused memory must not show the old data.
+        long allocated = allocator.getAllocatedBytes();
+        raf = new SlabRandomAccessBuffer(allocator, 10000);
+        assertEquals(allocated, allocator.getAllocatedBytes());
+        byte[] cmp = new byte[10000];
+        raf.pread(0, cmp, 0, cmp.length);
+        for(byte b : cmp)
+            assertEquals(0, b);
+        raf.free();
+    }
+    
+    public void testInitialContents() throws IOException {
+        byte[] buf = new byte[5000];
+        for(int i=0;i<buf.length;i++) buf[i] = (byte)i;
+        SlabRandomAccessBuffer raf = new SlabRandomAccessBuffer(allocator, buf, 100, 4900, true);
+        assertEquals(4900, raf.size());
+        byte[] cmp = new byte[4900];
+        raf.pread(0, cmp, 0, cmp.length);
+        for(int i=0;i<cmp.length;i++)
+            assertEquals((byte)(i+100), cmp[i]);
+        try {
+            raf.pwrite(0, buf, 0, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected, read only.
+        }
+        long total = 0;
+        for(java.nio.ByteBuffer b : raf.getBuffers())
+            total += b.remaining();
+        assertEquals(4900, total);
+        raf.free();
+    }
+
+}